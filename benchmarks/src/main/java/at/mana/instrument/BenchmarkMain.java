@@ -0,0 +1,40 @@
+package at.mana.instrument;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point of the benchmark jar. Accepts the usual JMH arguments, but unless stated otherwise
+ * the results are written as JSON to {@value #RESULT_FILE}, so runs of different builds can be
+ * compared and regressions of the plugin's overhead tracked over time.
+ */
+public final class BenchmarkMain {
+
+    public static final String RESULT_FILE = "target/jmh-result.json";
+
+    private BenchmarkMain() {
+    }
+
+    public static void main( String[] arguments ) throws Exception {
+        CommandLineOptions commandLine = new CommandLineOptions( arguments );
+        if( commandLine.shouldHelp() ) {
+            commandLine.showHelp();
+            return;
+        }
+        ChainedOptionsBuilder options = new OptionsBuilder().parent( commandLine );
+        if( !commandLine.getResultFormat().hasValue() ) {
+            options.resultFormat( ResultFormatType.JSON );
+            if( !commandLine.getResult().hasValue() )
+                options.result( RESULT_FILE );
+        }
+        Runner runner = new Runner( options.build() );
+        if( commandLine.shouldList() )
+            runner.list();
+        else
+            runner.run();
+    }
+
+}
@@ -0,0 +1,62 @@
+package at.mana.instrument;
+
+import javassist.ClassPool;
+import javassist.CtClass;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Per-call overhead of the bytecode the plugin injects into a traced method, compared to the
+ * untouched method. The method is instrumented by {@link ClassInstrumenter} exactly like the
+ * mojo does and called through an interface, so the score only contains the hooks.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InjectedCodeBenchmark {
+
+    /**
+     * plain is not instrumented, trace injects the trace hooks, sampled traces one in 16 calls
+     */
+    @Param({ "plain", "trace", "sampled" })
+    public String mode;
+
+    private IntUnaryOperator method;
+    private int argument;
+
+    @Setup(Level.Trial)
+    public void instrument() throws Exception {
+        CtClass ctClass = SyntheticClasses.make( new ClassPool( true ), "Injected_" + mode, 1 );
+        InstrumentationReport report = new InstrumentationReport();
+        if( !mode.equals( "plain" ) ) {
+            InstrumentationConfig config = InstrumentationConfig.builder()
+                    .packages( List.of( SyntheticClasses.PACKAGE ) )
+                    .samplingRate( 50 )
+                    .trace( true )
+                    .callSampling( mode.equals( "sampled" ) ? 16 : 1 )
+                    .build();
+            new ClassInstrumenter( config, new ClassPool( true ) ).instrument( ctClass, report );
+        }
+        method = (IntUnaryOperator) SyntheticClasses.define( ctClass, report ).getConstructor().newInstance();
+    }
+
+    @Setup(Level.Iteration)
+    public void reset() {
+        FileCommandFactory.getInstance().getRecorder().reset();
+    }
+
+    /**
+     * One call of a traced method calling another traced method
+     */
+    @Benchmark
+    public int call() {
+        return method.applyAsInt( argument++ );
+    }
+
+}
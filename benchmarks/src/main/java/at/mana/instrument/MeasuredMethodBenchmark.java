@@ -0,0 +1,71 @@
+package at.mana.instrument;
+
+import javassist.ClassPool;
+import javassist.CtClass;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntUnaryOperator;
+import java.util.stream.Stream;
+
+/**
+ * Time a measured method takes in addition to its own work, i.e. starting and stopping the RAPL
+ * sampler, the waits of the {@link SampleSync} and writing the .mana file. Every invocation is a
+ * complete measurement, so the benchmark needs read access to the RAPL interface of the machine.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 2)
+@Measurement(iterations = 10)
+@Fork(1)
+public class MeasuredMethodBenchmark {
+
+    @Param({ "periods", "fixed" })
+    public String sampleSync;
+
+    @Param({ "json", "binary" })
+    public String format;
+
+    private Path output;
+    private IntUnaryOperator method;
+
+    @Setup(Level.Trial)
+    public void instrument() throws Exception {
+        output = Files.createTempDirectory( "mana-bench" );
+        CtClass ctClass = SyntheticClasses.make( new ClassPool( true ), "Measured_" + sampleSync + "_" + format, 0 );
+        InstrumentationConfig config = InstrumentationConfig.builder()
+                .packages( List.of( SyntheticClasses.PACKAGE ) )
+                .outputFolder( output.toString() )
+                .samplingRate( 50 )
+                .measureMethods( PatternSet.of( "applyAsInt" ) )
+                .format( at.mana.instrument.format.ManaFormat.of( format ) )
+                .sampleSync( SampleSync.of( sampleSync ) )
+                .build();
+        InstrumentationReport report = new InstrumentationReport();
+        new ClassInstrumenter( config, new ClassPool( true ) ).instrument( ctClass, report );
+        method = (IntUnaryOperator) SyntheticClasses.define( ctClass, report ).getConstructor().newInstance();
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() throws IOException {
+        try( Stream<Path> files = Files.walk( output ) ) {
+            files.sorted( Comparator.reverseOrder() ).map( Path::toFile ).forEach( File::delete );
+        }
+    }
+
+    /**
+     * One measurement of a method that does next to nothing
+     */
+    @Benchmark
+    public int measure() {
+        return method.applyAsInt( 1 );
+    }
+
+}
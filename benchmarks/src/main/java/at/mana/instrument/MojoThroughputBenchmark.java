@@ -0,0 +1,82 @@
+package at.mana.instrument;
+
+import javassist.ClassPool;
+import javassist.NotFoundException;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Classes per second the mojo instruments, measured on a generated corpus of class files. The
+ * classes are processed by the {@link InstrumentationEngine} with class pools set up like the
+ * mojo does; the altered bytecode is discarded, so the corpus stays untouched between invocations.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MojoThroughputBenchmark {
+
+    private static final int CLASSES = 500;
+    private static final int METHODS = 12;
+
+    /**
+     * Workers of the engine, 0 uses all available processors
+     */
+    @Param({ "1", "0" })
+    public int threads;
+
+    @Param({ "false", "true" })
+    public boolean trace;
+
+    private Path corpus;
+    private Map<String, File> classes;
+    private InstrumentationConfig config;
+
+    @Setup(Level.Trial)
+    public void generate() throws Exception {
+        corpus = Files.createTempDirectory( "mana-corpus" );
+        classes = SyntheticClasses.corpus( corpus.toFile(), CLASSES, METHODS );
+        config = InstrumentationConfig.builder()
+                .packages( List.of( SyntheticClasses.PACKAGE ) )
+                .samplingRate( 50 )
+                .trace( trace )
+                .measureMethods( PatternSet.of( "method0" ) )
+                .build();
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() throws IOException {
+        try( Stream<Path> files = Files.walk( corpus ) ) {
+            files.sorted( Comparator.reverseOrder() ).map( Path::toFile ).forEach( File::delete );
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CLASSES)
+    public Map<String, InstrumentationReport> instrument() {
+        return new InstrumentationEngine( threads, () -> new ClassInstrumenter( config, classPool() ),
+                ( className, file, bytecode ) -> { } ).run( classes );
+    }
+
+    private ClassPool classPool() {
+        ClassPool classPool = new ClassPool( true );
+        try {
+            classPool.appendClassPath( corpus.toString() );
+        } catch( NotFoundException e ) {
+            throw new IllegalStateException( e );
+        }
+        return classPool;
+    }
+
+}
@@ -0,0 +1,75 @@
+package at.mana.instrument;
+
+import at.mana.instrument.trace.MethodTable;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtNewConstructor;
+import javassist.CtNewMethod;
+
+import java.io.File;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Generates the classes the benchmarks instrument. Every class implements
+ * {@link java.util.function.IntUnaryOperator}, so an instrumented class is called without
+ * reflection, and holds a number of small methods of varying length like typical application code.
+ */
+final class SyntheticClasses {
+
+    static final String PACKAGE = "at.mana.bench";
+
+    private SyntheticClasses() {
+    }
+
+    /**
+     * @param simpleName name of the class within {@link #PACKAGE}
+     * @param methods    number of methods besides {@code applyAsInt}, which calls the first one
+     */
+    static CtClass make( ClassPool pool, String simpleName, int methods ) throws Exception {
+        CtClass ctClass = pool.makeClass( PACKAGE + "." + simpleName );
+        ctClass.addInterface( pool.get( "java.util.function.IntUnaryOperator" ) );
+        ctClass.addConstructor( CtNewConstructor.defaultConstructor( ctClass ) );
+        for( int m = 0; m < methods; m++ ) {
+            StringBuilder body = new StringBuilder( "public int method" + m + "(int x) { int y = x;" );
+            for( int s = 0; s <= m % 8; s++ )
+                body.append( " y = y * 31 + " ).append( s ).append( ';' );
+            body.append( " return y; }" );
+            ctClass.addMethod( CtNewMethod.make( body.toString(), ctClass ) );
+        }
+        ctClass.addMethod( CtNewMethod.make( "public int applyAsInt(int x) { return "
+                + (methods > 0 ? "method0(x)" : "x + 1") + "; }", ctClass ) );
+        return ctClass;
+    }
+
+    /**
+     * Writes a corpus of class files
+     *
+     * @return qualified class names mapped to their class files
+     */
+    static Map<String, File> corpus( File directory, int classes, int methods ) throws Exception {
+        ClassPool pool = new ClassPool( true );
+        Map<String, File> files = new TreeMap<>();
+        for( int c = 0; c < classes; c++ ) {
+            CtClass ctClass = make( pool, "Generated" + c, methods );
+            ctClass.writeFile( directory.getAbsolutePath() );
+            files.put( ctClass.getName(), new File( directory, ctClass.getName().replace( '.', File.separatorChar ) + ".class" ) );
+            ctClass.detach();
+        }
+        return files;
+    }
+
+    /**
+     * Loads an instrumented class, its method names are registered like the agent does
+     */
+    static Class<?> define( CtClass ctClass, InstrumentationReport report ) throws Exception {
+        MethodTable.define( ctClass.getName(), report.getMethods() );
+        byte[] bytecode = ctClass.toBytecode();
+        return new ClassLoader( SyntheticClasses.class.getClassLoader() ) {
+            Class<?> define() {
+                return defineClass( ctClass.getName(), bytecode, 0, bytecode.length );
+            }
+        }.define();
+    }
+
+}
@@ -0,0 +1,64 @@
+package at.mana.instrument;
+
+import at.mana.exec.rapl.internal.trace.RaplInternalCommandTraceHandler;
+import at.mana.exec.rapl.internal.trace.RaplTraceHandler;
+import at.mana.instrument.trace.MethodTable;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.Writer;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-call overhead of one enter/exit pair as injected into every traced method. Run with
+ * {@code -prof gc} to compare the allocation rate of both variants.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TraceHookBenchmark {
+
+    private static final String CLASS_NAME = "at.mana.sample.Sample";
+    private static final String METHOD_NAME = "compute";
+    private static final String METHOD_DESC = "(I)I";
+
+    private RaplTraceHandler<Writer> handler;
+    private int id;
+
+    @Setup(Level.Trial)
+    public void register() {
+        id = MethodTable.register( CLASS_NAME, 1 );
+    }
+
+    @Setup(Level.Iteration)
+    public void reset() {
+        handler = new RaplInternalCommandTraceHandler();
+        handler.init( source -> "[]" );
+        FileCommandFactory.getInstance().getRecorder().reset();
+    }
+
+    /**
+     * Hooks as injected by earlier plugin versions, strings and an {@link Instant} per call
+     */
+    @Benchmark
+    public void stringHooks() {
+        handler.enter( CLASS_NAME, METHOD_NAME, METHOD_DESC, System.currentTimeMillis(),
+                ChronoUnit.MICROS.between( Instant.EPOCH, Instant.now() ) );
+        handler.exit( CLASS_NAME, METHOD_NAME, METHOD_DESC, System.currentTimeMillis(),
+                ChronoUnit.MICROS.between( Instant.EPOCH, Instant.now() ) );
+    }
+
+    /**
+     * Hooks as injected now, a method id and {@link System#nanoTime()}
+     */
+    @Benchmark
+    public void internedHooks() {
+        FileCommandFactory.getInstance().enter( id, System.nanoTime() );
+        FileCommandFactory.getInstance().exit( id, System.nanoTime() );
+    }
+
+}
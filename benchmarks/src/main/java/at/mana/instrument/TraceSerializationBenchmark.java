@@ -0,0 +1,118 @@
+package at.mana.instrument;
+
+import at.mana.instrument.format.CallTreeProfile;
+import at.mana.instrument.format.ManaBinaryWriter;
+import at.mana.instrument.trace.MethodTable;
+import at.mana.instrument.trace.TraceJsonWriter;
+import at.mana.instrument.trace.TraceRecorder;
+import at.mana.instrument.trace.TraceSnapshot;
+import at.mana.instrument.transport.Frame;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of turning a recorded trace into what the factories write: the trace section of a
+ * json file written by {@link FileCommandFactory}, a binary file, an aggregated profile and the
+ * trace frames streamed by {@link SocketCommandFactory}. Scores are calls per second.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TraceSerializationBenchmark {
+
+    private static final int CALLS = 3 * 3_000;
+    private static final int METHODS = 32;
+    private static final String ENERGY = "[{\"time\":\"1617000000000\", \"pkg\":1.5},{\"time\":\"1617000000050\", \"pkg\":2.5}]";
+
+    private final TraceJsonWriter serializer = new TraceJsonWriter();
+    private final ManaBinaryWriter binarySerializer = new ManaBinaryWriter();
+    private TraceSnapshot snapshot;
+
+    @Setup(Level.Trial)
+    public void record() {
+        List<MethodTable.Method> methods = new ArrayList<>();
+        for( int m = 0; m < METHODS; m++ )
+            methods.add( new MethodTable.Method( "at.mana.bench.Serialized", "method" + m, "(I)I", m ) );
+        int base = MethodTable.register( methods );
+        // nested calls three levels deep spread over the sampled period
+        TraceRecorder recorder = new TraceRecorder( 4 * CALLS );
+        long time = recorder.toNanos( 1_617_000_000_000_000L );
+        for( int c = 0; c < CALLS / 3; c++ ) {
+            int id = base + c % METHODS;
+            recorder.enter( id, time );
+            recorder.enter( id + 1 == base + METHODS ? base : id + 1, time + 100 );
+            recorder.enter( id, time + 200 );
+            recorder.exit( id, time + 1_000 );
+            recorder.exit( id, time + 2_000 );
+            recorder.exit( id, time + 3_000 );
+            time += 4_000;
+        }
+        snapshot = recorder.snapshot();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CALLS)
+    public void json() throws IOException {
+        serializer.write( snapshot, NullWriter.INSTANCE );
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CALLS)
+    public void binary() throws IOException {
+        binarySerializer.write( snapshot, ENERGY, false, NullOutputStream.INSTANCE );
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CALLS)
+    public void profile() throws IOException {
+        CallTreeProfile.build( snapshot, ENERGY ).writeJson( NullWriter.INSTANCE );
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CALLS)
+    public ByteBuffer frame() throws IOException {
+        StringWriter json = new StringWriter();
+        serializer.write( snapshot, json );
+        return new Frame( Frame.TRACE, 1, json.toString() ).encode();
+    }
+
+    private static final class NullWriter extends Writer {
+        static final Writer INSTANCE = new NullWriter();
+
+        @Override
+        public void write( char[] buffer, int offset, int length ) {
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static final class NullOutputStream extends OutputStream {
+        static final OutputStream INSTANCE = new NullOutputStream();
+
+        @Override
+        public void write( int b ) {
+        }
+
+        @Override
+        public void write( byte[] buffer, int offset, int length ) {
+        }
+    }
+
+}
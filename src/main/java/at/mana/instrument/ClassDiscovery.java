@@ -0,0 +1,87 @@
+package at.mana.instrument;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+/**
+ * Finds the class files of an output directory. The directory is walked with
+ * {@link Files#walkFileTree}, which hands out the file attributes read along with the listing, and
+ * the package of every folder is derived from its parent while descending. Folders whose package
+ * cannot hold a class starting with one of the given prefixes are skipped with their subtree.
+ */
+public class ClassDiscovery {
+
+    private static final String CLASS_SUFFIX = ".class";
+
+    private final List<String> prefixes;
+
+    /**
+     * @param prefixes class name prefixes as used by {@link InstrumentationConfig#accepts(String)},
+     *                 empty to find all classes
+     */
+    public ClassDiscovery( Collection<String> prefixes ) {
+        this.prefixes = new ArrayList<>( prefixes );
+    }
+
+    /**
+     * Passes the qualified name and file of every class found below the directory to the consumer
+     */
+    public void walk( File directory, BiConsumer<String, File> consumer ) throws IOException {
+        Path root = directory.toPath();
+        if( !Files.isDirectory( root ) )
+            return;
+        Deque<String> packages = new ArrayDeque<>();
+        Files.walkFileTree( root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory( Path dir, BasicFileAttributes attributes ) {
+                String name = packages.isEmpty() ? "" : packages.peek() + dir.getFileName() + ".";
+                if( !mayContain( name ) )
+                    return FileVisitResult.SKIP_SUBTREE;
+                packages.push( name );
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile( Path file, BasicFileAttributes attributes ) {
+                String name = file.getFileName().toString();
+                if( attributes.isRegularFile() && name.endsWith( CLASS_SUFFIX ) )
+                    consumer.accept( packages.peek() + name.substring( 0, name.length() - CLASS_SUFFIX.length() ), file.toFile() );
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory( Path dir, IOException e ) throws IOException {
+                if( e != null )
+                    throw e;
+                packages.pop();
+                return FileVisitResult.CONTINUE;
+            }
+        } );
+    }
+
+    /**
+     * @param packageName package of a folder including the trailing dot, empty for the root
+     * @return true if a class of the package or one of its subpackages may match a prefix
+     */
+    boolean mayContain( String packageName ) {
+        if( prefixes.isEmpty() )
+            return true;
+        for( String prefix : prefixes ) {
+            if( prefix.startsWith( packageName ) || packageName.startsWith( prefix ) )
+                return true;
+        }
+        return false;
+    }
+
+}
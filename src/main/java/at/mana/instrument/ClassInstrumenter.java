@@ -0,0 +1,317 @@
+package at.mana.instrument;
+
+import at.mana.core.util.ConsoleColors;
+import at.mana.exec.rapl.AlteredByMana;
+import at.mana.exec.rapl.TraceMana;
+import at.mana.exec.rapl.internal.RaplInternalCommand;
+import at.mana.exec.rapl.internal.RaplInternalCommandParameter;
+import at.mana.exec.rapl.internal.RaplJsonDecorator;
+import at.mana.exec.rapl.internal.RaplSocketDecorator;
+import at.mana.instrument.format.ManaFormat;
+import at.mana.instrument.format.TraceLayout;
+import at.mana.instrument.trace.CallSampler;
+import at.mana.instrument.trace.MethodTable;
+import at.mana.instrument.transport.Transport;
+import javassist.*;
+import javassist.bytecode.AccessFlag;
+import javassist.bytecode.AnnotationsAttribute;
+import javassist.bytecode.CodeAttribute;
+import javassist.bytecode.ConstPool;
+import javassist.bytecode.MethodInfo;
+import javassist.bytecode.annotation.Annotation;
+import javassist.bytecode.annotation.IntegerMemberValue;
+import javassist.bytecode.annotation.MemberValue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Injects the MANA measurement and trace hooks into a single class. An instrumenter is bound to
+ * one {@link ClassPool} and is not thread-safe, parallel workers use an instrumenter each.
+ */
+public class ClassInstrumenter {
+
+    private static final Pattern LAMBDA = Pattern.compile( "lambda\\$(.*)\\$(\\d+)" );
+
+    private final InstrumentationConfig config;
+    private final ClassPool classPool;
+
+    public ClassInstrumenter( InstrumentationConfig config, ClassPool classPool ) {
+        this.config = config;
+        this.classPool = classPool;
+    }
+
+    public ClassPool getClassPool() {
+        return classPool;
+    }
+
+    /**
+     * Instruments the class with the given name as found in the class pool
+     *
+     * @param className qualified class name
+     * @param report    report collecting the log output for this class
+     * @return the altered bytecode or null if the class was left untouched
+     */
+    public byte[] instrument( String className, InstrumentationReport report )
+            throws NotFoundException, IOException, CannotCompileException {
+        CtClass ctClass = classPool.get( className );
+        try {
+            return instrument( ctClass, report ) ? ctClass.toBytecode() : null;
+        } finally {
+            // release the class from the pool, it is not needed for any other class
+            ctClass.detach();
+        }
+    }
+
+    /**
+     * Injects the measurement hooks into test methods and, if tracing is enabled, the trace hooks
+     * into all other methods, constructors, the static initializer and lambda bodies of the given class
+     *
+     * @param ctClass class to instrument
+     * @param report  report collecting the log output for this class
+     * @return true if at least one method was altered
+     */
+    public boolean instrument( CtClass ctClass, InstrumentationReport report ) throws NotFoundException, CannotCompileException {
+        var altered = false;
+        // interfaces cannot hold the private base id field, abstract classes are traced only
+        if ( ctClass.isInterface() || ( Modifier.isAbstract(ctClass.getModifiers()) && !config.isTrace() ) ) {
+            return false;
+        }
+        boolean measured = !Modifier.isAbstract(ctClass.getModifiers());
+
+        // iterate over all methods and instrument valid ones
+        List<CtMethod> methods = Arrays.stream(ctClass.getDeclaredMethods())
+                .filter( m -> !Modifier.isAbstract( m.getModifiers() ) &&
+                                !Modifier.isNative( m.getModifiers() ) &&
+                                    !Modifier.isInterface( m.getModifiers() ) ).collect( Collectors.toList() );
+        report.info(
+                "├── Processing class - " +
+                        ConsoleColors.CYAN + ctClass.getName() + ConsoleColors.RESET);
+        List<CtBehavior> traced = new ArrayList<>();
+        for( var m : methods ) {
+            if( m.hasAnnotation( AlteredByMana.class )  ) {
+                report.warn( "Method " + ConsoleColors.BLUE + m.getName()+ ConsoleColors.RESET + " has already been altered by the Instrument Mana Plugin. Consider executing mvn clean in order to change already altered methods." );
+                continue;
+            }
+            // if it is a test method we instrument for rapl data collection
+            if( measured && !isSynthetic( m ) && ( config.getMeasureMethods().matches( ctClass.getName(), m.getName() )
+                    || m.hasAnnotation(TraceMana.class) ) ) {
+                report.info(
+                        "  ├── Instrumenting method - " +
+                                ConsoleColors.CYAN + m.getLongName() + ConsoleColors.RESET);
+                instrumentMeasurement( ctClass, m );
+                altered = true;
+            } else if( config.isTrace() ) {
+                trace( ctClass, m, report, traced );
+            }
+        }
+        if( config.isTrace() ) {
+            for( CtConstructor c : ctClass.getDeclaredConstructors() ) {
+                if( !c.hasAnnotation( AlteredByMana.class ) )
+                    trace( ctClass, c, report, traced );
+            }
+            CtConstructor initializer = ctClass.getClassInitializer();
+            if( initializer != null && !initializer.hasAnnotation( AlteredByMana.class ) )
+                trace( ctClass, initializer, report, traced );
+        }
+
+        if( !traced.isEmpty() ) {
+            // the base id is resolved once when the class is initialized, hooks only add their ordinal.
+            // javassist places the initializer in front of any existing static initializer code, so
+            // the base id is set before the hooks of the static initializer run
+            CtField base = new CtField( CtClass.intType, MethodTable.BASE_FIELD, ctClass );
+            base.setModifiers( Modifier.PRIVATE | Modifier.STATIC | Modifier.FINAL | AccessFlag.SYNTHETIC );
+            ctClass.addField( base, CtField.Initializer.byExpr( String.format( "%s.register(\"%s\", %d)",
+                    MethodTable.class.getName(), ctClass.getName(), traced.size() ) ) );
+            for( int ordinal = 0; ordinal < traced.size(); ordinal++ ) {
+                CtBehavior m = traced.get( ordinal );
+                String name = displayName( m );
+                instrumentTrace( m, ordinal );
+                report.method( new MethodTable.Method( ctClass.getName(), name, m.getMethodInfo().getDescriptor(), ordinal ) );
+                report.info("  ├── Instrumenting method: " + ConsoleColors.PURPLE + name + ConsoleColors.RESET);
+            }
+            altered = true;
+        }
+        return altered;
+    }
+
+    private void trace( CtClass ctClass, CtBehavior m, InstrumentationReport report, List<CtBehavior> traced ) {
+        // bridges and accessors only delegate, their target is traced itself
+        if( isSynthetic( m ) && !m.getName().startsWith( "lambda$" ) )
+            return;
+        String name = displayName( m );
+        if( !config.tracesMethod( ctClass.getName(), name ) )
+            return;
+        int size = codeLength( m );
+        if( size < config.getMinMethodSize() ) {
+            report.debug( "  ├── Skipping method " + name + ", " + size + " bytes of bytecode" );
+            return;
+        }
+        traced.add( m );
+    }
+
+    /**
+     * @return the name of the method as shown in traces, {@code <init>} for constructors,
+     * {@code <clinit>} for the static initializer and {@code enclosing::lambda$n} for lambda bodies
+     */
+    static String displayName( CtBehavior m ) {
+        if( m instanceof CtConstructor )
+            return ((CtConstructor) m).isClassInitializer() ? MethodInfo.nameClinit : MethodInfo.nameInit;
+        Matcher lambda = LAMBDA.matcher( m.getName() );
+        if( lambda.matches() ) {
+            String enclosing = lambda.group( 1 );
+            if( enclosing.equals( "static" ) )
+                enclosing = MethodInfo.nameClinit;
+            else if( enclosing.equals( "new" ) )
+                enclosing = MethodInfo.nameInit;
+            return enclosing + "::lambda$" + lambda.group( 2 );
+        }
+        return m.getName();
+    }
+
+    private static boolean isSynthetic( CtBehavior m ) {
+        return (m.getMethodInfo().getAccessFlags() & (AccessFlag.SYNTHETIC | AccessFlag.BRIDGE)) != 0;
+    }
+
+    private void instrumentMeasurement( CtClass ctClass, CtMethod m ) throws CannotCompileException {
+        var port = config.getPort();
+        var outputFolder = config.getOutputFolder();
+        var filename =  outputFolder == null || outputFolder.isEmpty()
+                ? ctClass.getName() + "_" + m.getName()
+                : outputFolder + File.separator + ctClass.getName() + "_" + m.getName();
+        CtClass raplCommandType = port == -1 ? classPool.getOrNull(RaplJsonDecorator.class.getName()) : classPool.getOrNull(RaplSocketDecorator.class.getName()) ;
+        CtClass raplInternalCommandType = classPool.getOrNull(RaplInternalCommand.class.getName());
+        CtClass raplCommandParameterType = classPool.getOrNull(RaplInternalCommandParameter.class.getName());
+        CtClass raplFileCommandFactory = classPool.getOrNull(FileCommandFactory.class.getName());
+        CtClass raplSocketCommandFactory = classPool.getOrNull(SocketCommandFactory.class.getName());
+        CtClass raplSessionCommandFactory = classPool.getOrNull(SessionCommandFactory.class.getName());
+
+        if( raplCommandType == null
+            || raplInternalCommandType == null
+            || raplCommandParameterType == null
+            || raplFileCommandFactory == null
+            || raplSocketCommandFactory == null
+            || raplSessionCommandFactory == null) {
+            throw new RuntimeException( "Unable to instrument method, RaplCommand class could not be found." );
+        }
+
+        // Get method signature
+        var className = ctClass.getName(); // qualified class name
+        var methodName = m.getName();
+        var methodDesc = m.getMethodInfo().getDescriptor();
+
+        // the layout only applies to json files, it is passed along unless it is the default
+        String layout = config.getFormat() == ManaFormat.JSON && config.getTraceLayout() != TraceLayout.CALLS
+                ? String.format( ", \"%s\"", config.getTraceLayout().name() )
+                : "";
+        String commandCreateFactory = config.getFormat() == ManaFormat.JSON && layout.isEmpty()
+                ? String.format( "%s.getInstance().init( \"%s_\" + System.currentTimeMillis() + \"%s\" )", raplFileCommandFactory.getName(), filename, ManaFormat.JSON.getExtension() )
+                : String.format( "%s.getInstance().init( \"%s_\" + System.currentTimeMillis() + \"%s\", \"%s\"%s )", raplFileCommandFactory.getName(), filename, config.getFormat().getExtension(), config.getFormat().name(), layout );
+        CtClass factory = raplFileCommandFactory;
+        if( port != -1 ) {
+            factory = raplSocketCommandFactory;
+            commandCreateFactory = config.getTransport() == Transport.NIO
+                    ? String.format( "%s.getInstance().init( %d, %d, \"%s\" )", raplSocketCommandFactory.getName(), port, config.getSendQueueSize(), config.getOverflow().name() )
+                    : String.format( "%s.getInstance().init()", raplSocketCommandFactory.getName() );
+        } else if( config.isSession() ) {
+            // the session samples continuously, the factory only records where the measurement starts and ends
+            factory = raplSessionCommandFactory;
+            commandCreateFactory = String.format( "%s.getInstance().init( \"%s_\" + System.currentTimeMillis() + \"%s\", \"%s\"%s )", raplSessionCommandFactory.getName(), filename, config.getFormat().getExtension(), config.getFormat().name(), layout );
+        }
+
+        // members of the TraceMana annotation override the configured rate and window of this method
+        int samplingRate = annotationMember( m, TraceMana.class, "samplingRate", config.getSamplingRate() );
+        int adaptiveWindow = port == -1 ? annotationMember( m, TraceMana.class, "adaptiveWindow", config.getAdaptiveWindow() ) : 0;
+        String adaptive = adaptiveWindow > 0 ? String.format( ", %dL", adaptiveWindow ) : "";
+        String beforeStr = String.format("%s;%s.getInstance().execute(%s.builder().samplingRate(%d).port(%d).className(\"%s\").methodName(\"%s\").methodDesc(\"%s\").build(), %dL, %dL%s);",
+                commandCreateFactory, factory.getName(), RaplInternalCommandParameter.class.getName(), samplingRate, port, className, methodName, methodDesc,
+                config.warmupMillis( samplingRate ), config.cooldownMillis( samplingRate ), adaptive );
+        String afterStr = String.format("%s.getInstance().stop();", factory.getName());
+        String catchStr = String.format("{ %s.getInstance().stopExceptionally(); throw $e; }", factory.getName());
+        m.addLocalVariable("command", raplCommandType );
+        // the handler is added first so it covers the method body only, a failing stop is not stopped twice
+        m.addCatch( catchStr, throwableType() );
+        m.insertBefore( beforeStr );
+        m.insertAfter( afterStr );
+        // ignore methods, that were already processed
+        m.getMethodInfo().addAttribute( genAttribute(AlteredByMana.class, m) );
+    }
+
+    private void instrumentTrace( CtBehavior m, int ordinal ) throws CannotCompileException {
+        CtClass factoryClass = classPool.getOrNull(FileCommandFactory.class.getName());
+        if( config.getPort() != -1 )
+            factoryClass = classPool.getOrNull(SocketCommandFactory.class.getName());
+        else if( config.isSession() )
+            factoryClass = classPool.getOrNull(SessionCommandFactory.class.getName());
+
+        String enter = String.format("%s.getInstance().enter(%s + %d, System.nanoTime());",
+                factoryClass.getName(), MethodTable.BASE_FIELD, ordinal);
+        String exit = String.format("%s.getInstance().exit(%s + %d, System.nanoTime());",
+                factoryClass.getName(), MethodTable.BASE_FIELD, ordinal);
+        String exitExceptionally = String.format("%s.getInstance().exitExceptionally(%s + %d, System.nanoTime());",
+                factoryClass.getName(), MethodTable.BASE_FIELD, ordinal);
+        if( config.getCallSampling() > 1 ) {
+            // the decision is kept on a per thread stack rather than in a local, locals cannot be
+            // read from the exception handler. Enter and exit of a call are always recorded together
+            enter = String.format("if( %s.sample(%s + %d, %d) ) { %s }", CallSampler.class.getName(),
+                    MethodTable.BASE_FIELD, ordinal, config.getCallSampling(), enter);
+            exit = String.format("if( %s.sampled() ) { %s }", CallSampler.class.getName(), exit);
+            exitExceptionally = String.format("if( %s.sampled() ) { %s }", CallSampler.class.getName(), exitExceptionally);
+        }
+        // the handler is added before the enter and exit hooks, it covers the original body only
+        m.addCatch( String.format("{ %s throw $e; }", exitExceptionally), throwableType() );
+        if( m instanceof CtConstructor && !((CtConstructor) m).isClassInitializer() ) {
+            ((CtConstructor) m).insertBeforeBody( enter );
+        } else {
+            m.insertBefore( enter );
+        }
+        m.insertAfter( exit );
+        m.getMethodInfo().addAttribute( genAttribute(AlteredByMana.class, m) );
+    }
+
+    private CtClass throwableType() {
+        try {
+            return classPool.get( Throwable.class.getName() );
+        } catch( NotFoundException e ) {
+            throw new RuntimeException( "Unable to instrument method, Throwable could not be found.", e );
+        }
+    }
+
+    /**
+     * Reads an int member of an annotation from the class file, so members that the annotation
+     * class known at build time does not declare yet can be used
+     *
+     * @return the member value or the fallback if the annotation or member is not present
+     */
+    static int annotationMember( CtBehavior m, Class<?> annotationClass, String member, int fallback ) {
+        for( String tag : new String[]{ AnnotationsAttribute.visibleTag, AnnotationsAttribute.invisibleTag } ) {
+            AnnotationsAttribute attribute = (AnnotationsAttribute) m.getMethodInfo().getAttribute( tag );
+            Annotation annotation = attribute == null ? null : attribute.getAnnotation( annotationClass.getName() );
+            MemberValue value = annotation == null ? null : annotation.getMemberValue( member );
+            if( value instanceof IntegerMemberValue )
+                return ((IntegerMemberValue) value).getValue();
+        }
+        return fallback;
+    }
+
+    private static int codeLength( CtBehavior m ) {
+        CodeAttribute code = m.getMethodInfo().getCodeAttribute();
+        return code == null ? 0 : code.getCodeLength();
+    }
+
+    private AnnotationsAttribute genAttribute(Class<?> annotationClass, CtBehavior method) {
+        MethodInfo methodInfoGetEid = method.getMethodInfo();
+        ConstPool cp = methodInfoGetEid.getConstPool();
+        Annotation annotationNew = new Annotation(annotationClass.getName(), cp);
+        AnnotationsAttribute attributeNew = new AnnotationsAttribute(cp, AnnotationsAttribute.invisibleTag);
+        attributeNew.addAnnotation(annotationNew);
+        return attributeNew;
+    }
+
+}
@@ -0,0 +1,309 @@
+package at.mana.instrument;
+
+import javassist.ClassPath;
+import javassist.NotFoundException;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Dependency jars shared by all class pools of a build. The {@link #shared()} instance lives as
+ * long as the class loader of the plugin, which Maven keeps for the whole reactor and a resident
+ * Maven daemon even across builds: every jar is indexed once instead of once per module and
+ * worker, and the class files read from the jars are kept in a byte cache of bounded size with
+ * least recently used eviction.
+ * <p>
+ * Only the indexes outlive a goal. Jars are opened when their classes are read and closed by
+ * {@link #closeJars()} at the end of every goal, so no file handle is left open between goals and
+ * the jars are not locked on Windows.
+ * <p>
+ * Only bytes are shared, every class pool still parses its own {@code CtClass} instances, so no
+ * javassist state is shared between threads. A jar is identified by its path, modification time
+ * and size; a rebuilt jar is indexed anew.
+ */
+public class ClassPathCache {
+
+    public static final long DEFAULT_CAPACITY = 64L << 20;
+    private static final int MAX_JARS = 512;
+    private static final int MAX_PATHS = 16;
+
+    private static final ClassPathCache SHARED = new ClassPathCache( DEFAULT_CAPACITY );
+
+    private final Map<String, Jar> jars = new LinkedHashMap<>( 64, 0.75f, true ) {
+        @Override
+        protected boolean removeEldestEntry( Map.Entry<String, Jar> eldest ) {
+            if( size() <= MAX_JARS )
+                return false;
+            // pools may still refer to the jar, it only stops keeping its file open
+            eldest.getValue().retire();
+            return true;
+        }
+    };
+    private final Map<List<String>, JarPath> paths = new LinkedHashMap<>( 16, 0.75f, true ) {
+        @Override
+        protected boolean removeEldestEntry( Map.Entry<List<String>, JarPath> eldest ) {
+            return size() > MAX_PATHS;
+        }
+    };
+    private final LinkedHashMap<String, byte[]> classes = new LinkedHashMap<>( 1024, 0.75f, true );
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private long capacity;
+    private long size;
+
+    /**
+     * @param capacity bytes of class files kept at most
+     */
+    public ClassPathCache( long capacity ) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * @return the cache shared by all goals run by the plugin's class loader
+     */
+    public static ClassPathCache shared() {
+        return SHARED;
+    }
+
+    /**
+     * @return true if the class path element is a jar or zip file the cache can hold
+     */
+    public static boolean isJar( String element ) {
+        String name = element.toLowerCase( Locale.ROOT );
+        return (name.endsWith( ".jar" ) || name.endsWith( ".zip" )) && new File( element ).isFile();
+    }
+
+    /**
+     * Changes the number of bytes kept, class files are evicted at once if the cache holds more
+     */
+    public void setCapacity( long capacity ) {
+        synchronized( classes ) {
+            this.capacity = capacity;
+            evict();
+        }
+    }
+
+    /**
+     * Creates a javassist class path resolving classes from the given jars in the given order, the
+     * same jars in the same order receive the same instance
+     *
+     * @param elements paths of jar files, see {@link #isJar(String)}
+     */
+    public ClassPath classPath( List<String> elements ) throws IOException {
+        List<Jar> resolved = new ArrayList<>();
+        List<String> keys = new ArrayList<>();
+        for( String element : elements ) {
+            Jar jar = jar( new File( element ) );
+            resolved.add( jar );
+            keys.add( jar.key );
+        }
+        synchronized( paths ) {
+            JarPath path = paths.get( keys );
+            if( path == null ) {
+                path = new JarPath( resolved );
+                paths.put( keys, path );
+            }
+            return path;
+        }
+    }
+
+    /**
+     * Closes all jars opened to read class files, a later read opens its jar again
+     */
+    public void closeJars() {
+        List<Jar> open;
+        synchronized( jars ) {
+            open = new ArrayList<>( jars.values() );
+        }
+        open.forEach( Jar::close );
+    }
+
+    /**
+     * @return number of jars currently open
+     */
+    int getOpenJars() {
+        synchronized( jars ) {
+            return (int) jars.values().stream().filter( Jar::isOpen ).count();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return bytes of class files currently kept
+     */
+    public long getSize() {
+        synchronized( classes ) {
+            return size;
+        }
+    }
+
+    private Jar jar( File file ) throws IOException {
+        String key = file.getAbsolutePath() + "@" + file.lastModified() + ":" + file.length();
+        synchronized( jars ) {
+            Jar jar = jars.get( key );
+            if( jar == null ) {
+                jar = new Jar( file, key );
+                jars.put( key, jar );
+            }
+            return jar;
+        }
+    }
+
+    private byte[] read( Jar jar, String resource ) throws IOException {
+        String key = jar.key + "!" + resource;
+        synchronized( classes ) {
+            byte[] bytecode = classes.get( key );
+            if( bytecode != null ) {
+                hits.incrementAndGet();
+                return bytecode;
+            }
+        }
+        misses.incrementAndGet();
+        byte[] bytecode = jar.read( resource );
+        synchronized( classes ) {
+            if( bytecode.length <= capacity && classes.put( key, bytecode ) == null ) {
+                size += bytecode.length;
+                evict();
+            }
+        }
+        return bytecode;
+    }
+
+    private void evict() {
+        var eldest = classes.entrySet().iterator();
+        while( size > capacity && eldest.hasNext() ) {
+            size -= eldest.next().getValue().length;
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Index of the class files of a jar, the jar is kept open from the first read until it is
+     * closed, a retired jar is opened for every read
+     */
+    private static final class Jar {
+        final File file;
+        final String key;
+        final Set<String> resources;
+        private ZipFile zip;
+        private boolean retired;
+
+        Jar( File file, String key ) throws IOException {
+            this.file = file;
+            this.key = key;
+            Set<String> names = new HashSet<>();
+            try( ZipFile index = new ZipFile( file ) ) {
+                index.stream().map( ZipEntry::getName ).filter( n -> n.endsWith( ".class" ) ).forEach( names::add );
+            }
+            this.resources = Collections.unmodifiableSet( names );
+        }
+
+        synchronized byte[] read( String resource ) throws IOException {
+            if( zip == null && !retired )
+                zip = new ZipFile( file );
+            ZipFile source = zip != null ? zip : new ZipFile( file );
+            try( InputStream in = source.getInputStream( source.getEntry( resource ) ) ) {
+                return in.readAllBytes();
+            } finally {
+                if( source != zip )
+                    source.close();
+            }
+        }
+
+        synchronized void retire() {
+            retired = true;
+            close();
+        }
+
+        synchronized void close() {
+            if( zip == null )
+                return;
+            try {
+                zip.close();
+            } catch( IOException e ) {
+                // the index stays usable, class files are read by opening the jar again
+            }
+            zip = null;
+        }
+
+        synchronized boolean isOpen() {
+            return zip != null;
+        }
+
+        @Override
+        public String toString() {
+            return file + (retired ? " (retired)" : "");
+        }
+    }
+
+    /**
+     * Class path over a sequence of jars, a class is found in the first jar holding it
+     */
+    private final class JarPath implements ClassPath {
+        private final Map<String, Jar> owners = new HashMap<>();
+        private final List<Jar> jars;
+
+        JarPath( List<Jar> jars ) {
+            this.jars = jars;
+            for( Jar jar : jars ) {
+                for( String resource : jar.resources )
+                    owners.putIfAbsent( resource, jar );
+            }
+        }
+
+        @Override
+        public InputStream openClassfile( String className ) throws NotFoundException {
+            String resource = className.replace( '.', '/' ) + ".class";
+            Jar jar = owners.get( resource );
+            if( jar == null )
+                return null;
+            try {
+                return new ByteArrayInputStream( read( jar, resource ) );
+            } catch( IOException e ) {
+                throw new NotFoundException( "Unable to read " + resource + " from " + jar.file, e );
+            }
+        }
+
+        @Override
+        public URL find( String className ) {
+            String resource = className.replace( '.', '/' ) + ".class";
+            Jar jar = owners.get( resource );
+            if( jar == null )
+                return null;
+            try {
+                return new URL( "jar:" + jar.file.toURI() + "!/" + resource );
+            } catch( MalformedURLException e ) {
+                return null;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "ClassPathCache" + jars;
+        }
+    }
+
+}
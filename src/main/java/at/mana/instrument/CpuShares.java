@@ -0,0 +1,100 @@
+package at.mana.instrument;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Splits the energy of overlapping measurements in proportion to the CPU time of their threads.
+ * The CPU time of all running measurements is read whenever a measurement starts or stops; in
+ * between the set of running measurements is constant, so each of them receives its part of the
+ * CPU time consumed by all of them. Measurements nested on one thread all own the CPU time of that
+ * thread, which is counted once. A measurement that never overlapped has a share of 1. If the JVM
+ * cannot measure thread CPU time, overlapping measurements share equally.
+ * <p>
+ * Only the thread that started a measurement is accounted. Work a test hands to an executor, a
+ * parallel stream or any other thread is not counted for it, so a test waiting for such work
+ * while another one overlaps receives a share near 0, and the energy of the work goes to the
+ * measurements whose threads were busy.
+ */
+final class CpuShares {
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private final List<Share> running = new ArrayList<>();
+
+    /**
+     * Starts accounting the CPU time of the current thread
+     */
+    synchronized Share start() {
+        update();
+        Share share = new Share( Thread.currentThread().getId() );
+        share.last = time( share.thread );
+        for( Share other : running ) {
+            // a nested measurement continues from the reading just taken, so both see the same deltas
+            if( other.thread == share.thread )
+                share.last = other.last;
+        }
+        running.add( share );
+        return share;
+    }
+
+    /**
+     * @return the part of the energy measured since {@link #start()} that belongs to the measurement,
+     * judged by the CPU time of its own thread only
+     */
+    synchronized double stop( Share share ) {
+        update();
+        running.remove( share );
+        return share.total == 0 ? 1.0 : (double) share.own / share.total;
+    }
+
+    /**
+     * @return true if no measurement is running
+     */
+    synchronized boolean isIdle() {
+        return running.isEmpty();
+    }
+
+    private void update() {
+        Map<Long, Long> now = new HashMap<>();
+        Map<Long, Long> deltas = new HashMap<>();
+        for( Share share : running ) {
+            long time = now.computeIfAbsent( share.thread, CpuShares::time );
+            share.delta = Math.max( 0, time - share.last );
+            share.last = time;
+            deltas.merge( share.thread, share.delta, Math::max );
+        }
+        long total = 0;
+        for( long delta : deltas.values() )
+            total += delta;
+        for( Share share : running ) {
+            share.own += share.delta;
+            share.total += total;
+        }
+    }
+
+    private static long time( long thread ) {
+        long cpu = THREADS.isThreadCpuTimeSupported() ? THREADS.getThreadCpuTime( thread ) : -1;
+        return cpu < 0 ? System.nanoTime() : cpu;
+    }
+
+    /**
+     * CPU time accounted to a running measurement
+     */
+    static final class Share {
+        final long thread;
+        long last;
+        long delta;
+        long own;
+        long total;
+
+        Share( long thread ) {
+            this.thread = thread;
+        }
+    }
+
+}
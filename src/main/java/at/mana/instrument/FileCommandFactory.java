@@ -2,85 +2,410 @@ package at.mana.instrument;
 
 import at.mana.exec.rapl.RaplCommand;
 import at.mana.exec.rapl.internal.*;
-import at.mana.exec.rapl.internal.trace.RaplInternalCommandTraceHandler;
-import at.mana.exec.rapl.internal.trace.RaplTraceHandler;
+import at.mana.instrument.format.CallTreeProfile;
+import at.mana.instrument.format.EnergyTable;
+import at.mana.instrument.format.ManaBinaryWriter;
+import at.mana.instrument.format.ManaFormat;
+import at.mana.instrument.format.ManaSpillFile;
+import at.mana.instrument.format.TraceLayout;
+import at.mana.instrument.trace.MethodTable;
+import at.mana.instrument.trace.TraceJsonWriter;
+import at.mana.instrument.trace.TraceRecorder;
+import at.mana.instrument.trace.TraceSink;
+import at.mana.instrument.trace.TraceSnapshot;
 import lombok.SneakyThrows;
 
-import java.io.FileWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
 import java.io.Writer;
-import java.util.stream.Collectors;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
 
+/**
+ * Measures test methods and writes a file per measurement. Every measured invocation runs in a
+ * measurement context of its own, held per thread, so tests executed in parallel each get their
+ * sampler and file. Overlapping measurements share the trace recorder; the energy they measure
+ * together is attributed by {@link CpuShares}. Files are written in the background by a
+ * {@link MeasurementWriter}, only spill files are completed by the measured thread. A measurement
+ * starts once the writer is idle; a test running in parallel may still stop and write a file
+ * while another one is measured.
+ */
 public class FileCommandFactory {
 
-    private static FileCommandFactory commandFactory;
-    private RaplCommand<Writer, RaplInternalCommandParameter> command;
-    private RaplTraceHandler<Writer> handler;
-    private FileWriter writer;
+    private static final FileCommandFactory commandFactory = new FileCommandFactory();
+    private final TraceRecorder recorder = new TraceRecorder();
+    private final TraceJsonWriter serializer = new TraceJsonWriter();
+    private final ManaBinaryWriter binarySerializer = new ManaBinaryWriter();
+    private final CpuShares shares = new CpuShares();
+    private final MeasurementWriter files = new MeasurementWriter( MeasurementWriter.QUEUE_SIZE, MeasurementWriter.ASYNC );
+    /**
+     * Measurements of the current thread, a measured method may call another one
+     */
+    private final ThreadLocal<Deque<Measurement>> measurements = ThreadLocal.withInitial( ArrayDeque::new );
+    /**
+     * Spill files of the running measurements, the trace is spilled into the oldest one
+     */
+    private final List<ManaSpillFile> spills = new ArrayList<>();
+    /**
+     * Receiver of the trace hooks, either the in-memory recorder or the spill file of a running measurement
+     */
+    private volatile TraceSink sink = recorder;
 
     public static FileCommandFactory getInstance() {
-        if( commandFactory == null )
-            commandFactory = new FileCommandFactory();
         return commandFactory;
     }
 
 
     private FileCommandFactory() {
+        ManaMetrics.getInstance().watch( recorder );
+    }
 
+    public FileCommandFactory init( String fileName ) {
+        return init( fileName, ManaFormat.JSON.name() );
     }
 
+    /**
+     * Prepares a measurement of the current thread
+     *
+     * @param fileName file the measurement is written to
+     * @param format   name of the {@link ManaFormat}, binary files are written once the measurement stopped,
+     *                 spill files are written while it runs
+     */
+    public FileCommandFactory init( String fileName, String format ) {
+        return init( fileName, format, TraceLayout.CALLS.name() );
+    }
+
+    /**
+     * Prepares a measurement of the current thread
+     *
+     * @param fileName file the measurement is written to
+     * @param format   name of the {@link ManaFormat}
+     * @param layout   name of the {@link TraceLayout}, only applies to json files
+     */
     @SneakyThrows
-    public FileCommandFactory init( String fileName ) {
-        writer = new FileWriter( fileName );
-        command = new RaplJsonDecorator( new RaplInternalCommand(), writer );
-        handler = new RaplInternalCommandTraceHandler();
+    public FileCommandFactory init( String fileName, String format, String layout ) {
+        measurements.get().push( new Measurement( fileName, ManaFormat.of( format ), TraceLayout.of( layout ) ) );
         return this;
     }
 
-    @SneakyThrows
+    /**
+     * @deprecated hook of classes instrumented by earlier plugin versions, waits as {@link SampleSync#FIXED} does
+     */
+    @Deprecated
     public void execute( RaplInternalCommandParameter parameter ) {
-        handler.init( source -> {
-            String result = source.stream().map( e ->
-                            String.format("{\"methodName\":\"%s\", ", e.getMethodName() ) +
-                                    String.format("\"className\":\"%s\", ", e.getClassName() ) +
-                                    String.format("\"methodDescriptor\":\"%s\", ", e.getMethodDesc() ) +
-                                    String.format("\"hash\":\"%s\", ", e.getHash() ) +
-                                    String.format("\"startWall\":\"%s\", ", e.getStartWallTime() ) +
-                                    String.format("\"endWall\":\"%s\", ", e.getEndWallTime() ) +
-                                    String.format("\"start\":\"%s\", ", e.getStartTime() ) +
-                                    String.format("\"end\":\"%s\" }", e.getEndTime() ) )
-                    .collect(Collectors.joining(","));
-            return String.format( "[%s]", result );
-        } );
-        command.executeAsync( null, parameter );
-        Thread.sleep( parameter.getSamplingRate() * 4L );
+        execute( parameter, SampleSync.FIXED.warmupMillis( parameter.getSamplingRate(), 0 ),
+                SampleSync.FIXED.cooldownMillis( parameter.getSamplingRate(), 0 ) );
+    }
+
+    /**
+     * Starts the RAPL sampler of the measurement prepared by {@link #init(String, String)} and
+     * returns once its first sample is due. Files of earlier measurements are written first.
+     *
+     * @param warmupMillis   time the sampler needs for its first sample
+     * @param cooldownMillis time the sampler needs for a sample covering the end of the test, waited on stop
+     */
+    public void execute( RaplInternalCommandParameter parameter, long warmupMillis, long cooldownMillis ) {
+        execute( parameter, warmupMillis, cooldownMillis, 0 );
     }
 
+    /**
+     * Starts the RAPL sampler of the measurement, see {@link #execute(RaplInternalCommandParameter, long, long)}
+     *
+     * @param adaptiveWindowMillis samples taken later are merged by {@link EnergyTable#downsample(long)}, 0 keeps all
+     */
     @SneakyThrows
+    public void execute( RaplInternalCommandParameter parameter, long warmupMillis, long cooldownMillis,
+                         long adaptiveWindowMillis ) {
+        Measurement measurement = measurements.get().peek();
+        if( measurement == null )
+            throw new IllegalStateException( "MANA measurement was not initialized" );
+        measurement.cooldownMillis = cooldownMillis;
+        measurement.adaptiveWindowMillis = adaptiveWindowMillis;
+        // the files of earlier measurements must not be written while this one is sampled
+        if( !files.awaitIdle() )
+            System.err.println( "MANA writer is still busy, " + measurement.fileName + " measures its writes" );
+        long samplerStart = System.nanoTime();
+        measurement.command.executeAsync( null, parameter );
+        measurement.samplerNanos = System.nanoTime() - samplerStart;
+        Thread.sleep( warmupMillis );
+        synchronized( this ) {
+            // the trace of measurements still running must be kept
+            if( shares.isIdle() )
+                recorder.reset();
+            if( measurement.spill != null ) {
+                spills.add( measurement.spill );
+                sink = spills.get( 0 );
+            }
+            measurement.share = shares.start();
+            measurement.concurrent = ManaMetrics.getInstance().started();
+            measurement.events = recorder.getEvents();
+        }
+        measurement.start = System.currentTimeMillis();
+        System.out.println( "mana-time-sync-start:" + measurement.start );
+        measurement.startNanos = System.nanoTime();
+    }
+
+    /**
+     * Stops a measurement whose method returned normally
+     */
     public void stop() {
-        writer.write( "{\"trace\":" );
-        handler.finish( writer );
-        writer.write( ", \"energy\":" );
-        Thread.sleep( 200L );
-        command.stopExecute();
-        writer.write( "}" );
-        writer.close();
+        stop( false );
+    }
+
+    /**
+     * Stops a measurement whose method terminated with an exception, the measurement is written
+     * as usual and marked with {@code "exception":"true"}
+     */
+    public void stopExceptionally() {
+        stop( true );
+    }
+
+    @SneakyThrows
+    private void stop( boolean thrown ) {
+        Measurement measurement = measurements.get().poll();
+        if( measurement == null || measurement.share == null )
+            return;
+        long stopNanos = System.nanoTime();
+        long end = System.currentTimeMillis();
+        long duration = stopNanos - measurement.startNanos;
+        double share;
+        synchronized( this ) {
+            share = shares.stop( measurement.share );
+            if( measurement.spill != null ) {
+                spills.remove( measurement.spill );
+                sink = spills.isEmpty() ? recorder : spills.get( 0 );
+            }
+        }
+        MeasurementMeta meta = new MeasurementMeta();
+        meta.durationNanos = duration;
+        meta.start = measurement.start;
+        meta.end = end;
+        meta.concurrent = measurement.concurrent;
+        ManaSpillFile spill = measurement.spill;
+        if( measurement.format == ManaFormat.SPILL ) {
+            Thread.sleep( measurement.cooldownMillis );
+            stopSampler( measurement, meta );
+            meta.droppedEvents = spill.getDropped();
+            long serializationStart = System.nanoTime();
+            spill.close( downsample( measurement.energy.toString(), measurement.adaptiveWindowMillis ), thrown, share, meta.toJson() );
+            meta.serializationNanos = System.nanoTime() - serializationStart;
+            ManaMetrics.getInstance().stopped( meta );
+            if( spill.getDropped() > 0 )
+                System.err.println( "MANA spill file " + spill.getFile() + " is missing " + spill.getDropped() + " events" );
+        } else {
+            TraceSnapshot snapshot = snapshot( measurement, stopNanos, meta );
+            Thread.sleep( measurement.cooldownMillis );
+            stopSampler( measurement, meta );
+            ManaMetrics.getInstance().stopped( meta );
+            String energy = measurement.energy.toString();
+            files.submit( () -> write( measurement, snapshot, downsample( energy, measurement.adaptiveWindowMillis ),
+                    thrown, share, meta ) );
+        }
+        System.out.println( "mana-time-sync-end:" + System.currentTimeMillis() );
+        System.out.println( "mana-duration:" + duration );
+    }
+
+    /**
+     * Writes the file of a stopped measurement, run by the {@link MeasurementWriter}
+     */
+    private void write( Measurement measurement, TraceSnapshot snapshot, String energy, boolean thrown, double share,
+                        MeasurementMeta meta ) throws IOException {
+        if( measurement.format == ManaFormat.BINARY ) {
+            long serializationStart = System.nanoTime();
+            try( OutputStream out = MeasurementWriter.open( measurement.fileName ) ) {
+                binarySerializer.write( snapshot, energy, thrown, share, meta.toJson(), out );
+            }
+            meta.serializationNanos = System.nanoTime() - serializationStart;
+        } else if( measurement.layout != TraceLayout.CALLS ) {
+            writeProfile( measurement.fileName, measurement.layout, snapshot, energy, thrown, share, meta );
+        } else {
+            try( Writer writer = new OutputStreamWriter( MeasurementWriter.open( measurement.fileName ), StandardCharsets.UTF_8 ) ) {
+                long serializationStart = System.nanoTime();
+                writer.write( "{\"trace\":" );
+                serializer.write( snapshot, writer );
+                meta.serializationNanos = System.nanoTime() - serializationStart;
+                writer.write( ", \"energy\":" );
+                writer.write( energy );
+                if( thrown )
+                    writer.write( ", \"exception\":\"true\"" );
+                if( share < 1.0 )
+                    writer.write( ", \"energyShare\":" + share );
+                writer.write( ", \"meta\":" );
+                writer.write( meta.toJson() );
+                writer.write( "}" );
+            }
+        }
+        ManaMetrics.getInstance().serialized( meta.serializationNanos );
     }
 
+    /**
+     * Merges the samples of the energy section after the window, see {@link EnergyTable#downsample(long)}
+     *
+     * @return the merged section or the given one if there is nothing to merge or it is no table
+     */
+    static String downsample( String energy, long windowMillis ) throws IOException {
+        if( windowMillis <= 0 || energy == null )
+            return energy;
+        EnergyTable table;
+        try {
+            table = EnergyTable.parse( energy );
+        } catch( IOException | NumberFormatException e ) {
+            return energy;
+        }
+        EnergyTable merged = table == null ? null : table.downsample( windowMillis );
+        if( merged == null || merged == table )
+            return energy;
+        StringWriter writer = new StringWriter();
+        merged.writeJson( writer );
+        return writer.toString();
+    }
+
+    private static void stopSampler( Measurement measurement, MeasurementMeta meta ) {
+        long samplerStop = System.nanoTime();
+        measurement.command.stopExecute();
+        meta.samplerNanos = measurement.samplerNanos + System.nanoTime() - samplerStop;
+    }
+
+    /**
+     * Writes a json file holding the aggregated {@link CallTreeProfile} instead of the trace
+     *
+     * @param meta overhead of the measurement, the time spent on the profile is added to it, null if none is written
+     */
+    static void writeProfile( String fileName, TraceLayout layout, TraceSnapshot snapshot, String energy,
+                              boolean thrown, double share, MeasurementMeta meta ) throws IOException {
+        long serializationStart = System.nanoTime();
+        CallTreeProfile profile = CallTreeProfile.build( snapshot, energy );
+        try( Writer writer = new OutputStreamWriter( MeasurementWriter.open( fileName ), StandardCharsets.UTF_8 ) ) {
+            writer.write( "{\"profile\":" );
+            profile.writeJson( writer );
+            if( profile.getEnergyNames().length > 0 ) {
+                writer.write( ", \"unattributedEnergy\":" );
+                profile.writeUnattributed( writer );
+            }
+            writer.write( ", \"energy\":" );
+            writer.write( energy );
+            if( thrown )
+                writer.write( ", \"exception\":\"true\"" );
+            if( share < 1.0 )
+                writer.write( ", \"energyShare\":" + share );
+            if( meta != null ) {
+                meta.serializationNanos = System.nanoTime() - serializationStart;
+                writer.write( ", \"meta\":" );
+                writer.write( meta.toJson() );
+            }
+            writer.write( "}" );
+        }
+        if( layout == TraceLayout.COLLAPSED )
+            profile.writeCollapsed( fileName, name -> new OutputStreamWriter( MeasurementWriter.open( name ), StandardCharsets.UTF_8 ) );
+    }
+
+    /**
+     * Trace hook injected at the start of every traced method
+     *
+     * @param id    id of the method as registered in the {@link MethodTable}
+     * @param nanos {@link System#nanoTime()} on enter
+     */
+    public void enter( int id, long nanos ) {
+        sink.enter( id, nanos );
+    }
+
+    /**
+     * Trace hook injected at the end of every traced method
+     *
+     * @param id    id of the method as registered in the {@link MethodTable}
+     * @param nanos {@link System#nanoTime()} on exit
+     */
+    public void exit( int id, long nanos ) {
+        sink.exit( id, nanos );
+    }
+
+    /**
+     * Trace hook injected into the exception handler of every traced method
+     *
+     * @param id    id of the method as registered in the {@link MethodTable}
+     * @param nanos {@link System#nanoTime()} when the exception left the method
+     */
+    public void exitExceptionally( int id, long nanos ) {
+        sink.exitExceptionally( id, nanos );
+    }
+
+    /**
+     * @deprecated hook of classes instrumented by earlier plugin versions, use {@link #enter(int, long)}
+     */
+    @Deprecated
     public void enter( String className, String methodName, String methodDesc, long wallTime, long time ){
-        handler.enter(className,methodName,methodDesc, wallTime, time);
+        sink.enter( MethodTable.intern( className, methodName, methodDesc ), recorder.toNanos( time ) );
     }
 
+    /**
+     * @deprecated hook of classes instrumented by earlier plugin versions, use {@link #exit(int, long)}
+     */
+    @Deprecated
     public void exit( String className, String methodName, String methodDesc, long wallTime, long time ){
-        handler.exit(className,methodName,methodDesc,wallTime, time);
+        sink.exit( MethodTable.intern( className, methodName, methodDesc ), recorder.toNanos( time ) );
     }
 
 
-    RaplTraceHandler getHandler() {
-        return this.handler;
+    /**
+     * @return the calls started while a measurement was running, their number and the events
+     * dropped go to the meta section
+     */
+    private TraceSnapshot snapshot( Measurement measurement, long stopNanos, MeasurementMeta meta ) {
+        meta.traceEvents = recorder.getEvents() - measurement.events;
+        TraceSnapshot snapshot = recorder.snapshot().between( measurement.startNanos, stopNanos );
+        meta.droppedEvents = snapshot.getDropped();
+        if( snapshot.getDropped() > 0 )
+            System.err.println( "MANA trace buffer overrun, " + snapshot.getDropped()
+                    + " events were dropped. Consider increasing -Dmana.trace.bufferSize" );
+        return snapshot;
+    }
+
+    TraceRecorder getRecorder() {
+        return this.recorder;
     }
 
     RaplCommand<Writer, RaplInternalCommandParameter> getCommand() {
-        return this.command;
+        Measurement measurement = measurements.get().peek();
+        return measurement == null ? null : measurement.command;
+    }
+
+    /**
+     * Context of a single measured invocation
+     */
+    private static final class Measurement {
+        final String fileName;
+        final ManaFormat format;
+        final TraceLayout layout;
+        final StringWriter energy;
+        final ManaSpillFile spill;
+        final RaplCommand<Writer, RaplInternalCommandParameter> command;
+        long cooldownMillis;
+        long start;
+        long startNanos;
+        long samplerNanos;
+        long adaptiveWindowMillis;
+        /**
+         * Events the recorder counted when the measurement started
+         */
+        long events;
+        int concurrent;
+        CpuShares.Share share;
+
+        Measurement( String fileName, ManaFormat format, TraceLayout layout ) throws IOException {
+            this.fileName = fileName;
+            this.format = format;
+            this.layout = layout;
+            // the energy section is collected in memory, the file is written once the measurement stopped
+            this.energy = new StringWriter();
+            this.spill = format == ManaFormat.SPILL ? new ManaSpillFile( new File( fileName ) ) : null;
+            this.command = new RaplJsonDecorator( new RaplInternalCommand(), energy );
+        }
     }
 
 }
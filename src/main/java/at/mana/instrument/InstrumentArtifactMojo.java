@@ -1,17 +1,11 @@
 package at.mana.instrument;
 
-import at.mana.core.util.ConsoleColors;
-import at.mana.exec.rapl.AlteredByMana;
-import at.mana.exec.rapl.TraceMana;
-import at.mana.exec.rapl.internal.RaplInternalCommand;
-import at.mana.exec.rapl.internal.RaplInternalCommandParameter;
-import at.mana.exec.rapl.internal.RaplJsonDecorator;
-import at.mana.exec.rapl.internal.RaplSocketDecorator;
+import at.mana.instrument.format.ManaFormat;
+import at.mana.instrument.format.TraceLayout;
+import at.mana.instrument.trace.MethodTable;
+import at.mana.instrument.transport.OverflowPolicy;
+import at.mana.instrument.transport.Transport;
 import javassist.*;
-import javassist.bytecode.AnnotationsAttribute;
-import javassist.bytecode.ConstPool;
-import javassist.bytecode.MethodInfo;
-import javassist.bytecode.annotation.Annotation;
 import org.apache.maven.artifact.DependencyResolutionRequiredException;
 import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.logging.Log;
@@ -22,13 +16,10 @@ import org.apache.maven.plugins.annotations.ResolutionScope;
 import org.apache.maven.project.MavenProject;
 
 import java.io.*;
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.net.URLClassLoader;
-import java.time.Instant;
-import java.time.temporal.ChronoUnit;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
-import java.util.stream.Collectors;
 
 
 @Mojo(  name = "instrument-methods",
@@ -75,7 +66,158 @@ public class InstrumentArtifactMojo extends AbstractMojo {
     @Parameter(property = "trace", required = false)
     private boolean trace = false;
 
-    private final ClassPool classPool = new ClassPool(ClassPool.getDefault());
+    /**
+     * Format of the measurement files, either json, the compact binary format or spill, which
+     * streams the trace into a memory mapped file while the test runs. Binary and spill files can
+     * be turned into json with {@link at.mana.instrument.format.ManaConverter}. Json and binary
+     * files are gzip compressed if the tests run with {@code -Dmana.writer.compression=gzip}.
+     */
+    @Parameter(property = "format", required = false, defaultValue = "json")
+    private String format = "json";
+
+    /**
+     * Layout of the trace in json files, calls lists every call, tree writes an aggregated call
+     * tree with time and energy per call path instead and collapsed additionally writes its
+     * stacks in collapsed format for flame graphs.
+     */
+    @Parameter(property = "traceLayout", required = false, defaultValue = "calls")
+    private String traceLayout = "calls";
+
+    /**
+     * Comma separated glob or regex: patterns restricting the classes of the packages to instrument
+     */
+    @Parameter(property = "includes", required = false)
+    private String includes;
+
+    /**
+     * Comma separated glob or regex: patterns of classes never to instrument
+     */
+    @Parameter(property = "excludes", required = false)
+    private String excludes;
+
+    /**
+     * Comma separated patterns of methods to trace, either the method name or className#methodName
+     */
+    @Parameter(property = "methodIncludes", required = false)
+    private String methodIncludes;
+
+    /**
+     * Comma separated patterns of methods never to trace, either the method name or className#methodName
+     */
+    @Parameter(property = "methodExcludes", required = false)
+    private String methodExcludes;
+
+    /**
+     * Comma separated patterns of methods receiving the energy measurement, by default all methods
+     * whose name contains test
+     */
+    @Parameter(property = "measureMethods", required = false, defaultValue = InstrumentationConfig.DEFAULT_MEASURE_METHODS)
+    private String measureMethods = InstrumentationConfig.DEFAULT_MEASURE_METHODS;
+
+    /**
+     * Methods with fewer bytes of bytecode are not traced, keeps trivial getters and setters out of the trace
+     */
+    @Parameter(property = "minMethodSize", required = false, defaultValue = "0")
+    private int minMethodSize;
+
+    /**
+     * Traces only one in callSampling calls of every method and thread, 1 traces every call
+     */
+    @Parameter(property = "callSampling", required = false, defaultValue = "1")
+    private int callSampling = 1;
+
+    /**
+     * How measurements reach the collector on the port, socket sends each measurement at once when
+     * the test ended, nio streams completed calls in length prefixed frames while the test runs
+     */
+    @Parameter(property = "transport", required = false, defaultValue = "socket")
+    private String transport = "socket";
+
+    /**
+     * Frames the send queue of the nio transport holds
+     */
+    @Parameter(property = "sendQueueSize", required = false, defaultValue = "1024")
+    private int sendQueueSize = 1024;
+
+    /**
+     * What happens to frames not fitting into the full send queue of the nio transport: block waits
+     * a second at most, drop-oldest and drop-newest discard frames right away
+     */
+    @Parameter(property = "overflow", required = false, defaultValue = "block")
+    private String overflow = "block";
+
+    /**
+     * Keeps a single RAPL sampler running for all tests of a JVM instead of starting one per test.
+     * The measurement files are cut out of the session's samples when the JVM shuts down, or once
+     * {@code -Dmana.session.maxPending} (256) measurements are waiting and no test runs. Spill
+     * files and measurements sent to a port are not supported.
+     */
+    @Parameter(property = "session", required = false, defaultValue = "false")
+    private boolean session = false;
+
+    /**
+     * How measurements wait for the RAPL sampler, periods waits warmupPeriods sampling periods
+     * after starting and cooldownPeriods before stopping it, each plus a margin of half a period,
+     * fixed restores the former waits of four periods and 200 ms
+     */
+    @Parameter(property = "sampleSync", required = false, defaultValue = "periods")
+    private String sampleSync = "periods";
+
+    /**
+     * Sampling periods a measurement waits for the first sample before the test starts
+     */
+    @Parameter(property = "warmupPeriods", required = false, defaultValue = "1")
+    private int warmupPeriods = 1;
+
+    /**
+     * Sampling periods a measurement waits for the final sample after the test returned
+     */
+    @Parameter(property = "cooldownPeriods", required = false, defaultValue = "1")
+    private int cooldownPeriods = 1;
+
+    /**
+     * Keeps the energy samples of the first adaptiveWindow milliseconds of a measurement and merges
+     * later ones into periods of growing length, so a short sampling period resolves short tests
+     * without flooding the files of long ones. Meant to be combined with a small samples value.
+     * Test methods may override samples and adaptiveWindow with members of their TraceMana annotation.
+     */
+    @Parameter(property = "adaptiveSampling", required = false, defaultValue = "false")
+    private boolean adaptiveSampling = false;
+
+    /**
+     * Period in milliseconds kept at full resolution by adaptiveSampling
+     */
+    @Parameter(property = "adaptiveWindow", required = false, defaultValue = "1000")
+    private int adaptiveWindow = 1000;
+
+    /**
+     * Number of worker threads instrumenting classes in parallel, 0 uses all available processors
+     */
+    @Parameter(property = "threads", required = false, defaultValue = "1")
+    protected int threads = 1;
+
+    /**
+     * Skips classes that did not change since the previous build and re-instruments classes
+     * affected by a changed configuration
+     */
+    @Parameter(property = "incremental", required = false, defaultValue = "true")
+    private boolean incremental = true;
+
+    /**
+     * Folder holding the fingerprint index of instrumented classes
+     */
+    @Parameter(property = "indexDirectory", required = false, defaultValue = "${project.build.directory}/mana")
+    private File indexDirectory;
+
+    /**
+     * Megabytes of dependency class files kept for all modules of the build, see {@link ClassPathCache}.
+     * 0 reads the dependencies of every module anew.
+     */
+    @Parameter(property = "classCacheSize", required = false, defaultValue = "64")
+    protected int classCacheSize = 64;
+
+    @Parameter(defaultValue = "${plugin.version}", readonly = true)
+    private String pluginVersion;
 
     private final String RAPL_HOME = System.getenv( "RAPL_HOME" );
 
@@ -86,7 +228,88 @@ public class InstrumentArtifactMojo extends AbstractMojo {
             return;
         }
 
-        // create output folder if needed
+        createOutputFolder();
+
+        List<String> classPath = runtimeClassPath();
+        List<String> outputDirectory = Arrays.asList(outputDirectories.split(","));
+
+        // Configure the classpool to also look into our output directories
+        classPath.addAll(outputDirectory);
+
+        InstrumentationConfig config = createConfig();
+
+        InstrumentationIndex index = null;
+        if (incremental && indexDirectory != null) {
+            index = loadIndex(config);
+        }
+        // folders are only descended into if they may hold classes of the packages, or classes
+        // instrumented by a previous build, which are restored if the packages no longer include them
+        Set<String> prefixes = new TreeSet<>(config.getPackages());
+        if (index != null && !prefixes.isEmpty()) {
+            // classes of the default package lie in the root folder, which is always listed
+            index.getClassNames().stream()
+                    .filter(x -> x.indexOf('.') > 0)
+                    .forEach(x -> prefixes.add(x.substring(0, x.lastIndexOf('.') + 1)));
+        }
+        ClassDiscovery discovery = new ClassDiscovery(prefixes);
+
+        if (classCacheSize > 0) {
+            ClassPathCache.shared().setCapacity((long) classCacheSize << 20);
+        }
+        InstrumentationEngine engine = index == null
+                ? new InstrumentationEngine(threads, () -> new ClassInstrumenter(config, createClassPool(classPath)))
+                : new InstrumentationEngine(threads, () -> new ClassInstrumenter(config, createClassPool(classPath)),
+                    preservingSink(index));
+        // classes are instrumented while the output directories are still being walked
+        Map<String, File> classes = new TreeMap<>();
+        InstrumentationIndex previous = index;
+        SortedMap<String, InstrumentationReport> reports;
+        try {
+            reports = engine.run(consumer -> {
+                for (String directory : outputDirectory) {
+                    discovery.walk(new File(directory), (className, file) -> {
+                        // the first directory holding a class wins, just like on the class path
+                        if (classes.putIfAbsent(className, file) != null)
+                            return;
+                        // skip classes left unchanged since the last build, the index check comes first as it also
+                        // restores classes that were instrumented by a configuration that excludes them by now
+                        if (previous != null && isUpToDate(previous, className, file))
+                            return;
+                        // skip unknown packages and package info classes
+                        if (config.accepts(className))
+                            consumer.accept(className, file);
+                    });
+                }
+            });
+            reports.values().forEach(this::publish);
+        } catch (IOException e) {
+            getLog().error("Unable to list the classes of " + outputDirectories, e);
+            throw new IllegalStateException(e);
+        } catch (RuntimeException e) {
+            getLog().error(e.getMessage());
+            throw e;
+        } finally {
+            ClassPathCache.shared().closeJars();
+        }
+        if (index != null) {
+            getLog().info("Instrumented " + reports.size() + " of " + classes.size() + " classes, the remaining ones are up to date");
+        }
+
+        writeMethodTables(outputDirectory, classes, reports);
+        if (classCacheSize > 0) {
+            ClassPathCache cache = ClassPathCache.shared();
+            getLog().debug("Dependency class cache: " + cache.getHits() + " hits, " + cache.getMisses()
+                    + " misses, " + (cache.getSize() >> 10) + " KiB held");
+        }
+        if (index != null) {
+            saveIndex(index, classes, reports);
+        }
+    }
+
+    /**
+     * Creates the folder receiving the measurement files if one is configured
+     */
+    protected void createOutputFolder() {
         try {
             if (outputFolder != null && !outputFolder.isEmpty()) {
                 getLog().debug("Storing MANA trace files in: " + outputFolder);
@@ -104,205 +327,203 @@ public class InstrumentArtifactMojo extends AbstractMojo {
             getLog().error( e );
             throw new RuntimeException( e );
         }
+    }
 
+    /**
+     * @return the runtime class path of the project, the list may be modified
+     */
+    protected List<String> runtimeClassPath() {
+        List<String> classPath = new ArrayList<>();
         try {
-            project.getRuntimeClasspathElements().forEach(this::appendClassPool);
+            classPath.addAll(project.getRuntimeClasspathElements());
         } catch (DependencyResolutionRequiredException e) {
             getLog().error(e);
             // not sure if an exception should be thrown here, probably not?
 
         }
+        return classPath;
+    }
 
-        // extend classpath from resolved dependencies
-        /*project.getArtifacts().forEach( a -> {
-            getLog().info( a.getFile().getAbsolutePath() );
-            try {
-                URLClassLoader cpUrlLoader = new URLClassLoader(new URL[]{ a.getFile().toURI().toURL() });
-                classPool.insertClassPath( new LoaderClassPath( cpUrlLoader ) );
-            }catch( MalformedURLException e ) {
-                getLog().error( e );
-            }
-        } );*/
-
-        List<String> outputDirectory = Arrays.asList(outputDirectories.split(","));
+    /**
+     * Builds the instrumentation configuration from the parameters, parameters that do not apply
+     * to the chosen format or transport are reset with a warning by {@link InstrumentationConfig#validate}
+     */
+    protected InstrumentationConfig createConfig() {
         List<String> packages = Arrays.asList(packageList.split(","));
 
-        // Collect all classes
-        Map<String, File> classes = new HashMap<>();
+        return InstrumentationConfig.builder()
+                .packages(packages)
+                .outputFolder(outputFolder)
+                .samplingRate(samplingRate)
+                .port(port)
+                .trace(trace)
+                .includes(PatternSet.of(includes))
+                .excludes(PatternSet.of(excludes))
+                .methodIncludes(PatternSet.of(methodIncludes))
+                .methodExcludes(PatternSet.of(methodExcludes))
+                .measureMethods(PatternSet.of(measureMethods))
+                .minMethodSize(minMethodSize)
+                .callSampling(callSampling)
+                .format(ManaFormat.of(format))
+                .traceLayout(TraceLayout.of(traceLayout))
+                .session(session)
+                .transport(Transport.of(transport))
+                .sendQueueSize(sendQueueSize)
+                .overflow(OverflowPolicy.of(overflow))
+                .sampleSync(SampleSync.of(sampleSync))
+                .warmupPeriods(warmupPeriods)
+                .cooldownPeriods(cooldownPeriods)
+                .adaptiveWindow(adaptiveSampling ? Math.max(1, adaptiveWindow) : 0)
+                .build()
+                .validate(message -> getLog().warn("Parameter " + message));
+    }
 
-        outputDirectory.forEach(x -> {
-            listf(x, x, classes);
+    /**
+     * Updates the method table of every output directory with the traced methods of the processed
+     * classes, rows of classes skipped by the index are kept
+     */
+    private void writeMethodTables(List<String> outputDirectory, Map<String, File> classes,
+                                   Map<String, InstrumentationReport> reports) {
+        for (String directory : outputDirectory) {
+            File table = new File(directory, MethodTable.RESOURCE);
+            Path root = new File(directory).toPath().toAbsolutePath();
             try {
-                // Configure the classpool to also look into our output directories
-                classPool.appendClassPath(x);
-            } catch (NotFoundException e) {
-                getLog().error(e);
-            }
-        });
-
-        // move through every class
-        for (Map.Entry<String, File> file : classes.entrySet()) {
-            // skip unknown packages and package info classes
-            if (packages.isEmpty() || packages.stream().anyMatch(name ->
-                    file.getKey().startsWith(name)) && !file.getKey().endsWith("package-info")) {
-                try {
-                    // identify classfile
-                    CtClass ctClass = classPool.get(file.getKey());
-                    var altered = false;
-                    if ( Modifier.isAbstract(ctClass.getModifiers()) || ctClass.isInterface()) {
-                        continue;
-                    }
-
-                    // iterate over all methods and instrument valid ones
-                    List<CtMethod> methods = Arrays.stream(ctClass.getDeclaredMethods())
-                            .filter( m -> !Modifier.isAbstract( m.getModifiers() ) &&
-                                            !Modifier.isNative( m.getModifiers() ) &&
-                                                !Modifier.isInterface( m.getModifiers() ) ).collect( Collectors.toList() );
-                    getLog().info(
-                            "├── Processing class - " +
-                                    ConsoleColors.CYAN + ctClass.getName() + ConsoleColors.RESET);
-                    //getLog().debug( "Methods found for class " + ctClass.getName() + ": " + methods.size() );
-                    for( var m : methods ) {
-                        if( m.hasAnnotation( AlteredByMana.class )  ) {
-                            getLog().warn( "Method " + ConsoleColors.BLUE + m.getName()+ ConsoleColors.RESET + " has already been altered by the Instrument Mana Plugin. Consider executing mvn clean in order to change already altered methods." );
-                            continue;
-                        }
-                        // if it is a test method we instrument for rapl data collection
-                        if( m.getName().toLowerCase().contains( "test" )
-                                || m.hasAnnotation(TraceMana.class) ) {  // TODO: apply pattern matching
-                            getLog().info(
-                                    "  ├── Instrumenting method - " +
-                                            ConsoleColors.CYAN + m.getLongName() + ConsoleColors.RESET);
-                            var filename =  outputFolder == null || outputFolder.isEmpty()
-                                    ? ctClass.getName() + "_" + m.getName()
-                                    : outputFolder + File.separator + ctClass.getName() + "_" + m.getName();
-                            var fileSuffix = ".mana";
-                            CtClass raplCommandType = port == -1 ? classPool.getOrNull(RaplJsonDecorator.class.getName()) : classPool.getOrNull(RaplSocketDecorator.class.getName()) ;
-                            CtClass raplInternalCommandType = classPool.getOrNull(RaplInternalCommand.class.getName());
-                            CtClass raplCommandParameterType = classPool.getOrNull(RaplInternalCommandParameter.class.getName());
-                            CtClass raplFileCommandFactory = classPool.getOrNull(FileCommandFactory.class.getName());
-                            CtClass raplSocketCommandFactory = classPool.getOrNull(SocketCommandFactory.class.getName());
-
-                            if( raplCommandType != null
-                                && raplInternalCommandType != null
-                                && raplCommandParameterType != null
-                                && raplFileCommandFactory != null
-                                && raplSocketCommandFactory != null) {
-
-                                // Get method signature
-                                var className = ctClass.getName(); // qualified class name
-                                var methodName = m.getName();
-                                var methodDesc = m.getMethodInfo().getDescriptor();
-
-                                String commandCreateFactory = String.format( "%s.getInstance().init( \"%s_\" + System.currentTimeMillis() + \".mana\" )", raplFileCommandFactory.getName(), filename );
-
-                                String commandCreateStr = String.format( "%s(new %s(), new java.io.FileWriter(\"%s_\" + System.currentTimeMillis() + \".mana\"))", RaplJsonDecorator.class.getName(), RaplInternalCommand.class.getName(), filename );
-                                if( port != -1 ) {
-                                    commandCreateStr = String.format( "%s(new %s())", RaplSocketDecorator.class.getName(), RaplInternalCommand.class.getName() );
-                                    commandCreateFactory = String.format( "%s.getInstance().init()", raplSocketCommandFactory.getName() );
-                                }
-
-                                //String beforeStr = String.format("command = new  %s;command.executeAsync(null,%s.builder().samplingRate(%d).port(%d).className(\"%s\").methodName(\"%s\").methodDesc(\"%s\").build());System.out.println(\"mana-time-sync-start:\" + System.currentTimeMillis() );startTime = System.nanoTime();",
-                                //        commandCreateStr, RaplInternalCommandParameter.class.getName(), samplingRate, port, className, methodName, methodDesc );
-                                String beforeStr = String.format("%s;%s.getInstance().execute(%s.builder().samplingRate(%d).port(%d).className(\"%s\").methodName(\"%s\").methodDesc(\"%s\").build());System.out.println(\"mana-time-sync-start:\" + System.currentTimeMillis() );startTime = System.nanoTime();",
-                                        commandCreateFactory, port != -1 ? raplSocketCommandFactory.getName() : raplFileCommandFactory.getName(), RaplInternalCommandParameter.class.getName(), samplingRate, port, className, methodName, methodDesc );
-                                //String afterStr = "command.stopExecute().close();System.out.println(\"mana-time-sync-end:\" + System.currentTimeMillis()); System.out.println(\"mana-duration:\" + ( System.nanoTime() - startTime ) );";
-                                String afterStr = String.format("%s.getInstance().stop();System.out.println(\"mana-time-sync-end:\" + System.currentTimeMillis()); System.out.println(\"mana-duration:\" + ( System.nanoTime() - startTime ) );", port != -1 ? raplSocketCommandFactory.getName() : raplFileCommandFactory.getName());
-                                m.addLocalVariable("command", raplCommandType );
-                                m.addLocalVariable("startTime", CtClass.longType );
-                                m.insertBefore( beforeStr );
-                                m.insertAfter( afterStr );
-                                // ignore methods, that were already processed
-                                AnnotationsAttribute attributeNew = genAttribute(AlteredByMana.class, m);
-                                m.getMethodInfo().addAttribute( attributeNew );
-                                altered = true;
-                            } else {
-                                getLog().error( "Unable to instrument method, RaplCommand class could not be found." );
-                                throw new RuntimeException( "Unable to instrument method, RaplCommand class could not be found." );
-                            }
-                        } else {
-                            if( m.hasAnnotation( AlteredByMana.class )  ) {
-                                getLog().warn( "Method " + ConsoleColors.BLUE + m.getName()+ ConsoleColors.RESET + " has already been altered by the Instrument Mana Plugin. Consider executing mvn clean in order to change already altered methods." );
-                                continue;
-                            }
-                            if(trace && !Modifier.isStatic(m.getModifiers())) {
-                                var className = ctClass.getName(); // qualified class name
-                                var methodName = m.getName();
-                                var methodDesc = m.getMethodInfo().getDescriptor();
-                                var epoch = "System.currentTimeMillis()";
-                                var epochMicroSeconds = "java.time.temporal.ChronoUnit.MICROS.between(java.time.Instant.EPOCH, java.time.Instant.now())";
-                                CtClass factoryClass = classPool.getOrNull(FileCommandFactory.class.getName());
-                                if( port != -1 )
-                                    factoryClass = classPool.getOrNull(SocketCommandFactory.class.getName());
-
-                                m.insertBefore( String.format("%s.getInstance().enter(\"%s\",\"%s\",\"%s\",%s,%s);",
-                                        factoryClass.getName(),className, methodName, methodDesc, epoch, epochMicroSeconds) );
-                                m.insertAfter( String.format("%s.getInstance().exit(\"%s\",\"%s\",\"%s\",%s,%s);",
-                                        factoryClass.getName(),className, methodName, methodDesc, epoch, epochMicroSeconds) );
-                                getLog().info("  ├── Instrumenting method: " + ConsoleColors.PURPLE + m.getName() + ConsoleColors.RESET);
-                                AnnotationsAttribute attributeNew = genAttribute(AlteredByMana.class, m);
-                                m.getMethodInfo().addAttribute( attributeNew );
-                                altered = true;
-                            }
-                        }
+                Map<String, List<MethodTable.Method>> rows = new TreeMap<>();
+                if (table.isFile()) {
+                    try (Reader reader = new InputStreamReader(new FileInputStream(table), StandardCharsets.UTF_8)) {
+                        rows.putAll(MethodTable.read(reader));
                     }
-
-                    // override the class file
-                    if( altered ) {
-                        DataOutputStream dataOutputStream = new DataOutputStream(new FileOutputStream(file.getValue()));
-                        ctClass.toBytecode(dataOutputStream);
-                        dataOutputStream.close();
-                        getLog().info("├── ✅ Successfully altered class " + ConsoleColors.CYAN + ctClass.getName() + ConsoleColors.RESET );
-                    }
-
-                } catch (NotFoundException | IOException | CannotCompileException e) {
-                    getLog().error(e);
                 }
+                // classes in folders the walk skipped are kept as long as their class file exists
+                rows.keySet().removeIf(className -> reports.containsKey(className)
+                        || !new File(directory, className.replace('.', File.separatorChar) + ".class").isFile());
+                reports.forEach((className, report) -> {
+                    if (!report.getMethods().isEmpty()
+                            && classes.get(className).toPath().toAbsolutePath().startsWith(root))
+                        rows.put(className, report.getMethods());
+                });
+                if (rows.isEmpty()) {
+                    Files.deleteIfExists(table.toPath());
+                    continue;
+                }
+                Files.createDirectories(table.toPath().getParent());
+                try (Writer writer = new OutputStreamWriter(new FileOutputStream(table), StandardCharsets.UTF_8)) {
+                    MethodTable.write(writer, rows);
+                }
+            } catch (IOException e) {
+                getLog().error("Unable to write method table " + table, e);
             }
         }
     }
 
-    private void appendClassPool(String x) {
+    private InstrumentationIndex loadIndex(InstrumentationConfig config) {
         try {
-            classPool.appendClassPath(x);
-        } catch (NotFoundException e) {
-            getLog().error(e);
-            throw new IllegalStateException(e);
+            return new InstrumentationIndex(indexDirectory,
+                    InstrumentationIndex.hash((config.fingerprint() + pluginVersion).getBytes(StandardCharsets.UTF_8))).load();
+        } catch (IOException e) {
+            getLog().warn("Unable to read instrumentation index, instrumenting all classes", e);
+            return null;
+        }
+    }
+
+    private boolean isUpToDate(InstrumentationIndex index, String className, File file) {
+        try {
+            return index.isUpToDate(className, file);
+        } catch (IOException e) {
+            getLog().warn("Unable to check class file " + file, e);
+            return false;
         }
     }
 
+    private InstrumentationEngine.ClassFileSink preservingSink(InstrumentationIndex index) {
+        return (className, file, bytecode) -> {
+            index.preserveOriginal(className, file);
+            InstrumentationEngine.replace(file, bytecode);
+        };
+    }
+
+    private void saveIndex(InstrumentationIndex index, Map<String, File> classes, Map<String, InstrumentationReport> reports) {
+        try {
+            index.retain(classes);
+            for (Map.Entry<String, InstrumentationReport> report : reports.entrySet()) {
+                // classes that failed are retried by the next build
+                if (!report.getValue().hasErrors())
+                    index.update(report.getKey(), classes.get(report.getKey()));
+            }
+            index.save();
+        } catch (IOException e) {
+            getLog().warn("Unable to write instrumentation index, the next build instruments all classes", e);
+        }
+    }
 
     /**
-     * Helper function loading all classes into a file map
-     *
-     * @param delimiter     what the root folder is
-     * @param directoryName folder to load
-     * @param files         map to load files into
+     * Creates a class pool resolving classes from the plugin, the project dependencies and the
+     * output directories. Every worker of the engine receives a pool of its own, the jars among the
+     * dependencies are read through the {@link ClassPathCache} shared by all modules of the build.
      */
-    public void listf(String delimiter, String directoryName, Map<String, File> files) {
-        File directory = new File(directoryName);
-        // Get all files from a directory.
-        File[] fList = directory.listFiles();
-        if (fList != null)
-            for (File file : fList) {
-                if (file.isFile()) {
-                    final String className = file.getAbsolutePath().substring(delimiter.length() + 1, file.getAbsolutePath().length() - ".class".length()).replace(File.separatorChar, '.');
-                    files.put(className, file);
-                } else if (file.isDirectory()) {
-                    listf(delimiter, file.getAbsolutePath(), files);
-                }
+    protected ClassPool createClassPool(List<String> classPath) {
+        ClassPool classPool = new ClassPool(true);
+        if (classCacheSize <= 0) {
+            classPath.forEach(x -> appendClassPool(classPool, x));
+            return classPool;
+        }
+        // consecutive jars form one cached class path, the lookup order stays the same
+        List<String> jars = new ArrayList<>();
+        for (String element : classPath) {
+            if (ClassPathCache.isJar(element)) {
+                jars.add(element);
+                continue;
             }
+            appendCachedJars(classPool, jars);
+            appendClassPool(classPool, element);
+        }
+        appendCachedJars(classPool, jars);
+        return classPool;
     }
 
-    private AnnotationsAttribute genAttribute(Class annotationClass, CtMethod method) {
-        MethodInfo methodInfoGetEid = method.getMethodInfo();
-        ConstPool cp = methodInfoGetEid.getConstPool();
-        Annotation annotationNew = new Annotation(annotationClass.getName(), cp);
-        AnnotationsAttribute attributeNew = new AnnotationsAttribute(cp, AnnotationsAttribute.invisibleTag);
-        attributeNew.addAnnotation(annotationNew);
-        return attributeNew;
+    private void appendCachedJars(ClassPool classPool, List<String> jars) {
+        if (jars.isEmpty())
+            return;
+        try {
+            classPool.appendClassPath(ClassPathCache.shared().classPath(jars));
+        } catch (IOException e) {
+            getLog().warn("Unable to index dependencies, they are read without cache: " + e.getMessage());
+            jars.forEach(x -> appendClassPool(classPool, x));
+        }
+        jars.clear();
     }
 
+    protected void publish(InstrumentationReport report) {
+        for (InstrumentationReport.Entry entry : report.getEntries()) {
+            switch (entry.getLevel()) {
+                case DEBUG:
+                    getLog().debug(entry.getMessage());
+                    break;
+                case INFO:
+                    getLog().info(entry.getMessage());
+                    break;
+                case WARN:
+                    getLog().warn(entry.getMessage());
+                    break;
+                default:
+                    if (entry.getError() != null)
+                        getLog().error(entry.getError());
+                    else
+                        getLog().error(entry.getMessage());
+            }
+        }
+    }
+
+    private void appendClassPool(ClassPool classPool, String x) {
+        try {
+            classPool.appendClassPath(x);
+        } catch (NotFoundException e) {
+            getLog().error(e);
+            throw new IllegalStateException(e);
+        }
+    }
+
+
     public Log getLog() {
         if (this.log == null) {
             this.log = new RaplSystemStreamLog();
@@ -0,0 +1,106 @@
+package at.mana.instrument;
+
+import at.mana.instrument.archive.ArchiveInstrumenter;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.plugins.annotations.ResolutionScope;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+
+/**
+ * Instruments the classes of packaged jars and wars, by default the artifact of the project. The
+ * archive is rewritten entry by entry, every entry but the instrumented classes is copied without
+ * being recompressed, see {@link ArchiveInstrumenter}. Classes are resolved from the archive
+ * itself and the runtime dependencies of the project.
+ */
+@Mojo(  name = "instrument-jar",
+        defaultPhase = LifecyclePhase.PACKAGE,
+        requiresDependencyResolution = ResolutionScope.RUNTIME)
+public class InstrumentJarMojo extends InstrumentArtifactMojo {
+
+    /**
+     * Comma separated list of the jar or war files to instrument
+     */
+    @Parameter(property = "archives", required = true,
+            defaultValue = "${project.build.directory}/${project.build.finalName}.${project.packaging}")
+    private String archives;
+
+    /**
+     * Appended to the file name of the instrumented archive, an empty classifier replaces the archive
+     */
+    @Parameter(property = "archiveClassifier", required = false, defaultValue = "mana")
+    private String archiveClassifier = "mana";
+
+    /**
+     * Folder receiving the instrumented archives, by default the folder of the original archive
+     */
+    @Parameter(property = "archiveOutputDirectory", required = false)
+    private File archiveOutputDirectory;
+
+    @Override
+    public void execute() throws RuntimeException {
+        if (packageList == null || packageList.isEmpty()) {
+            return;
+        }
+        createOutputFolder();
+        InstrumentationConfig config = createConfig();
+        List<String> classPath = runtimeClassPath();
+        if (classCacheSize > 0) {
+            ClassPathCache.shared().setCapacity((long) classCacheSize << 20);
+        }
+        ArchiveInstrumenter instrumenter = new ArchiveInstrumenter(threads, config, () -> createClassPool(classPath));
+
+        try {
+            for (File source : files()) {
+                if (!source.isFile()) {
+                    getLog().warn("Archive " + source + " does not exist, run the goal after the package phase");
+                    continue;
+                }
+                File target = target(source);
+                getLog().info("Instrumenting " + source + " into " + target);
+                SortedMap<String, InstrumentationReport> reports;
+                try {
+                    reports = instrumenter.instrument(source, target);
+                } catch (IOException e) {
+                    getLog().error("Unable to instrument " + source, e);
+                    throw new IllegalStateException(e);
+                } catch (RuntimeException e) {
+                    getLog().error(e.getMessage());
+                    throw e;
+                }
+                reports.values().forEach(this::publish);
+            }
+        } finally {
+            ClassPathCache.shared().closeJars();
+        }
+    }
+
+    private List<File> files() {
+        List<File> files = new ArrayList<>();
+        for (String name : archives.split(",")) {
+            if (!name.trim().isEmpty())
+                files.add(new File(name.trim()));
+        }
+        return files;
+    }
+
+    /**
+     * @return the file of the instrumented archive, the classifier goes in front of the extension
+     */
+    File target(File source) {
+        File directory = archiveOutputDirectory != null ? archiveOutputDirectory : source.getAbsoluteFile().getParentFile();
+        if (archiveClassifier == null || archiveClassifier.isEmpty())
+            return new File(directory, source.getName());
+        String name = source.getName();
+        int dot = name.lastIndexOf('.');
+        return dot < 0
+                ? new File(directory, name + "-" + archiveClassifier)
+                : new File(directory, name.substring(0, dot) + "-" + archiveClassifier + name.substring(dot));
+    }
+
+}
@@ -0,0 +1,239 @@
+package at.mana.instrument;
+
+import at.mana.instrument.format.ManaFormat;
+import at.mana.instrument.format.TraceLayout;
+import at.mana.instrument.transport.OverflowPolicy;
+import at.mana.instrument.transport.Transport;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Immutable view of the plugin configuration that drives the bytecode transformation.
+ */
+@Getter
+@Builder(toBuilder = true)
+@ToString
+public class InstrumentationConfig {
+
+    /**
+     * Methods whose name contains test, regardless of the case
+     */
+    public static final String DEFAULT_MEASURE_METHODS = "regex:(?i).*test.*";
+
+    /**
+     * Java packages that contain classes to be instrumented
+     */
+    private final List<String> packages;
+
+    private final String outputFolder;
+
+    private final int samplingRate;
+
+    @Builder.Default
+    private final int port = -1;
+
+    private final boolean trace;
+
+    /**
+     * Restricts the classes of the packages to the matching ones, no restriction if empty
+     */
+    @Builder.Default
+    private final PatternSet includes = PatternSet.EMPTY;
+
+    /**
+     * Classes never to instrument
+     */
+    @Builder.Default
+    private final PatternSet excludes = PatternSet.EMPTY;
+
+    /**
+     * Methods to trace, all methods if empty
+     */
+    @Builder.Default
+    private final PatternSet methodIncludes = PatternSet.EMPTY;
+
+    /**
+     * Methods never to trace
+     */
+    @Builder.Default
+    private final PatternSet methodExcludes = PatternSet.EMPTY;
+
+    /**
+     * Methods that receive the energy measurement hooks
+     */
+    @Builder.Default
+    private final PatternSet measureMethods = PatternSet.of( DEFAULT_MEASURE_METHODS );
+
+    /**
+     * Methods with less bytecode are not traced
+     */
+    private final int minMethodSize;
+
+    /**
+     * Trace one in callSampling calls of each method and thread, 1 traces every call
+     */
+    @Builder.Default
+    private final int callSampling = 1;
+
+    /**
+     * Format of the measurement files, only applies if the measurements are written to files
+     */
+    @Builder.Default
+    private final ManaFormat format = ManaFormat.JSON;
+
+    /**
+     * How the trace is stored, only applies to the {@link ManaFormat#JSON} format
+     */
+    @Builder.Default
+    private final TraceLayout traceLayout = TraceLayout.CALLS;
+
+    /**
+     * How measurements reach the collector, only applies if a port is set
+     */
+    @Builder.Default
+    private final Transport transport = Transport.SOCKET;
+
+    /**
+     * Frames the send queue of the {@link Transport#NIO} transport holds
+     */
+    @Builder.Default
+    private final int sendQueueSize = 1024;
+
+    /**
+     * Handling of frames that do not fit into the send queue of the {@link Transport#NIO} transport
+     */
+    @Builder.Default
+    private final OverflowPolicy overflow = OverflowPolicy.BLOCK;
+
+    /**
+     * Measures all tests of a JVM with a single sampler, see {@link SessionCommandFactory}
+     */
+    private final boolean session;
+
+    /**
+     * How a measurement waits for the RAPL sampler on start and stop
+     */
+    @Builder.Default
+    private final SampleSync sampleSync = SampleSync.PERIODS;
+
+    /**
+     * Sampling periods to wait after the sampler was started, applies to {@link SampleSync#PERIODS}
+     */
+    @Builder.Default
+    private final int warmupPeriods = 1;
+
+    /**
+     * Sampling periods to wait before the sampler is stopped, applies to {@link SampleSync#PERIODS}
+     */
+    @Builder.Default
+    private final int cooldownPeriods = 1;
+
+    /**
+     * Milliseconds of a measurement whose energy samples are kept at full resolution, later samples
+     * are merged by {@link at.mana.instrument.format.EnergyTable#downsample(long)}, 0 keeps all samples
+     */
+    private final int adaptiveWindow;
+
+    /**
+     * Resolves settings that contradict each other and clamps counts to their minimum, shared by
+     * the mojo and the agent so both accept the same configurations
+     *
+     * @param warnings receives a message per ignored setting, starting with the name of the setting
+     * @return this configuration if it is consistent, otherwise a corrected copy
+     */
+    public InstrumentationConfig validate( Consumer<String> warnings ) {
+        InstrumentationConfigBuilder valid = toBuilder()
+                .callSampling( Math.max( 1, callSampling ) )
+                .sendQueueSize( Math.max( 1, sendQueueSize ) )
+                .warmupPeriods( Math.max( 1, warmupPeriods ) )
+                .cooldownPeriods( Math.max( 1, cooldownPeriods ) )
+                .adaptiveWindow( Math.max( 0, adaptiveWindow ) );
+        ManaFormat validFormat = format;
+        if( validFormat != ManaFormat.JSON && port != -1 ) {
+            warnings.accept( "format is ignored, measurements are sent to port " + port );
+            valid.format( validFormat = ManaFormat.JSON );
+        }
+        if( traceLayout != TraceLayout.CALLS && (validFormat != ManaFormat.JSON || port != -1) ) {
+            warnings.accept( "traceLayout is ignored, it only applies to json files" );
+            valid.traceLayout( TraceLayout.CALLS );
+        }
+        if( session && (port != -1 || validFormat == ManaFormat.SPILL) ) {
+            warnings.accept( "session is ignored, it neither supports a port nor the spill format" );
+            valid.session( false );
+        }
+        if( adaptiveWindow > 0 && port != -1 ) {
+            warnings.accept( "adaptiveSampling is ignored, measurements are sent to port " + port );
+            valid.adaptiveWindow( 0 );
+        }
+        return valid.build();
+    }
+
+    /**
+     * Checks whether a class is subject to instrumentation by means of the configured packages and
+     * class patterns
+     *
+     * @param className qualified class name
+     * @return true if the class should be handed to the instrumenter
+     */
+    public boolean accepts( String className ) {
+        return (packages.isEmpty() || packages.stream().anyMatch(className::startsWith)
+                && !className.endsWith("package-info"))
+                && (includes.isEmpty() || includes.matches(className))
+                && !excludes.matches(className);
+    }
+
+    /**
+     * Checks whether a method is subject to tracing by means of the configured method patterns
+     *
+     * @param className  qualified class name
+     * @param methodName name of the method
+     * @return true if the method may be traced
+     */
+    public boolean tracesMethod( String className, String methodName ) {
+        return (methodIncludes.isEmpty() || methodIncludes.matches(className, methodName))
+                && !methodExcludes.matches(className, methodName);
+    }
+
+    /**
+     * @return milliseconds a measurement waits after the sampler was started
+     */
+    public long warmupMillis() {
+        return warmupMillis( samplingRate );
+    }
+
+    /**
+     * @param samplingRate sampling period of the measurement, if it overrides the configured one
+     * @return milliseconds a measurement waits after the sampler was started
+     */
+    public long warmupMillis( int samplingRate ) {
+        return sampleSync.warmupMillis( samplingRate, warmupPeriods );
+    }
+
+    /**
+     * @return milliseconds a measurement waits before the sampler is stopped
+     */
+    public long cooldownMillis() {
+        return cooldownMillis( samplingRate );
+    }
+
+    /**
+     * @param samplingRate sampling period of the measurement, if it overrides the configured one
+     * @return milliseconds a measurement waits before the sampler is stopped
+     */
+    public long cooldownMillis( int samplingRate ) {
+        return sampleSync.cooldownMillis( samplingRate, cooldownPeriods );
+    }
+
+    /**
+     * @return hash identifying this configuration, changes whenever any setting changes
+     */
+    public String fingerprint() {
+        return InstrumentationIndex.hash( toString().getBytes( StandardCharsets.UTF_8 ) );
+    }
+
+}
@@ -0,0 +1,203 @@
+package at.mana.instrument;
+
+import at.mana.core.util.ConsoleColors;
+import javassist.CannotCompileException;
+import javassist.NotFoundException;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Distributes the classes of a build across a pool of workers. Every worker owns a
+ * {@link ClassInstrumenter} and therefore its own class pool, so no javassist state is shared
+ * between threads. Log output is collected per class and returned in class name order.
+ */
+public class InstrumentationEngine {
+
+    /**
+     * Receives the altered bytecode of a class, called concurrently by all workers
+     */
+    @FunctionalInterface
+    public interface ClassFileSink {
+        void write( String className, File file, byte[] bytecode ) throws IOException;
+    }
+
+    /**
+     * Supplies the classes to instrument, see {@link #run(ClassSource)}
+     */
+    @FunctionalInterface
+    public interface ClassSource {
+        /**
+         * Passes every class to the consumer, workers start instrumenting before all classes are known
+         */
+        void discover( BiConsumer<String, File> consumer ) throws IOException;
+    }
+
+    // marks the end of the queue, every worker puts it back for the next one
+    private static final Map.Entry<String, File> END = new AbstractMap.SimpleImmutableEntry<>( "", null );
+
+    private final int threads;
+    private final Supplier<ClassInstrumenter> instrumenterFactory;
+    private final ClassFileSink sink;
+    private final AtomicBoolean failed = new AtomicBoolean( false );
+
+    /**
+     * @param threads             number of workers, 0 uses all available processors
+     * @param instrumenterFactory creates a fresh instrumenter for every worker
+     */
+    public InstrumentationEngine( int threads, Supplier<ClassInstrumenter> instrumenterFactory ) {
+        this( threads, instrumenterFactory, ( className, file, bytecode ) -> replace( file, bytecode ) );
+    }
+
+    /**
+     * @param threads             number of workers, 0 uses all available processors
+     * @param instrumenterFactory creates a fresh instrumenter for every worker
+     * @param sink                stores the altered bytecode
+     */
+    public InstrumentationEngine( int threads, Supplier<ClassInstrumenter> instrumenterFactory, ClassFileSink sink ) {
+        this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        this.instrumenterFactory = instrumenterFactory;
+        this.sink = sink;
+    }
+
+    /**
+     * Instruments all given classes and overrides their class files in place
+     *
+     * @param classes qualified class names mapped to their class files
+     * @return reports of all processed classes ordered by class name
+     */
+    public SortedMap<String, InstrumentationReport> run( Map<String, File> classes ) {
+        try {
+            return run( classes.size(), consumer -> classes.forEach( consumer ) );
+        } catch( IOException e ) {
+            throw new IllegalStateException( e );
+        }
+    }
+
+    /**
+     * Instruments the classes while the source still discovers them. The source runs on the calling
+     * thread and hands the classes to the workers through a queue.
+     *
+     * @param source supplies the qualified class names and their class files
+     * @return reports of all processed classes ordered by class name
+     */
+    public SortedMap<String, InstrumentationReport> run( ClassSource source ) throws IOException {
+        return run( Integer.MAX_VALUE, source );
+    }
+
+    private SortedMap<String, InstrumentationReport> run( int size, ClassSource source ) throws IOException {
+        SortedMap<String, InstrumentationReport> reports = new ConcurrentSkipListMap<>();
+        int workers = Math.max( 1, Math.min( threads, size ) );
+        if( workers == 1 ) {
+            // serial path, no need to spin up a pool
+            ClassInstrumenter instrumenter = instrumenterFactory.get();
+            source.discover( ( className, file ) -> instrument( instrumenter, className, file, reports ) );
+            return reports;
+        }
+
+        BlockingQueue<Map.Entry<String, File>> queue = new LinkedBlockingQueue<>();
+        ExecutorService executor = Executors.newFixedThreadPool( workers, new WorkerThreadFactory() );
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for( int i = 0; i < workers; i++ ) {
+                futures.add( executor.submit( () -> {
+                    work( queue, reports );
+                    return null;
+                } ) );
+            }
+            try {
+                source.discover( ( className, file ) -> {
+                    if( !failed.get() )
+                        queue.add( new AbstractMap.SimpleImmutableEntry<>( className, file ) );
+                } );
+            } finally {
+                queue.add( END );
+            }
+            for( Future<?> future : futures ) {
+                future.get();
+            }
+        } catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException( e );
+        } catch( ExecutionException e ) {
+            if( e.getCause() instanceof RuntimeException )
+                throw (RuntimeException) e.getCause();
+            throw new IllegalStateException( e.getCause() );
+        } finally {
+            executor.shutdownNow();
+        }
+        return reports;
+    }
+
+    private void work( BlockingQueue<Map.Entry<String, File>> queue, Map<String, InstrumentationReport> reports )
+            throws InterruptedException {
+        ClassInstrumenter instrumenter = instrumenterFactory.get();
+        Map.Entry<String, File> next;
+        while( !failed.get() && (next = queue.take()) != END ) {
+            instrument( instrumenter, next.getKey(), next.getValue(), reports );
+        }
+        queue.add( END );
+    }
+
+    private void instrument( ClassInstrumenter instrumenter, String className, File file,
+                             Map<String, InstrumentationReport> reports ) {
+        InstrumentationReport report = new InstrumentationReport();
+        reports.put( className, report );
+        try {
+            byte[] bytecode = instrumenter.instrument( className, report );
+            // override the class file
+            if( bytecode != null ) {
+                sink.write( className, file, bytecode );
+                report.info("├── ✅ Successfully altered class " + ConsoleColors.CYAN + className + ConsoleColors.RESET );
+            }
+        } catch( NotFoundException | IOException | CannotCompileException e ) {
+            report.error( e );
+        } catch( RuntimeException e ) {
+            failed.set( true );
+            throw e;
+        }
+    }
+
+    /**
+     * Replaces the class file atomically, workers resolving the class concurrently never see a
+     * partially written file.
+     */
+    public static void replace( File file, byte[] bytecode ) throws IOException {
+        Path target = file.toPath();
+        Path temp = Files.createTempFile( target.getParent(), target.getFileName().toString(), ".tmp" );
+        try {
+            Files.write( temp, bytecode );
+            Files.move( temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+        } finally {
+            Files.deleteIfExists( temp );
+        }
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+
+        private final ThreadFactory delegate = Executors.defaultThreadFactory();
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread( Runnable runnable ) {
+            Thread thread = delegate.newThread( runnable );
+            thread.setName( "mana-instrument-" + count.incrementAndGet() );
+            thread.setDaemon( true );
+            return thread;
+        }
+    }
+
+}
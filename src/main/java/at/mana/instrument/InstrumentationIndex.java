@@ -0,0 +1,203 @@
+package at.mana.instrument;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Persistent index of all class files instrumented by a previous build. For every class it stores
+ * the modification time, size and content hash of the class file as it was left behind, together
+ * with a hash of the plugin configuration. Classes whose files and configuration did not change
+ * are skipped without being loaded into javassist.
+ * <p>
+ * The original bytecode of altered classes is kept next to the index, so a class can be restored
+ * and instrumented again once the configuration changes.
+ */
+public class InstrumentationIndex {
+
+    private static final String HEADER = "# mana instrument index v1";
+    private static final String INDEX_FILE = "instrument.idx";
+    private static final String ORIGINAL_FOLDER = "original";
+
+    @Getter
+    @AllArgsConstructor
+    static class Entry {
+        private final long modified;
+        private final long size;
+        private final String contentHash;
+        private final String configHash;
+    }
+
+    private final Path directory;
+    private final String configHash;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * @param directory  folder holding the index and the original class files
+     * @param configHash hash of the configuration of the current build
+     */
+    public InstrumentationIndex( File directory, String configHash ) {
+        this.directory = directory.toPath();
+        this.configHash = configHash;
+    }
+
+    /**
+     * Loads the index of the previous build, a missing or unreadable index is treated as empty
+     */
+    public InstrumentationIndex load() throws IOException {
+        Path file = directory.resolve( INDEX_FILE );
+        if( !Files.isRegularFile( file ) )
+            return this;
+        try( BufferedReader reader = Files.newBufferedReader( file, StandardCharsets.UTF_8 ) ) {
+            if( !HEADER.equals( reader.readLine() ) )
+                return this;
+            String line;
+            while( (line = reader.readLine()) != null ) {
+                String[] columns = line.split( "\t" );
+                if( columns.length == 5 ) {
+                    entries.put( columns[0], new Entry( Long.parseLong( columns[1] ), Long.parseLong( columns[2] ),
+                            columns[3], columns[4] ) );
+                }
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Writes the index for the next build
+     */
+    public void save() throws IOException {
+        Files.createDirectories( directory );
+        Path file = directory.resolve( INDEX_FILE );
+        Path temp = Files.createTempFile( directory, INDEX_FILE, ".tmp" );
+        try( BufferedWriter writer = Files.newBufferedWriter( temp, StandardCharsets.UTF_8 ) ) {
+            writer.write( HEADER );
+            writer.newLine();
+            for( Map.Entry<String, Entry> e : new TreeMap<>( entries ).entrySet() ) {
+                Entry entry = e.getValue();
+                writer.write( e.getKey() + "\t" + entry.getModified() + "\t" + entry.getSize() + "\t"
+                        + entry.getContentHash() + "\t" + entry.getConfigHash() );
+                writer.newLine();
+            }
+        }
+        Files.move( temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+    }
+
+    /**
+     * Decides whether a class file has to be instrumented. Class files that were recompiled are
+     * forgotten, class files instrumented with a different configuration are restored to their
+     * original bytecode first.
+     *
+     * @param className qualified class name
+     * @param file      class file in the output directory
+     * @return true if the class file is up to date and can be skipped
+     */
+    public boolean isUpToDate( String className, File file ) throws IOException {
+        Entry entry = entries.get( className );
+        if( entry == null )
+            return false;
+        Path path = file.toPath();
+        boolean unchanged = entry.getModified() == Files.getLastModifiedTime( path ).toMillis()
+                && entry.getSize() == Files.size( path );
+        if( !unchanged && !entry.getContentHash().equals( hash( Files.readAllBytes( path ) ) ) ) {
+            // the compiler replaced the class file, it is pristine again
+            forget( className );
+            return false;
+        }
+        if( !configHash.equals( entry.getConfigHash() ) ) {
+            restore( className, file );
+            return false;
+        }
+        if( !unchanged ) {
+            // same content, only touched
+            update( className, file );
+        }
+        return true;
+    }
+
+    /**
+     * Keeps a copy of the class file before it is overridden with instrumented bytecode
+     */
+    public void preserveOriginal( String className, File file ) throws IOException {
+        Path original = original( className );
+        Files.createDirectories( original.getParent() );
+        Files.copy( file.toPath(), original, StandardCopyOption.REPLACE_EXISTING );
+    }
+
+    /**
+     * Records the current state of a processed class file
+     */
+    public void update( String className, File file ) throws IOException {
+        Path path = file.toPath();
+        entries.put( className, new Entry( Files.getLastModifiedTime( path ).toMillis(), Files.size( path ),
+                hash( Files.readAllBytes( path ) ), configHash ) );
+    }
+
+    /**
+     * @return names of all classes in the index
+     */
+    public Set<String> getClassNames() {
+        return Collections.unmodifiableSet( entries.keySet() );
+    }
+
+    /**
+     * Drops all classes from the index that no longer exist in the output directories
+     *
+     * @param classes all class names found by the current build
+     */
+    public void retain( Map<String, File> classes ) throws IOException {
+        for( String className : entries.keySet() ) {
+            if( !classes.containsKey( className ) )
+                forget( className );
+        }
+    }
+
+    private void restore( String className, File file ) throws IOException {
+        Path original = original( className );
+        if( Files.isRegularFile( original ) ) {
+            // workers may already resolve this class from the output directory
+            InstrumentationEngine.replace( file, Files.readAllBytes( original ) );
+        }
+        forget( className );
+    }
+
+    private void forget( String className ) throws IOException {
+        entries.remove( className );
+        Files.deleteIfExists( original( className ) );
+    }
+
+    private Path original( String className ) {
+        return directory.resolve( ORIGINAL_FOLDER ).resolve( className + ".class" );
+    }
+
+    /**
+     * @return hex encoded SHA-256 hash of the given bytes
+     */
+    public static String hash( byte[] bytes ) {
+        try {
+            StringBuilder result = new StringBuilder();
+            for( byte b : MessageDigest.getInstance( "SHA-256" ).digest( bytes ) ) {
+                result.append( Character.forDigit( (b >> 4) & 0xF, 16 ) ).append( Character.forDigit( b & 0xF, 16 ) );
+            }
+            return result.toString();
+        } catch( NoSuchAlgorithmException e ) {
+            throw new IllegalStateException( e );
+        }
+    }
+
+}
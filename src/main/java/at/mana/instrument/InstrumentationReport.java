@@ -0,0 +1,70 @@
+package at.mana.instrument;
+
+import at.mana.instrument.trace.MethodTable;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Buffers the log output produced while instrumenting a single class. Workers write into their
+ * own report, which are published in class name order once all workers are done, so the build
+ * log is identical regardless of the number of threads.
+ */
+public class InstrumentationReport {
+
+    public enum Level { DEBUG, INFO, WARN, ERROR }
+
+    @Getter
+    @AllArgsConstructor
+    public static class Entry {
+        private final Level level;
+        private final String message;
+        private final Throwable error;
+    }
+
+    private final List<Entry> entries = new ArrayList<>();
+    private final List<MethodTable.Method> methods = new ArrayList<>();
+
+    public void debug( String message ) {
+        entries.add( new Entry( Level.DEBUG, message, null ) );
+    }
+
+    public void info( String message ) {
+        entries.add( new Entry( Level.INFO, message, null ) );
+    }
+
+    public void warn( String message ) {
+        entries.add( new Entry( Level.WARN, message, null ) );
+    }
+
+    public void error( String message ) {
+        entries.add( new Entry( Level.ERROR, message, null ) );
+    }
+
+    public void error( Throwable error ) {
+        entries.add( new Entry( Level.ERROR, null, error ) );
+    }
+
+    /**
+     * Records a traced method of the class for the method table
+     */
+    public void method( MethodTable.Method method ) {
+        methods.add( method );
+    }
+
+    public List<MethodTable.Method> getMethods() {
+        return Collections.unmodifiableList( methods );
+    }
+
+    public boolean hasErrors() {
+        return entries.stream().anyMatch( e -> e.getLevel() == Level.ERROR );
+    }
+
+    public List<Entry> getEntries() {
+        return Collections.unmodifiableList( entries );
+    }
+
+}
@@ -0,0 +1,228 @@
+package at.mana.instrument;
+
+import at.mana.instrument.trace.TraceRecorder;
+import at.mana.instrument.transport.FrameTransport;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and time summaries of the instrumentation, shared by all command factories of a JVM
+ * and exposed through JMX. Nothing is counted on the trace hooks, the number of events is read
+ * from the trace recorders on demand; the factories report once per measurement.
+ * <p>
+ * Registration with the platform MBean server can be turned off with {@code -Dmana.jmx=false}.
+ */
+public final class ManaMetrics implements ManaMetricsMXBean {
+
+    public static final String OBJECT_NAME = "at.mana:type=Instrumentation";
+
+    private static final ManaMetrics INSTANCE = new ManaMetrics();
+
+    static {
+        if( !"false".equals( System.getProperty( "mana.jmx" ) ) )
+            INSTANCE.register();
+    }
+
+    private final List<TraceRecorder> recorders = new CopyOnWriteArrayList<>();
+    private final List<FrameTransport> transports = new CopyOnWriteArrayList<>();
+    private final AtomicInteger active = new AtomicInteger();
+    private final LongAdder measurements = new LongAdder();
+    private final LongAdder droppedEvents = new LongAdder();
+    private final Histogram measurementTime = new Histogram();
+    private final Histogram samplerTime = new Histogram();
+    private final Histogram serializationTime = new Histogram();
+    private volatile long eventsAtReset;
+    private volatile long framesAtReset;
+
+    ManaMetrics() {
+    }
+
+    public static ManaMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    private void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean( this, new ObjectName( OBJECT_NAME ) );
+        } catch( JMException | SecurityException e ) {
+            // e.g. the plugin was loaded twice by different class loaders, the first one stays visible
+            System.err.println( "MANA metrics are not available through JMX: " + e.getMessage() );
+        }
+    }
+
+    /**
+     * Includes the events of the recorder in {@link #getTraceEvents()}
+     */
+    void watch( TraceRecorder recorder ) {
+        recorders.add( recorder );
+    }
+
+    /**
+     * Includes the frames the transport dropped in {@link #getDroppedFrames()}
+     */
+    void watch( FrameTransport transport ) {
+        transports.add( transport );
+    }
+
+    /**
+     * @return number of measurements running including the started one
+     */
+    int started() {
+        return active.incrementAndGet();
+    }
+
+    void stopped( MeasurementMeta meta ) {
+        active.decrementAndGet();
+        measurements.increment();
+        droppedEvents.add( meta.droppedEvents );
+        measurementTime.record( meta.durationNanos );
+        if( meta.samplerNanos >= 0 )
+            samplerTime.record( meta.samplerNanos );
+        serialized( meta.serializationNanos );
+    }
+
+    /**
+     * Records the time spent writing a file, for files written after the measurement was reported stopped
+     */
+    void serialized( long nanos ) {
+        if( nanos >= 0 )
+            serializationTime.record( nanos );
+    }
+
+    @Override
+    public long getMeasurements() {
+        return measurements.sum();
+    }
+
+    @Override
+    public int getActiveMeasurements() {
+        return active.get();
+    }
+
+    @Override
+    public long getTraceEvents() {
+        return events() - eventsAtReset;
+    }
+
+    @Override
+    public long getDroppedTraceEvents() {
+        return droppedEvents.sum();
+    }
+
+    @Override
+    public long getDroppedFrames() {
+        return frames() - framesAtReset;
+    }
+
+    @Override
+    public Map<String, Long> getMeasurementTime() {
+        return measurementTime.summary();
+    }
+
+    @Override
+    public Map<String, Long> getSamplerTime() {
+        return samplerTime.summary();
+    }
+
+    @Override
+    public Map<String, Long> getSerializationTime() {
+        return serializationTime.summary();
+    }
+
+    @Override
+    public void reset() {
+        eventsAtReset = events();
+        framesAtReset = frames();
+        measurements.reset();
+        droppedEvents.reset();
+        measurementTime.reset();
+        samplerTime.reset();
+        serializationTime.reset();
+    }
+
+    private long events() {
+        long events = 0;
+        for( TraceRecorder recorder : recorders )
+            events += recorder.getEvents();
+        return events;
+    }
+
+    private long frames() {
+        long frames = 0;
+        for( FrameTransport transport : transports )
+            frames += transport.getDropped();
+        return frames;
+    }
+
+    /**
+     * Durations in buckets of powers of two nano seconds, percentiles are the upper bound of their bucket
+     */
+    static final class Histogram {
+        private final AtomicLongArray buckets = new AtomicLongArray( 64 );
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator( Math::max, 0 );
+
+        void record( long nanos ) {
+            long value = Math.max( 0, nanos );
+            // bucket i holds the values below 2^i
+            buckets.incrementAndGet( 64 - Long.numberOfLeadingZeros( value ) );
+            count.increment();
+            sum.add( value );
+            max.accumulate( value );
+        }
+
+        void reset() {
+            for( int i = 0; i < buckets.length(); i++ )
+                buckets.set( i, 0 );
+            count.reset();
+            sum.reset();
+            max.reset();
+        }
+
+        /**
+         * @return the value below which the given fraction of the durations lies, in nano seconds
+         */
+        long percentile( double fraction ) {
+            long total = 0;
+            long[] counts = new long[buckets.length()];
+            for( int i = 0; i < counts.length; i++ ) {
+                counts[i] = buckets.get( i );
+                total += counts[i];
+            }
+            if( total == 0 )
+                return 0;
+            long rank = (long) Math.ceil( fraction * total );
+            long seen = 0;
+            for( int i = 0; i < counts.length; i++ ) {
+                seen += counts[i];
+                if( seen >= rank )
+                    return Math.min( i == 0 ? 0 : (1L << i) - 1, max.get() );
+            }
+            return max.get();
+        }
+
+        Map<String, Long> summary() {
+            long n = count.sum();
+            Map<String, Long> summary = new LinkedHashMap<>();
+            summary.put( "count", n );
+            summary.put( "mean", n == 0 ? 0 : sum.sum() / n / 1_000L );
+            summary.put( "p50", percentile( 0.5 ) / 1_000L );
+            summary.put( "p90", percentile( 0.9 ) / 1_000L );
+            summary.put( "p99", percentile( 0.99 ) / 1_000L );
+            summary.put( "max", max.get() / 1_000L );
+            return summary;
+        }
+    }
+
+}
@@ -0,0 +1,56 @@
+package at.mana.instrument;
+
+import java.util.Map;
+
+/**
+ * Overhead of the instrumentation in the running JVM, registered as {@value ManaMetrics#OBJECT_NAME}.
+ * Times are summarized as count, mean, p50, p90, p99 and max, in micro seconds.
+ */
+public interface ManaMetricsMXBean {
+
+    /**
+     * @return measurements completed so far
+     */
+    long getMeasurements();
+
+    /**
+     * @return measurements currently running
+     */
+    int getActiveMeasurements();
+
+    /**
+     * @return enter and exit events reported by the trace hooks
+     */
+    long getTraceEvents();
+
+    /**
+     * @return events lost because a trace buffer overran or a spill file could not grow
+     */
+    long getDroppedTraceEvents();
+
+    /**
+     * @return frames the streaming transports discarded
+     */
+    long getDroppedFrames();
+
+    /**
+     * @return time from the start of the measured method to its end
+     */
+    Map<String, Long> getMeasurementTime();
+
+    /**
+     * @return time the RAPL sampler ran, including warm up and cool down
+     */
+    Map<String, Long> getSamplerTime();
+
+    /**
+     * @return time spent writing the trace of a measurement
+     */
+    Map<String, Long> getSerializationTime();
+
+    /**
+     * Clears the counters and time summaries
+     */
+    void reset();
+
+}
@@ -0,0 +1,63 @@
+package at.mana.instrument;
+
+/**
+ * Overhead figures of a single measurement, written as the {@code meta} section of its file. A
+ * high event rate or many dropped events mark runs whose energy is skewed by the tracing itself.
+ */
+public class MeasurementMeta {
+
+    long traceEvents = -1;
+    long droppedEvents;
+    /**
+     * Frames the transport of a streamed measurement dropped so far, it is shared by all measurements
+     */
+    long droppedFrames = -1;
+    long durationNanos;
+    /**
+     * Wall clock time the measured method started and ended, milliseconds since epoch. Samples
+     * taken before the start or after the end belong to the warmup and cooldown of the sampler.
+     */
+    long start = -1;
+    long end = -1;
+    long samplerNanos = -1;
+    long serializationNanos = -1;
+    int concurrent = 1;
+
+    /**
+     * Time spent writing the trace, written to the file if set before {@link #toJson()} is called
+     */
+    public void setSerializationNanos( long serializationNanos ) {
+        this.serializationNanos = serializationNanos;
+    }
+
+    public long getTraceEvents() {
+        return traceEvents;
+    }
+
+    public long getDroppedEvents() {
+        return droppedEvents;
+    }
+
+    /**
+     * @return the section as json object, durations in micro seconds, start and end in milliseconds
+     * since epoch, unknown figures are left out
+     */
+    public String toJson() {
+        StringBuilder json = new StringBuilder( 160 ).append( '{' );
+        if( traceEvents >= 0 )
+            json.append( "\"traceEvents\":" ).append( traceEvents ).append( ", " );
+        json.append( "\"droppedEvents\":" ).append( droppedEvents );
+        if( droppedFrames >= 0 )
+            json.append( ", \"droppedFrames\":" ).append( droppedFrames );
+        json.append( ", \"duration\":" ).append( durationNanos / 1_000L );
+        if( start >= 0 && end >= 0 )
+            json.append( ", \"start\":" ).append( start ).append( ", \"end\":" ).append( end );
+        if( samplerNanos >= 0 )
+            json.append( ", \"samplerTime\":" ).append( samplerNanos / 1_000L );
+        if( serializationNanos >= 0 )
+            json.append( ", \"serializationTime\":" ).append( serializationNanos / 1_000L );
+        json.append( ", \"concurrentMeasurements\":" ).append( concurrent );
+        return json.append( '}' ).toString();
+    }
+
+}
@@ -0,0 +1,199 @@
+package at.mana.instrument;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes measurement files on a background thread, so a measured method returns as soon as its
+ * data is handed off. A measurement about to start calls {@link #awaitIdle()}, so the next test
+ * is not measured while the previous one is serialized. Writes wait in a bounded queue; a producer finding it full blocks until there is room, no file
+ * is ever dropped. The thread is started with the first write and a shutdown hook writes all
+ * pending files before the JVM exits.
+ * <p>
+ * Configured by system properties of the test JVM: {@code mana.writer.queueSize} bounds the
+ * queue, {@code -Dmana.writer.async=false} writes on the calling thread and
+ * {@code -Dmana.writer.compression=gzip} compresses the files, which get {@value #GZIP_EXTENSION}
+ * appended to their name.
+ */
+final class MeasurementWriter implements Closeable {
+
+    static final int QUEUE_SIZE = Integer.getInteger( "mana.writer.queueSize", 16 );
+    static final boolean ASYNC = !"false".equals( System.getProperty( "mana.writer.async" ) );
+    static final boolean GZIP = "gzip".equalsIgnoreCase( System.getProperty( "mana.writer.compression" ) );
+    static final String GZIP_EXTENSION = ".gz";
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final long CLOSE_TIMEOUT_MILLIS = 60_000;
+    private static final Job END = () -> { };
+
+    private final BlockingQueue<Job> queue;
+    private final boolean async;
+    /**
+     * Guards {@link #busy}, not the writer itself, whose lock is held while a producer waits for room
+     */
+    private final Object idle = new Object();
+    /**
+     * Writes queued or running on the writer thread
+     */
+    private int busy;
+    private Thread thread;
+    private boolean closed;
+
+    /**
+     * A file to write, failures are reported and do not affect other files
+     */
+    interface Job {
+        void write() throws IOException;
+    }
+
+    /**
+     * @param capacity number of writes the queue holds
+     * @param async    false to write on the calling thread
+     */
+    MeasurementWriter( int capacity, boolean async ) {
+        this.queue = new ArrayBlockingQueue<>( Math.max( 1, capacity ) );
+        this.async = async;
+    }
+
+    /**
+     * Queues a write, blocks while the queue is full. Once the writer is closed, e.g. while the
+     * JVM shuts down, the write runs on the calling thread.
+     */
+    void submit( Job job ) {
+        synchronized( this ) {
+            if( async && !closed ) {
+                if( thread == null )
+                    start();
+                busy( 1 );
+                try {
+                    // the writer thread takes without the lock, so it drains the queue while we wait here
+                    queue.put( job );
+                    return;
+                } catch( InterruptedException e ) {
+                    busy( -1 );
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        run( job );
+    }
+
+    /**
+     * @return number of writes waiting in the queue
+     */
+    int getPending() {
+        return queue.size();
+    }
+
+    /**
+     * Waits until all submitted writes are finished, at most as long as {@link #close()} does
+     *
+     * @return false if writes are still running
+     */
+    boolean awaitIdle() {
+        long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT_MILLIS;
+        synchronized( idle ) {
+            while( busy > 0 ) {
+                long left = deadline - System.currentTimeMillis();
+                if( left <= 0 )
+                    return false;
+                try {
+                    idle.wait( left );
+                } catch( InterruptedException e ) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private void busy( int delta ) {
+        synchronized( idle ) {
+            busy += delta;
+            if( busy == 0 )
+                idle.notifyAll();
+        }
+    }
+
+    private void start() {
+        thread = new Thread( this::drain, "mana-writer" );
+        thread.setDaemon( true );
+        thread.start();
+        Runtime.getRuntime().addShutdownHook( new Thread( this::close, "mana-writer-close" ) );
+    }
+
+    private void drain() {
+        while( true ) {
+            Job job;
+            try {
+                job = queue.take();
+            } catch( InterruptedException e ) {
+                return;
+            }
+            if( job == END )
+                return;
+            run( job );
+            busy( -1 );
+        }
+    }
+
+    private static void run( Job job ) {
+        try {
+            job.write();
+        } catch( IOException | RuntimeException e ) {
+            System.err.println( "Unable to write MANA file: " + e );
+        }
+    }
+
+    /**
+     * Writes all queued files and stops the thread, later writes run on the calling thread
+     */
+    @Override
+    public void close() {
+        Thread running;
+        synchronized( this ) {
+            if( closed )
+                return;
+            closed = true;
+            running = thread;
+            if( running == null )
+                return;
+            try {
+                queue.put( END );
+            } catch( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        try {
+            running.join( CLOSE_TIMEOUT_MILLIS );
+        } catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        }
+        if( running.isAlive() )
+            System.err.println( "MANA writer did not finish within " + CLOSE_TIMEOUT_MILLIS + " ms, "
+                    + queue.size() + " files are incomplete" );
+    }
+
+    /**
+     * Opens a measurement file for writing, buffered and compressed if {@code mana.writer.compression}
+     * asks for it
+     */
+    static OutputStream open( String fileName ) throws IOException {
+        return open( fileName, GZIP );
+    }
+
+    static OutputStream open( String fileName, boolean gzip ) throws IOException {
+        if( !gzip )
+            return new BufferedOutputStream( new FileOutputStream( fileName ), BUFFER_SIZE );
+        return new GZIPOutputStream( new FileOutputStream( fileName + GZIP_EXTENSION ), BUFFER_SIZE );
+    }
+
+}
@@ -0,0 +1,101 @@
+package at.mana.instrument;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Set of glob or regular expression patterns used to select classes and methods. Patterns prefixed
+ * with {@code regex:} are Java regular expressions, all others are globs where {@code **} matches
+ * any text, {@code *} any text without a dot and {@code ?} a single character other than a dot.
+ * Method patterns containing a {@code #} are matched against {@code className#methodName}, all
+ * other method patterns against the method name only.
+ */
+public final class PatternSet {
+
+    public static final PatternSet EMPTY = new PatternSet( Collections.emptyList() );
+
+    private static final String REGEX = "regex:";
+
+    private final List<String> sources;
+    private final List<Pattern> patterns;
+
+    private PatternSet( List<String> sources ) {
+        this.sources = sources;
+        this.patterns = sources.stream().map( PatternSet::compile ).collect( Collectors.toList() );
+    }
+
+    /**
+     * @param patterns comma separated list of patterns, may be null
+     */
+    public static PatternSet of( String patterns ) {
+        if( patterns == null || patterns.trim().isEmpty() )
+            return EMPTY;
+        return of( Arrays.asList( patterns.split( "," ) ) );
+    }
+
+    public static PatternSet of( List<String> patterns ) {
+        List<String> sources = new ArrayList<>();
+        for( String pattern : patterns ) {
+            if( !pattern.trim().isEmpty() )
+                sources.add( pattern.trim() );
+        }
+        return sources.isEmpty() ? EMPTY : new PatternSet( Collections.unmodifiableList( sources ) );
+    }
+
+    public boolean isEmpty() {
+        return patterns.isEmpty();
+    }
+
+    /**
+     * @return true if any pattern matches the whole value
+     */
+    public boolean matches( String value ) {
+        for( Pattern pattern : patterns ) {
+            if( pattern.matcher( value ).matches() )
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return true if any pattern matches the method, see the class comment for the method syntax
+     */
+    public boolean matches( String className, String methodName ) {
+        for( int i = 0; i < patterns.size(); i++ ) {
+            String value = sources.get( i ).indexOf( '#' ) < 0 ? methodName : className + '#' + methodName;
+            if( patterns.get( i ).matcher( value ).matches() )
+                return true;
+        }
+        return false;
+    }
+
+    private static Pattern compile( String source ) {
+        if( source.startsWith( REGEX ) )
+            return Pattern.compile( source.substring( REGEX.length() ) );
+        StringBuilder regex = new StringBuilder();
+        for( int i = 0; i < source.length(); i++ ) {
+            char c = source.charAt( i );
+            if( c == '*' && i + 1 < source.length() && source.charAt( i + 1 ) == '*' ) {
+                regex.append( ".*" );
+                i++;
+            } else if( c == '*' ) {
+                regex.append( "[^.]*" );
+            } else if( c == '?' ) {
+                regex.append( "[^.]" );
+            } else {
+                regex.append( Pattern.quote( String.valueOf( c ) ) );
+            }
+        }
+        return Pattern.compile( regex.toString() );
+    }
+
+    @Override
+    public String toString() {
+        return sources.toString();
+    }
+
+}
@@ -0,0 +1,63 @@
+package at.mana.instrument;
+
+import java.util.Locale;
+
+/**
+ * How a measurement waits for the RAPL sampler when it starts and stops. The sampler delivers its
+ * first reading one sampling period after it was started and a reading covering the end of a test
+ * one period after the test returned. Waiting exactly that long would lose the reading to any
+ * start-up latency of the sampler thread, so a margin of half a period, at least
+ * {@value #MIN_MARGIN_MILLIS} ms, is added; waiting longer only adds dead time to every measured test.
+ */
+public enum SampleSync {
+
+    /**
+     * Waits the configured number of sampling periods, by default a single one, plus the margin
+     */
+    PERIODS,
+
+    /**
+     * Waits four sampling periods on start and 200 ms on stop, the behaviour of earlier versions
+     */
+    FIXED;
+
+    static final long FIXED_WARMUP_PERIODS = 4;
+    static final long FIXED_COOLDOWN_MILLIS = 200;
+    static final long MIN_MARGIN_MILLIS = 10;
+
+    /**
+     * @param samplingRate sampling period in milliseconds
+     * @param periods      configured number of periods, only applies to {@link #PERIODS}
+     * @return milliseconds to wait after the sampler was started
+     */
+    public long warmupMillis( int samplingRate, int periods ) {
+        return this == FIXED ? samplingRate * FIXED_WARMUP_PERIODS : (long) samplingRate * periods + margin( samplingRate );
+    }
+
+    /**
+     * @param samplingRate sampling period in milliseconds
+     * @param periods      configured number of periods, only applies to {@link #PERIODS}
+     * @return milliseconds to wait before the sampler is stopped
+     */
+    public long cooldownMillis( int samplingRate, int periods ) {
+        return this == FIXED ? FIXED_COOLDOWN_MILLIS : (long) samplingRate * periods + margin( samplingRate );
+    }
+
+    private static long margin( int samplingRate ) {
+        return Math.max( MIN_MARGIN_MILLIS, samplingRate / 2 );
+    }
+
+    /**
+     * @param name case insensitive name of the mode, null selects {@link #PERIODS}
+     */
+    public static SampleSync of( String name ) {
+        if( name == null || name.isEmpty() )
+            return PERIODS;
+        try {
+            return valueOf( name.trim().toUpperCase( Locale.ROOT ) );
+        } catch( IllegalArgumentException e ) {
+            throw new IllegalArgumentException( "Unknown MANA sample sync '" + name + "', expected periods or fixed" );
+        }
+    }
+
+}
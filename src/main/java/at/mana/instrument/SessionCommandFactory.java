@@ -0,0 +1,378 @@
+package at.mana.instrument;
+
+import at.mana.exec.rapl.RaplCommand;
+import at.mana.exec.rapl.internal.RaplInternalCommand;
+import at.mana.exec.rapl.internal.RaplInternalCommandParameter;
+import at.mana.exec.rapl.internal.RaplJsonDecorator;
+import at.mana.instrument.format.EnergyTable;
+import at.mana.instrument.format.ManaBinaryWriter;
+import at.mana.instrument.format.ManaFormat;
+import at.mana.instrument.format.TraceLayout;
+import at.mana.instrument.trace.MethodTable;
+import at.mana.instrument.trace.TraceJsonWriter;
+import at.mana.instrument.trace.TraceRecorder;
+import at.mana.instrument.trace.TraceSnapshot;
+import lombok.SneakyThrows;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Measures all tests of a JVM with a single RAPL sampler. The sampler is started by the first
+ * measured method and keeps running, every measured method only records its start and end time
+ * and its trace. The .mana files of the measurements are written by {@link #flush()}, which stops
+ * the sampler and cuts the energy samples of each measurement out of the session's sample stream;
+ * it runs when the JVM shuts down and may be called at any time in between. The traces of ended
+ * measurements are held until then, so once {@code mana.session.maxPending} of them are waiting the
+ * session is flushed as soon as no measurement is running; the next measurement starts a new
+ * sampler. Measurements of parallel tests are kept per thread and split the energy they overlap
+ * in by {@link CpuShares}.
+ */
+public class SessionCommandFactory {
+
+    /**
+     * Ended measurements held before the session is flushed, bounds the heap taken by their traces
+     */
+    static final int MAX_PENDING = Integer.getInteger( "mana.session.maxPending", 256 );
+
+    private static final SessionCommandFactory commandFactory = new SessionCommandFactory();
+    private final TraceRecorder recorder = new TraceRecorder();
+    private final TraceJsonWriter serializer = new TraceJsonWriter();
+    private final ManaBinaryWriter binarySerializer = new ManaBinaryWriter();
+    private final CpuShares shares = new CpuShares();
+    private final Function<Writer, Sampler> sampler;
+    private final int maxPending;
+    private final List<Measurement> measurements = new ArrayList<>();
+    /**
+     * Running measurements of the current thread, a measured method may call another one
+     */
+    private final ThreadLocal<Deque<Measurement>> running = ThreadLocal.withInitial( ArrayDeque::new );
+    private Sampler command;
+    private StringWriter energy;
+    private Thread shutdownHook;
+    private long cooldownMillis;
+
+    public static SessionCommandFactory getInstance() {
+        return commandFactory;
+    }
+
+    private SessionCommandFactory() {
+        this( SessionCommandFactory::rapl, MAX_PENDING );
+        ManaMetrics.getInstance().watch( recorder );
+    }
+
+    /**
+     * @param sampler    creates the sampler of a session, which writes its samples to the given writer once stopped
+     * @param maxPending ended measurements held before the session is flushed
+     */
+    SessionCommandFactory( Function<Writer, Sampler> sampler, int maxPending ) {
+        this.sampler = sampler;
+        this.maxPending = Math.max( 1, maxPending );
+    }
+
+    /**
+     * @return the RAPL sampler of exec-rapl, writing its samples as json
+     */
+    private static Sampler rapl( Writer energy ) {
+        RaplCommand<Writer, RaplInternalCommandParameter> command = new RaplJsonDecorator( new RaplInternalCommand(), energy );
+        return new Sampler() {
+            @Override
+            public void start( RaplInternalCommandParameter parameter ) {
+                command.executeAsync( null, parameter );
+            }
+
+            @Override
+            public void stop() {
+                command.stopExecute();
+            }
+        };
+    }
+
+    /**
+     * @param fileName file the measurement is written to once the session is flushed
+     * @param format   name of the {@link ManaFormat}, spill files are not supported in a session
+     */
+    public SessionCommandFactory init( String fileName, String format ) {
+        return init( fileName, format, TraceLayout.CALLS.name() );
+    }
+
+    /**
+     * @param fileName file the measurement is written to once the session is flushed
+     * @param format   name of the {@link ManaFormat}, spill files are not supported in a session
+     * @param layout   name of the {@link TraceLayout}, only applies to json files
+     */
+    public SessionCommandFactory init( String fileName, String format, String layout ) {
+        ManaFormat manaFormat = ManaFormat.of( format );
+        if( manaFormat == ManaFormat.SPILL )
+            throw new IllegalArgumentException( "MANA spill files cannot be written in session mode" );
+        running.get().push( new Measurement( fileName, manaFormat, TraceLayout.of( layout ) ) );
+        return this;
+    }
+
+    /**
+     * Starts a measurement, the sampler of the session is started first if it is not running yet
+     *
+     * @param warmupMillis   time the sampler needs for its first sample, only waited when it is started
+     * @param cooldownMillis time the sampler needs for a sample covering the end of the last test, waited on flush
+     */
+    public void execute( RaplInternalCommandParameter parameter, long warmupMillis, long cooldownMillis ) {
+        execute( parameter, warmupMillis, cooldownMillis, 0 );
+    }
+
+    /**
+     * Starts a measurement, see {@link #execute(RaplInternalCommandParameter, long, long)}
+     *
+     * @param adaptiveWindowMillis samples of the measurement taken later are merged by
+     *                             {@link EnergyTable#downsample(long)}, 0 keeps all
+     */
+    @SneakyThrows
+    public synchronized void execute( RaplInternalCommandParameter parameter, long warmupMillis, long cooldownMillis,
+                                      long adaptiveWindowMillis ) {
+        Measurement measurement = running.get().peek();
+        if( measurement == null )
+            throw new IllegalStateException( "MANA measurement was not initialized" );
+        this.cooldownMillis = cooldownMillis;
+        measurement.adaptiveWindowMillis = adaptiveWindowMillis;
+        if( command == null ) {
+            energy = new StringWriter();
+            command = sampler.apply( energy );
+            command.start( parameter );
+            if( shutdownHook == null ) {
+                shutdownHook = new Thread( this::flush, "mana-session" );
+                Runtime.getRuntime().addShutdownHook( shutdownHook );
+            }
+            Thread.sleep( warmupMillis );
+        }
+        // the trace of measurements still running must be kept
+        if( shares.isIdle() )
+            recorder.reset();
+        measurement.share = shares.start();
+        measurement.meta.concurrent = ManaMetrics.getInstance().started();
+        measurement.events = recorder.getEvents();
+        measurement.start = System.currentTimeMillis();
+        System.out.println( "mana-time-sync-start:" + measurement.start );
+        measurement.startNanos = System.nanoTime();
+    }
+
+    /**
+     * Ends a measurement whose method returned normally
+     */
+    public void stop() {
+        stop( false );
+    }
+
+    /**
+     * Ends a measurement whose method terminated with an exception, it is marked with
+     * {@code "exception":"true"}
+     */
+    public void stopExceptionally() {
+        stop( true );
+    }
+
+    private synchronized void stop( boolean thrown ) {
+        Measurement measurement = running.get().poll();
+        if( measurement == null || measurement.share == null )
+            return;
+        long stopNanos = System.nanoTime();
+        measurement.end = System.currentTimeMillis();
+        measurement.thrown = thrown;
+        measurement.energyShare = shares.stop( measurement.share );
+        measurement.meta.traceEvents = recorder.getEvents() - measurement.events;
+        TraceSnapshot snapshot = recorder.snapshot().between( measurement.startNanos, stopNanos );
+        if( snapshot.getDropped() > 0 )
+            System.err.println( "MANA trace buffer overrun, " + snapshot.getDropped()
+                    + " events were dropped. Consider increasing -Dmana.trace.bufferSize" );
+        measurement.trace = snapshot;
+        // the sampler is shared by the session, its time belongs to no single measurement
+        measurement.meta.droppedEvents = snapshot.getDropped();
+        measurement.meta.durationNanos = stopNanos - measurement.startNanos;
+        measurement.meta.start = measurement.start;
+        measurement.meta.end = measurement.end;
+        ManaMetrics.getInstance().stopped( measurement.meta );
+        measurements.add( measurement );
+        System.out.println( "mana-time-sync-end:" + measurement.end );
+        System.out.println( "mana-duration:" + (stopNanos - measurement.startNanos) );
+        // a running measurement would lose the sampler, parallel tests flush once they are all done
+        if( measurements.size() >= maxPending && shares.isIdle() )
+            flush();
+    }
+
+    /**
+     * Stops the sampler and writes the files of all measurements ended so far. The next
+     * measurement starts a new sampler.
+     */
+    @SneakyThrows
+    public synchronized void flush() {
+        if( command == null )
+            return;
+        Thread.sleep( cooldownMillis );
+        command.stop();
+        command = null;
+        String samples = energy.toString();
+        energy = null;
+        EnergyTable table = parse( samples );
+        EnergyTable.Column time = table == null ? null : table.getTimeColumn();
+        if( time == null && !measurements.isEmpty() )
+            System.err.println( "MANA session samples carry no time, every measurement receives all of them" );
+        for( Measurement measurement : measurements ) {
+            try {
+                measurement.write( time == null ? samples : FileCommandFactory.downsample(
+                        slice( table, time, measurement.start, measurement.end ), measurement.adaptiveWindowMillis ) );
+            } catch( IOException e ) {
+                System.err.println( "Unable to write MANA measurement " + measurement.fileName + ": " + e.getMessage() );
+            }
+        }
+        measurements.clear();
+    }
+
+    /**
+     * Cuts the samples of a measurement out of the session, including the last sample taken
+     * before it started and the first one taken after it ended
+     *
+     * @param start start of the measurement in milliseconds since epoch
+     * @param end   end of the measurement in milliseconds since epoch
+     */
+    static String slice( EnergyTable table, EnergyTable.Column time, long start, long end ) throws IOException {
+        int from = 0;
+        int to = table.getRows();
+        for( int r = 0; r < table.getRows(); r++ ) {
+            long millis = EnergyTable.toEpochMillis( time.getLong( r ) );
+            if( millis <= start )
+                from = r;
+            if( millis >= end ) {
+                to = r + 1;
+                break;
+            }
+        }
+        StringWriter writer = new StringWriter();
+        table.writeJson( writer, from, to );
+        return writer.toString();
+    }
+
+    private static EnergyTable parse( String samples ) {
+        try {
+            return EnergyTable.parse( samples );
+        } catch( IOException | NumberFormatException e ) {
+            return null;
+        }
+    }
+
+    /**
+     * Trace hook injected at the start of every traced method
+     *
+     * @param id    id of the method as registered in the {@link MethodTable}
+     * @param nanos {@link System#nanoTime()} on enter
+     */
+    public void enter( int id, long nanos ) {
+        recorder.enter( id, nanos );
+    }
+
+    /**
+     * Trace hook injected at the end of every traced method
+     *
+     * @param id    id of the method as registered in the {@link MethodTable}
+     * @param nanos {@link System#nanoTime()} on exit
+     */
+    public void exit( int id, long nanos ) {
+        recorder.exit( id, nanos );
+    }
+
+    /**
+     * Trace hook injected into the exception handler of every traced method
+     *
+     * @param id    id of the method as registered in the {@link MethodTable}
+     * @param nanos {@link System#nanoTime()} when the exception left the method
+     */
+    public void exitExceptionally( int id, long nanos ) {
+        recorder.exitExceptionally( id, nanos );
+    }
+
+    TraceRecorder getRecorder() {
+        return this.recorder;
+    }
+
+    /**
+     * @return number of ended measurements waiting for the session to be flushed
+     */
+    synchronized int getPending() {
+        return measurements.size();
+    }
+
+    /**
+     * RAPL sampler of a session, started by the first measurement and stopped by {@link #flush()}
+     */
+    interface Sampler {
+        void start( RaplInternalCommandParameter parameter );
+
+        /**
+         * Stops sampling, the samples are written to the energy writer of the session once this returns
+         */
+        void stop();
+    }
+
+    /**
+     * A measured method call of the session
+     */
+    final class Measurement {
+        final String fileName;
+        final ManaFormat format;
+        final TraceLayout layout;
+        CpuShares.Share share;
+        long start;
+        long startNanos;
+        long end;
+        boolean thrown;
+        /**
+         * Part of the energy caused by the measured thread, see {@link CpuShares}
+         */
+        double energyShare;
+        TraceSnapshot trace;
+        long events;
+        long adaptiveWindowMillis;
+        final MeasurementMeta meta = new MeasurementMeta();
+
+        Measurement( String fileName, ManaFormat format, TraceLayout layout ) {
+            this.fileName = fileName;
+            this.format = format;
+            this.layout = layout;
+        }
+
+        void write( String energy ) throws IOException {
+            if( format == ManaFormat.BINARY ) {
+                try( OutputStream out = MeasurementWriter.open( fileName ) ) {
+                    binarySerializer.write( trace, energy, thrown, energyShare, meta.toJson(), out );
+                }
+                return;
+            }
+            if( layout != TraceLayout.CALLS ) {
+                FileCommandFactory.writeProfile( fileName, layout, trace, energy, thrown, energyShare, meta );
+                return;
+            }
+            try( Writer writer = new OutputStreamWriter( MeasurementWriter.open( fileName ), StandardCharsets.UTF_8 ) ) {
+                long serializationStart = System.nanoTime();
+                writer.write( "{\"trace\":" );
+                serializer.write( trace, writer );
+                meta.serializationNanos = System.nanoTime() - serializationStart;
+                writer.write( ", \"energy\":" );
+                writer.write( energy );
+                if( thrown )
+                    writer.write( ", \"exception\":\"true\"" );
+                if( energyShare < 1.0 )
+                    writer.write( ", \"energyShare\":" + energyShare );
+                writer.write( ", \"meta\":" );
+                writer.write( meta.toJson() );
+                writer.write( "}" );
+            }
+        }
+    }
+
+}
@@ -3,39 +3,94 @@ package at.mana.instrument;
 import at.mana.exec.rapl.RaplCommand;
 import at.mana.exec.rapl.internal.RaplInternalCommand;
 import at.mana.exec.rapl.internal.RaplInternalCommandParameter;
+import at.mana.exec.rapl.internal.RaplJsonDecorator;
 import at.mana.exec.rapl.internal.RaplSocketDecorator;
-import at.mana.exec.rapl.internal.trace.RaplInternalCommandTraceHandler;
-import at.mana.exec.rapl.internal.trace.RaplTraceHandler;
+import at.mana.instrument.trace.MethodTable;
+import at.mana.instrument.trace.TraceCursor;
+import at.mana.instrument.trace.TraceJsonWriter;
+import at.mana.instrument.trace.TraceRecorder;
+import at.mana.instrument.trace.TraceSnapshot;
+import at.mana.instrument.transport.Frame;
+import at.mana.instrument.transport.FrameTransport;
+import at.mana.instrument.transport.OverflowPolicy;
 import lombok.SneakyThrows;
 
+import java.io.IOException;
+import java.io.StringWriter;
 import java.io.Writer;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.util.stream.Collectors;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Measures test methods and sends each measurement to a socket. Every measured invocation runs in
+ * a measurement context of its own, held per thread, so tests executed in parallel each get their
+ * sampler and connection. Overlapping measurements share the trace recorder; the energy they
+ * measure together is attributed by {@link CpuShares}.
+ * <p>
+ * Measurements prepared by {@link #init(int, int, String)} are streamed as {@link Frame}s instead:
+ * calls are sent in batches as they complete while the test runs, the energy once it ended.
+ */
 public class SocketCommandFactory {
 
-    private static SocketCommandFactory commandFactory;
-    private RaplCommand<Socket, RaplInternalCommandParameter> command;
-    private RaplTraceHandler<Writer> handler;
+    private static final SocketCommandFactory commandFactory = new SocketCommandFactory();
+    private final TraceRecorder recorder = new TraceRecorder();
+    private final TraceJsonWriter serializer = new TraceJsonWriter();
+    private final CpuShares shares = new CpuShares();
+    /**
+     * Measurements of the current thread, a measured method may call another one
+     */
+    private final ThreadLocal<Deque<Measurement>> measurements = ThreadLocal.withInitial( ArrayDeque::new );
+    /**
+     * Running measurements whose calls are streamed
+     */
+    private final List<Measurement> streaming = new CopyOnWriteArrayList<>();
+    private final Map<Integer, FrameTransport> transports = new HashMap<>();
+    private final AtomicInteger ids = new AtomicInteger();
+
+    /**
+     * Period in which completed calls are streamed
+     */
+    static final long BATCH_MILLIS = 100;
 
     public static SocketCommandFactory getInstance() {
-        if( commandFactory == null )
-            commandFactory = new SocketCommandFactory();
         return commandFactory;
     }
 
     private SocketCommandFactory() {
+        ManaMetrics.getInstance().watch( recorder );
     }
 
+    /**
+     * Prepares a measurement of the current thread
+     */
     public void init() {
-        command = new RaplSocketDecorator( new RaplInternalCommand() ) {
+        Measurement measurement = new Measurement();
+        measurement.command = new RaplSocketDecorator( new RaplInternalCommand() ) {
             @Override
             @SneakyThrows
             public Socket stopExecute() {
+                MeasurementMeta meta = measurement.meta;
+                long serializationStart = System.nanoTime();
                 writer.write( "{\"trace\":" );
-                handler.finish(writer);
+                writeTrace( writer, measurement );
+                meta.serializationNanos = System.nanoTime() - serializationStart;
                 writer.write( ", \"energy\":" );
+                long samplerStop = System.nanoTime();
                 decorated.stopExecute();
+                meta.samplerNanos = measurement.samplerNanos + System.nanoTime() - samplerStop;
+                if( measurement.thrown )
+                    writer.write( ", \"exception\":\"true\"" );
+                if( measurement.energyShare < 1.0 )
+                    writer.write( ", \"energyShare\":" + measurement.energyShare );
+                writer.write( ", \"meta\":" );
+                writer.write( meta.toJson() );
                 writer.write( "}" );
                 writer.write(TERMINATE_SYM);
                 writer.flush();
@@ -43,48 +98,284 @@ public class SocketCommandFactory {
                 return socket;
             }
         };
-        handler = new RaplInternalCommandTraceHandler();
+        measurements.get().push( measurement );
+    }
+
+    /**
+     * Prepares a measurement of the current thread that is streamed to the collector on the port
+     *
+     * @param queueSize frames the send queue holds
+     * @param overflow  name of the {@link OverflowPolicy} applied to a full send queue
+     */
+    @SneakyThrows
+    public void init( int port, int queueSize, String overflow ) {
+        Measurement measurement = new Measurement();
+        measurement.id = ids.incrementAndGet();
+        measurement.transport = transport( port, queueSize, OverflowPolicy.of( overflow ) );
+        measurement.energy = new StringWriter();
+        measurement.command = new RaplJsonDecorator( new RaplInternalCommand(), measurement.energy );
+        measurements.get().push( measurement );
+    }
+
+    /**
+     * One transport per port is shared by all measurements, it is flushed when the JVM shuts down
+     */
+    private synchronized FrameTransport transport( int port, int queueSize, OverflowPolicy overflow ) throws IOException {
+        FrameTransport transport = transports.get( port );
+        if( transport == null ) {
+            transport = new FrameTransport( new InetSocketAddress( "localhost", port ), queueSize, overflow,
+                    BATCH_MILLIS, this::streamTrace );
+            transports.put( port, transport );
+            ManaMetrics.getInstance().watch( transport );
+            Runtime.getRuntime().addShutdownHook( new Thread( transport::close, "mana-transport-close" ) );
+        }
+        return transport;
+    }
+
+    /**
+     * Sends the calls completed since the previous batch of every streamed measurement, run by the
+     * I/O threads of the transports. A batch that does not fit into the send queue is kept and sent
+     * before the next one.
+     */
+    void streamTrace() {
+        for( Measurement measurement : streaming ) {
+            synchronized( measurement ) {
+                if( !streaming.contains( measurement ) )
+                    continue;
+                if( measurement.pending == null ) {
+                    TraceSnapshot batch = measurement.cursor.next( measurement.startNanos, Long.MAX_VALUE, false );
+                    if( batch.size() == 0 )
+                        continue;
+                    measurement.pending = traceFrame( measurement, batch );
+                }
+                if( measurement.transport.trySend( measurement.pending ) )
+                    measurement.pending = null;
+            }
+        }
+    }
+
+    @SneakyThrows
+    private Frame traceFrame( Measurement measurement, TraceSnapshot batch ) {
+        StringWriter json = new StringWriter();
+        serializer.write( batch, json );
+        return new Frame( Frame.TRACE, measurement.id, json.toString() );
+    }
+
+    /**
+     * Trace hook injected at the start of every traced method
+     *
+     * @param id    id of the method as registered in the {@link MethodTable}
+     * @param nanos {@link System#nanoTime()} on enter
+     */
+    public void enter( int id, long nanos ) {
+        recorder.enter( id, nanos );
+    }
+
+    /**
+     * Trace hook injected at the end of every traced method
+     *
+     * @param id    id of the method as registered in the {@link MethodTable}
+     * @param nanos {@link System#nanoTime()} on exit
+     */
+    public void exit( int id, long nanos ) {
+        recorder.exit( id, nanos );
     }
 
+    /**
+     * Trace hook injected into the exception handler of every traced method
+     *
+     * @param id    id of the method as registered in the {@link MethodTable}
+     * @param nanos {@link System#nanoTime()} when the exception left the method
+     */
+    public void exitExceptionally( int id, long nanos ) {
+        recorder.exitExceptionally( id, nanos );
+    }
+
+    /**
+     * @deprecated hook of classes instrumented by earlier plugin versions, use {@link #enter(int, long)}
+     */
+    @Deprecated
     public void enter( String className, String methodName, String methodDesc, long wallTime, long time ){
-        handler.enter(className,methodName,methodDesc,wallTime, time);
+        recorder.enter( MethodTable.intern( className, methodName, methodDesc ), recorder.toNanos( time ) );
     }
 
+    /**
+     * @deprecated hook of classes instrumented by earlier plugin versions, use {@link #exit(int, long)}
+     */
+    @Deprecated
     public void exit( String className, String methodName, String methodDesc, long wallTime, long time ){
-        handler.exit(className,methodName,methodDesc, wallTime, time);
+        recorder.exit( MethodTable.intern( className, methodName, methodDesc ), recorder.toNanos( time ) );
     }
 
-    @SneakyThrows
+    /**
+     * @deprecated hook of classes instrumented by earlier plugin versions, waits as {@link SampleSync#FIXED} does
+     */
+    @Deprecated
     public void execute( RaplInternalCommandParameter parameter ) {
-        handler.init( source -> {
-            String result = source.stream().map( e ->
-                String.format("{\"methodName\":\"%s\", ", e.getMethodName() ) +
-                        String.format("\"className\":\"%s\", ", e.getClassName() ) +
-                        String.format("\"methodDescriptor\":\"%s\", ", e.getMethodDesc() ) +
-                        String.format("\"hash\":\"%s\", ", e.getHash() ) +
-                        String.format("\"startWall\":\"%s\", ", e.getStartWallTime() ) +
-                        String.format("\"endWall\":\"%s\", ", e.getEndWallTime() )  +
-                        String.format("\"start\":\"%s\", ", e.getStartTime() )  +
-                        String.format("\"end\":\"%s\" }", e.getEndTime() ) )
-                    .collect(Collectors.joining(","));
-            return String.format( "[%s]", result );
-        } );
-        command.executeAsync( null, parameter );
-        Thread.sleep( (parameter.getSamplingRate() * 4L) );  // wait for 4 sample periods before proceeding
+        execute( parameter, SampleSync.FIXED.warmupMillis( parameter.getSamplingRate(), 0 ),
+                SampleSync.FIXED.cooldownMillis( parameter.getSamplingRate(), 0 ) );
     }
 
+    /**
+     * Starts the RAPL sampler of the measurement prepared by {@link #init()} and returns once its
+     * first sample is due
+     *
+     * @param warmupMillis   time the sampler needs for its first sample
+     * @param cooldownMillis time the sampler needs for a sample covering the end of the test, waited on stop
+     */
     @SneakyThrows
+    public void execute( RaplInternalCommandParameter parameter, long warmupMillis, long cooldownMillis ) {
+        Measurement measurement = measurements.get().peek();
+        if( measurement == null )
+            throw new IllegalStateException( "MANA measurement was not initialized" );
+        measurement.cooldownMillis = cooldownMillis;
+        long samplerStart = System.nanoTime();
+        measurement.command.executeAsync( null, parameter );
+        measurement.samplerNanos = System.nanoTime() - samplerStart;
+        Thread.sleep( warmupMillis );  // wait for the first sample before proceeding
+        synchronized( this ) {
+            // the trace of measurements still running must be kept
+            if( shares.isIdle() )
+                recorder.reset();
+            measurement.share = shares.start();
+            measurement.meta.concurrent = ManaMetrics.getInstance().started();
+            measurement.events = recorder.getEvents();
+            if( measurement.transport != null )
+                measurement.cursor = recorder.cursor();
+        }
+        long start = System.currentTimeMillis();
+        measurement.meta.start = start;
+        System.out.println( "mana-time-sync-start:" + start );
+        measurement.startNanos = System.nanoTime();
+        if( measurement.transport != null ) {
+            measurement.transport.send( new Frame( Frame.START, measurement.id, "{\"className\":\"" + parameter.getClassName()
+                    + "\", \"methodName\":\"" + parameter.getMethodName() + "\", \"methodDescriptor\":\"" + parameter.getMethodDesc()
+                    + "\", \"start\":\"" + start + "\"}" ) );
+            streaming.add( measurement );
+        }
+    }
+
+    /**
+     * Stops a measurement whose method returned normally
+     */
     public void stop( ) {
-        Thread.sleep( 200L );  // wait for 4 sample periods before proceeding
-        command.stopExecute();
+        stop( false );
+    }
+
+    /**
+     * Stops a measurement whose method terminated with an exception, the measurement is sent as
+     * usual and marked with {@code "exception":"true"}
+     */
+    public void stopExceptionally() {
+        stop( true );
+    }
+
+    @SneakyThrows
+    private void stop( boolean thrown ) {
+        Measurement measurement = measurements.get().poll();
+        if( measurement == null || measurement.share == null )
+            return;
+        measurement.stopNanos = System.nanoTime();
+        measurement.meta.end = System.currentTimeMillis();
+        measurement.thrown = thrown;
+        synchronized( this ) {
+            measurement.energyShare = shares.stop( measurement.share );
+        }
+        measurement.meta.durationNanos = measurement.stopNanos - measurement.startNanos;
+        measurement.meta.traceEvents = recorder.getEvents() - measurement.events;
+        Thread.sleep( measurement.cooldownMillis );  // wait for the final sample before stopping
+        if( measurement.transport != null ) {
+            long samplerStop = System.nanoTime();
+            measurement.command.stopExecute();
+            measurement.meta.samplerNanos = measurement.samplerNanos + System.nanoTime() - samplerStop;
+            finishStream( measurement );
+        } else {
+            measurement.command.stopExecute();
+        }
+        ManaMetrics.getInstance().stopped( measurement.meta );
+        System.out.println( "mana-time-sync-end:" + System.currentTimeMillis() );
+        System.out.println( "mana-duration:" + (measurement.stopNanos - measurement.startNanos) );
+    }
+
+    /**
+     * Queues the remaining calls, the energy and the end of a streamed measurement
+     */
+    private void finishStream( Measurement measurement ) {
+        FrameTransport transport = measurement.transport;
+        synchronized( measurement ) {
+            streaming.remove( measurement );
+            if( measurement.pending != null )
+                transport.send( measurement.pending );
+            TraceSnapshot rest = measurement.cursor.next( measurement.startNanos, measurement.stopNanos, true );
+            measurement.meta.droppedEvents = measurement.cursor.getDropped();
+            if( measurement.cursor.getDropped() > 0 )
+                System.err.println( "MANA trace buffer overrun, " + measurement.cursor.getDropped()
+                        + " events were dropped. Consider increasing -Dmana.trace.bufferSize" );
+            if( rest.size() > 0 )
+                transport.send( traceFrame( measurement, rest ) );
+        }
+        transport.send( new Frame( Frame.ENERGY, measurement.id, measurement.energy.toString() ) );
+        StringBuilder end = new StringBuilder( "{" );
+        if( measurement.thrown )
+            end.append( "\"exception\":\"true\"" );
+        if( measurement.energyShare < 1.0 )
+            end.append( end.length() > 1 ? ", " : "" ).append( "\"energyShare\":" ).append( measurement.energyShare );
+        measurement.meta.droppedFrames = transport.getDropped();
+        end.append( end.length() > 1 ? ", " : "" ).append( "\"meta\":" ).append( measurement.meta.toJson() );
+        transport.send( new Frame( Frame.END, measurement.id, end.append( '}' ).toString() ) );
+        if( transport.getDropped() > 0 )
+            System.err.println( "MANA transport dropped " + transport.getDropped() + " frames so far" );
+    }
+
+    /**
+     * Writes the calls started while a measurement was running
+     */
+    private void writeTrace( Writer target, Measurement measurement ) throws IOException {
+        TraceSnapshot snapshot = recorder.snapshot().between( measurement.startNanos, measurement.stopNanos );
+        measurement.meta.droppedEvents = snapshot.getDropped();
+        if( snapshot.getDropped() > 0 )
+            System.err.println( "MANA trace buffer overrun, " + snapshot.getDropped()
+                    + " events were dropped. Consider increasing -Dmana.trace.bufferSize" );
+        serializer.write( snapshot, target );
+    }
+
+    TraceRecorder getRecorder() {
+        return this.recorder;
     }
 
-    RaplTraceHandler getHandler() {
-        return this.handler;
+    RaplCommand<?, RaplInternalCommandParameter> getCommand() {
+        Measurement measurement = measurements.get().peek();
+        return measurement == null ? null : measurement.command;
     }
 
-    RaplCommand<Socket, RaplInternalCommandParameter> getCommand() {
-        return this.command;
+    /**
+     * Context of a single measured invocation
+     */
+    private static final class Measurement {
+        RaplCommand<?, RaplInternalCommandParameter> command;
+        int id;
+        FrameTransport transport;
+        StringWriter energy;
+        /**
+         * Reads the calls of a streamed measurement in batches
+         */
+        TraceCursor cursor;
+        /**
+         * Batch of calls that did not fit into the send queue yet
+         */
+        Frame pending;
+        long cooldownMillis;
+        long startNanos;
+        long stopNanos;
+        long samplerNanos;
+        long events;
+        final MeasurementMeta meta = new MeasurementMeta();
+        boolean thrown;
+        CpuShares.Share share;
+        /**
+         * Part of the energy caused by the measured thread, work done on other threads is not counted
+         */
+        double energyShare = 1.0;
     }
 
 
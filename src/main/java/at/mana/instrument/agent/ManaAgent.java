@@ -0,0 +1,144 @@
+package at.mana.instrument.agent;
+
+import at.mana.instrument.InstrumentationConfig;
+import at.mana.instrument.PatternSet;
+import at.mana.instrument.SampleSync;
+import at.mana.instrument.format.ManaFormat;
+import at.mana.instrument.format.TraceLayout;
+import at.mana.instrument.transport.OverflowPolicy;
+import at.mana.instrument.transport.Transport;
+
+import java.lang.instrument.Instrumentation;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Java agent instrumenting classes while they are loaded, using the same transformation as the
+ * instrument-methods goal but without touching any class file on disk.
+ * <pre>
+ * java -javaagent:instrument-maven-plugin-agent.jar=packages=at.example;trace=true -jar app.jar
+ * </pre>
+ * Arguments are {@code key=value} pairs separated by {@code ;}, lists within a value are comma
+ * separated just like the parameters of the mojo. Supported keys are packages, outputFolder,
+ * samples, port, trace, format, traceLayout, includes, excludes, methodIncludes, methodExcludes, measureMethods,
+ * minMethodSize, callSampling, transport, sendQueueSize, overflow, session, sampleSync,
+ * warmupPeriods, cooldownPeriods, adaptiveSampling, adaptiveWindow and verbose.
+ */
+public class ManaAgent {
+
+    public static void premain( String arguments, Instrumentation instrumentation ) {
+        Map<String, String> options = parse( arguments );
+        InstrumentationConfig config = configure( options );
+        if( config.getPackages().isEmpty() ) {
+            System.err.println( "[MANA] No packages configured, the agent stays inactive" );
+            return;
+        }
+        instrumentation.addTransformer( new ManaClassFileTransformer( config,
+                Boolean.parseBoolean( options.getOrDefault( "verbose", "false" ) ) ) );
+    }
+
+    public static void agentmain( String arguments, Instrumentation instrumentation ) {
+        // classes loaded before the agent was attached stay untouched
+        premain( arguments, instrumentation );
+    }
+
+    static Map<String, String> parse( String arguments ) {
+        Map<String, String> options = new HashMap<>();
+        if( arguments == null || arguments.isEmpty() )
+            return options;
+        for( String option : arguments.split( ";" ) ) {
+            if( option.trim().isEmpty() )
+                continue;
+            int separator = option.indexOf( '=' );
+            if( separator < 0 )
+                throw new IllegalArgumentException( "Invalid MANA agent argument '" + option + "', expected key=value" );
+            options.put( option.substring( 0, separator ).trim(), option.substring( separator + 1 ).trim() );
+        }
+        return options;
+    }
+
+    static InstrumentationConfig configure( Map<String, String> options ) {
+        InstrumentationConfig.InstrumentationConfigBuilder builder = InstrumentationConfig.builder()
+                .packages( Arrays.stream( options.getOrDefault( "packages", "" ).split( "," ) )
+                        .map( String::trim ).filter( p -> !p.isEmpty() ).collect( Collectors.toList() ) )
+                .samplingRate( 50 );
+        for( Map.Entry<String, String> option : options.entrySet() ) {
+            String value = option.getValue();
+            switch( option.getKey() ) {
+                case "packages":
+                case "verbose":
+                case "adaptiveSampling":
+                case "adaptiveWindow":
+                    break;
+                case "outputFolder":
+                    builder.outputFolder( value );
+                    break;
+                case "samples":
+                    builder.samplingRate( Integer.parseInt( value ) );
+                    break;
+                case "port":
+                    builder.port( Integer.parseInt( value ) );
+                    break;
+                case "trace":
+                    builder.trace( Boolean.parseBoolean( value ) );
+                    break;
+                case "format":
+                    builder.format( ManaFormat.of( value ) );
+                    break;
+                case "traceLayout":
+                    builder.traceLayout( TraceLayout.of( value ) );
+                    break;
+                case "includes":
+                    builder.includes( PatternSet.of( value ) );
+                    break;
+                case "excludes":
+                    builder.excludes( PatternSet.of( value ) );
+                    break;
+                case "methodIncludes":
+                    builder.methodIncludes( PatternSet.of( value ) );
+                    break;
+                case "methodExcludes":
+                    builder.methodExcludes( PatternSet.of( value ) );
+                    break;
+                case "measureMethods":
+                    builder.measureMethods( PatternSet.of( value ) );
+                    break;
+                case "minMethodSize":
+                    builder.minMethodSize( Integer.parseInt( value ) );
+                    break;
+                case "callSampling":
+                    builder.callSampling( Integer.parseInt( value ) );
+                    break;
+                case "transport":
+                    builder.transport( Transport.of( value ) );
+                    break;
+                case "sendQueueSize":
+                    builder.sendQueueSize( Integer.parseInt( value ) );
+                    break;
+                case "overflow":
+                    builder.overflow( OverflowPolicy.of( value ) );
+                    break;
+                case "session":
+                    builder.session( Boolean.parseBoolean( value ) );
+                    break;
+                case "sampleSync":
+                    builder.sampleSync( SampleSync.of( value ) );
+                    break;
+                case "warmupPeriods":
+                    builder.warmupPeriods( Integer.parseInt( value ) );
+                    break;
+                case "cooldownPeriods":
+                    builder.cooldownPeriods( Integer.parseInt( value ) );
+                    break;
+                default:
+                    throw new IllegalArgumentException( "Unknown MANA agent argument '" + option.getKey() + "'" );
+            }
+        }
+        if( Boolean.parseBoolean( options.getOrDefault( "adaptiveSampling", "false" ) ) )
+            builder.adaptiveWindow( Math.max( 1, Integer.parseInt( options.getOrDefault( "adaptiveWindow", "1000" ) ) ) );
+        return builder.build().validate( message -> System.err.println( "[MANA] Argument " + message ) );
+    }
+
+}
@@ -0,0 +1,111 @@
+package at.mana.instrument.agent;
+
+import at.mana.instrument.ClassInstrumenter;
+import at.mana.instrument.InstrumentationConfig;
+import at.mana.instrument.InstrumentationReport;
+import at.mana.instrument.trace.MethodTable;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.LoaderClassPath;
+
+import java.io.ByteArrayInputStream;
+import java.lang.instrument.ClassFileTransformer;
+import java.security.ProtectionDomain;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Applies the {@link ClassInstrumenter} to classes while they are loaded. Classes outside of the
+ * configured packages are rejected by comparing their internal name before any parsing happens, so
+ * the agent adds next to nothing to the loading of all other classes.
+ */
+public class ManaClassFileTransformer implements ClassFileTransformer {
+
+    /**
+     * Classes of the plugin itself and its dependencies are never instrumented
+     */
+    private static final String[] IGNORED = { "at/mana/instrument/", "at/mana/exec/", "javassist/" };
+
+    private final InstrumentationConfig config;
+    private final String[] prefixes;
+    private final boolean verbose;
+    private final Map<ClassLoader, ClassInstrumenter> instrumenters = new WeakHashMap<>();
+
+    public ManaClassFileTransformer( InstrumentationConfig config, boolean verbose ) {
+        this.config = config;
+        this.verbose = verbose;
+        this.prefixes = config.getPackages().stream().map( p -> p.replace( '.', '/' ) ).toArray( String[]::new );
+    }
+
+    @Override
+    public byte[] transform( ClassLoader loader, String internalName, Class<?> classBeingRedefined,
+                             ProtectionDomain protectionDomain, byte[] classfileBuffer ) {
+        if( internalName == null || classBeingRedefined != null || !isCandidate( internalName ) )
+            return null;
+        String className = internalName.replace( '/', '.' );
+        if( !config.accepts( className ) )
+            return null;
+
+        InstrumentationReport report = new InstrumentationReport();
+        try {
+            ClassInstrumenter instrumenter = instrumenter( loader );
+            // an instrumenter and its class pool are not thread-safe
+            synchronized( instrumenter ) {
+                CtClass ctClass = instrumenter.getClassPool().makeClass( new ByteArrayInputStream( classfileBuffer ) );
+                try {
+                    if( !instrumenter.instrument( ctClass, report ) )
+                        return null;
+                    if( !report.getMethods().isEmpty() )
+                        MethodTable.define( className, report.getMethods() );
+                    return ctClass.toBytecode();
+                } finally {
+                    ctClass.detach();
+                }
+            }
+        } catch( Throwable e ) {
+            // never break class loading, the class is used as it is
+            report.error( "Unable to instrument " + className + ": " + e );
+            return null;
+        } finally {
+            publish( report );
+        }
+    }
+
+    boolean isCandidate( String internalName ) {
+        for( String ignored : IGNORED ) {
+            if( internalName.startsWith( ignored ) )
+                return false;
+        }
+        if( prefixes.length == 0 )
+            return true;
+        for( String prefix : prefixes ) {
+            if( internalName.startsWith( prefix ) )
+                return true;
+        }
+        return false;
+    }
+
+    private synchronized ClassInstrumenter instrumenter( ClassLoader loader ) {
+        ClassLoader key = loader == null ? ClassLoader.getSystemClassLoader() : loader;
+        return instrumenters.computeIfAbsent( key, k -> {
+            ClassPool classPool = new ClassPool( true );
+            classPool.appendClassPath( new LoaderClassPath( k ) );
+            return new ClassInstrumenter( config, classPool );
+        } );
+    }
+
+    private void publish( InstrumentationReport report ) {
+        for( InstrumentationReport.Entry entry : report.getEntries() ) {
+            switch( entry.getLevel() ) {
+                case ERROR:
+                case WARN:
+                    System.err.println( "[MANA] " + entry.getMessage() );
+                    break;
+                default:
+                    if( verbose )
+                        System.out.println( "[MANA] " + entry.getMessage() );
+            }
+        }
+    }
+
+}
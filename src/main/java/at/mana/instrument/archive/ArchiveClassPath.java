@@ -0,0 +1,74 @@
+package at.mana.instrument.archive;
+
+import javassist.ClassPath;
+import javassist.NotFoundException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.List;
+
+/**
+ * Resolves classes from the class roots of an archive, e.g. {@code WEB-INF/classes/} of a war,
+ * without extracting it. Reads go through {@link ZipArchive#read}, which is safe to call from
+ * several class pools at once.
+ */
+public class ArchiveClassPath implements ClassPath {
+
+    private final ZipArchive archive;
+    private final List<String> roots;
+    private final String location;
+
+    /**
+     * @param archive  the archive holding the classes
+     * @param roots    prefixes of the entry names class names are resolved against, in lookup order
+     * @param location path of the archive, used for the URLs of the classes
+     */
+    public ArchiveClassPath( ZipArchive archive, List<String> roots, String location ) {
+        this.archive = archive;
+        this.roots = roots;
+        this.location = location;
+    }
+
+    @Override
+    public InputStream openClassfile( String className ) throws NotFoundException {
+        ZipArchive.Entry entry = entry( className );
+        if( entry == null )
+            return null;
+        try {
+            return new ByteArrayInputStream( archive.read( entry ) );
+        } catch( IOException e ) {
+            throw new NotFoundException( "Unable to read " + entry + " from " + location, e );
+        }
+    }
+
+    @Override
+    public URL find( String className ) {
+        ZipArchive.Entry entry = entry( className );
+        if( entry == null )
+            return null;
+        try {
+            return new URL( "jar:file:" + location + "!/" + entry.getName() );
+        } catch( MalformedURLException e ) {
+            return null;
+        }
+    }
+
+    private ZipArchive.Entry entry( String className ) {
+        String resource = className.replace( '.', '/' ) + ".class";
+        for( String root : roots ) {
+            ZipArchive.Entry entry = archive.getEntry( root + resource );
+            if( entry != null )
+                return entry;
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return location + roots;
+    }
+
+}
@@ -0,0 +1,383 @@
+package at.mana.instrument.archive;
+
+import at.mana.core.util.ConsoleColors;
+import at.mana.instrument.ClassInstrumenter;
+import at.mana.instrument.InstrumentationConfig;
+import at.mana.instrument.InstrumentationReport;
+import at.mana.instrument.trace.MethodTable;
+import javassist.CannotCompileException;
+import javassist.ClassPath;
+import javassist.ClassPool;
+import javassist.NotFoundException;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Instruments the classes packaged in a jar or war and writes the result as a new archive.
+ * Entries are processed in the order of the central directory: classes accepted by the
+ * configuration are instrumented in memory, every other entry is copied as stored, without
+ * being decompressed. Archives nested into {@code WEB-INF/lib} or {@code BOOT-INF/lib} are
+ * rewritten the same way if they hold classes to instrument.
+ * <p>
+ * Classes are resolved from the archive, the nested archives and the class pools supplied by the
+ * caller. With several threads the classes of a window ahead of the writer are instrumented in
+ * parallel, every worker owning a {@link ClassInstrumenter} per archive, and written in order.
+ * The method table of every class root receives the traced methods; signature files are dropped
+ * once a class was altered, as they no longer match.
+ */
+public class ArchiveInstrumenter {
+
+    /**
+     * Prefixes of the entry names class names are resolved against, in lookup order
+     */
+    public static final List<String> CLASS_ROOTS = List.of( "WEB-INF/classes/", "BOOT-INF/classes/", "" );
+
+    private static final String VERSIONS = "META-INF/versions/";
+    private static final int WINDOW_PER_THREAD = 8;
+
+    private final int threads;
+    private final InstrumentationConfig config;
+    private final Supplier<ClassPool> classPools;
+
+    /**
+     * @param threads    number of workers, 0 uses all available processors
+     * @param config     selects and instruments the classes
+     * @param classPools creates the class pool of a worker, resolving the dependencies of the archive
+     */
+    public ArchiveInstrumenter( int threads, InstrumentationConfig config, Supplier<ClassPool> classPools ) {
+        this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        this.config = config;
+        this.classPools = classPools;
+    }
+
+    /**
+     * Writes the instrumented copy of an archive, source and target may be the same file. The
+     * source is mapped into memory, unless it is replaced by the copy, then it is read onto the heap.
+     *
+     * @return reports of the archives and classes processed, ordered by their path in the archive
+     */
+    public SortedMap<String, InstrumentationReport> instrument( File source, File target ) throws IOException {
+        Path output = target.getAbsoluteFile().toPath();
+        boolean inPlace = Files.exists( output ) && Files.isSameFile( source.toPath(), output );
+        ZipArchive archive = inPlace ? ZipArchive.load( source ) : ZipArchive.open( source );
+        SortedMap<String, InstrumentationReport> reports = new TreeMap<>();
+        Files.createDirectories( output.getParent() );
+        Path temp = Files.createTempFile( output.getParent(), output.getFileName().toString(), ".tmp" );
+        ExecutorService executor = threads > 1 ? Executors.newFixedThreadPool( threads, new WorkerThreadFactory() ) : null;
+        try {
+            try( ZipWriter writer = new ZipWriter( new BufferedOutputStream( Files.newOutputStream( temp ), 1 << 16 ) ) ) {
+                writer.preamble( archive );
+                new Run( archive, source.getPath(), List.of(), executor, reports ).write( writer );
+            }
+            Files.move( temp, output, StandardCopyOption.REPLACE_EXISTING );
+        } finally {
+            if( executor != null )
+                executor.shutdownNow();
+            Files.deleteIfExists( temp );
+        }
+        return reports;
+    }
+
+    /**
+     * @return the qualified name of the class an entry holds, null if the entry is no instrumentable class
+     */
+    static String className( String name ) {
+        if( !name.endsWith( ".class" ) || name.startsWith( VERSIONS ) || name.endsWith( "module-info.class" ) )
+            return null;
+        for( String root : CLASS_ROOTS ) {
+            if( name.startsWith( root ) )
+                return name.substring( root.length(), name.length() - ".class".length() ).replace( '/', '.' );
+        }
+        return null;
+    }
+
+    static String root( String name ) {
+        for( String root : CLASS_ROOTS ) {
+            if( name.startsWith( root ) )
+                return root;
+        }
+        return "";
+    }
+
+    static boolean isNested( String name ) {
+        return name.toLowerCase( Locale.ROOT ).endsWith( ".jar" )
+                && (name.startsWith( "WEB-INF/lib/" ) || name.startsWith( "BOOT-INF/lib/" ));
+    }
+
+    static boolean isSignature( String name ) {
+        String upper = name.toUpperCase( Locale.ROOT );
+        return upper.startsWith( "META-INF/" ) && upper.indexOf( '/', "META-INF/".length() ) < 0
+                && (upper.endsWith( ".SF" ) || upper.endsWith( ".RSA" ) || upper.endsWith( ".DSA" ) || upper.endsWith( ".EC" ));
+    }
+
+    static boolean isMethodTable( String name ) {
+        return name.endsWith( MethodTable.RESOURCE ) && CLASS_ROOTS.contains( name.substring( 0, name.length() - MethodTable.RESOURCE.length() ) );
+    }
+
+    /**
+     * Outcome of instrumenting a single class
+     */
+    private static final class Result {
+        final InstrumentationReport report = new InstrumentationReport();
+        byte[] bytecode;
+    }
+
+    private static final class Pending {
+        final ZipArchive.Entry entry;
+        final Future<Result> result;
+
+        Pending( ZipArchive.Entry entry, Future<Result> result ) {
+            this.entry = entry;
+            this.result = result;
+        }
+    }
+
+    /**
+     * Rewrites a single archive, the archive itself or one nested into it
+     */
+    private final class Run {
+        private final ZipArchive archive;
+        private final String location;
+        private final List<ClassPath> inherited;
+        private final ExecutorService executor;
+        private final SortedMap<String, InstrumentationReport> reports;
+        private final InstrumentationReport report = new InstrumentationReport();
+        private final Map<Thread, ClassInstrumenter> instrumenters = new ConcurrentHashMap<>();
+        private final Map<String, Map<String, List<MethodTable.Method>>> tables = new TreeMap<>();
+        private final List<ZipArchive.Entry> held = new ArrayList<>();
+        private Map<String, ZipArchive> libraries;
+        private List<ClassPath> classPaths;
+        private int altered;
+
+        Run( ZipArchive archive, String location, List<ClassPath> inherited, ExecutorService executor,
+             SortedMap<String, InstrumentationReport> reports ) {
+            this.archive = archive;
+            this.location = location;
+            this.inherited = inherited;
+            this.executor = executor;
+            this.reports = reports;
+        }
+
+        /**
+         * @return true if at least one entry was altered
+         */
+        boolean write( ZipWriter writer ) throws IOException {
+            reports.put( location, report );
+            Deque<Pending> window = new ArrayDeque<>();
+            int limit = executor == null ? 0 : threads * WINDOW_PER_THREAD;
+            for( ZipArchive.Entry entry : archive.getEntries() ) {
+                String className = className( entry.getName() );
+                window.add( new Pending( entry, className != null && config.accepts( className ) ? submit( className ) : null ) );
+                while( window.size() > limit )
+                    drain( window.poll(), writer );
+            }
+            while( !window.isEmpty() )
+                drain( window.poll(), writer );
+
+            for( ZipArchive.Entry entry : held ) {
+                if( isMethodTable( entry.getName() ) )
+                    writeTable( writer, entry.getName(), entry );
+                else if( altered == 0 )
+                    writer.copy( archive, entry );
+                else
+                    report.warn( "Dropped signature " + entry + " of " + location + ", the altered classes no longer match it" );
+            }
+            for( String root : new ArrayList<>( tables.keySet() ) )
+                writeTable( writer, root + MethodTable.RESOURCE, null );
+            writer.finish();
+            if( altered > 0 )
+                report.info( "├── ✅ Altered " + altered + " entries of " + ConsoleColors.CYAN + location + ConsoleColors.RESET );
+            return altered > 0;
+        }
+
+        private Future<Result> submit( String className ) {
+            Callable<Result> task = () -> instrument( className );
+            if( executor != null )
+                return executor.submit( task );
+            try {
+                return CompletableFuture.completedFuture( task.call() );
+            } catch( RuntimeException e ) {
+                throw e;
+            } catch( Exception e ) {
+                throw new IllegalStateException( e );
+            }
+        }
+
+        private Result instrument( String className ) throws IOException {
+            Result result = new Result();
+            try {
+                result.bytecode = instrumenter().instrument( className, result.report );
+            } catch( NotFoundException | IOException | CannotCompileException e ) {
+                result.report.error( e );
+            }
+            return result;
+        }
+
+        private void drain( Pending pending, ZipWriter writer ) throws IOException {
+            ZipArchive.Entry entry = pending.entry;
+            String name = entry.getName();
+            if( pending.result != null ) {
+                Result result = await( pending.result );
+                reports.put( location + "!/" + name, result.report );
+                if( result.bytecode == null ) {
+                    writer.copy( archive, entry );
+                    return;
+                }
+                writer.replace( entry, result.bytecode );
+                altered++;
+                if( !result.report.getMethods().isEmpty() )
+                    tables.computeIfAbsent( root( name ), k -> new TreeMap<>() ).put( className( name ), result.report.getMethods() );
+            } else if( isMethodTable( name ) || isSignature( name ) ) {
+                // decided once all classes are written
+                held.add( entry );
+            } else if( isNested( name ) && nested( entry, writer ) ) {
+                altered++;
+            } else {
+                writer.copy( archive, entry );
+            }
+        }
+
+        /**
+         * Rewrites a nested archive if it holds classes to instrument, copies it otherwise
+         */
+        private boolean nested( ZipArchive.Entry entry, ZipWriter writer ) throws IOException {
+            ZipArchive library = libraries().get( entry.getName() );
+            if( library == null || library.getEntries().stream()
+                    .map( e -> className( e.getName() ) ).noneMatch( c -> c != null && config.accepts( c ) ) ) {
+                writer.copy( archive, entry );
+                return false;
+            }
+            List<ClassPath> context = new ArrayList<>( classPaths() );
+            ByteArrayOutputStream content = new ByteArrayOutputStream( (int) Math.min( Integer.MAX_VALUE - 8, entry.getSize() + 1024 ) );
+            ZipWriter nested = new ZipWriter( content );
+            nested.preamble( library );
+            if( !new Run( library, location + "!/" + entry.getName(), context, executor, reports ).write( nested ) ) {
+                writer.copy( archive, entry );
+                return false;
+            }
+            writer.replace( entry, content.toByteArray() );
+            return true;
+        }
+
+        private void writeTable( ZipWriter writer, String name, ZipArchive.Entry existing ) throws IOException {
+            Map<String, List<MethodTable.Method>> rows = tables.remove( name.substring( 0, name.length() - MethodTable.RESOURCE.length() ) );
+            if( rows == null ) {
+                writer.copy( archive, existing );
+                return;
+            }
+            Map<String, List<MethodTable.Method>> merged = new TreeMap<>();
+            if( existing != null ) {
+                try( InputStreamReader reader = new InputStreamReader( new ByteArrayInputStream( archive.read( existing ) ), StandardCharsets.UTF_8 ) ) {
+                    merged.putAll( MethodTable.read( reader ) );
+                }
+            }
+            merged.putAll( rows );
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            try( Writer out = new OutputStreamWriter( content, StandardCharsets.UTF_8 ) ) {
+                MethodTable.write( out, merged );
+            }
+            if( existing != null )
+                writer.replace( existing, content.toByteArray() );
+            else
+                writer.add( name, content.toByteArray() );
+        }
+
+        private ClassInstrumenter instrumenter() {
+            return instrumenters.computeIfAbsent( Thread.currentThread(), thread -> {
+                ClassPool classPool = classPools.get();
+                List<ClassPath> paths = classPaths();
+                // inserted in reverse, the archive is searched first, then its libraries and enclosing archives
+                for( int i = paths.size() - 1; i >= 0; i-- )
+                    classPool.insertClassPath( paths.get( i ) );
+                return new ClassInstrumenter( config, classPool );
+            } );
+        }
+
+        private synchronized List<ClassPath> classPaths() {
+            if( classPaths == null ) {
+                List<ClassPath> paths = new ArrayList<>();
+                paths.add( new ArchiveClassPath( archive, CLASS_ROOTS, location ) );
+                libraries().forEach( ( name, library ) -> paths.add( new ArchiveClassPath( library, List.of( "" ), location + "!/" + name ) ) );
+                paths.addAll( inherited );
+                classPaths = paths;
+            }
+            return classPaths;
+        }
+
+        private synchronized Map<String, ZipArchive> libraries() {
+            if( libraries == null ) {
+                libraries = new LinkedHashMap<>();
+                for( ZipArchive.Entry entry : archive.getEntries() ) {
+                    if( !isNested( entry.getName() ) )
+                        continue;
+                    try {
+                        libraries.put( entry.getName(), archive.open( entry ) );
+                    } catch( IOException e ) {
+                        report.warn( "Unable to open " + entry + " of " + location + ", it is copied as is: " + e.getMessage() );
+                    }
+                }
+            }
+            return libraries;
+        }
+
+        private Result await( Future<Result> result ) throws IOException {
+            try {
+                return result.get();
+            } catch( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException( e );
+            } catch( ExecutionException e ) {
+                if( e.getCause() instanceof RuntimeException )
+                    throw (RuntimeException) e.getCause();
+                if( e.getCause() instanceof IOException )
+                    throw (IOException) e.getCause();
+                throw new IllegalStateException( e.getCause() );
+            }
+        }
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+
+        private final ThreadFactory delegate = Executors.defaultThreadFactory();
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread( Runnable runnable ) {
+            Thread thread = delegate.newThread( runnable );
+            thread.setName( "mana-archive-" + count.incrementAndGet() );
+            thread.setDaemon( true );
+            return thread;
+        }
+    }
+
+}
@@ -0,0 +1,319 @@
+package at.mana.instrument.archive;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Read-only view of a zip file held in a buffer, either a memory mapped file or the content of an
+ * archive nested into another one. The entries are taken from the central directory, their data
+ * can be read inflated or as the raw bytes stored in the file, which is what allows
+ * {@link ZipWriter} to copy entries without recompressing them.
+ * <p>
+ * Archives of up to 2 GB are supported, zip64 is understood as far as the number of entries is
+ * concerned. Bytes in front of the first entry, e.g. the launch script of an executable jar, are
+ * kept as preamble.
+ */
+public class ZipArchive {
+
+    static final int LOCAL_HEADER = 0x04034b50;
+    static final int CENTRAL_HEADER = 0x02014b50;
+    static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+    static final int ZIP64_END_OF_CENTRAL_DIRECTORY = 0x06064b50;
+    static final int ZIP64_LOCATOR = 0x07064b50;
+    static final int DATA_DESCRIPTOR = 0x08074b50;
+
+    static final int LOCAL_HEADER_SIZE = 30;
+    static final int CENTRAL_HEADER_SIZE = 46;
+    static final int FLAG_DATA_DESCRIPTOR = 0x08;
+    static final int FLAG_UTF8 = 0x800;
+
+    public static final int STORED = 0;
+    public static final int DEFLATED = 8;
+
+    /**
+     * An entry as described by the central directory
+     */
+    public static final class Entry {
+        private final String name;
+        private final byte[] central;
+        private final int method;
+        private final long crc;
+        private final long compressedSize;
+        private final long size;
+        private final long offset;
+
+        Entry( String name, byte[] central, int method, long crc, long compressedSize, long size, long offset ) {
+            this.name = name;
+            this.central = central;
+            this.method = method;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.offset = offset;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getMethod() {
+            return method;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getCompressedSize() {
+            return compressedSize;
+        }
+
+        public long getCrc() {
+            return crc;
+        }
+
+        public boolean isDirectory() {
+            return name.endsWith( "/" );
+        }
+
+        /**
+         * @return the complete central directory record of the entry
+         */
+        byte[] getCentral() {
+            return central;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    private final ByteBuffer buffer;
+    private final List<Entry> entries;
+    private final Map<String, Entry> names;
+    private final long preamble;
+
+    /**
+     * @param buffer content of the archive, the buffer is not modified
+     */
+    public ZipArchive( ByteBuffer buffer ) throws IOException {
+        this.buffer = buffer.duplicate().order( ByteOrder.LITTLE_ENDIAN );
+        int end = findEnd();
+        long count = u16( end + 10 );
+        long centralSize = u32( end + 12 );
+        long centralOffset = u32( end + 16 );
+        long directory = end - centralSize;
+        if( end >= 20 && i32( end - 20 ) == ZIP64_LOCATOR ) {
+            // the record precedes the locator, its offset in the locator would not account for a preamble
+            int position = end - 20 - 56;
+            if( position >= 0 && i32( position ) == ZIP64_END_OF_CENTRAL_DIRECTORY ) {
+                count = i64( position + 32 );
+                centralSize = i64( position + 40 );
+                centralOffset = i64( position + 48 );
+                directory = position - centralSize;
+            }
+        }
+        // archives with a preamble may refer to offsets relative to the start of the zip data
+        long base = directory - centralOffset;
+        if( base < 0 || directory < 0 )
+            throw new ZipException( "Corrupt central directory" );
+
+        List<Entry> list = new ArrayList<>( (int) Math.min( count, 1 << 16 ) );
+        Map<String, Entry> byName = new HashMap<>();
+        long first = directory;
+        int position = (int) directory;
+        for( long i = 0; i < count; i++ ) {
+            if( i32( position ) != CENTRAL_HEADER )
+                throw new ZipException( "Corrupt central directory entry " + i );
+            int flags = u16( position + 8 );
+            int nameLength = u16( position + 28 );
+            int length = CENTRAL_HEADER_SIZE + nameLength + u16( position + 30 ) + u16( position + 32 );
+            byte[] central = new byte[length];
+            this.buffer.duplicate().position( position ).get( central );
+            Charset charset = (flags & FLAG_UTF8) != 0 ? StandardCharsets.UTF_8 : StandardCharsets.ISO_8859_1;
+            String name = new String( central, CENTRAL_HEADER_SIZE, nameLength, charset );
+            long compressedSize = u32( position + 20 );
+            long size = u32( position + 24 );
+            long offset = u32( position + 42 );
+            if( compressedSize == 0xFFFFFFFFL || size == 0xFFFFFFFFL || offset == 0xFFFFFFFFL )
+                throw new ZipException( "Entry " + name + " needs zip64, which is not supported" );
+            Entry entry = new Entry( name, central, u16( position + 10 ), u32( position + 16 ), compressedSize, size, base + offset );
+            list.add( entry );
+            byName.putIfAbsent( name, entry );
+            first = Math.min( first, entry.offset );
+            position += length;
+        }
+        this.entries = Collections.unmodifiableList( list );
+        this.names = byName;
+        this.preamble = first;
+    }
+
+    /**
+     * Maps a file into memory
+     */
+    public static ZipArchive open( File file ) throws IOException {
+        try( FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.READ ) ) {
+            if( channel.size() > Integer.MAX_VALUE )
+                throw new ZipException( "Archive " + file + " exceeds 2 GB" );
+            MappedByteBuffer buffer = channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() );
+            return new ZipArchive( buffer );
+        }
+    }
+
+    /**
+     * Reads a file onto the heap, for archives that are replaced while they are read: a mapped
+     * file stays locked on Windows until the mapping is garbage collected
+     */
+    public static ZipArchive load( File file ) throws IOException {
+        if( file.length() > Integer.MAX_VALUE )
+            throw new ZipException( "Archive " + file + " exceeds 2 GB" );
+        return new ZipArchive( ByteBuffer.wrap( Files.readAllBytes( file.toPath() ) ) );
+    }
+
+    /**
+     * @return all entries in the order of the central directory
+     */
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * @return the first entry of the given name or null if there is none
+     */
+    public Entry getEntry( String name ) {
+        return names.get( name );
+    }
+
+    /**
+     * @return the bytes in front of the first entry
+     */
+    ByteBuffer getPreamble() throws IOException {
+        return slice( 0, preamble );
+    }
+
+    /**
+     * @return the entry as stored in the archive, local header, compressed data and data descriptor
+     */
+    ByteBuffer raw( Entry entry ) throws IOException {
+        int header = local( entry );
+        long end = header + LOCAL_HEADER_SIZE + u16( header + 26 ) + u16( header + 28 ) + entry.compressedSize;
+        if( (u16( header + 6 ) & FLAG_DATA_DESCRIPTOR) != 0 )
+            end += end + 4 <= buffer.limit() && i32( (int) end ) == DATA_DESCRIPTOR ? 16 : 12;
+        return slice( header, end - header );
+    }
+
+    /**
+     * Opens an archive nested into this one, a stored entry is read in place, a compressed one is inflated
+     */
+    public ZipArchive open( Entry entry ) throws IOException {
+        return new ZipArchive( entry.method == STORED ? data( entry ) : ByteBuffer.wrap( read( entry ) ) );
+    }
+
+    /**
+     * @return the uncompressed content of the entry
+     */
+    public byte[] read( Entry entry ) throws IOException {
+        ByteBuffer data = data( entry );
+        if( entry.size > Integer.MAX_VALUE )
+            throw new ZipException( "Entry " + entry + " is too large" );
+        byte[] content = new byte[(int) entry.size];
+        if( entry.method == STORED ) {
+            data.get( content );
+        } else if( entry.method == DEFLATED ) {
+            Inflater inflater = new Inflater( true );
+            try {
+                inflater.setInput( toArray( data ) );
+                int length = 0;
+                while( length < content.length && !inflater.finished() ) {
+                    int read = inflater.inflate( content, length, content.length - length );
+                    if( read == 0 && (inflater.needsInput() || inflater.needsDictionary()) )
+                        break;
+                    length += read;
+                }
+                if( length != content.length )
+                    throw new ZipException( "Entry " + entry + " is truncated" );
+            } catch( DataFormatException e ) {
+                throw new ZipException( "Entry " + entry + " is corrupt: " + e.getMessage() );
+            } finally {
+                inflater.end();
+            }
+        } else {
+            throw new ZipException( "Entry " + entry + " uses the unsupported compression method " + entry.method );
+        }
+        CRC32 crc = new CRC32();
+        crc.update( content );
+        if( crc.getValue() != entry.crc )
+            throw new ZipException( "Entry " + entry + " fails its checksum" );
+        return content;
+    }
+
+    private ByteBuffer data( Entry entry ) throws ZipException {
+        int header = local( entry );
+        return slice( header + LOCAL_HEADER_SIZE + u16( header + 26 ) + u16( header + 28 ), entry.compressedSize );
+    }
+
+    private int local( Entry entry ) throws ZipException {
+        if( entry.offset + LOCAL_HEADER_SIZE > buffer.limit() || i32( (int) entry.offset ) != LOCAL_HEADER )
+            throw new ZipException( "Missing local header of entry " + entry );
+        return (int) entry.offset;
+    }
+
+    private int findEnd() throws ZipException {
+        int last = buffer.limit() - 22;
+        int stop = Math.max( 0, last - 0xFFFF );
+        for( int position = last; position >= stop; position-- ) {
+            if( i32( position ) == END_OF_CENTRAL_DIRECTORY && position + 22 + u16( position + 20 ) == buffer.limit() )
+                return position;
+        }
+        throw new ZipException( "Not a zip archive, end of central directory is missing" );
+    }
+
+    private ByteBuffer slice( long position, long length ) throws ZipException {
+        if( position + length > buffer.limit() )
+            throw new ZipException( "Entry data exceeds the archive" );
+        ByteBuffer slice = buffer.duplicate();
+        slice.position( (int) position ).limit( (int) (position + length) );
+        return slice.slice();
+    }
+
+    private static byte[] toArray( ByteBuffer data ) {
+        byte[] bytes = new byte[data.remaining()];
+        data.get( bytes );
+        return bytes;
+    }
+
+    private int i32( int position ) {
+        return buffer.getInt( position );
+    }
+
+    private int u16( int position ) {
+        return buffer.getShort( position ) & 0xFFFF;
+    }
+
+    private long u32( int position ) {
+        return buffer.getInt( position ) & 0xFFFFFFFFL;
+    }
+
+    private long i64( int position ) {
+        return buffer.getLong( position );
+    }
+
+}
@@ -0,0 +1,178 @@
+package at.mana.instrument.archive;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipException;
+
+import static at.mana.instrument.archive.ZipArchive.*;
+
+/**
+ * Writes a zip file entry by entry. Entries of a {@link ZipArchive} are copied as stored in the
+ * source, local header, compressed data and data descriptor included, only their offset in the
+ * central directory changes; nothing but replaced or added entries passes through the deflater.
+ */
+public class ZipWriter implements Closeable {
+
+    // MS-DOS date of 1980-01-01, added entries carry a fixed time so builds stay reproducible
+    private static final int FIXED_DATE = (1 << 5) | 1;
+    private static final long MAX_OFFSET = 0xFFFFFFFEL;
+
+    private final OutputStream out;
+    private final WritableByteChannel channel;
+    private final ByteArrayOutputStream central = new ByteArrayOutputStream();
+    private long position;
+    private long count;
+
+    public ZipWriter( OutputStream out ) {
+        this.out = out;
+        this.channel = Channels.newChannel( out );
+    }
+
+    /**
+     * Writes the bytes in front of the first entry, must be called before any entry is written
+     */
+    public void preamble( ZipArchive source ) throws IOException {
+        if( count > 0 )
+            throw new IllegalStateException( "Entries have already been written" );
+        write( source.getPreamble() );
+    }
+
+    /**
+     * Copies an entry of the source archive without decompressing it
+     */
+    public void copy( ZipArchive source, ZipArchive.Entry entry ) throws IOException {
+        long offset = position;
+        write( source.raw( entry ) );
+        byte[] record = entry.getCentral().clone();
+        ByteBuffer.wrap( record ).order( ByteOrder.LITTLE_ENDIAN ).putInt( 42, offset( offset ) );
+        central( record );
+    }
+
+    /**
+     * Writes new content for an entry of the source archive. Name, time, attributes and the
+     * compression method are kept, stored entries stay stored as required e.g. for the nested
+     * jars of executable Spring Boot archives.
+     */
+    public void replace( ZipArchive.Entry entry, byte[] content ) throws IOException {
+        byte[] record = entry.getCentral().clone();
+        ByteBuffer header = ByteBuffer.wrap( record ).order( ByteOrder.LITTLE_ENDIAN );
+        int flags = (header.getShort( 8 ) & 0xFFFF) & ~FLAG_DATA_DESCRIPTOR;
+        int method = entry.getMethod() == STORED ? STORED : DEFLATED;
+        int nameLength = header.getShort( 28 ) & 0xFFFF;
+        byte[] name = new byte[nameLength];
+        System.arraycopy( record, CENTRAL_HEADER_SIZE, name, 0, nameLength );
+        entry( record, name, flags, method, header.getShort( 12 ), header.getShort( 14 ), content );
+    }
+
+    /**
+     * Adds a new deflated entry
+     */
+    public void add( String name, byte[] content ) throws IOException {
+        byte[] bytes = name.getBytes( StandardCharsets.UTF_8 );
+        byte[] record = new byte[CENTRAL_HEADER_SIZE + bytes.length];
+        ByteBuffer header = ByteBuffer.wrap( record ).order( ByteOrder.LITTLE_ENDIAN );
+        header.putInt( 0, CENTRAL_HEADER );
+        header.putShort( 4, (short) 20 );
+        header.putShort( 28, (short) bytes.length );
+        System.arraycopy( bytes, 0, record, CENTRAL_HEADER_SIZE, bytes.length );
+        entry( record, bytes, FLAG_UTF8, DEFLATED, (short) 0, (short) FIXED_DATE, content );
+    }
+
+    /**
+     * Writes the central directory, the stream is left open
+     */
+    public void finish() throws IOException {
+        long offset = position;
+        long size = central.size();
+        central.writeTo( out );
+        position += size;
+        boolean zip64 = count > 0xFFFF || offset > MAX_OFFSET || size > MAX_OFFSET;
+        ByteBuffer end = ByteBuffer.allocate( zip64 ? 56 + 20 + 22 : 22 ).order( ByteOrder.LITTLE_ENDIAN );
+        if( zip64 ) {
+            long record = position;
+            end.putInt( ZIP64_END_OF_CENTRAL_DIRECTORY ).putLong( 44 ).putShort( (short) 45 ).putShort( (short) 45 )
+                    .putInt( 0 ).putInt( 0 ).putLong( count ).putLong( count ).putLong( size ).putLong( offset );
+            end.putInt( ZIP64_LOCATOR ).putInt( 0 ).putLong( record ).putInt( 1 );
+        }
+        end.putInt( END_OF_CENTRAL_DIRECTORY ).putShort( (short) 0 ).putShort( (short) 0 )
+                .putShort( (short) Math.min( count, 0xFFFF ) ).putShort( (short) Math.min( count, 0xFFFF ) )
+                .putInt( (int) Math.min( size, 0xFFFFFFFFL ) ).putInt( (int) Math.min( offset, 0xFFFFFFFFL ) )
+                .putShort( (short) 0 );
+        end.flip();
+        write( end );
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+    private void entry( byte[] record, byte[] name, int flags, int method, short time, short date, byte[] content ) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update( content );
+        byte[] data = method == STORED ? content : deflate( content );
+        long offset = position;
+
+        ByteBuffer local = ByteBuffer.allocate( LOCAL_HEADER_SIZE + name.length ).order( ByteOrder.LITTLE_ENDIAN );
+        local.putInt( LOCAL_HEADER ).putShort( (short) 20 ).putShort( (short) flags ).putShort( (short) method )
+                .putShort( time ).putShort( date ).putInt( (int) crc.getValue() )
+                .putInt( data.length ).putInt( content.length ).putShort( (short) name.length ).putShort( (short) 0 )
+                .put( name );
+        local.flip();
+        write( local );
+        write( ByteBuffer.wrap( data ) );
+
+        ByteBuffer header = ByteBuffer.wrap( record ).order( ByteOrder.LITTLE_ENDIAN );
+        header.putShort( 6, (short) Math.max( 20, header.getShort( 6 ) & 0xFFFF ) );
+        header.putShort( 8, (short) flags ).putShort( 10, (short) method );
+        header.putShort( 12, time ).putShort( 14, date );
+        header.putInt( 16, (int) crc.getValue() ).putInt( 20, data.length ).putInt( 24, content.length );
+        header.putInt( 42, offset( offset ) );
+        central( record );
+    }
+
+    private static byte[] deflate( byte[] content ) {
+        Deflater deflater = new Deflater( Deflater.DEFAULT_COMPRESSION, true );
+        try {
+            deflater.setInput( content );
+            deflater.finish();
+            ByteArrayOutputStream result = new ByteArrayOutputStream( content.length / 2 + 64 );
+            byte[] chunk = new byte[8192];
+            while( !deflater.finished() ) {
+                int length = deflater.deflate( chunk );
+                result.write( chunk, 0, length );
+            }
+            return result.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private void central( byte[] record ) {
+        central.write( record, 0, record.length );
+        count++;
+    }
+
+    private static int offset( long offset ) throws ZipException {
+        if( offset > MAX_OFFSET )
+            throw new ZipException( "Archive exceeds 4 GB, entries beyond cannot be written without zip64" );
+        return (int) offset;
+    }
+
+    private void write( ByteBuffer buffer ) throws IOException {
+        position += buffer.remaining();
+        while( buffer.hasRemaining() )
+            channel.write( buffer );
+    }
+
+}
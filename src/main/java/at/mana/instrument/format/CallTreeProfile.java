@@ -0,0 +1,453 @@
+package at.mana.instrument.format;
+
+import at.mana.instrument.trace.MethodTable;
+import at.mana.instrument.trace.TraceSnapshot;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Call context tree of a measurement. Calls of all threads are merged by their call path, every
+ * node holds the number of calls, their total time and the self time spent outside of traced
+ * callees.
+ * <p>
+ * Energy is assigned by the samples of the energy section. The value of a sample is taken as the
+ * energy consumed since the previous sample; it is split among the calls running in between by
+ * their self time within the period. Periods in which the traced threads together ran for less
+ * than the period keep the rest as unattributed energy, periods with more concurrent self time
+ * than the period divide the energy proportionally.
+ * <pre>
+ * node := {methodName, className, methodDescriptor, hash, calls, exceptions, total, self,
+ *          [energy, selfEnergy], children:[node*]}
+ * </pre>
+ * Times are micro seconds, energy values are objects holding one value per energy column.
+ */
+public class CallTreeProfile {
+
+    public static final String COLLAPSED_EXTENSION = ".collapsed";
+
+    public static final class Node {
+        private final int id;
+        private final Node parent;
+        private final Map<Integer, Node> children = new LinkedHashMap<>();
+        private long calls;
+        private long exceptions;
+        private long totalNanos;
+        private long selfNanos;
+        private double[] energy;
+        private double[] selfEnergy;
+
+        Node( int id, Node parent ) {
+            this.id = id;
+            this.parent = parent;
+        }
+
+        /**
+         * @return id of the method as registered in the {@link MethodTable}, -1 for the root
+         */
+        public int getId() {
+            return id;
+        }
+
+        public Node getParent() {
+            return parent;
+        }
+
+        /**
+         * @return the node of the given method called from this one or null if it was not called
+         */
+        public Node getChild( int id ) {
+            return children.get( id );
+        }
+
+        public Collection<Node> getChildren() {
+            return children.values();
+        }
+
+        public long getCalls() {
+            return calls;
+        }
+
+        /**
+         * @return number of calls left by an exception
+         */
+        public long getExceptions() {
+            return exceptions;
+        }
+
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+        public long getSelfNanos() {
+            return selfNanos;
+        }
+
+        /**
+         * @return energy of the given column consumed by the calls and their callees
+         */
+        public double getEnergy( int column ) {
+            return energy == null ? 0.0 : energy[column];
+        }
+
+        /**
+         * @return energy of the given column consumed by the calls outside of traced callees
+         */
+        public double getSelfEnergy( int column ) {
+            return selfEnergy == null ? 0.0 : selfEnergy[column];
+        }
+    }
+
+    private final TraceSnapshot snapshot;
+    private final Node root = new Node( -1, null );
+    /**
+     * All nodes but the root, a parent always precedes its children
+     */
+    private final List<Node> nodes = new ArrayList<>();
+    private String[] energyNames = new String[0];
+    private double[] unattributed = new double[0];
+
+    /**
+     * Stretches of time in which a node was the innermost running call of a thread, in micro
+     * seconds since epoch
+     */
+    private Node[] segmentNodes = new Node[256];
+    private long[] segmentFrom = new long[256];
+    private long[] segmentTo = new long[256];
+    private int segments;
+
+    private CallTreeProfile( TraceSnapshot snapshot ) {
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * Aggregates the calls of a snapshot
+     *
+     * @param energy energy section as written by exec-rapl or null, energy is only assigned if its
+     *               samples carry a time
+     */
+    public static CallTreeProfile build( TraceSnapshot snapshot, String energy ) {
+        CallTreeProfile profile = new CallTreeProfile( snapshot );
+        profile.aggregate();
+        EnergyTable table = energy == null ? null : parse( energy );
+        if( table != null )
+            profile.attribute( table );
+        return profile;
+    }
+
+    private static EnergyTable parse( String energy ) {
+        try {
+            return EnergyTable.parse( energy );
+        } catch( IOException | NumberFormatException e ) {
+            // energy in an unknown shape cannot be assigned to calls
+            return null;
+        }
+    }
+
+    public Node getRoot() {
+        return root;
+    }
+
+    /**
+     * @return names of the energy columns assigned to the nodes, empty if no energy was assigned
+     */
+    public String[] getEnergyNames() {
+        return energyNames;
+    }
+
+    /**
+     * @return energy of the given column consumed while no traced call was running
+     */
+    public double getUnattributed( int column ) {
+        return unattributed[column];
+    }
+
+    private void aggregate() {
+        Map<Integer, Walk> walks = new LinkedHashMap<>();
+        for( int i = 0; i < snapshot.size(); i++ ) {
+            Walk walk = walks.computeIfAbsent( snapshot.getThread( i ), t -> new Walk() );
+            long start = snapshot.getStart( i );
+            long duration = snapshot.getEnd( i ) - start;
+            walk.leave( start );
+            Node parent = walk.depth == 0 ? root : walk.nodes[walk.depth - 1];
+            if( parent != root ) {
+                segment( parent, walk.cursor, start );
+                parent.selfNanos -= duration;
+            }
+            walk.cursor = start;
+            Node node = parent.children.get( snapshot.getId( i ) );
+            if( node == null ) {
+                node = new Node( snapshot.getId( i ), parent );
+                parent.children.put( node.id, node );
+                nodes.add( node );
+            }
+            node.calls++;
+            node.totalNanos += duration;
+            node.selfNanos += duration;
+            if( snapshot.isThrown( i ) )
+                node.exceptions++;
+            walk.push( node, snapshot.getEnd( i ) );
+        }
+        for( Walk walk : walks.values() )
+            walk.leave( Long.MAX_VALUE );
+        for( Node node : root.children.values() ) {
+            root.calls += node.calls;
+            root.totalNanos += node.totalNanos;
+        }
+    }
+
+    private void segment( Node node, long fromNanos, long toNanos ) {
+        if( toNanos <= fromNanos )
+            return;
+        if( segments == segmentNodes.length ) {
+            segmentNodes = Arrays.copyOf( segmentNodes, segments * 2 );
+            segmentFrom = Arrays.copyOf( segmentFrom, segments * 2 );
+            segmentTo = Arrays.copyOf( segmentTo, segments * 2 );
+        }
+        segmentNodes[segments] = node;
+        segmentFrom[segments] = snapshot.toEpochMicros( fromNanos );
+        segmentTo[segments] = snapshot.toEpochMicros( toNanos );
+        segments++;
+    }
+
+    private void attribute( EnergyTable table ) {
+        EnergyTable.Column time = table.getTimeColumn();
+        if( time == null || table.getRows() < 2 )
+            return;
+        List<EnergyTable.Column> columns = new ArrayList<>();
+        for( EnergyTable.Column column : table.getColumns() ) {
+            if( column != time && (column.getType() == EnergyTable.Type.LONG || column.getType() == EnergyTable.Type.DOUBLE) )
+                columns.add( column );
+        }
+        int rows = table.getRows();
+        long[] bounds = new long[rows];
+        for( int r = 0; r < rows; r++ )
+            bounds[r] = EnergyTable.toEpochMillis( time.getLong( r ) ) * 1_000L;
+
+        // the self time of all threads per period decides how its energy is split
+        double[] busy = new double[rows];
+        for( int s = 0; s < segments; s++ ) {
+            for( int r = firstPeriod( bounds, segmentFrom[s] ); r < rows && bounds[r - 1] < segmentTo[s]; r++ )
+                busy[r] += overlap( bounds, r, s );
+        }
+
+        energyNames = new String[columns.size()];
+        unattributed = new double[columns.size()];
+        for( int c = 0; c < columns.size(); c++ )
+            energyNames[c] = columns.get( c ).getName();
+        for( Node node : nodes ) {
+            node.energy = new double[columns.size()];
+            node.selfEnergy = new double[columns.size()];
+        }
+        root.energy = new double[columns.size()];
+        for( int r = 1; r < rows; r++ ) {
+            long length = bounds[r] - bounds[r - 1];
+            double idle = length <= 0 ? 1.0 : Math.max( 0.0, 1.0 - busy[r] / length );
+            for( int c = 0; c < columns.size(); c++ )
+                unattributed[c] += columns.get( c ).getDouble( r ) * idle;
+        }
+        for( int s = 0; s < segments; s++ ) {
+            Node node = segmentNodes[s];
+            for( int r = firstPeriod( bounds, segmentFrom[s] ); r < rows && bounds[r - 1] < segmentTo[s]; r++ ) {
+                double weight = overlap( bounds, r, s ) / Math.max( bounds[r] - bounds[r - 1], busy[r] );
+                for( int c = 0; c < columns.size(); c++ )
+                    node.selfEnergy[c] += columns.get( c ).getDouble( r ) * weight;
+            }
+        }
+
+        // children follow their parents, going backwards sums up the callees first
+        for( int n = nodes.size() - 1; n >= 0; n-- ) {
+            Node node = nodes.get( n );
+            for( int c = 0; c < columns.size(); c++ ) {
+                node.energy[c] += node.selfEnergy[c];
+                node.parent.energy[c] += node.energy[c];
+            }
+        }
+    }
+
+    /**
+     * @return the first period ending after the given time, period r lasts from sample r - 1 to sample r
+     */
+    private static int firstPeriod( long[] bounds, long micros ) {
+        int low = 1;
+        int high = bounds.length;
+        while( low < high ) {
+            int middle = (low + high) >>> 1;
+            if( bounds[middle] <= micros )
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return low;
+    }
+
+    private double overlap( long[] bounds, int period, int segment ) {
+        return Math.max( 0L, Math.min( bounds[period], segmentTo[segment] ) - Math.max( bounds[period - 1], segmentFrom[segment] ) );
+    }
+
+    /**
+     * Writes the tree as JSON array of its top level nodes, the target is flushed but not closed
+     */
+    public void writeJson( Writer target ) throws IOException {
+        Writer writer = new BufferedWriter( target, 8192 );
+        String[] prefixes = new String[MethodTable.size()];
+        StringBuilder entry = new StringBuilder();
+        // the tree may be as deep as the deepest recursion, it is walked without recursing
+        Deque<Iterator<Node>> path = new ArrayDeque<>();
+        path.push( root.children.values().iterator() );
+        writer.write( '[' );
+        boolean first = true;
+        while( !path.isEmpty() ) {
+            Iterator<Node> siblings = path.peek();
+            if( !siblings.hasNext() ) {
+                path.pop();
+                writer.write( path.isEmpty() ? "]" : "]}" );
+                first = false;
+                continue;
+            }
+            Node node = siblings.next();
+            entry.setLength( 0 );
+            if( !first )
+                entry.append( ',' );
+            entry.append( prefix( prefixes, node.id ) )
+                    .append( "\"calls\":\"" ).append( node.calls )
+                    .append( "\", \"exceptions\":\"" ).append( node.exceptions )
+                    .append( "\", \"total\":\"" ).append( node.totalNanos / 1_000L )
+                    .append( "\", \"self\":\"" ).append( node.selfNanos / 1_000L ).append( "\", " );
+            if( energyNames.length > 0 ) {
+                appendEnergy( entry.append( "\"energy\":" ), node.energy ).append( ", " );
+                appendEnergy( entry.append( "\"selfEnergy\":" ), node.selfEnergy ).append( ", " );
+            }
+            entry.append( "\"children\":[" );
+            writer.append( entry );
+            path.push( node.children.values().iterator() );
+            first = true;
+        }
+        writer.flush();
+    }
+
+    /**
+     * Writes the energy consumed while no traced call was running as JSON object
+     */
+    public void writeUnattributed( Writer writer ) throws IOException {
+        writer.append( appendEnergy( new StringBuilder(), unattributed ) );
+    }
+
+    private StringBuilder appendEnergy( StringBuilder target, double[] values ) {
+        target.append( '{' );
+        for( int c = 0; c < energyNames.length; c++ ) {
+            if( c > 0 )
+                target.append( ", " );
+            target.append( '"' ).append( TraceJson.escape( energyNames[c] ) ).append( "\":" ).append( values[c] );
+        }
+        return target.append( '}' );
+    }
+
+    private static String prefix( String[] prefixes, int id ) {
+        if( id < 0 || id >= prefixes.length )
+            return render( id < 0 ? null : MethodTable.get( id ) );
+        if( prefixes[id] == null )
+            prefixes[id] = render( MethodTable.get( id ) );
+        return prefixes[id];
+    }
+
+    private static String render( MethodTable.Method m ) {
+        return m == null
+                ? TraceJson.prefix( "", "", "", 0 )
+                : TraceJson.prefix( m.getClassName(), m.getMethodName(), m.getMethodDesc(), m.getHash() );
+    }
+
+    /**
+     * Writes the tree in collapsed stack format, one line per call path holding its frames
+     * separated by semicolons and the self value of the path
+     *
+     * @param column energy column whose self energy in millionths is written, -1 writes the self
+     *               time in micro seconds
+     */
+    public void writeCollapsed( Writer target, int column ) throws IOException {
+        Writer writer = new BufferedWriter( target, 8192 );
+        Map<Node, String> stacks = new LinkedHashMap<>();
+        for( Node node : nodes ) {
+            MethodTable.Method method = node.id < 0 ? null : MethodTable.get( node.id );
+            String frame = method == null ? "unknown" : method.getClassName() + "." + method.getMethodName();
+            String stack = node.parent == root ? frame : stacks.get( node.parent ) + ";" + frame;
+            stacks.put( node, stack );
+            long value = column < 0 ? node.selfNanos / 1_000L : Math.round( node.selfEnergy[column] * 1_000_000.0 );
+            if( value > 0 ) {
+                writer.write( stack );
+                writer.write( ' ' );
+                writer.write( Long.toString( value ) );
+                writer.write( '\n' );
+            }
+        }
+        writer.flush();
+    }
+
+    /**
+     * Writes the collapsed stacks next to a .mana file, {@code name.collapsed} holds the self time
+     * and {@code name.column.collapsed} the self energy of every energy column
+     *
+     * @param fileName name of the .mana file
+     * @param opener   opens the collapsed files by name
+     */
+    public void writeCollapsed( String fileName, Opener opener ) throws IOException {
+        int dot = fileName.lastIndexOf( '.' );
+        String base = dot > Math.max( fileName.lastIndexOf( '/' ), fileName.lastIndexOf( '\\' ) ) ? fileName.substring( 0, dot ) : fileName;
+        try( Writer writer = opener.open( base + COLLAPSED_EXTENSION ) ) {
+            writeCollapsed( writer, -1 );
+        }
+        for( int c = 0; c < energyNames.length; c++ ) {
+            try( Writer writer = opener.open( base + "." + energyNames[c] + COLLAPSED_EXTENSION ) ) {
+                writeCollapsed( writer, c );
+            }
+        }
+    }
+
+    /**
+     * Opens a file the collapsed stacks are written to
+     */
+    public interface Opener {
+        Writer open( String fileName ) throws IOException;
+    }
+
+    /**
+     * Calls of a single thread that contain the call currently aggregated
+     */
+    private final class Walk {
+        Node[] nodes = new Node[64];
+        long[] ends = new long[64];
+        int depth;
+        long cursor;
+
+        void push( Node node, long end ) {
+            if( depth == nodes.length ) {
+                nodes = Arrays.copyOf( nodes, depth * 2 );
+                ends = Arrays.copyOf( ends, depth * 2 );
+            }
+            nodes[depth] = node;
+            ends[depth++] = end;
+        }
+
+        /**
+         * Closes the calls that ended before the given time, the innermost one closes first
+         */
+        void leave( long nanos ) {
+            while( depth > 0 && ends[depth - 1] <= nanos ) {
+                depth--;
+                segment( nodes[depth], cursor, ends[depth] );
+                cursor = ends[depth];
+            }
+        }
+    }
+
+}
@@ -0,0 +1,382 @@
+package at.mana.instrument.format;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Column oriented view of the energy section of a .mana file. The section is written by
+ * exec-rapl as JSON array of flat sample objects; every key of these objects becomes a column.
+ * Sections of any other shape cannot be represented and are kept as raw JSON by the callers.
+ */
+public class EnergyTable {
+
+    public enum Type {
+        /** integral JSON number */
+        LONG,
+        /** fractional JSON number */
+        DOUBLE,
+        /** JSON string holding an integral number */
+        QUOTED_LONG,
+        /** any other JSON string */
+        STRING
+    }
+
+    public static final class Column {
+        private final String name;
+        private final Type type;
+        private final long[] longs;
+        private final double[] doubles;
+        private final String[] strings;
+
+        Column( String name, Type type, int rows ) {
+            this.name = name;
+            this.type = type;
+            this.longs = type == Type.LONG || type == Type.QUOTED_LONG ? new long[rows] : null;
+            this.doubles = type == Type.DOUBLE ? new double[rows] : null;
+            this.strings = type == Type.STRING ? new String[rows] : null;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        public long getLong( int row ) {
+            return type == Type.DOUBLE ? (long) doubles[row] : longs[row];
+        }
+
+        public double getDouble( int row ) {
+            return type == Type.DOUBLE ? doubles[row] : longs[row];
+        }
+
+        public String getString( int row ) {
+            return strings[row];
+        }
+
+        public void setLong( int row, long value ) {
+            longs[row] = value;
+        }
+
+        public void setDouble( int row, double value ) {
+            doubles[row] = value;
+        }
+
+        public void setString( int row, String value ) {
+            strings[row] = value;
+        }
+    }
+
+    private final List<Column> columns;
+    private final int rows;
+
+    public EnergyTable( List<Column> columns, int rows ) {
+        this.columns = columns;
+        this.rows = rows;
+    }
+
+    public static Column column( String name, Type type, int rows ) {
+        return new Column( name, type, rows );
+    }
+
+    public List<Column> getColumns() {
+        return columns;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public Column getColumn( String name ) {
+        return columns.stream().filter( c -> c.getName().equals( name ) ).findFirst().orElse( null );
+    }
+
+    /**
+     * Guesses the column holding the sample time, a column named time or timestamp is preferred
+     * over the first integral column whose values never decrease
+     *
+     * @return the column or null if there is no candidate
+     */
+    public Column getTimeColumn() {
+        Column candidate = null;
+        for( Column column : columns ) {
+            if( (column.getType() != Type.LONG && column.getType() != Type.QUOTED_LONG) || !isAscending( column ) )
+                continue;
+            String name = column.getName().toLowerCase( Locale.ROOT );
+            if( name.equals( "time" ) || name.equals( "timestamp" ) )
+                return column;
+            if( candidate == null )
+                candidate = column;
+        }
+        return candidate;
+    }
+
+    /**
+     * Converts a value of the time column to milliseconds since epoch, seconds, micro and nano
+     * seconds are told apart by their magnitude
+     */
+    public static long toEpochMillis( long time ) {
+        long magnitude = Math.abs( time );
+        if( magnitude >= 100_000_000_000_000_000L )
+            return time / 1_000_000L;
+        if( magnitude >= 100_000_000_000_000L )
+            return time / 1_000L;
+        if( magnitude < 100_000_000_000L )
+            return time * 1_000L;
+        return time;
+    }
+
+    private boolean isAscending( Column column ) {
+        for( int r = 1; r < rows; r++ ) {
+            if( column.getLong( r ) < column.getLong( r - 1 ) )
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Parses the energy section
+     *
+     * @param json energy section as written by exec-rapl
+     * @return the section as table or null if it is not an array of flat objects with equal keys
+     */
+    public static EnergyTable parse( String json ) throws IOException {
+        List<Map<String, Object>> samples = new ArrayList<>();
+        try( JsonReader reader = new JsonReader( new StringReader( json ) ) ) {
+            if( reader.peek() != JsonReader.Token.BEGIN_ARRAY )
+                return null;
+            reader.beginArray();
+            while( reader.hasNext() ) {
+                if( reader.peek() != JsonReader.Token.BEGIN_OBJECT )
+                    return null;
+                Map<String, Object> sample = new LinkedHashMap<>();
+                reader.beginObject();
+                while( reader.hasNext() ) {
+                    String name = reader.nextName();
+                    switch( reader.peek() ) {
+                        case NUMBER:
+                            sample.put( name, new Number( reader.nextNumber() ) );
+                            break;
+                        case STRING:
+                            sample.put( name, reader.nextString() );
+                            break;
+                        case BOOLEAN:
+                            sample.put( name, reader.nextBoolean() );
+                            break;
+                        default:
+                            // nested values and nulls are not supported as columns
+                            return null;
+                    }
+                }
+                reader.endObject();
+                samples.add( sample );
+            }
+            reader.endArray();
+            if( reader.peek() != JsonReader.Token.END )
+                return null;
+        }
+        return fromSamples( samples );
+    }
+
+    private static EnergyTable fromSamples( List<Map<String, Object>> samples ) {
+        if( samples.isEmpty() )
+            return new EnergyTable( new ArrayList<>(), 0 );
+        List<String> names = new ArrayList<>( samples.get( 0 ).keySet() );
+        List<Column> columns = new ArrayList<>();
+        for( String name : names ) {
+            Type type = null;
+            for( Map<String, Object> sample : samples ) {
+                if( sample.size() != names.size() || !sample.containsKey( name ) )
+                    return null;
+                type = widen( type, typeOf( sample.get( name ) ) );
+            }
+            Column column = new Column( name, type, samples.size() );
+            for( int row = 0; row < samples.size(); row++ ) {
+                Object value = samples.get( row ).get( name );
+                switch( type ) {
+                    case LONG:
+                        column.setLong( row, Long.parseLong( ((Number) value).text ) );
+                        break;
+                    case DOUBLE:
+                        column.setDouble( row, Double.parseDouble( ((Number) value).text ) );
+                        break;
+                    case QUOTED_LONG:
+                        column.setLong( row, Long.parseLong( (String) value ) );
+                        break;
+                    default:
+                        // numbers or booleans mixed into text cannot be restored faithfully
+                        if( !(value instanceof String) )
+                            return null;
+                        column.setString( row, (String) value );
+                }
+            }
+            columns.add( column );
+        }
+        return new EnergyTable( columns, samples.size() );
+    }
+
+    private static Type typeOf( Object value ) {
+        if( value instanceof Number )
+            return ((Number) value).isIntegral() ? Type.LONG : Type.DOUBLE;
+        if( value instanceof String && isCanonicalLong( (String) value ) )
+            return Type.QUOTED_LONG;
+        return Type.STRING;
+    }
+
+    private static Type widen( Type current, Type next ) {
+        if( current == null || current == next )
+            return next;
+        if( (current == Type.LONG && next == Type.DOUBLE) || (current == Type.DOUBLE && next == Type.LONG) )
+            return Type.DOUBLE;
+        // quoted numbers mixed with text stay text, numbers mixed with text reject the table
+        return Type.STRING;
+    }
+
+    private static boolean isCanonicalLong( String value ) {
+        try {
+            return Long.toString( Long.parseLong( value ) ).equals( value );
+        } catch( NumberFormatException e ) {
+            return false;
+        }
+    }
+
+    /**
+     * Merges the samples of long measurements into periods of growing length. Samples taken
+     * within the window after the first one are kept; samples taken between window * 2^(k-1) and
+     * window * 2^k after it are merged in groups of 2^k, so the number of rows grows with the
+     * logarithm of the duration. Numeric columns hold the energy consumed since the previous
+     * sample and are summed, the time and all string columns keep the value of the last sample.
+     *
+     * @param windowMillis period kept at full resolution
+     * @return the merged table, this table if there is no time column or nothing to merge
+     */
+    public EnergyTable downsample( long windowMillis ) {
+        Column time = getTimeColumn();
+        if( time == null || windowMillis <= 0 )
+            return this;
+        long first = rows == 0 ? 0 : toEpochMillis( time.getLong( 0 ) );
+        // exclusive end of the samples merged into every row
+        int[] ends = new int[rows];
+        int merged = 0;
+        for( int r = 0; r < rows; merged++ ) {
+            int level = level( toEpochMillis( time.getLong( r ) ) - first, windowMillis );
+            int end = r + 1;
+            while( end < rows && end - r < 1 << level
+                    && level( toEpochMillis( time.getLong( end ) ) - first, windowMillis ) == level )
+                end++;
+            ends[merged] = end;
+            r = end;
+        }
+        if( merged == rows )
+            return this;
+        List<Column> target = new ArrayList<>( columns.size() );
+        for( Column column : columns ) {
+            Column copy = new Column( column.name, column.type, merged );
+            int from = 0;
+            for( int m = 0; m < merged; m++ ) {
+                int last = ends[m] - 1;
+                if( column.type == Type.LONG && column != time ) {
+                    long sum = 0;
+                    for( int r = from; r <= last; r++ )
+                        sum += column.longs[r];
+                    copy.longs[m] = sum;
+                } else if( column.type == Type.DOUBLE ) {
+                    double sum = 0;
+                    for( int r = from; r <= last; r++ )
+                        sum += column.doubles[r];
+                    copy.doubles[m] = sum;
+                } else if( column.type == Type.STRING ) {
+                    copy.strings[m] = column.strings[last];
+                } else {
+                    copy.longs[m] = column.longs[last];
+                }
+                from = ends[m];
+            }
+            target.add( copy );
+        }
+        return new EnergyTable( target, merged );
+    }
+
+    /**
+     * @return 0 within the window, k for ages between window * 2^(k-1) and window * 2^k
+     */
+    private static int level( long ageMillis, long windowMillis ) {
+        return ageMillis < windowMillis ? 0 : Math.min( 30, 64 - Long.numberOfLeadingZeros( ageMillis / windowMillis ) );
+    }
+
+    /**
+     * Writes the table as JSON array of sample objects
+     */
+    public void writeJson( Writer writer ) throws IOException {
+        writeJson( writer, 0, rows );
+    }
+
+    /**
+     * Writes a range of rows as JSON array of sample objects
+     *
+     * @param from first row, inclusive
+     * @param to   last row, exclusive
+     */
+    public void writeJson( Writer writer, int from, int to ) throws IOException {
+        writer.write( '[' );
+        StringBuilder row = new StringBuilder();
+        for( int r = from; r < to; r++ ) {
+            row.setLength( 0 );
+            if( r > from )
+                row.append( ',' );
+            row.append( '{' );
+            for( int c = 0; c < columns.size(); c++ ) {
+                Column column = columns.get( c );
+                if( c > 0 )
+                    row.append( ", " );
+                row.append( '"' ).append( column.getName() ).append( "\":" );
+                switch( column.getType() ) {
+                    case LONG:
+                        row.append( column.getLong( r ) );
+                        break;
+                    case DOUBLE:
+                        row.append( column.getDouble( r ) );
+                        break;
+                    case QUOTED_LONG:
+                        row.append( '"' ).append( column.getLong( r ) ).append( '"' );
+                        break;
+                    default:
+                        row.append( '"' ).append( TraceJson.escape( column.getString( r ) ) ).append( '"' );
+                }
+            }
+            row.append( '}' );
+            writer.append( row );
+        }
+        writer.write( ']' );
+    }
+
+    @Override
+    public String toString() {
+        return "EnergyTable" + Arrays.toString( columns.stream().map( Column::getName ).toArray() ) + " x " + rows;
+    }
+
+    /**
+     * Literal text of a JSON number
+     */
+    private static final class Number {
+        private final String text;
+
+        Number( String text ) {
+            this.text = text;
+        }
+
+        boolean isIntegral() {
+            return text.indexOf( '.' ) < 0 && text.indexOf( 'e' ) < 0 && text.indexOf( 'E' ) < 0;
+        }
+    }
+
+}
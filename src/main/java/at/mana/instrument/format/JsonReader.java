@@ -0,0 +1,312 @@
+package at.mana.instrument.format;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+/**
+ * Minimal pull parser for the JSON written into .mana files. Values are consumed one token at a
+ * time straight from the underlying reader, so arbitrarily large files are parsed with a fixed
+ * amount of memory. Numbers are returned as their literal text, leaving the conversion and its
+ * precision to the caller.
+ */
+public class JsonReader implements AutoCloseable {
+
+    public enum Token { BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY, NAME, STRING, NUMBER, BOOLEAN, NULL, END }
+
+    private final Reader reader;
+    private final char[] buffer = new char[8192];
+    private int position;
+    private int limit;
+
+    private Token peeked;
+    /**
+     * Nesting of the current position, true for objects and false for arrays
+     */
+    private boolean[] scopes = new boolean[32];
+    private boolean[] expectName = new boolean[32];
+    private boolean[] first = new boolean[32];
+    private int depth;
+    private final StringBuilder text = new StringBuilder();
+
+    public JsonReader( Reader reader ) {
+        this.reader = reader;
+    }
+
+    /**
+     * @return the type of the next token without consuming it
+     */
+    public Token peek() throws IOException {
+        if( peeked != null )
+            return peeked;
+        int c = nextNonWhitespace();
+        if( depth > 0 ) {
+            boolean object = scopes[depth - 1];
+            if( c == (object ? '}' : ']') ) {
+                return peeked = object ? Token.END_OBJECT : Token.END_ARRAY;
+            }
+            if( !first[depth - 1] && !(object && !expectName[depth - 1]) ) {
+                if( c != ',' )
+                    throw syntaxError( "Expected ',' but was '" + (char) c + "'" );
+                c = nextNonWhitespace();
+            }
+            if( object && expectName[depth - 1] ) {
+                if( c != '"' )
+                    throw syntaxError( "Expected name but was '" + (char) c + "'" );
+                return peeked = Token.NAME;
+            }
+            if( object ) {
+                if( c != ':' )
+                    throw syntaxError( "Expected ':' but was '" + (char) c + "'" );
+                c = nextNonWhitespace();
+            }
+        }
+        switch( c ) {
+            case -1:
+                return peeked = Token.END;
+            case '{':
+                return peeked = Token.BEGIN_OBJECT;
+            case '[':
+                return peeked = Token.BEGIN_ARRAY;
+            case '"':
+                return peeked = Token.STRING;
+            case 't':
+            case 'f':
+                position--;
+                return peeked = Token.BOOLEAN;
+            case 'n':
+                position--;
+                return peeked = Token.NULL;
+            default:
+                if( c == '-' || (c >= '0' && c <= '9') ) {
+                    position--;
+                    return peeked = Token.NUMBER;
+                }
+                throw syntaxError( "Unexpected character '" + (char) c + "'" );
+        }
+    }
+
+    public void beginObject() throws IOException {
+        expect( Token.BEGIN_OBJECT );
+        push( true );
+    }
+
+    public void endObject() throws IOException {
+        expect( Token.END_OBJECT );
+        pop();
+    }
+
+    public void beginArray() throws IOException {
+        expect( Token.BEGIN_ARRAY );
+        push( false );
+    }
+
+    public void endArray() throws IOException {
+        expect( Token.END_ARRAY );
+        pop();
+    }
+
+    /**
+     * @return true if the current object or array has more elements
+     */
+    public boolean hasNext() throws IOException {
+        Token token = peek();
+        return token != Token.END_OBJECT && token != Token.END_ARRAY && token != Token.END;
+    }
+
+    public String nextName() throws IOException {
+        expect( Token.NAME );
+        String name = readString();
+        expectName[depth - 1] = false;
+        return name;
+    }
+
+    public String nextString() throws IOException {
+        expect( Token.STRING );
+        String value = readString();
+        consumed();
+        return value;
+    }
+
+    /**
+     * @return the literal text of the next number
+     */
+    public String nextNumber() throws IOException {
+        expect( Token.NUMBER );
+        text.setLength( 0 );
+        while( true ) {
+            int c = read();
+            if( c == -1 )
+                break;
+            if( (c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E' ) {
+                text.append( (char) c );
+            } else {
+                position--;
+                break;
+            }
+        }
+        consumed();
+        return text.toString();
+    }
+
+    public boolean nextBoolean() throws IOException {
+        expect( Token.BOOLEAN );
+        boolean value = read() == 't';
+        literal( value ? "rue" : "alse" );
+        consumed();
+        return value;
+    }
+
+    public void nextNull() throws IOException {
+        expect( Token.NULL );
+        read();
+        literal( "ull" );
+        consumed();
+    }
+
+    /**
+     * Skips the next value including all of its children
+     */
+    public void skipValue() throws IOException {
+        int level = 0;
+        do {
+            switch( peek() ) {
+                case BEGIN_OBJECT:
+                    beginObject();
+                    level++;
+                    break;
+                case BEGIN_ARRAY:
+                    beginArray();
+                    level++;
+                    break;
+                case END_OBJECT:
+                    endObject();
+                    level--;
+                    break;
+                case END_ARRAY:
+                    endArray();
+                    level--;
+                    break;
+                case NAME:
+                    nextName();
+                    break;
+                case STRING:
+                    nextString();
+                    break;
+                case NUMBER:
+                    nextNumber();
+                    break;
+                case BOOLEAN:
+                    nextBoolean();
+                    break;
+                case NULL:
+                    nextNull();
+                    break;
+                default:
+                    throw syntaxError( "Unexpected end of input" );
+            }
+        } while( level > 0 );
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    private void expect( Token token ) throws IOException {
+        Token actual = peek();
+        if( actual != token )
+            throw syntaxError( "Expected " + token + " but was " + actual );
+        peeked = null;
+    }
+
+    private void push( boolean object ) {
+        if( depth == scopes.length ) {
+            scopes = Arrays.copyOf( scopes, depth * 2 );
+            expectName = Arrays.copyOf( expectName, depth * 2 );
+            first = Arrays.copyOf( first, depth * 2 );
+        }
+        scopes[depth] = object;
+        expectName[depth] = object;
+        first[depth] = true;
+        depth++;
+    }
+
+    private void pop() {
+        depth--;
+        consumed();
+    }
+
+    /**
+     * Marks a value of the enclosing object or array as consumed
+     */
+    private void consumed() {
+        if( depth > 0 ) {
+            first[depth - 1] = false;
+            if( scopes[depth - 1] )
+                expectName[depth - 1] = true;
+        }
+    }
+
+    private String readString() throws IOException {
+        text.setLength( 0 );
+        while( true ) {
+            int c = read();
+            if( c == -1 )
+                throw syntaxError( "Unterminated string" );
+            if( c == '"' )
+                return text.toString();
+            if( c == '\\' ) {
+                c = read();
+                switch( c ) {
+                    case 'n': text.append( '\n' ); break;
+                    case 't': text.append( '\t' ); break;
+                    case 'r': text.append( '\r' ); break;
+                    case 'b': text.append( '\b' ); break;
+                    case 'f': text.append( '\f' ); break;
+                    case 'u':
+                        int code = 0;
+                        for( int i = 0; i < 4; i++ )
+                            code = code * 16 + Character.digit( read(), 16 );
+                        text.append( (char) code );
+                        break;
+                    default: text.append( (char) c );
+                }
+            } else {
+                text.append( (char) c );
+            }
+        }
+    }
+
+    private void literal( String rest ) throws IOException {
+        for( int i = 0; i < rest.length(); i++ ) {
+            if( read() != rest.charAt( i ) )
+                throw syntaxError( "Invalid literal" );
+        }
+    }
+
+    private int nextNonWhitespace() throws IOException {
+        int c;
+        do {
+            c = read();
+        } while( c == ' ' || c == '\n' || c == '\r' || c == '\t' );
+        return c;
+    }
+
+    private int read() throws IOException {
+        if( position == limit ) {
+            limit = reader.read( buffer, 0, buffer.length );
+            position = 0;
+            if( limit <= 0 ) {
+                limit = 0;
+                return -1;
+            }
+        }
+        return buffer[position++];
+    }
+
+    private IOException syntaxError( String message ) {
+        return new IOException( "Malformed JSON: " + message );
+    }
+
+}
@@ -0,0 +1,495 @@
+package at.mana.instrument.format;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Aggregates the JSON .mana files of many test runs per measured method and reports the median
+ * and percentiles of their duration and energy, or compares two sets of runs to catch energy
+ * regressions.
+ * <pre>
+ * java -cp instrument-maven-plugin.jar at.mana.instrument.format.ManaAnalyzer [--threads n] &lt;directory|file.mana&gt;...
+ * java -cp instrument-maven-plugin.jar at.mana.instrument.format.ManaAnalyzer --diff [--threshold percent] &lt;baseline&gt; &lt;current&gt;
+ * </pre>
+ * Files are parsed in parallel with a {@link JsonReader}, one token at a time, so the trace of a
+ * file is never held in memory and of its energy section only the numbers. Energy sampled during
+ * the warmup and cooldown of the sampler is left out. The measured method is taken from
+ * the file name {@code <class>_<method>_<millis>.mana}; files compressed by
+ * {@code -Dmana.writer.compression=gzip} are read as well. Binary and spill files have to be
+ * turned into json by {@link ManaConverter} first. Reports are written as CSV, times in
+ * milliseconds and energy in the unit of the sampler, weighted by the energy share of
+ * measurements that overlapped others. A diff exits with status 2 if the median energy of any
+ * method grew by more than the threshold.
+ */
+public class ManaAnalyzer {
+
+    static final double[] PERCENTILES = { 0.5, 0.9, 0.99 };
+    static final double DEFAULT_THRESHOLD = 5.0;
+
+    private static final String EXTENSION = ManaFormat.JSON.getExtension();
+    private static final String GZIP_EXTENSION = ".gz";
+
+    public static void main( String[] args ) throws IOException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean diff = false;
+        double threshold = DEFAULT_THRESHOLD;
+        List<File> inputs = new ArrayList<>();
+        for( int i = 0; i < args.length; i++ ) {
+            if( args[i].equals( "--diff" ) )
+                diff = true;
+            else if( args[i].equals( "--threads" ) && i + 1 < args.length )
+                threads = Math.max( 1, Integer.parseInt( args[++i] ) );
+            else if( args[i].equals( "--threshold" ) && i + 1 < args.length )
+                threshold = Double.parseDouble( args[++i] );
+            else
+                inputs.add( new File( args[i] ) );
+        }
+        if( inputs.isEmpty() || (diff && inputs.size() != 2) ) {
+            System.err.println( "Usage: ManaAnalyzer [--threads n] <directory|file.mana>...\n"
+                    + "       ManaAnalyzer --diff [--threshold percent] <baseline> <current>" );
+            System.exit( 1 );
+        }
+        PrintWriter out = new PrintWriter( System.out );
+        if( diff ) {
+            SortedMap<String, Summary> baseline = analyze( files( inputs.subList( 0, 1 ) ), threads );
+            SortedMap<String, Summary> current = analyze( files( inputs.subList( 1, 2 ) ), threads );
+            int regressions = diff( baseline, current, threshold, out );
+            out.flush();
+            if( regressions > 0 ) {
+                System.err.println( regressions + " energy regressions above " + threshold + "%" );
+                System.exit( 2 );
+            }
+        } else {
+            report( analyze( files( inputs ), threads ), out );
+            out.flush();
+        }
+    }
+
+    /**
+     * Single measurement read from a file
+     */
+    static final class Run {
+        final String method;
+        /**
+         * Duration in micro seconds, -1 if the file holds neither a meta section nor a trace
+         */
+        long durationMicros = -1;
+        boolean thrown;
+        final Map<String, Double> energy = new LinkedHashMap<>();
+
+        Run( String method ) {
+            this.method = method;
+        }
+    }
+
+    /**
+     * A sample of the energy section
+     */
+    static final class Sample {
+        /**
+         * Time the sample was taken in milliseconds since epoch, {@link Long#MIN_VALUE} if it has none
+         */
+        long time = Long.MIN_VALUE;
+        final Map<String, Double> values = new LinkedHashMap<>();
+    }
+
+    /**
+     * Runs of a method, durations and energy values are sorted ascending
+     */
+    static final class Summary {
+        final String method;
+        int runs;
+        int thrown;
+        long[] durations = new long[0];
+        final Map<String, double[]> energy = new TreeMap<>();
+
+        Summary( String method ) {
+            this.method = method;
+        }
+
+        double energy( String column, double fraction ) {
+            double[] values = energy.get( column );
+            return values == null ? Double.NaN : percentile( values, fraction );
+        }
+    }
+
+    /**
+     * Reads and aggregates the files in parallel
+     *
+     * @param threads number of files parsed at the same time
+     * @return the summaries by method
+     */
+    static SortedMap<String, Summary> analyze( List<File> files, int threads ) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool( Math.max( 1, threads ), r -> {
+            Thread thread = new Thread( r, "mana-analyzer" );
+            thread.setDaemon( true );
+            return thread;
+        } );
+        try {
+            List<Future<Run>> futures = new ArrayList<>( files.size() );
+            for( File file : files )
+                futures.add( executor.submit( () -> read( file ) ) );
+            Map<String, List<Run>> runs = new TreeMap<>();
+            for( int i = 0; i < futures.size(); i++ ) {
+                Run run;
+                try {
+                    run = futures.get( i ).get();
+                } catch( ExecutionException e ) {
+                    // a file of a run that was cut short must not spoil the report
+                    System.err.println( "Skipping " + files.get( i ) + ": " + e.getCause().getMessage() );
+                    continue;
+                }
+                runs.computeIfAbsent( run.method, m -> new ArrayList<>() ).add( run );
+            }
+            // the runs of every method are sorted on a worker of their own
+            List<Future<Summary>> summaries = new ArrayList<>( runs.size() );
+            runs.forEach( ( method, list ) -> summaries.add( executor.submit( () -> summarize( method, list ) ) ) );
+            SortedMap<String, Summary> result = new TreeMap<>();
+            for( Future<Summary> summary : summaries ) {
+                Summary s = get( summary );
+                result.put( s.method, s );
+            }
+            return result;
+        } catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new IOException( "Interrupted while analyzing MANA files", e );
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static <T> T get( Future<T> future ) throws InterruptedException, IOException {
+        try {
+            return future.get();
+        } catch( ExecutionException e ) {
+            throw new IOException( e.getCause() );
+        }
+    }
+
+    static Summary summarize( String method, List<Run> runs ) {
+        Summary summary = new Summary( method );
+        summary.runs = runs.size();
+        long[] durations = new long[runs.size()];
+        int timed = 0;
+        Map<String, double[]> energy = new TreeMap<>();
+        Map<String, Integer> counts = new TreeMap<>();
+        for( Run run : runs ) {
+            if( run.thrown )
+                summary.thrown++;
+            if( run.durationMicros >= 0 )
+                durations[timed++] = run.durationMicros;
+            run.energy.forEach( ( column, value ) -> {
+                double[] values = energy.computeIfAbsent( column, c -> new double[runs.size()] );
+                int count = counts.merge( column, 1, Integer::sum );
+                values[count - 1] = value;
+            } );
+        }
+        summary.durations = Arrays.copyOf( durations, timed );
+        Arrays.sort( summary.durations );
+        energy.forEach( ( column, values ) -> {
+            double[] sorted = Arrays.copyOf( values, counts.get( column ) );
+            Arrays.sort( sorted );
+            summary.energy.put( column, sorted );
+        } );
+        return summary;
+    }
+
+    /**
+     * Streams a single .mana file
+     */
+    static Run read( File file ) throws IOException {
+        boolean gzip = file.getName().endsWith( GZIP_EXTENSION );
+        try( InputStream in = gzip ? new GZIPInputStream( new FileInputStream( file ), 1 << 16 ) : new FileInputStream( file ) ) {
+            return read( methodOf( file.getName() ), new InputStreamReader( in, StandardCharsets.UTF_8 ) );
+        }
+    }
+
+    /**
+     * Streams the json written by {@link at.mana.instrument.trace.TraceJsonWriter} and the command
+     * factories: trace or profile, energy, exception, energyShare and meta
+     */
+    static Run read( String method, Reader source ) throws IOException {
+        Run run = new Run( method );
+        double share = 1.0;
+        long firstStart = Long.MAX_VALUE;
+        long lastEnd = Long.MIN_VALUE;
+        long metaDuration = -1;
+        long start = -1;
+        long end = -1;
+        List<Sample> samples = new ArrayList<>();
+        JsonReader reader = new JsonReader( source );
+        reader.beginObject();
+        while( reader.hasNext() ) {
+            String name = reader.nextName();
+            switch( name ) {
+                case "trace":
+                    reader.beginArray();
+                    while( reader.hasNext() ) {
+                        reader.beginObject();
+                        while( reader.hasNext() ) {
+                            String field = reader.nextName();
+                            if( field.equals( "start" ) )
+                                firstStart = Math.min( firstStart, longValue( reader ) );
+                            else if( field.equals( "end" ) )
+                                lastEnd = Math.max( lastEnd, longValue( reader ) );
+                            else
+                                reader.skipValue();
+                        }
+                        reader.endObject();
+                    }
+                    reader.endArray();
+                    break;
+                case "energy":
+                    readEnergy( reader, samples );
+                    break;
+                case "exception":
+                    run.thrown = reader.peek() == JsonReader.Token.STRING && "true".equals( reader.nextString() );
+                    break;
+                case "energyShare":
+                    share = Double.parseDouble( reader.nextNumber() );
+                    break;
+                case "meta":
+                    reader.beginObject();
+                    while( reader.hasNext() ) {
+                        switch( reader.nextName() ) {
+                            case "duration":
+                                metaDuration = longValue( reader );
+                                break;
+                            case "start":
+                                start = longValue( reader );
+                                break;
+                            case "end":
+                                end = longValue( reader );
+                                break;
+                            default:
+                                reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        sum( samples, start, end, run.energy );
+        if( share < 1.0 ) {
+            double weight = share;
+            run.energy.replaceAll( ( column, value ) -> value * weight );
+        }
+        // the meta section knows the duration of the measured method, the trace only its traced calls
+        run.durationMicros = metaDuration >= 0 ? metaDuration : lastEnd >= firstStart ? lastEnd - firstStart : -1;
+        return run;
+    }
+
+    /**
+     * Reads the samples of the energy section, energy in any other shape than an array of flat
+     * objects is skipped
+     */
+    private static void readEnergy( JsonReader reader, List<Sample> samples ) throws IOException {
+        if( reader.peek() != JsonReader.Token.BEGIN_ARRAY ) {
+            reader.skipValue();
+            return;
+        }
+        reader.beginArray();
+        while( reader.hasNext() ) {
+            if( reader.peek() != JsonReader.Token.BEGIN_OBJECT ) {
+                reader.skipValue();
+                continue;
+            }
+            Sample sample = new Sample();
+            reader.beginObject();
+            while( reader.hasNext() ) {
+                String name = reader.nextName();
+                String key = name.toLowerCase( Locale.ROOT );
+                if( key.equals( "time" ) || key.equals( "timestamp" ) ) {
+                    JsonReader.Token token = reader.peek();
+                    if( token == JsonReader.Token.NUMBER || token == JsonReader.Token.STRING )
+                        sample.time = EnergyTable.toEpochMillis( longValue( reader ) );
+                    else
+                        reader.skipValue();
+                } else if( reader.peek() == JsonReader.Token.NUMBER ) {
+                    sample.values.put( name, Double.parseDouble( reader.nextNumber() ) );
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            samples.add( sample );
+        }
+        reader.endArray();
+    }
+
+    /**
+     * Sums the energy of the samples per key. Every sample holds the energy consumed since the
+     * previous one, the first sample only bounds the period of the second. If the measured
+     * interval is known only samples whose period overlaps it are summed, which leaves out those
+     * taken during the warmup and cooldown of the sampler.
+     *
+     * @param start start of the measured method in milliseconds since epoch, -1 if unknown
+     * @param end   end of the measured method in milliseconds since epoch, -1 if unknown
+     */
+    private static void sum( List<Sample> samples, long start, long end, Map<String, Double> energy ) {
+        boolean bounded = start >= 0 && end >= start;
+        for( int i = 1; i < samples.size(); i++ ) {
+            Sample from = samples.get( i - 1 );
+            Sample sample = samples.get( i );
+            if( bounded && from.time != Long.MIN_VALUE && sample.time != Long.MIN_VALUE
+                    && (sample.time <= start || from.time >= end) )
+                continue;
+            sample.values.forEach( ( name, value ) -> energy.merge( name, value, Double::sum ) );
+        }
+    }
+
+    private static long longValue( JsonReader reader ) throws IOException {
+        String value = reader.peek() == JsonReader.Token.STRING ? reader.nextString() : reader.nextNumber();
+        return Long.parseLong( value );
+    }
+
+    /**
+     * @param fileName {@code <class>_<method>_<millis>.mana}, the class ends at the first underscore
+     *                 after its package
+     * @return {@code class#method}
+     */
+    static String methodOf( String fileName ) {
+        String name = fileName;
+        if( name.endsWith( GZIP_EXTENSION ) )
+            name = name.substring( 0, name.length() - GZIP_EXTENSION.length() );
+        if( name.endsWith( EXTENSION ) )
+            name = name.substring( 0, name.length() - EXTENSION.length() );
+        int millis = name.lastIndexOf( '_' );
+        if( millis > 0 && name.substring( millis + 1 ).chars().allMatch( Character::isDigit ) )
+            name = name.substring( 0, millis );
+        int method = name.indexOf( '_', name.lastIndexOf( '.' ) + 1 );
+        return method < 0 ? name : name.substring( 0, method ) + "#" + name.substring( method + 1 );
+    }
+
+    /**
+     * @return the .mana files given and those found in the given directories
+     */
+    static List<File> files( List<File> inputs ) {
+        List<File> files = new ArrayList<>();
+        for( File input : inputs ) {
+            if( input.isDirectory() ) {
+                File[] children = input.listFiles();
+                if( children != null ) {
+                    Arrays.sort( children );
+                    files.addAll( files( Arrays.asList( children ) ) );
+                }
+            } else if( input.getName().endsWith( EXTENSION ) || input.getName().endsWith( EXTENSION + GZIP_EXTENSION ) ) {
+                files.add( input );
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Writes one CSV line per method with the percentiles of duration and of every energy column
+     */
+    static void report( SortedMap<String, Summary> summaries, Writer out ) throws IOException {
+        TreeSet<String> columns = new TreeSet<>();
+        summaries.values().forEach( s -> columns.addAll( s.energy.keySet() ) );
+        StringBuilder line = new StringBuilder( "method,runs,exceptions" );
+        for( double p : PERCENTILES )
+            line.append( ",duration_p" ).append( label( p ) );
+        for( String column : columns )
+            for( double p : PERCENTILES )
+                line.append( ',' ).append( column ).append( "_p" ).append( label( p ) );
+        out.write( line.append( '\n' ).toString() );
+        for( Summary summary : summaries.values() ) {
+            line.setLength( 0 );
+            line.append( csv( summary.method ) ).append( ',' ).append( summary.runs ).append( ',' ).append( summary.thrown );
+            for( double p : PERCENTILES )
+                line.append( ',' ).append( summary.durations.length == 0 ? ""
+                        : format( percentile( summary.durations, p ) / 1_000.0 ) );
+            for( String column : columns )
+                for( double p : PERCENTILES )
+                    line.append( ',' ).append( format( summary.energy( column, p ) ) );
+            out.write( line.append( '\n' ).toString() );
+        }
+    }
+
+    /**
+     * Compares the median energy of the methods both sets measured and writes one CSV line per
+     * method and energy column
+     *
+     * @param threshold relative growth in percent above which a change counts as regression
+     * @return the number of regressions
+     */
+    static int diff( SortedMap<String, Summary> baseline, SortedMap<String, Summary> current, double threshold,
+                     Writer out ) throws IOException {
+        int regressions = 0;
+        out.write( "method,column,baseline_p50,current_p50,change_percent,regression\n" );
+        for( Summary before : baseline.values() ) {
+            Summary after = current.get( before.method );
+            if( after == null )
+                continue;
+            for( String column : before.energy.keySet() ) {
+                double from = before.energy( column, 0.5 );
+                double to = after.energy( column, 0.5 );
+                if( Double.isNaN( to ) )
+                    continue;
+                double change = from == 0.0 ? (to == 0.0 ? 0.0 : Double.POSITIVE_INFINITY) : (to - from) / from * 100.0;
+                boolean regression = change > threshold;
+                if( regression )
+                    regressions++;
+                out.write( csv( before.method ) + "," + csv( column ) + "," + format( from ) + "," + format( to )
+                        + "," + format( change ) + "," + regression + "\n" );
+            }
+        }
+        for( String method : current.keySet() ) {
+            if( !baseline.containsKey( method ) )
+                System.err.println( "No baseline for " + method );
+        }
+        return regressions;
+    }
+
+    /**
+     * @return the value at the given fraction of the sorted values, nearest rank
+     */
+    static double percentile( double[] sorted, double fraction ) {
+        if( sorted.length == 0 )
+            return Double.NaN;
+        int rank = (int) Math.ceil( fraction * sorted.length );
+        return sorted[Math.max( 0, Math.min( sorted.length, rank ) - 1 )];
+    }
+
+    static long percentile( long[] sorted, double fraction ) {
+        int rank = (int) Math.ceil( fraction * sorted.length );
+        return sorted[Math.max( 0, Math.min( sorted.length, rank ) - 1 )];
+    }
+
+    private static String label( double fraction ) {
+        return Long.toString( Math.round( fraction * 100 ) );
+    }
+
+    private static String format( double value ) {
+        return Double.isNaN( value ) ? "" : String.format( Locale.ROOT, "%.3f", value );
+    }
+
+    private static String csv( String value ) {
+        return value.indexOf( ',' ) < 0 && value.indexOf( '"' ) < 0 ? value : '"' + value.replace( "\"", "\"\"" ) + '"';
+    }
+
+}
@@ -0,0 +1,181 @@
+package at.mana.instrument.format;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads files written by {@link ManaBinaryWriter} and renders them as the JSON document the
+ * {@code json} format produces. Trace entries are streamed, only the tables and the energy section
+ * are held in memory.
+ */
+public class ManaBinaryReader {
+
+    private final InputStream in;
+
+    public ManaBinaryReader( InputStream in ) {
+        this.in = new BufferedInputStream( in, 8192 );
+    }
+
+    /**
+     * Converts the whole file, the target is flushed but not closed
+     */
+    public void toJson( Writer target ) throws IOException {
+        byte[] magic = new byte[ManaBinaryWriter.MAGIC.length];
+        readFully( magic );
+        if( !Arrays.equals( magic, ManaBinaryWriter.MAGIC ) )
+            throw new IOException( "Not a binary MANA file" );
+        int version = readByte();
+        if( version < 1 || version > ManaBinaryWriter.VERSION )
+            throw new IOException( "Unsupported binary MANA file version " + version );
+        // version 1 files carry neither flags nor exception markers
+        int flags = version > 1 ? readByte() : 0;
+        double share = (flags & ManaBinaryWriter.FLAG_SHARE) != 0 ? readDouble() : 1.0;
+
+        String[] strings = new String[readInt()];
+        for( int i = 0; i < strings.length; i++ ) {
+            byte[] bytes = new byte[readInt()];
+            readFully( bytes );
+            strings[i] = new String( bytes, StandardCharsets.UTF_8 );
+        }
+        String[] methods = new String[readInt()];
+        for( int i = 0; i < methods.length; i++ ) {
+            String className = strings[readInt()];
+            String methodName = strings[readInt()];
+            String methodDesc = strings[readInt()];
+            long hash = readZigzag();
+            methods[i] = TraceJson.prefix( className, methodName, methodDesc, hash );
+        }
+        String[] threads = new String[readInt()];
+        for( int i = 0; i < threads.length; i++ ) {
+            threads[i] = TraceJson.escape( strings[readInt()] );
+        }
+
+        StringBuilder entry = new StringBuilder( 256 );
+        target.write( "{\"trace\":[" );
+        int count = readInt();
+        long start = 0;
+        for( int i = 0; i < count; i++ ) {
+            int method = readInt();
+            boolean thrown = false;
+            if( version > 1 ) {
+                thrown = (method & 1) != 0;
+                method >>>= 1;
+            }
+            String thread = threads[readInt()];
+            start += readZigzag();
+            long end = start + readZigzag();
+            entry.setLength( 0 );
+            if( i > 0 )
+                entry.append( ',' );
+            TraceJson.entry( entry, methods[method], start, end, thread, thrown );
+            target.append( entry );
+        }
+        target.write( ']' );
+
+        int energy = readByte();
+        if( energy == ManaBinaryWriter.ENERGY_COLUMNS ) {
+            target.write( ", \"energy\":" );
+            readEnergy( strings ).writeJson( target );
+        } else if( energy == ManaBinaryWriter.ENERGY_JSON ) {
+            target.write( ", \"energy\":" );
+            byte[] bytes = new byte[readInt()];
+            readFully( bytes );
+            target.write( new String( bytes, StandardCharsets.UTF_8 ) );
+        }
+        if( (flags & ManaBinaryWriter.FLAG_THROWN) != 0 )
+            target.write( ", \"exception\":\"true\"" );
+        if( (flags & ManaBinaryWriter.FLAG_SHARE) != 0 )
+            target.write( ", \"energyShare\":" + share );
+        if( (flags & ManaBinaryWriter.FLAG_META) != 0 ) {
+            byte[] bytes = new byte[readInt()];
+            readFully( bytes );
+            target.write( ", \"meta\":" );
+            target.write( new String( bytes, StandardCharsets.UTF_8 ) );
+        }
+        target.write( '}' );
+        target.flush();
+    }
+
+    private double readDouble() throws IOException {
+        long bits = 0;
+        for( int i = 0; i < 8; i++ )
+            bits = (bits << 8) | readByte();
+        return Double.longBitsToDouble( bits );
+    }
+
+    private EnergyTable readEnergy( String[] strings ) throws IOException {
+        int rows = readInt();
+        int count = readInt();
+        List<EnergyTable.Column> columns = new ArrayList<>( count );
+        for( int c = 0; c < count; c++ ) {
+            String name = strings[readInt()];
+            EnergyTable.Type type = EnergyTable.Type.values()[readByte()];
+            EnergyTable.Column column = EnergyTable.column( name, type, rows );
+            long previous = 0;
+            for( int row = 0; row < rows; row++ ) {
+                switch( type ) {
+                    case LONG:
+                    case QUOTED_LONG:
+                        previous += readZigzag();
+                        column.setLong( row, previous );
+                        break;
+                    case DOUBLE:
+                        column.setDouble( row, readDouble() );
+                        break;
+                    default:
+                        column.setString( row, strings[readInt()] );
+                }
+            }
+            columns.add( column );
+        }
+        return new EnergyTable( columns, rows );
+    }
+
+    private int readInt() throws IOException {
+        long value = readVarint();
+        if( value < 0 || value > Integer.MAX_VALUE )
+            throw new IOException( "Corrupt binary MANA file, invalid length " + value );
+        return (int) value;
+    }
+
+    private long readZigzag() throws IOException {
+        long value = readVarint();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private long readVarint() throws IOException {
+        long value = 0;
+        for( int shift = 0; shift < 64; shift += 7 ) {
+            int b = readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if( (b & 0x80) == 0 )
+                return value;
+        }
+        throw new IOException( "Corrupt binary MANA file, varint too long" );
+    }
+
+    private int readByte() throws IOException {
+        int b = in.read();
+        if( b < 0 )
+            throw new EOFException( "Unexpected end of binary MANA file" );
+        return b;
+    }
+
+    private void readFully( byte[] bytes ) throws IOException {
+        int offset = 0;
+        while( offset < bytes.length ) {
+            int count = in.read( bytes, offset, bytes.length - offset );
+            if( count < 0 )
+                throw new EOFException( "Unexpected end of binary MANA file" );
+            offset += count;
+        }
+    }
+
+}
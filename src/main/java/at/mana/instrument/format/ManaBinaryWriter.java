@@ -0,0 +1,240 @@
+package at.mana.instrument.format;
+
+import at.mana.instrument.trace.MethodTable;
+import at.mana.instrument.trace.TraceSnapshot;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes a measurement in the binary .manab layout. Names are stored once in a string table and
+ * referenced by index, timestamps are delta encoded varints and energy samples are stored column
+ * by column, which typically shrinks a file by an order of magnitude compared to JSON.
+ * <pre>
+ * file    := "MANA" version:u8 flags:u8 [share:f64] strings methods threads trace energy [meta]
+ * strings := count:var (length:var utf8)*
+ * methods := count:var (class:var name:var descriptor:var hash:zz)*
+ * threads := count:var (name:var)*
+ * trace   := count:var (method:var thread:var startDelta:zz duration:zz)*   method is index &lt;&lt; 1 | thrown
+ * energy  := 0 | 1 rows:var count:var (name:var type:u8 values)* | 2 json:utf8
+ * meta    := length:var json:utf8
+ * </pre>
+ * Bit 0 of the flags is set if the measured method terminated with an exception, bit 1 if the
+ * measurement overlapped others and only the given share of its energy belongs to it, bit 2 if
+ * the file ends with the meta section describing the overhead of the measurement.
+ * {@code var} is an unsigned LEB128 varint, {@code zz} a zigzag encoded varint. Times are micro
+ * seconds since epoch, start deltas refer to the previous entry. Integral energy columns are delta
+ * encoded as well, fractional columns are stored as IEEE 754 doubles and text columns reference the
+ * string table.
+ */
+public class ManaBinaryWriter {
+
+    static final byte[] MAGIC = { 'M', 'A', 'N', 'A' };
+    static final int VERSION = 2;
+    static final int FLAG_THROWN = 1;
+    static final int FLAG_SHARE = 2;
+    static final int FLAG_META = 4;
+
+    static final int ENERGY_NONE = 0;
+    static final int ENERGY_COLUMNS = 1;
+    static final int ENERGY_JSON = 2;
+
+    private OutputStream out;
+    private final Map<String, Integer> strings = new HashMap<>();
+    private final List<String> stringTable = new ArrayList<>();
+
+    /**
+     * Writes the trace and energy section of a measurement, the target is flushed but not closed
+     *
+     * @param snapshot calls recorded during the measurement
+     * @param energy   energy section as written by exec-rapl or null if none was recorded
+     * @param thrown   true if the measured method terminated with an exception
+     */
+    public void write( TraceSnapshot snapshot, String energy, boolean thrown, OutputStream target ) throws IOException {
+        write( snapshot, energy, thrown, 1.0, target );
+    }
+
+    /**
+     * Writes the trace and energy section of a measurement, the target is flushed but not closed
+     *
+     * @param snapshot calls recorded during the measurement
+     * @param energy   energy section as written by exec-rapl or null if none was recorded
+     * @param thrown   true if the measured method terminated with an exception
+     * @param share    part of the energy that belongs to the measurement, 1 unless it overlapped others
+     */
+    public void write( TraceSnapshot snapshot, String energy, boolean thrown, double share, OutputStream target ) throws IOException {
+        write( snapshot, energy, thrown, share, null, target );
+    }
+
+    /**
+     * Writes the trace and energy section of a measurement, the target is flushed but not closed
+     *
+     * @param snapshot calls recorded during the measurement
+     * @param energy   energy section as written by exec-rapl or null if none was recorded
+     * @param thrown   true if the measured method terminated with an exception
+     * @param share    part of the energy that belongs to the measurement, 1 unless it overlapped others
+     * @param meta     meta section as json object or null
+     */
+    public synchronized void write( TraceSnapshot snapshot, String energy, boolean thrown, double share, String meta,
+                                    OutputStream target ) throws IOException {
+        this.out = new BufferedOutputStream( target, 8192 );
+        strings.clear();
+        stringTable.clear();
+        try {
+            EnergyTable table = energy == null ? null : parse( energy );
+
+            // resolve all references up front, the string table precedes everything else
+            Map<Integer, Integer> methodIndex = new HashMap<>();
+            List<int[]> methods = new ArrayList<>();
+            Map<String, Integer> threadIndex = new HashMap<>();
+            int[] entryMethods = new int[snapshot.size()];
+            int[] entryThreads = new int[snapshot.size()];
+            for( int i = 0; i < snapshot.size(); i++ ) {
+                entryMethods[i] = methodIndex.computeIfAbsent( snapshot.getId( i ), id -> {
+                    MethodTable.Method m = id < 0 ? null : MethodTable.get( id );
+                    methods.add( new int[]{
+                            string( m == null ? "" : m.getClassName() ),
+                            string( m == null ? "" : m.getMethodName() ),
+                            string( m == null ? "" : m.getMethodDesc() ),
+                            m == null ? 0 : m.getHash() } );
+                    return methods.size() - 1;
+                } );
+                entryThreads[i] = threadIndex.computeIfAbsent( snapshot.getThreadName( i ), name -> threadIndex.size() );
+            }
+            int[] threads = new int[threadIndex.size()];
+            threadIndex.forEach( ( name, index ) -> threads[index] = string( name ) );
+            if( table != null ) {
+                for( EnergyTable.Column column : table.getColumns() ) {
+                    string( column.getName() );
+                    if( column.getType() == EnergyTable.Type.STRING )
+                        for( int row = 0; row < table.getRows(); row++ )
+                            string( column.getString( row ) );
+                }
+            }
+
+            out.write( MAGIC );
+            out.write( VERSION );
+            out.write( (thrown ? FLAG_THROWN : 0) | (share < 1.0 ? FLAG_SHARE : 0) | (meta != null ? FLAG_META : 0) );
+            if( share < 1.0 )
+                writeDouble( share );
+            writeVarint( stringTable.size() );
+            for( String value : stringTable ) {
+                byte[] bytes = value.getBytes( StandardCharsets.UTF_8 );
+                writeVarint( bytes.length );
+                out.write( bytes );
+            }
+            writeVarint( methods.size() );
+            for( int[] m : methods ) {
+                writeVarint( m[0] );
+                writeVarint( m[1] );
+                writeVarint( m[2] );
+                writeZigzag( m[3] );
+            }
+            writeVarint( threads.length );
+            for( int name : threads ) {
+                writeVarint( name );
+            }
+
+            writeVarint( snapshot.size() );
+            long previous = 0;
+            for( int i = 0; i < snapshot.size(); i++ ) {
+                long start = snapshot.toEpochMicros( snapshot.getStart( i ) );
+                long end = snapshot.toEpochMicros( snapshot.getEnd( i ) );
+                writeVarint( ((long) entryMethods[i] << 1) | (snapshot.isThrown( i ) ? 1 : 0) );
+                writeVarint( entryThreads[i] );
+                writeZigzag( start - previous );
+                writeZigzag( end - start );
+                previous = start;
+            }
+
+            if( energy == null ) {
+                out.write( ENERGY_NONE );
+            } else if( table == null ) {
+                out.write( ENERGY_JSON );
+                byte[] bytes = energy.getBytes( StandardCharsets.UTF_8 );
+                writeVarint( bytes.length );
+                out.write( bytes );
+            } else {
+                out.write( ENERGY_COLUMNS );
+                writeEnergy( table );
+            }
+            if( meta != null ) {
+                byte[] bytes = meta.getBytes( StandardCharsets.UTF_8 );
+                writeVarint( bytes.length );
+                out.write( bytes );
+            }
+            out.flush();
+        } finally {
+            this.out = null;
+        }
+    }
+
+    private void writeEnergy( EnergyTable table ) throws IOException {
+        writeVarint( table.getRows() );
+        writeVarint( table.getColumns().size() );
+        for( EnergyTable.Column column : table.getColumns() ) {
+            writeVarint( string( column.getName() ) );
+            out.write( column.getType().ordinal() );
+            long previous = 0;
+            for( int row = 0; row < table.getRows(); row++ ) {
+                switch( column.getType() ) {
+                    case LONG:
+                    case QUOTED_LONG:
+                        long value = column.getLong( row );
+                        writeZigzag( value - previous );
+                        previous = value;
+                        break;
+                    case DOUBLE:
+                        writeDouble( column.getDouble( row ) );
+                        break;
+                    default:
+                        writeVarint( string( column.getString( row ) ) );
+                }
+            }
+        }
+    }
+
+    private static EnergyTable parse( String energy ) {
+        try {
+            return EnergyTable.parse( energy );
+        } catch( IOException | NumberFormatException e ) {
+            // not what exec-rapl usually writes, the section is kept as is
+            return null;
+        }
+    }
+
+    private int string( String value ) {
+        Integer index = strings.get( value );
+        if( index == null ) {
+            index = stringTable.size();
+            strings.put( value, index );
+            stringTable.add( value );
+        }
+        return index;
+    }
+
+    private void writeDouble( double value ) throws IOException {
+        long bits = Double.doubleToLongBits( value );
+        for( int shift = 56; shift >= 0; shift -= 8 )
+            out.write( (int) (bits >>> shift) );
+    }
+
+    private void writeZigzag( long value ) throws IOException {
+        writeVarint( (value << 1) ^ (value >> 63) );
+    }
+
+    private void writeVarint( long value ) throws IOException {
+        while( (value & ~0x7FL) != 0 ) {
+            out.write( (int) ((value & 0x7F) | 0x80) );
+            value >>>= 7;
+        }
+        out.write( (int) value );
+    }
+
+}
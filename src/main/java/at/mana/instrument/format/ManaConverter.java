@@ -0,0 +1,89 @@
+package at.mana.instrument.format;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Converts binary .manab and spill .manas files into the JSON .mana files the existing tooling reads.
+ * <pre>
+ * java -cp instrument-maven-plugin.jar at.mana.instrument.format.ManaConverter &lt;file.manab&gt;...
+ * </pre>
+ * Every file is converted next to its source, directories are searched for .manab and .manas files.
+ * Binary files compressed by {@code -Dmana.writer.compression=gzip} are read as well.
+ */
+public class ManaConverter {
+
+    private static final String GZIP_EXTENSION = ".gz";
+
+    public static void main( String[] args ) throws IOException {
+        if( args.length == 0 ) {
+            System.err.println( "Usage: ManaConverter <file.manab|file.manas|directory>..." );
+            System.exit( 1 );
+        }
+        for( String arg : args ) {
+            convertAll( new File( arg ) );
+        }
+    }
+
+    private static void convertAll( File file ) throws IOException {
+        if( file.isDirectory() ) {
+            File[] files = file.listFiles();
+            if( files != null )
+                for( File child : files )
+                    if( child.isDirectory() || formatOf( child ) != ManaFormat.JSON )
+                        convertAll( child );
+            return;
+        }
+        File target = convert( file );
+        System.out.println( file + " -> " + target );
+    }
+
+    /**
+     * Converts a single binary or spill file
+     *
+     * @return the JSON file written next to the source
+     */
+    public static File convert( File source ) throws IOException {
+        ManaFormat format = formatOf( source );
+        if( format == ManaFormat.JSON )
+            throw new IOException( source + " is neither a binary nor a spill MANA file" );
+        String name = source.getName();
+        boolean gzip = name.endsWith( GZIP_EXTENSION );
+        if( gzip )
+            name = name.substring( 0, name.length() - GZIP_EXTENSION.length() );
+        // spill files are memory mapped while they are written and never compressed
+        if( gzip && format == ManaFormat.SPILL )
+            throw new IOException( "Compressed MANA spill files are not supported, decompress " + source + " first" );
+        name = name.substring( 0, name.length() - format.getExtension().length() );
+        File target = new File( source.getAbsoluteFile().getParentFile(), name + ManaFormat.JSON.getExtension() );
+        try( Writer out = new OutputStreamWriter( new FileOutputStream( target ), StandardCharsets.UTF_8 ) ) {
+            if( format == ManaFormat.SPILL ) {
+                new ManaSpillReader( source ).toJson( out );
+            } else {
+                try( InputStream in = gzip ? new GZIPInputStream( new FileInputStream( source ), 1 << 16 ) : new FileInputStream( source ) ) {
+                    new ManaBinaryReader( in ).toJson( out );
+                }
+            }
+        }
+        return target;
+    }
+
+    private static ManaFormat formatOf( File file ) {
+        String name = file.getName();
+        if( name.endsWith( GZIP_EXTENSION ) )
+            name = name.substring( 0, name.length() - GZIP_EXTENSION.length() );
+        for( ManaFormat format : ManaFormat.values() ) {
+            if( format != ManaFormat.JSON && name.endsWith( format.getExtension() ) )
+                return format;
+        }
+        return ManaFormat.JSON;
+    }
+
+}
@@ -0,0 +1,50 @@
+package at.mana.instrument.format;
+
+import java.util.Locale;
+
+/**
+ * File formats the measurement of a test method can be stored in
+ */
+public enum ManaFormat {
+
+    /**
+     * Plain JSON as consumed by the existing MANA tooling
+     */
+    JSON( ".mana" ),
+
+    /**
+     * Compact binary layout written by {@link ManaBinaryWriter}, see {@link ManaConverter} for
+     * turning it back into JSON
+     */
+    BINARY( ".manab" ),
+
+    /**
+     * Trace events are appended to a memory mapped {@link ManaSpillFile} while the test runs,
+     * meant for long running tests whose trace would not fit on the heap
+     */
+    SPILL( ".manas" );
+
+    private final String extension;
+
+    ManaFormat( String extension ) {
+        this.extension = extension;
+    }
+
+    public String getExtension() {
+        return extension;
+    }
+
+    /**
+     * @param name case insensitive name of the format, null selects {@link #JSON}
+     */
+    public static ManaFormat of( String name ) {
+        if( name == null || name.isEmpty() )
+            return JSON;
+        try {
+            return valueOf( name.trim().toUpperCase( Locale.ROOT ) );
+        } catch( IllegalArgumentException e ) {
+            throw new IllegalArgumentException( "Unknown MANA file format '" + name + "', expected json, binary or spill" );
+        }
+    }
+
+}
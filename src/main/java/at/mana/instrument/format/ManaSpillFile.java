@@ -0,0 +1,265 @@
+package at.mana.instrument.format;
+
+import at.mana.instrument.trace.MethodTable;
+import at.mana.instrument.trace.TraceSink;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Trace sink appending every event to a memory mapped file while the measurement runs, so the
+ * heap stays flat no matter how long a test is traced. Records have a fixed layout of
+ * {@value #RECORD_SIZE} bytes, the {@link System#nanoTime()} of the event, the method id tagged as
+ * enter, exit or exit by exception and the index of the thread plus one. Every thread reserves a
+ * chunk of records at a time with a single atomic add and writes into it without any further
+ * coordination; records never written remain zero and are skipped by readers.
+ * <pre>
+ * header  := "MANASPIL" version:i32 recordSize:i32 anchorNanos:i64 anchorMicros:i64 end:i64 stopNanos:i64 flags:i32 share:f64
+ * records := (nanos:i64 event:i32 thread:i32)*  up to end, event is id &lt;&lt; 2 | thrown &lt;&lt; 1 | exit
+ * trailer := threads:i32 (name:utf)* methods:i32 (class:utf name:utf descriptor:utf hash:i32)* energy:i32 utf8 [meta:i32 utf8]
+ * </pre>
+ * Bit 0 of the flags is set if the measured method terminated with an exception, bit 1 if the
+ * measurement overlapped others and only share of its energy belongs to it, bit 2 if the trailer
+ * ends with the meta section. All numbers are
+ * little endian, {@code utf} is the modified UTF-8 of {@link DataOutputStream}. The header is
+ * completed and the trailer appended by {@link #close(String, boolean)}, a file whose end is still
+ * zero belongs to a measurement that never stopped.
+ */
+public class ManaSpillFile implements TraceSink {
+
+    static final byte[] MAGIC = "MANASPIL".getBytes( StandardCharsets.US_ASCII );
+    static final int VERSION = 2;
+    static final int HEADER_SIZE = 64;
+    static final int RECORD_SIZE = 16;
+    static final int EXIT = 1;
+    static final int THROWN = 2;
+    static final int ID_SHIFT = 2;
+    static final int FLAG_THROWN = 1;
+    static final int FLAG_SHARE = 2;
+    static final int FLAG_META = 4;
+
+    private static final int CHUNK_SIZE = RECORD_SIZE * 4096;
+    private static final int SEGMENT_SIZE = CHUNK_SIZE * 1024;
+
+    private final File file;
+    private final FileChannel channel;
+    private final AtomicLong reserved = new AtomicLong( HEADER_SIZE );
+    private final AtomicLong dropped = new AtomicLong();
+    private final List<String> threads = new ArrayList<>();
+    private final ThreadLocal<Chunk> local = ThreadLocal.withInitial( this::register );
+    private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+
+    private final long anchorNanos;
+    private final long anchorMicros;
+
+    public ManaSpillFile( File file ) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open( file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE );
+        this.anchorNanos = System.nanoTime();
+        this.anchorMicros = ChronoUnit.MICROS.between( Instant.EPOCH, Instant.now() );
+        writeHeader( 0, 0, 0, 1.0 );
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return number of events that could not be written, either because the file was closed
+     * already or mapping further space failed
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    @Override
+    public void enter( int id, long nanos ) {
+        record( id << ID_SHIFT, nanos );
+    }
+
+    @Override
+    public void exit( int id, long nanos ) {
+        record( (id << ID_SHIFT) | EXIT, nanos );
+    }
+
+    @Override
+    public void exitExceptionally( int id, long nanos ) {
+        record( (id << ID_SHIFT) | EXIT | THROWN, nanos );
+    }
+
+    private void record( int event, long nanos ) {
+        Chunk chunk = local.get();
+        if( chunk.position == chunk.limit && !reserve( chunk ) ) {
+            dropped.incrementAndGet();
+            return;
+        }
+        ByteBuffer buffer = chunk.buffer;
+        int position = chunk.position;
+        buffer.putLong( position, nanos );
+        buffer.putInt( position + 8, event );
+        buffer.putInt( position + 12, chunk.thread );
+        chunk.position = position + RECORD_SIZE;
+    }
+
+    private synchronized Chunk register() {
+        threads.add( Thread.currentThread().getName() );
+        return new Chunk( threads.size() );
+    }
+
+    /**
+     * Moves the chunk of the current thread to a freshly reserved region of the file
+     */
+    private boolean reserve( Chunk chunk ) {
+        long offset;
+        do {
+            offset = reserved.get();
+            if( offset < 0 )
+                return false;
+        } while( !reserved.compareAndSet( offset, offset + CHUNK_SIZE ) );
+        int index = (int) ((offset - HEADER_SIZE) / SEGMENT_SIZE);
+        MappedByteBuffer[] mapped = segments;
+        MappedByteBuffer segment = index < mapped.length ? mapped[index] : null;
+        if( segment == null && (segment = map( index )) == null )
+            return false;
+        chunk.buffer = segment;
+        chunk.position = (int) ((offset - HEADER_SIZE) % SEGMENT_SIZE);
+        chunk.limit = chunk.position + CHUNK_SIZE;
+        return true;
+    }
+
+    private synchronized MappedByteBuffer map( int index ) {
+        if( index < segments.length && segments[index] != null )
+            return segments[index];
+        if( !channel.isOpen() )
+            return null;
+        try {
+            MappedByteBuffer segment = channel.map( FileChannel.MapMode.READ_WRITE,
+                    HEADER_SIZE + (long) index * SEGMENT_SIZE, SEGMENT_SIZE );
+            segment.order( ByteOrder.LITTLE_ENDIAN );
+            MappedByteBuffer[] mapped = Arrays.copyOf( segments, Math.max( segments.length, index + 1 ) );
+            mapped[index] = segment;
+            segments = mapped;
+            return segment;
+        } catch( IOException e ) {
+            System.err.println( "Unable to extend MANA spill file " + file + ": " + e.getMessage() );
+            return null;
+        }
+    }
+
+    /**
+     * Stops recording, completes the header and appends thread names, the method table and the
+     * energy section. Events reported afterwards are dropped.
+     *
+     * @param energy energy section as written by exec-rapl or null if none was recorded
+     * @param thrown true if the measured method terminated with an exception
+     */
+    public void close( String energy, boolean thrown ) throws IOException {
+        close( energy, thrown, 1.0 );
+    }
+
+    /**
+     * Stops recording, see {@link #close(String, boolean)}
+     *
+     * @param share part of the energy that belongs to the measurement, 1 unless it overlapped others
+     */
+    public void close( String energy, boolean thrown, double share ) throws IOException {
+        close( energy, thrown, share, null );
+    }
+
+    /**
+     * Stops recording, see {@link #close(String, boolean)}
+     *
+     * @param share part of the energy that belongs to the measurement, 1 unless it overlapped others
+     * @param meta  meta section as json object or null
+     */
+    public synchronized void close( String energy, boolean thrown, double share, String meta ) throws IOException {
+        long stopNanos = System.nanoTime();
+        long end = reserved.getAndSet( -1 );
+        if( end < 0 )
+            return;
+        try {
+            for( MappedByteBuffer segment : segments ) {
+                if( segment != null )
+                    segment.force();
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream trailer = new DataOutputStream( bytes );
+            trailer.writeInt( threads.size() );
+            for( String thread : threads ) {
+                trailer.writeUTF( thread );
+            }
+            MethodTable.Method[] methods = MethodTable.snapshot();
+            trailer.writeInt( methods.length );
+            for( MethodTable.Method m : methods ) {
+                trailer.writeUTF( m == null ? "" : m.getClassName() );
+                trailer.writeUTF( m == null ? "" : m.getMethodName() );
+                trailer.writeUTF( m == null ? "" : m.getMethodDesc() );
+                trailer.writeInt( m == null ? 0 : m.getHash() );
+            }
+            byte[] json = energy == null ? null : energy.getBytes( StandardCharsets.UTF_8 );
+            trailer.writeInt( json == null ? -1 : json.length );
+            if( json != null )
+                trailer.write( json );
+            if( meta != null ) {
+                byte[] metaJson = meta.getBytes( StandardCharsets.UTF_8 );
+                trailer.writeInt( metaJson.length );
+                trailer.write( metaJson );
+            }
+            trailer.flush();
+
+            write( ByteBuffer.wrap( bytes.toByteArray() ), end );
+            // chunks reserved so far all lie before the end, space mapped beyond is released
+            channel.truncate( end + bytes.size() );
+            writeHeader( end, stopNanos, (thrown ? FLAG_THROWN : 0) | (share < 1.0 ? FLAG_SHARE : 0)
+                    | (meta != null ? FLAG_META : 0), share );
+            channel.force( true );
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void writeHeader( long end, long stopNanos, int flags, double share ) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE ).order( ByteOrder.LITTLE_ENDIAN );
+        header.put( MAGIC ).putInt( VERSION ).putInt( RECORD_SIZE )
+                .putLong( anchorNanos ).putLong( anchorMicros ).putLong( end ).putLong( stopNanos )
+                .putInt( flags ).putDouble( share );
+        header.clear();
+        write( header, 0 );
+    }
+
+    private void write( ByteBuffer buffer, long position ) throws IOException {
+        while( buffer.hasRemaining() ) {
+            position += channel.write( buffer, position );
+        }
+    }
+
+    /**
+     * Region of the file currently owned by a thread
+     */
+    private static final class Chunk {
+        final int thread;
+        ByteBuffer buffer;
+        int position;
+        int limit;
+
+        Chunk( int thread ) {
+            this.thread = thread;
+        }
+    }
+
+}
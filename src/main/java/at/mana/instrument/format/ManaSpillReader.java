@@ -0,0 +1,198 @@
+package at.mana.instrument.format;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Reads spill files written by {@link ManaSpillFile} and renders them as the JSON document the
+ * {@code json} format produces. Records are streamed from disk, the calls are paired per thread
+ * and merged by their start time just like the in-memory recorder does.
+ */
+public class ManaSpillReader {
+
+    private final File file;
+
+    public ManaSpillReader( File file ) {
+        this.file = file;
+    }
+
+    /**
+     * Converts the whole file, the target is flushed but not closed
+     */
+    public void toJson( Writer target ) throws IOException {
+        try( FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.READ ) ) {
+            ByteBuffer header = ByteBuffer.allocate( ManaSpillFile.HEADER_SIZE ).order( ByteOrder.LITTLE_ENDIAN );
+            read( channel, header, 0 );
+            byte[] magic = new byte[ManaSpillFile.MAGIC.length];
+            header.get( magic );
+            if( !Arrays.equals( magic, ManaSpillFile.MAGIC ) )
+                throw new IOException( "Not a MANA spill file" );
+            int version = header.getInt();
+            if( version < 1 || version > ManaSpillFile.VERSION || header.getInt() != ManaSpillFile.RECORD_SIZE )
+                throw new IOException( "Unsupported MANA spill file version " + version );
+            long anchorNanos = header.getLong();
+            long anchorMicros = header.getLong();
+            long end = header.getLong();
+            long stopNanos = header.getLong();
+            // version 1 files tag ids with the exit bit only and carry no flags
+            int flags = version > 1 ? header.getInt() : 0;
+            double share = (flags & ManaSpillFile.FLAG_SHARE) != 0 ? header.getDouble() : 1.0;
+            int idShift = version > 1 ? ManaSpillFile.ID_SHIFT : 1;
+            if( end == 0 )
+                throw new IOException( "MANA spill file " + file + " is incomplete, the measurement never stopped" );
+
+            // trailer
+            ByteBuffer trailerBytes = ByteBuffer.allocate( (int) (channel.size() - end) );
+            read( channel, trailerBytes, end );
+            DataInputStream trailer = new DataInputStream( new ByteArrayInputStream( trailerBytes.array() ) );
+            String[] threads = new String[trailer.readInt()];
+            for( int i = 0; i < threads.length; i++ ) {
+                threads[i] = TraceJson.escape( trailer.readUTF() );
+            }
+            String[] methods = new String[trailer.readInt()];
+            for( int i = 0; i < methods.length; i++ ) {
+                String className = trailer.readUTF();
+                String methodName = trailer.readUTF();
+                String methodDesc = trailer.readUTF();
+                methods[i] = TraceJson.prefix( className, methodName, methodDesc, trailer.readInt() );
+            }
+            String unknown = TraceJson.prefix( "", "", "", 0 );
+            int energyLength = trailer.readInt();
+            String energy = null;
+            if( energyLength >= 0 ) {
+                byte[] json = new byte[energyLength];
+                trailer.readFully( json );
+                energy = new String( json, StandardCharsets.UTF_8 );
+            }
+            String meta = null;
+            if( (flags & ManaSpillFile.FLAG_META) != 0 ) {
+                byte[] json = new byte[trailer.readInt()];
+                trailer.readFully( json );
+                meta = new String( json, StandardCharsets.UTF_8 );
+            }
+
+            Calls calls = Calls.read( channel, end, threads.length, stopNanos, idShift );
+
+            StringBuilder entry = new StringBuilder( 256 );
+            target.write( "{\"trace\":[" );
+            int[] cursors = new int[threads.length];
+            for( int i = 0; i < calls.size; i++ ) {
+                int next = -1;
+                for( int t = 0; t < threads.length; t++ ) {
+                    if( cursors[t] < calls.perThreadSize[t] && (next == -1
+                            || calls.starts[calls.perThread[t][cursors[t]]] < calls.starts[calls.perThread[next][cursors[next]]]) )
+                        next = t;
+                }
+                int call = calls.perThread[next][cursors[next]++];
+                int id = calls.ids[call];
+                entry.setLength( 0 );
+                if( i > 0 )
+                    entry.append( ',' );
+                TraceJson.entry( entry, id >= 0 && id < methods.length ? methods[id] : unknown,
+                        anchorMicros + (calls.starts[call] - anchorNanos) / 1_000L,
+                        anchorMicros + (calls.ends[call] - anchorNanos) / 1_000L, threads[next], calls.thrown[call] );
+                target.append( entry );
+            }
+            target.write( ']' );
+            if( energy != null ) {
+                target.write( ", \"energy\":" );
+                target.write( energy );
+            }
+            if( (flags & ManaSpillFile.FLAG_THROWN) != 0 )
+                target.write( ", \"exception\":\"true\"" );
+            if( (flags & ManaSpillFile.FLAG_SHARE) != 0 )
+                target.write( ", \"energyShare\":" + share );
+            if( meta != null ) {
+                target.write( ", \"meta\":" );
+                target.write( meta );
+            }
+            target.write( '}' );
+            target.flush();
+        }
+    }
+
+    private static void read( FileChannel channel, ByteBuffer buffer, long position ) throws IOException {
+        while( buffer.hasRemaining() ) {
+            int count = channel.read( buffer, position );
+            if( count < 0 )
+                throw new IOException( "Unexpected end of MANA spill file" );
+            position += count;
+        }
+        buffer.flip();
+    }
+
+    /**
+     * Calls reconstructed from the enter and exit records, indexed per thread in start order
+     */
+    private static final class Calls {
+        int[] ids = new int[1024];
+        long[] starts = new long[1024];
+        long[] ends = new long[1024];
+        boolean[] thrown = new boolean[1024];
+        int size;
+        int[][] perThread;
+        int[] perThreadSize;
+
+        static Calls read( FileChannel channel, long end, int threadCount, long stopNanos, int idShift ) throws IOException {
+            Calls calls = new Calls();
+            calls.perThread = new int[threadCount][16];
+            calls.perThreadSize = new int[threadCount];
+            int[][] stacks = new int[threadCount][64];
+            int[] depths = new int[threadCount];
+
+            ByteBuffer buffer = ByteBuffer.allocateDirect( ManaSpillFile.RECORD_SIZE * 8192 ).order( ByteOrder.LITTLE_ENDIAN );
+            long position = ManaSpillFile.HEADER_SIZE;
+            while( position < end ) {
+                buffer.clear();
+                buffer.limit( (int) Math.min( buffer.capacity(), end - position ) );
+                ManaSpillReader.read( channel, buffer, position );
+                position += buffer.limit();
+                while( buffer.remaining() >= ManaSpillFile.RECORD_SIZE ) {
+                    long nanos = buffer.getLong();
+                    int event = buffer.getInt();
+                    int thread = buffer.getInt() - 1;
+                    if( thread < 0 || thread >= threadCount )
+                        continue; // never written
+                    if( (event & ManaSpillFile.EXIT) == 0 ) {
+                        int call = calls.add( event >>> idShift, nanos, stopNanos );
+                        if( calls.perThreadSize[thread] == calls.perThread[thread].length )
+                            calls.perThread[thread] = Arrays.copyOf( calls.perThread[thread], calls.perThreadSize[thread] * 2 );
+                        calls.perThread[thread][calls.perThreadSize[thread]++] = call;
+                        if( depths[thread] == stacks[thread].length )
+                            stacks[thread] = Arrays.copyOf( stacks[thread], depths[thread] * 2 );
+                        stacks[thread][depths[thread]++] = call;
+                    } else if( depths[thread] > 0 ) {
+                        int call = stacks[thread][--depths[thread]];
+                        calls.ends[call] = nanos;
+                        calls.thrown[call] = idShift > 1 && (event & ManaSpillFile.THROWN) != 0;
+                    }
+                    // an exit without enter belongs to a call that started before the measurement
+                }
+            }
+            return calls;
+        }
+
+        private int add( int id, long start, long end ) {
+            if( size == ids.length ) {
+                ids = Arrays.copyOf( ids, size * 2 );
+                starts = Arrays.copyOf( starts, size * 2 );
+                ends = Arrays.copyOf( ends, size * 2 );
+                thrown = Arrays.copyOf( thrown, size * 2 );
+            }
+            ids[size] = id;
+            starts[size] = start;
+            ends[size] = end;
+            return size++;
+        }
+    }
+
+}
@@ -0,0 +1,53 @@
+package at.mana.instrument.format;
+
+/**
+ * Renders trace entries exactly like {@link at.mana.instrument.trace.TraceJsonWriter}, used when
+ * files of the other formats are converted back into JSON
+ */
+final class TraceJson {
+
+    private TraceJson() {
+    }
+
+    /**
+     * @return the constant part of every entry of the given method
+     */
+    static String prefix( String className, String methodName, String methodDesc, long hash ) {
+        return "{\"methodName\":\"" + escape( methodName ) +
+                "\", \"className\":\"" + escape( className ) +
+                "\", \"methodDescriptor\":\"" + escape( methodDesc ) +
+                "\", \"hash\":\"" + hash + "\", ";
+    }
+
+    /**
+     * Appends a complete entry
+     *
+     * @param thread already escaped thread name
+     * @param thrown true if the call was left by an exception
+     */
+    static StringBuilder entry( StringBuilder target, String prefix, long startMicros, long endMicros, String thread,
+                                boolean thrown ) {
+        return target.append( prefix )
+                .append( "\"startWall\":\"" ).append( Math.floorDiv( startMicros, 1_000L ) )
+                .append( "\", \"endWall\":\"" ).append( Math.floorDiv( endMicros, 1_000L ) )
+                .append( "\", \"start\":\"" ).append( startMicros )
+                .append( "\", \"end\":\"" ).append( endMicros )
+                .append( "\", \"thread\":\"" ).append( thread )
+                .append( thrown ? "\", \"exception\":\"true\" }" : "\" }" );
+    }
+
+    static String escape( String value ) {
+        StringBuilder result = new StringBuilder( value.length() );
+        for( int i = 0; i < value.length(); i++ ) {
+            char c = value.charAt( i );
+            if( c == '"' || c == '\\' )
+                result.append( '\\' ).append( c );
+            else if( c < 0x20 )
+                result.append( String.format( "\\u%04x", (int) c ) );
+            else
+                result.append( c );
+        }
+        return result.toString();
+    }
+
+}
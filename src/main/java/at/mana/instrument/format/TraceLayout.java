@@ -0,0 +1,39 @@
+package at.mana.instrument.format;
+
+import java.util.Locale;
+
+/**
+ * How the trace of a measurement is stored in a JSON .mana file
+ */
+public enum TraceLayout {
+
+    /**
+     * The trace section lists every call, the layout consumed by the existing MANA tooling
+     */
+    CALLS,
+
+    /**
+     * The calls are aggregated into a {@link CallTreeProfile} written as profile section instead of
+     * the trace section, the file size no longer depends on the number of calls
+     */
+    TREE,
+
+    /**
+     * As {@link #TREE}, additionally the profile is written in collapsed stack format for flame graphs
+     */
+    COLLAPSED;
+
+    /**
+     * @param name case insensitive name of the layout, null selects {@link #CALLS}
+     */
+    public static TraceLayout of( String name ) {
+        if( name == null || name.isEmpty() )
+            return CALLS;
+        try {
+            return valueOf( name.trim().toUpperCase( Locale.ROOT ) );
+        } catch( IllegalArgumentException e ) {
+            throw new IllegalArgumentException( "Unknown MANA trace layout '" + name + "', expected calls, tree or collapsed" );
+        }
+    }
+
+}
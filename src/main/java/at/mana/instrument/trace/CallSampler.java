@@ -0,0 +1,55 @@
+package at.mana.instrument.trace;
+
+import java.util.Arrays;
+
+/**
+ * Decides which calls of a method are traced when call sampling is enabled. Every thread counts
+ * the calls of each method on its own, the first call and every n-th call after it are traced.
+ * The decisions of the calls in progress are kept on a per thread stack, so the exit hook of a
+ * call follows the decision of its enter hook and sampled traces stay well formed.
+ */
+public final class CallSampler {
+
+    private static final ThreadLocal<CallSampler> LOCAL = ThreadLocal.withInitial( CallSampler::new );
+
+    private int[] counters = new int[Math.max( 64, MethodTable.size() )];
+    private boolean[] stack = new boolean[64];
+    private int depth;
+
+    private CallSampler() {
+    }
+
+    /**
+     * Called by the trace hooks before a method is entered
+     *
+     * @param id   id of the method as registered in the {@link MethodTable}
+     * @param rate trace one in rate calls
+     * @return true if the call should be traced
+     */
+    public static boolean sample( int id, int rate ) {
+        CallSampler sampler = LOCAL.get();
+        int[] counters = sampler.counters;
+        if( id >= counters.length ) {
+            counters = Arrays.copyOf( counters, Math.max( id + 1, counters.length * 2 ) );
+            sampler.counters = counters;
+        }
+        int count = counters[id];
+        counters[id] = count + 1 == rate ? 0 : count + 1;
+        boolean sampled = count == 0;
+        if( sampler.depth == sampler.stack.length )
+            sampler.stack = Arrays.copyOf( sampler.stack, sampler.depth * 2 );
+        sampler.stack[sampler.depth++] = sampled;
+        return sampled;
+    }
+
+    /**
+     * Called by the trace hooks when a method exits, normally or by an exception
+     *
+     * @return the decision taken when the call was entered
+     */
+    public static boolean sampled() {
+        CallSampler sampler = LOCAL.get();
+        return sampler.depth > 0 && sampler.stack[--sampler.depth];
+    }
+
+}
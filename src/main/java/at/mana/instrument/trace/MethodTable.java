@@ -0,0 +1,233 @@
+package at.mana.instrument.trace;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.io.*;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Maps the compact method ids used by the trace hooks to class name, method name and descriptor.
+ * <p>
+ * At build time every traced method receives an ordinal within its class and the mojo writes one
+ * row per method into the {@link #RESOURCE} file of each output directory. When an instrumented
+ * class is initialized it registers itself once and receives a base id, the hooks then pass
+ * {@code base + ordinal}. Ids are therefore dense and unique within a JVM, even if the classpath
+ * contains tables of several modules.
+ */
+public final class MethodTable {
+
+    public static final String RESOURCE = "META-INF/mana/methods.tsv";
+
+    /**
+     * Name of the synthetic static field holding the base id of an instrumented class
+     */
+    public static final String BASE_FIELD = "__manaMethodBase";
+
+    @Getter
+    @AllArgsConstructor
+    public static class Method {
+        private final String className;
+        private final String methodName;
+        private final String methodDesc;
+        private final int ordinal;
+
+        public int getHash() {
+            return Objects.hash( className, methodName, methodDesc );
+        }
+    }
+
+    private static final Method[] EMPTY = new Method[0];
+
+    private static Map<String, List<Method>> tables;
+    private static Method[] methods = new Method[1024];
+    private static int size;
+    private static final Map<String, Integer> interned = new HashMap<>();
+
+    private MethodTable() {
+    }
+
+    /**
+     * Called from the static initializer of every instrumented class
+     *
+     * @param className qualified name of the registering class
+     * @param count     number of traced methods of the class
+     * @return the base id of the class
+     */
+    public static synchronized int register( String className, int count ) {
+        List<Method> rows = tables().getOrDefault( className, Collections.emptyList() );
+        int base = allocate( count );
+        for( int i = 0; i < count; i++ ) {
+            methods[base + i] = new Method( className, "unknown#" + i, "", i );
+        }
+        for( Method row : rows ) {
+            if( row.getOrdinal() < count )
+                methods[base + row.getOrdinal()] = row;
+        }
+        return base;
+    }
+
+    /**
+     * Provides the rows of a class that is instrumented at runtime and therefore missing from the
+     * method tables on the classpath. Must be called before the class is initialized.
+     */
+    public static synchronized void define( String className, List<Method> rows ) {
+        tables().put( className, new ArrayList<>( rows ) );
+    }
+
+    /**
+     * Registers methods whose names are known at runtime, e.g. when classes are transformed on load
+     *
+     * @return the base id of the given methods
+     */
+    public static synchronized int register( List<Method> rows ) {
+        int base = allocate( rows.size() );
+        for( int i = 0; i < rows.size(); i++ ) {
+            methods[base + i] = rows.get( i );
+        }
+        return base;
+    }
+
+    /**
+     * Resolves an id for methods reported by name, used by classes instrumented with string based
+     * hooks of earlier plugin versions
+     */
+    public static synchronized int intern( String className, String methodName, String methodDesc ) {
+        String key = className + '#' + methodName + methodDesc;
+        Integer id = interned.get( key );
+        if( id == null ) {
+            id = register( List.of( new Method( className, methodName, methodDesc, 0 ) ) );
+            interned.put( key, id );
+        }
+        return id;
+    }
+
+    /**
+     * @return the method registered for the given id or null for unknown ids
+     */
+    public static synchronized Method get( int id ) {
+        return id >= 0 && id < size ? methods[id] : null;
+    }
+
+    /**
+     * @return number of registered ids
+     */
+    public static synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return a copy of all methods indexed by id
+     */
+    public static synchronized Method[] snapshot() {
+        return size == 0 ? EMPTY : Arrays.copyOf( methods, size );
+    }
+
+    private static int allocate( int count ) {
+        int base = size;
+        if( base + count > methods.length )
+            methods = Arrays.copyOf( methods, Math.max( methods.length * 2, base + count ) );
+        size += count;
+        return base;
+    }
+
+    private static Map<String, List<Method>> tables() {
+        if( tables == null ) {
+            tables = new HashMap<>();
+            ClassLoader loader = Thread.currentThread().getContextClassLoader();
+            if( loader == null )
+                loader = MethodTable.class.getClassLoader();
+            try {
+                Enumeration<URL> resources = loader.getResources( RESOURCE );
+                while( resources.hasMoreElements() ) {
+                    try( Reader reader = new InputStreamReader( resources.nextElement().openStream(), StandardCharsets.UTF_8 ) ) {
+                        // first table on the classpath wins, just like the classes themselves
+                        read( reader ).forEach( tables::putIfAbsent );
+                    }
+                }
+            } catch( IOException e ) {
+                System.err.println( "Unable to read MANA method tables: " + e.getMessage() );
+            }
+        }
+        return tables;
+    }
+
+    /**
+     * Reads a method table file
+     *
+     * @return rows of the table grouped by class name
+     */
+    public static Map<String, List<Method>> read( Reader source ) throws IOException {
+        Map<String, List<Method>> result = new TreeMap<>();
+        BufferedReader reader = new BufferedReader( source );
+        String line;
+        while( (line = reader.readLine()) != null ) {
+            // the descriptor of a method without name is empty
+            String[] columns = line.split( "\t", -1 );
+            if( columns.length == 4 && !line.startsWith( "#" ) ) {
+                String className = unescape( columns[0] );
+                result.computeIfAbsent( className, k -> new ArrayList<>() )
+                        .add( new Method( className, unescape( columns[2] ), unescape( columns[3] ), Integer.parseInt( columns[1] ) ) );
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Writes a method table file, tabs, line breaks and backslashes within names are escaped
+     *
+     * @param rows rows of the table grouped by class name
+     */
+    public static void write( Writer target, Map<String, List<Method>> rows ) throws IOException {
+        BufferedWriter writer = new BufferedWriter( target );
+        writer.write( "# class\tordinal\tmethod\tdescriptor" );
+        writer.newLine();
+        for( List<Method> methods : new TreeMap<>( rows ).values() ) {
+            for( Method m : methods ) {
+                writer.write( escape( m.getClassName() ) + "\t" + m.getOrdinal() + "\t" + escape( m.getMethodName() )
+                        + "\t" + escape( m.getMethodDesc() ) );
+                writer.newLine();
+            }
+        }
+        writer.flush();
+    }
+
+    /**
+     * Names in class files may contain any character but a few separators, unlike Java identifiers
+     */
+    private static String escape( String value ) {
+        StringBuilder result = null;
+        for( int i = 0; i < value.length(); i++ ) {
+            char c = value.charAt( i );
+            String replacement = c == '\\' ? "\\\\" : c == '\t' ? "\\t" : c == '\n' ? "\\n" : c == '\r' ? "\\r" : null;
+            if( replacement != null && result == null )
+                result = new StringBuilder( value.length() + 8 ).append( value, 0, i );
+            if( result != null ) {
+                if( replacement != null )
+                    result.append( replacement );
+                else
+                    result.append( c );
+            }
+        }
+        return result == null ? value : result.toString();
+    }
+
+    private static String unescape( String value ) {
+        if( value.indexOf( '\\' ) < 0 )
+            return value;
+        StringBuilder result = new StringBuilder( value.length() );
+        for( int i = 0; i < value.length(); i++ ) {
+            char c = value.charAt( i );
+            if( c != '\\' || i + 1 == value.length() ) {
+                result.append( c );
+                continue;
+            }
+            char next = value.charAt( ++i );
+            result.append( next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next );
+        }
+        return result.toString();
+    }
+
+}
@@ -0,0 +1,141 @@
+package at.mana.instrument.trace;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Preallocated ring of trace events written by exactly one thread. An event is the method id,
+ * tagged as enter, exit or exit by exception, and its {@link System#nanoTime()}. Once the ring is full the oldest
+ * events are overwritten. The position is published with an ordered store after every event, so
+ * readers on other threads never need a lock and the owning thread never waits.
+ */
+final class TraceBuffer {
+
+    static final int EXIT = 1;
+    static final int THROWN = 2;
+    static final int ID_SHIFT = 2;
+
+    private final int[] events;
+    private final long[] times;
+    private final int mask;
+    private final AtomicLong published = new AtomicLong();
+    private long position;
+
+    private final WeakReference<Thread> owner;
+    private final long threadId;
+    private final String threadName;
+
+    /**
+     * Position of the first event belonging to the current measurement
+     */
+    private volatile long start;
+
+    TraceBuffer( Thread thread, int capacity ) {
+        int size = Integer.highestOneBit( Math.max( 2, capacity - 1 ) ) << 1;
+        this.events = new int[size];
+        this.times = new long[size];
+        this.mask = size - 1;
+        this.owner = new WeakReference<>( thread );
+        this.threadId = thread.getId();
+        this.threadName = thread.getName();
+    }
+
+    void enter( int id, long nanos ) {
+        record( id << ID_SHIFT, nanos );
+    }
+
+    void exit( int id, long nanos ) {
+        record( (id << ID_SHIFT) | EXIT, nanos );
+    }
+
+    void exitExceptionally( int id, long nanos ) {
+        record( (id << ID_SHIFT) | EXIT | THROWN, nanos );
+    }
+
+    private void record( int event, long nanos ) {
+        int index = (int) position & mask;
+        events[index] = event;
+        times[index] = nanos;
+        published.lazySet( ++position );
+    }
+
+    /**
+     * Starts a new measurement, events recorded so far are ignored from now on
+     */
+    void mark() {
+        start = published.get();
+    }
+
+    /**
+     * Copies all events of the current measurement that are still in the ring
+     *
+     * @return the copied events and the number of events that were overwritten before they could be read
+     */
+    Snapshot snapshot() {
+        return snapshot( start );
+    }
+
+    /**
+     * Copies the events published from a position on that are still in the ring
+     *
+     * @param from position of the first event to copy
+     */
+    Snapshot snapshot( long from ) {
+        long end = published.get();
+        long begin = Math.max( from, end - events.length );
+        int length = (int) (end - begin);
+        int[] copiedEvents = new int[length];
+        long[] copiedTimes = new long[length];
+        for( int i = 0; i < length; i++ ) {
+            int index = (int) (begin + i) & mask;
+            copiedEvents[i] = events[index];
+            copiedTimes[i] = times[index];
+        }
+        // events the owner overwrote while we were copying are unreliable
+        long overwritten = Math.max( 0, published.get() - events.length - begin );
+        int skip = (int) Math.min( length, overwritten );
+        return new Snapshot( this, copiedEvents, copiedTimes, skip, begin + skip - from, end );
+    }
+
+    /**
+     * @return number of events recorded since the buffer was created
+     */
+    long getEvents() {
+        return published.get();
+    }
+
+    boolean isAlive() {
+        Thread thread = owner.get();
+        return thread != null && thread.isAlive();
+    }
+
+    long getThreadId() {
+        return threadId;
+    }
+
+    String getThreadName() {
+        return threadName;
+    }
+
+    static final class Snapshot {
+        final TraceBuffer buffer;
+        final int[] events;
+        final long[] times;
+        final int offset;
+        final long dropped;
+        /**
+         * Position following the last copied event
+         */
+        final long end;
+
+        Snapshot( TraceBuffer buffer, int[] events, long[] times, int offset, long dropped, long end ) {
+            this.buffer = buffer;
+            this.events = events;
+            this.times = times;
+            this.offset = offset;
+            this.dropped = dropped;
+            this.end = end;
+        }
+    }
+
+}
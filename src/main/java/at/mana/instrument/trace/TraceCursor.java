@@ -0,0 +1,122 @@
+package at.mana.instrument.trace;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the calls of a {@link TraceRecorder} in batches while a measurement runs. Every thread's
+ * buffer is read on from the position the previous batch stopped at and the calls that did not
+ * return yet are kept per thread, so every event is read exactly once, however late its thread
+ * published it, and a batch costs only the events recorded since the previous one.
+ * <p>
+ * A cursor must not be read by several threads at the same time.
+ */
+public final class TraceCursor {
+
+    private final TraceRecorder recorder;
+    private final Map<TraceBuffer, Reader> readers = new IdentityHashMap<>();
+    private final List<Reader> threads = new ArrayList<>();
+    private long dropped;
+
+    TraceCursor( TraceRecorder recorder ) {
+        this.recorder = recorder;
+        for( TraceBuffer buffer : recorder.getBuffers() )
+            reader( buffer ).position = buffer.getEvents();
+    }
+
+    /**
+     * Reads the calls returned since the previous batch
+     *
+     * @param fromNanos calls started earlier are left out
+     * @param toNanos   calls started later are left out
+     * @param open      true to add the calls that did not return yet, they end at the time of the batch
+     * @return the calls ordered by their start time
+     */
+    public TraceSnapshot next( long fromNanos, long toNanos, boolean open ) {
+        long now = System.nanoTime();
+        // threads that traced their first call since the previous batch are read from their start
+        for( TraceBuffer buffer : recorder.getBuffers() )
+            reader( buffer );
+        TraceSnapshot.Calls[] calls = new TraceSnapshot.Calls[threads.size()];
+        String[] threadNames = new String[threads.size()];
+        long batchDropped = 0;
+        for( int t = 0; t < threads.size(); t++ ) {
+            Reader reader = threads.get( t );
+            TraceBuffer.Snapshot snapshot = reader.buffer.snapshot( reader.position );
+            calls[t] = reader.pair( snapshot, fromNanos, toNanos );
+            if( open )
+                reader.open( calls[t], fromNanos, toNanos, now );
+            calls[t].sort();
+            threadNames[t] = reader.buffer.getThreadName();
+            batchDropped += snapshot.dropped;
+        }
+        dropped += batchDropped;
+        return TraceSnapshot.merge( calls, threadNames, batchDropped, recorder.getAnchorNanos(), recorder.getAnchorMicros() );
+    }
+
+    /**
+     * @return number of events lost by all batches because a thread overran its buffer
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+    private Reader reader( TraceBuffer buffer ) {
+        return readers.computeIfAbsent( buffer, b -> {
+            Reader reader = new Reader( b );
+            threads.add( reader );
+            return reader;
+        } );
+    }
+
+    /**
+     * Position in the buffer of a thread and its calls that did not return yet
+     */
+    private static final class Reader {
+        final TraceBuffer buffer;
+        long position;
+        int[] ids = new int[64];
+        long[] starts = new long[64];
+        int depth;
+
+        Reader( TraceBuffer buffer ) {
+            this.buffer = buffer;
+        }
+
+        TraceSnapshot.Calls pair( TraceBuffer.Snapshot snapshot, long fromNanos, long toNanos ) {
+            TraceSnapshot.Calls calls = new TraceSnapshot.Calls( 16 );
+            // the enters of the open calls may have been overwritten, they cannot be paired anymore
+            if( snapshot.dropped > 0 )
+                depth = 0;
+            for( int i = snapshot.offset; i < snapshot.events.length; i++ ) {
+                int event = snapshot.events[i];
+                if( (event & TraceBuffer.EXIT) == 0 ) {
+                    if( depth == ids.length ) {
+                        ids = Arrays.copyOf( ids, depth * 2 );
+                        starts = Arrays.copyOf( starts, depth * 2 );
+                    }
+                    ids[depth] = event >>> TraceBuffer.ID_SHIFT;
+                    starts[depth++] = snapshot.times[i];
+                } else if( depth > 0 ) {
+                    depth--;
+                    if( starts[depth] >= fromNanos && starts[depth] <= toNanos )
+                        calls.add( ids[depth], starts[depth], snapshot.times[i], (event & TraceBuffer.THROWN) != 0 );
+                }
+                // an exit without enter belongs to a call that started before the cursor was created
+            }
+            position = snapshot.end;
+            return calls;
+        }
+
+        void open( TraceSnapshot.Calls calls, long fromNanos, long toNanos, long now ) {
+            for( int d = 0; d < depth; d++ ) {
+                if( starts[d] >= fromNanos && starts[d] <= toNanos )
+                    calls.add( ids[d], starts[d], now, false );
+            }
+        }
+    }
+
+}
@@ -0,0 +1,144 @@
+package at.mana.instrument.trace;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * Streams the trace section of a .mana file. Entries are rendered into a fixed character buffer
+ * that is handed to the target whenever it fills up, so memory stays bounded regardless of the
+ * number of calls. The constant part of every entry, names and hash of the method, is rendered
+ * once per method id and reused.
+ */
+public class TraceJsonWriter {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private final char[] digits = new char[20];
+    private int length;
+    private Writer target;
+
+    private String[] prefixes = new String[0];
+
+    /**
+     * Writes all calls of the snapshot as JSON array, the target is flushed but not closed
+     */
+    public synchronized void write( TraceSnapshot snapshot, Writer target ) throws IOException {
+        this.target = target;
+        this.length = 0;
+        try {
+            append( '[' );
+            for( int i = 0; i < snapshot.size(); i++ ) {
+                if( i > 0 )
+                    append( ',' );
+                append( prefix( snapshot.getId( i ) ) );
+                append( "\"startWall\":\"" );
+                append( snapshot.toEpochMillis( snapshot.getStart( i ) ) );
+                append( "\", \"endWall\":\"" );
+                append( snapshot.toEpochMillis( snapshot.getEnd( i ) ) );
+                append( "\", \"start\":\"" );
+                append( snapshot.toEpochMicros( snapshot.getStart( i ) ) );
+                append( "\", \"end\":\"" );
+                append( snapshot.toEpochMicros( snapshot.getEnd( i ) ) );
+                append( "\", \"thread\":\"" );
+                appendEscaped( snapshot.getThreadName( i ) );
+                append( snapshot.isThrown( i ) ? "\", \"exception\":\"true\" }" : "\" }" );
+            }
+            append( ']' );
+            flush();
+            target.flush();
+        } finally {
+            this.target = null;
+        }
+    }
+
+    private String prefix( int id ) {
+        if( id < 0 )
+            return render( null );
+        if( id >= prefixes.length )
+            prefixes = Arrays.copyOf( prefixes, Math.max( id + 1, MethodTable.size() ) );
+        String prefix = prefixes[id];
+        if( prefix == null ) {
+            prefix = render( MethodTable.get( id ) );
+            prefixes[id] = prefix;
+        }
+        return prefix;
+    }
+
+    private static String render( MethodTable.Method m ) {
+        return "{\"methodName\":\"" + escape( m == null ? "" : m.getMethodName() ) +
+                "\", \"className\":\"" + escape( m == null ? "" : m.getClassName() ) +
+                "\", \"methodDescriptor\":\"" + escape( m == null ? "" : m.getMethodDesc() ) +
+                "\", \"hash\":\"" + (m == null ? 0 : m.getHash()) + "\", ";
+    }
+
+    private static String escape( String value ) {
+        StringBuilder result = new StringBuilder( value.length() );
+        for( int i = 0; i < value.length(); i++ ) {
+            char c = value.charAt( i );
+            if( c == '"' || c == '\\' )
+                result.append( '\\' ).append( c );
+            else if( c < 0x20 )
+                result.append( String.format( "\\u%04x", (int) c ) );
+            else
+                result.append( c );
+        }
+        return result.toString();
+    }
+
+    private void appendEscaped( String value ) throws IOException {
+        for( int i = 0; i < value.length(); i++ ) {
+            char c = value.charAt( i );
+            if( c == '"' || c == '\\' || c < 0x20 ) {
+                append( escape( value ) );
+                return;
+            }
+        }
+        append( value );
+    }
+
+    private void append( char c ) throws IOException {
+        if( length == buffer.length )
+            flush();
+        buffer[length++] = c;
+    }
+
+    private void append( String value ) throws IOException {
+        int offset = 0;
+        while( offset < value.length() ) {
+            if( length == buffer.length )
+                flush();
+            int count = Math.min( value.length() - offset, buffer.length - length );
+            value.getChars( offset, offset + count, buffer, length );
+            length += count;
+            offset += count;
+        }
+    }
+
+    private void append( long value ) throws IOException {
+        if( value == Long.MIN_VALUE ) {
+            append( Long.toString( value ) );
+            return;
+        }
+        if( value < 0 ) {
+            append( '-' );
+            value = -value;
+        }
+        int position = digits.length;
+        do {
+            digits[--position] = (char) ('0' + value % 10);
+            value /= 10;
+        } while( value != 0 );
+        if( length + digits.length - position > buffer.length )
+            flush();
+        System.arraycopy( digits, position, buffer, length, digits.length - position );
+        length += digits.length - position;
+    }
+
+    private void flush() throws IOException {
+        target.write( buffer, 0, length );
+        length = 0;
+    }
+
+}
@@ -0,0 +1,143 @@
+package at.mana.instrument.trace;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records the calls reported by the trace hooks. Every thread writes into a {@link TraceBuffer}
+ * of its own, so tracing parallel code needs neither a global lock nor any allocation per call.
+ * The buffers are merged in timestamp order when the measurement ends. Wall clock times are
+ * derived from an anchor taken on {@link #reset()}.
+ */
+public class TraceRecorder implements TraceSink {
+
+    /**
+     * Number of events every thread keeps, can be changed with the system property
+     * {@code mana.trace.bufferSize}. The buffer is allocated in full by the first traced call of a
+     * thread, 12 bytes per event or 768 KiB by default, and released by the first {@link #reset()}
+     * after the thread terminated; thread pools creating many short-lived threads may want a
+     * smaller size.
+     */
+    public static final int BUFFER_SIZE = Integer.getInteger( "mana.trace.bufferSize", 1 << 16 );
+
+    private final Queue<TraceBuffer> buffers = new ConcurrentLinkedQueue<>();
+    private final ThreadLocal<TraceBuffer> local = ThreadLocal.withInitial( this::register );
+    private final int capacity;
+    /**
+     * Events of the buffers of terminated threads that were released
+     */
+    private final AtomicLong retiredEvents = new AtomicLong();
+
+    private volatile long anchorNanos;
+    private volatile long anchorMicros;
+
+    public TraceRecorder() {
+        this( BUFFER_SIZE );
+    }
+
+    /**
+     * @param capacity number of events every thread keeps before the oldest ones are overwritten
+     */
+    public TraceRecorder( int capacity ) {
+        this.capacity = capacity;
+        reset();
+    }
+
+    private TraceBuffer register() {
+        TraceBuffer buffer = new TraceBuffer( Thread.currentThread(), capacity );
+        buffer.mark();
+        buffers.add( buffer );
+        return buffer;
+    }
+
+    /**
+     * Starts a new measurement, all calls recorded so far are dropped and a new time anchor is taken
+     */
+    public void reset() {
+        buffers.removeIf( buffer -> {
+            if( buffer.isAlive() )
+                return false;
+            retiredEvents.addAndGet( buffer.getEvents() );
+            return true;
+        } );
+        buffers.forEach( TraceBuffer::mark );
+        anchorNanos = System.nanoTime();
+        anchorMicros = ChronoUnit.MICROS.between( Instant.EPOCH, Instant.now() );
+    }
+
+    @Override
+    public void enter( int id, long nanos ) {
+        local.get().enter( id, nanos );
+    }
+
+    @Override
+    public void exit( int id, long nanos ) {
+        local.get().exit( id, nanos );
+    }
+
+    @Override
+    public void exitExceptionally( int id, long nanos ) {
+        local.get().exitExceptionally( id, nanos );
+    }
+
+    /**
+     * Counts the events reported by the trace hooks so far, the counters exist anyway as the
+     * positions of the buffers, so counting costs the hooks nothing
+     *
+     * @return number of enter and exit events recorded since the recorder was created
+     */
+    public long getEvents() {
+        long events = retiredEvents.get();
+        for( TraceBuffer buffer : buffers ) {
+            events += buffer.getEvents();
+        }
+        return events;
+    }
+
+    /**
+     * Translates a wall clock time in micro seconds since epoch to the time base of the recorder
+     */
+    public long toNanos( long epochMicros ) {
+        return anchorNanos + (epochMicros - anchorMicros) * 1000L;
+    }
+
+    /**
+     * @return a cursor reading the calls recorded from now on in batches
+     */
+    public TraceCursor cursor() {
+        return new TraceCursor( this );
+    }
+
+    Iterable<TraceBuffer> getBuffers() {
+        return buffers;
+    }
+
+    long getAnchorNanos() {
+        return anchorNanos;
+    }
+
+    long getAnchorMicros() {
+        return anchorMicros;
+    }
+
+    /**
+     * Collects the calls of all threads recorded since the last {@link #reset()}. Calls that did
+     * not return yet end at the time of the snapshot.
+     *
+     * @return all calls ordered by their start time
+     */
+    public TraceSnapshot snapshot() {
+        long now = System.nanoTime();
+        List<TraceBuffer.Snapshot> snapshots = new ArrayList<>();
+        for( TraceBuffer buffer : buffers ) {
+            snapshots.add( buffer.snapshot() );
+        }
+        return TraceSnapshot.merge( snapshots, now, anchorNanos, anchorMicros );
+    }
+
+}
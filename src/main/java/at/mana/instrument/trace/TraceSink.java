@@ -0,0 +1,26 @@
+package at.mana.instrument.trace;
+
+/**
+ * Receives the calls reported by the trace hooks
+ */
+public interface TraceSink {
+
+    /**
+     * @param id    id of the method as registered in the {@link MethodTable}
+     * @param nanos {@link System#nanoTime()} on enter
+     */
+    void enter( int id, long nanos );
+
+    /**
+     * @param id    id of the method as registered in the {@link MethodTable}
+     * @param nanos {@link System#nanoTime()} on exit
+     */
+    void exit( int id, long nanos );
+
+    /**
+     * @param id    id of the method as registered in the {@link MethodTable}
+     * @param nanos {@link System#nanoTime()} when the method was left by an exception
+     */
+    void exitExceptionally( int id, long nanos );
+
+}
@@ -0,0 +1,243 @@
+package at.mana.instrument.trace;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Calls of all threads of one measurement, ordered by their start time
+ */
+public class TraceSnapshot {
+
+    private final int[] ids;
+    private final long[] starts;
+    private final long[] ends;
+    private final int[] threads;
+    private final boolean[] thrown;
+    private final String[] threadNames;
+    private final long dropped;
+
+    private final long anchorNanos;
+    private final long anchorMicros;
+
+    private TraceSnapshot( int[] ids, long[] starts, long[] ends, int[] threads, boolean[] thrown, String[] threadNames,
+                           long dropped, long anchorNanos, long anchorMicros ) {
+        this.ids = ids;
+        this.starts = starts;
+        this.ends = ends;
+        this.threads = threads;
+        this.thrown = thrown;
+        this.threadNames = threadNames;
+        this.dropped = dropped;
+        this.anchorNanos = anchorNanos;
+        this.anchorMicros = anchorMicros;
+    }
+
+    static TraceSnapshot merge( List<TraceBuffer.Snapshot> buffers, long now, long anchorNanos, long anchorMicros ) {
+        int threadCount = buffers.size();
+        Calls[] calls = new Calls[threadCount];
+        String[] threadNames = new String[threadCount];
+        long dropped = 0;
+        for( int t = 0; t < threadCount; t++ ) {
+            TraceBuffer.Snapshot buffer = buffers.get( t );
+            calls[t] = Calls.pair( buffer, now );
+            threadNames[t] = buffer.buffer.getThreadName();
+            dropped += buffer.dropped;
+        }
+        return merge( calls, threadNames, dropped, anchorNanos, anchorMicros );
+    }
+
+    /**
+     * @param calls calls of every thread, ordered by their start time
+     */
+    static TraceSnapshot merge( Calls[] calls, String[] threadNames, long dropped, long anchorNanos, long anchorMicros ) {
+        int threadCount = calls.length;
+        int total = 0;
+        for( Calls thread : calls )
+            total += thread.size;
+
+        // the calls of every thread are ordered by start already, a k-way merge over a heap of the
+        // threads keyed by their next call orders all of them, ties go to the lower thread index
+        int[] ids = new int[total];
+        long[] starts = new long[total];
+        long[] ends = new long[total];
+        int[] threads = new int[total];
+        boolean[] thrown = new boolean[total];
+        int[] cursors = new int[threadCount];
+        PriorityQueue<Integer> heap = new PriorityQueue<>( Math.max( 1, threadCount ), ( a, b ) -> {
+            int order = Long.compare( calls[a].starts[cursors[a]], calls[b].starts[cursors[b]] );
+            return order != 0 ? order : Integer.compare( a, b );
+        } );
+        for( int t = 0; t < threadCount; t++ ) {
+            if( calls[t].size > 0 )
+                heap.add( t );
+        }
+        for( int i = 0; i < total; i++ ) {
+            int next = heap.poll();
+            int c = cursors[next]++;
+            ids[i] = calls[next].ids[c];
+            starts[i] = calls[next].starts[c];
+            ends[i] = calls[next].ends[c];
+            threads[i] = next;
+            thrown[i] = calls[next].thrown[c];
+            if( cursors[next] < calls[next].size )
+                heap.add( next );
+        }
+        return new TraceSnapshot( ids, starts, ends, threads, thrown, threadNames, dropped, anchorNanos, anchorMicros );
+    }
+
+    /**
+     * Restricts the snapshot to the calls started within a period, used when measurements overlap
+     * and share one recorder
+     *
+     * @param fromNanos start of the period, inclusive
+     * @param toNanos   end of the period, inclusive
+     * @return the calls started within the period, ordered by their start time
+     */
+    public TraceSnapshot between( long fromNanos, long toNanos ) {
+        int from = 0;
+        while( from < starts.length && starts[from] < fromNanos )
+            from++;
+        int to = from;
+        while( to < starts.length && starts[to] <= toNanos )
+            to++;
+        return new TraceSnapshot( Arrays.copyOfRange( ids, from, to ), Arrays.copyOfRange( starts, from, to ),
+                Arrays.copyOfRange( ends, from, to ), Arrays.copyOfRange( threads, from, to ),
+                Arrays.copyOfRange( thrown, from, to ), threadNames, dropped, anchorNanos, anchorMicros );
+    }
+
+    public int size() {
+        return ids.length;
+    }
+
+    public int getId( int index ) {
+        return ids[index];
+    }
+
+    public long getStart( int index ) {
+        return starts[index];
+    }
+
+    public long getEnd( int index ) {
+        return ends[index];
+    }
+
+    public String getThreadName( int index ) {
+        return threadNames[threads[index]];
+    }
+
+    /**
+     * @return index of the thread that made the call, unique within the snapshot unlike its name
+     */
+    public int getThread( int index ) {
+        return threads[index];
+    }
+
+    /**
+     * @return true if the call was left by an exception
+     */
+    public boolean isThrown( int index ) {
+        return thrown[index];
+    }
+
+    /**
+     * @return number of events lost because a thread overran its buffer
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * @return the given recorder time in milli seconds since epoch
+     */
+    public long toEpochMillis( long nanos ) {
+        return Math.floorDiv( toEpochMicros( nanos ), 1_000L );
+    }
+
+    /**
+     * @return the given recorder time in micro seconds since epoch
+     */
+    public long toEpochMicros( long nanos ) {
+        return anchorMicros + (nanos - anchorNanos) / 1_000L;
+    }
+
+    /**
+     * Calls of a single thread, reconstructed from its enter and exit events
+     */
+    static final class Calls {
+        int[] ids;
+        long[] starts;
+        long[] ends;
+        boolean[] thrown;
+        int size;
+
+        Calls( int capacity ) {
+            ids = new int[capacity];
+            starts = new long[capacity];
+            ends = new long[capacity];
+            thrown = new boolean[capacity];
+        }
+
+        void add( int id, long start, long end, boolean exception ) {
+            if( size == ids.length ) {
+                int capacity = Math.max( 16, size * 2 );
+                ids = Arrays.copyOf( ids, capacity );
+                starts = Arrays.copyOf( starts, capacity );
+                ends = Arrays.copyOf( ends, capacity );
+                thrown = Arrays.copyOf( thrown, capacity );
+            }
+            ids[size] = id;
+            starts[size] = start;
+            ends[size] = end;
+            thrown[size++] = exception;
+        }
+
+        /**
+         * Orders calls added as they returned by their start time
+         */
+        void sort() {
+            Integer[] order = new Integer[size];
+            for( int i = 0; i < size; i++ )
+                order[i] = i;
+            Arrays.sort( order, ( a, b ) -> Long.compare( starts[a], starts[b] ) );
+            int[] sortedIds = new int[size];
+            long[] sortedStarts = new long[size];
+            long[] sortedEnds = new long[size];
+            boolean[] sortedThrown = new boolean[size];
+            for( int i = 0; i < size; i++ ) {
+                sortedIds[i] = ids[order[i]];
+                sortedStarts[i] = starts[order[i]];
+                sortedEnds[i] = ends[order[i]];
+                sortedThrown[i] = thrown[order[i]];
+            }
+            ids = sortedIds;
+            starts = sortedStarts;
+            ends = sortedEnds;
+            thrown = sortedThrown;
+        }
+
+        static Calls pair( TraceBuffer.Snapshot buffer, long now ) {
+            Calls calls = new Calls( buffer.events.length - buffer.offset );
+            int[] stack = new int[64];
+            int depth = 0;
+            for( int i = buffer.offset; i < buffer.events.length; i++ ) {
+                int event = buffer.events[i];
+                if( (event & TraceBuffer.EXIT) == 0 ) {
+                    if( depth == stack.length )
+                        stack = Arrays.copyOf( stack, depth * 2 );
+                    calls.ids[calls.size] = event >>> TraceBuffer.ID_SHIFT;
+                    calls.starts[calls.size] = buffer.times[i];
+                    calls.ends[calls.size] = now;
+                    stack[depth++] = calls.size++;
+                } else if( depth > 0 ) {
+                    int call = stack[--depth];
+                    calls.ends[call] = buffer.times[i];
+                    calls.thrown[call] = (event & TraceBuffer.THROWN) != 0;
+                }
+                // an exit without enter belongs to a call that started before the measurement
+            }
+            return calls;
+        }
+    }
+
+}
@@ -0,0 +1,91 @@
+package at.mana.instrument.transport;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Length prefixed message of the streaming transport. Every frame belongs to one measurement,
+ * concurrent measurements are told apart by their id. Payloads are UTF-8 JSON.
+ * <pre>
+ * frame := length:i32 type:u8 measurement:i32 payload:utf8   length counts the bytes after itself
+ * </pre>
+ * A measurement is sent as one {@link #START} frame, any number of {@link #TRACE} frames holding
+ * arrays of calls as they complete, one {@link #ENERGY} frame and one {@link #END} frame. All
+ * numbers are big endian.
+ */
+public final class Frame {
+
+    /** class, method and descriptor of the measured method and its start time */
+    public static final int START = 1;
+    /** JSON array of calls that completed since the previous batch */
+    public static final int TRACE = 2;
+    /** energy section as written by exec-rapl */
+    public static final int ENERGY = 3;
+    /** JSON object marking the end of the measurement, possibly with exception and energyShare */
+    public static final int END = 4;
+
+    static final int HEADER_SIZE = 4 + 1 + 4;
+
+    private final int type;
+    private final int measurement;
+    private final String payload;
+
+    public Frame( int type, int measurement, String payload ) {
+        this.type = type;
+        this.measurement = measurement;
+        this.payload = payload;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public int getMeasurement() {
+        return measurement;
+    }
+
+    public String getPayload() {
+        return payload;
+    }
+
+    /**
+     * @return the frame ready to be written to a channel
+     */
+    public ByteBuffer encode() {
+        byte[] bytes = payload.getBytes( StandardCharsets.UTF_8 );
+        ByteBuffer buffer = ByteBuffer.allocate( HEADER_SIZE + bytes.length );
+        buffer.putInt( 1 + 4 + bytes.length ).put( (byte) type ).putInt( measurement ).put( bytes );
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Reads the next frame of a stream
+     *
+     * @return the frame or null if the stream ended in between two frames
+     */
+    public static Frame read( DataInputStream in ) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch( EOFException e ) {
+            return null;
+        }
+        if( length < 5 )
+            throw new IOException( "Corrupt MANA frame of length " + length );
+        int type = in.readUnsignedByte();
+        int measurement = in.readInt();
+        byte[] bytes = new byte[length - 5];
+        in.readFully( bytes );
+        return new Frame( type, measurement, new String( bytes, StandardCharsets.UTF_8 ) );
+    }
+
+    @Override
+    public String toString() {
+        return "Frame[" + type + ", " + measurement + ", " + payload.length() + " chars]";
+    }
+
+}
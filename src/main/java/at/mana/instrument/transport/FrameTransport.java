@@ -0,0 +1,270 @@
+package at.mana.instrument.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Streams {@link Frame}s to a collector. Frames are put into a bounded queue and written by a
+ * single I/O thread over a non-blocking channel, so threads sending frames never wait for the
+ * network. A full queue is handled by the {@link OverflowPolicy}. If the collector cannot be
+ * reached or the connection breaks, the I/O thread reconnects with an exponential back-off while
+ * frames keep queueing; a frame cut off by a broken connection is sent again from its start.
+ * <p>
+ * The I/O thread also runs a tick callback periodically, meant for producing frames from data
+ * collected in between, e.g. batches of completed calls.
+ */
+public class FrameTransport implements Closeable {
+
+    public static final long BLOCK_TIMEOUT_MILLIS = 1_000;
+
+    private static final long MIN_BACKOFF_MILLIS = 100;
+    private static final long MAX_BACKOFF_MILLIS = 5_000;
+    private static final long CLOSE_TIMEOUT_MILLIS = 5_000;
+
+    private final InetSocketAddress address;
+    private final BlockingQueue<ByteBuffer> queue;
+    private final OverflowPolicy policy;
+    private final long tickMillis;
+    private final Runnable tick;
+    private final Selector selector;
+    private final Thread thread;
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong connections = new AtomicLong();
+    private volatile boolean closing;
+    private volatile boolean abandoned;
+
+    // owned by the I/O thread
+    private SocketChannel channel;
+    private ByteBuffer current;
+    private long backoff = MIN_BACKOFF_MILLIS;
+    private long nextConnect;
+
+    /**
+     * @param capacity   number of frames the send queue holds
+     * @param tickMillis period of the tick callback
+     * @param tick       callback run by the I/O thread, may be null
+     */
+    public FrameTransport( InetSocketAddress address, int capacity, OverflowPolicy policy, long tickMillis, Runnable tick ) throws IOException {
+        this.address = address;
+        this.queue = new ArrayBlockingQueue<>( Math.max( 1, capacity ) );
+        this.policy = policy;
+        this.tickMillis = Math.max( 1, tickMillis );
+        this.tick = tick;
+        this.selector = Selector.open();
+        this.thread = new Thread( this::run, "mana-transport-" + address.getPort() );
+        this.thread.setDaemon( true );
+        this.thread.start();
+    }
+
+    /**
+     * Queues a frame, a full queue is handled by the {@link OverflowPolicy}
+     *
+     * @return true if the frame was queued
+     */
+    public boolean send( Frame frame ) {
+        ByteBuffer buffer = frame.encode();
+        boolean queued;
+        switch( policy ) {
+            case DROP_NEWEST:
+                queued = queue.offer( buffer );
+                break;
+            case DROP_OLDEST:
+                while( !(queued = queue.offer( buffer )) ) {
+                    if( queue.poll() != null )
+                        dropped.incrementAndGet();
+                }
+                break;
+            default:
+                try {
+                    queued = queue.offer( buffer, BLOCK_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS );
+                } catch( InterruptedException e ) {
+                    Thread.currentThread().interrupt();
+                    queued = false;
+                }
+        }
+        if( queued )
+            selector.wakeup();
+        else
+            dropped.incrementAndGet();
+        return queued;
+    }
+
+    /**
+     * Queues a frame only if there is room, the caller keeps the data and tries again later
+     *
+     * @return true if the frame was queued
+     */
+    public boolean trySend( Frame frame ) {
+        boolean queued = queue.offer( frame.encode() );
+        if( queued )
+            selector.wakeup();
+        return queued;
+    }
+
+    /**
+     * @return number of frames dropped because the queue was full
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return number of frames written completely
+     */
+    public long getSent() {
+        return sent.get();
+    }
+
+    /**
+     * @return number of connections established so far
+     */
+    public long getConnections() {
+        return connections.get();
+    }
+
+    /**
+     * Sends the queued frames and closes the connection, gives up after a few seconds if the
+     * collector cannot be reached
+     */
+    @Override
+    public void close() {
+        closing = true;
+        selector.wakeup();
+        try {
+            thread.join( CLOSE_TIMEOUT_MILLIS );
+        } catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        }
+        if( thread.isAlive() ) {
+            abandoned = true;
+            selector.wakeup();
+        }
+        if( !queue.isEmpty() || current != null )
+            System.err.println( "MANA transport to " + address + " closed with " + queue.size() + " frames unsent" );
+    }
+
+    private void run() {
+        long nextTick = System.currentTimeMillis() + tickMillis;
+        try {
+            while( !abandoned && !(closing && current == null && queue.isEmpty()) ) {
+                long now = System.currentTimeMillis();
+                if( channel == null && now >= nextConnect )
+                    connect();
+                if( channel != null && channel.isConnected() )
+                    write();
+
+                long timeout = nextTick - now;
+                if( channel == null )
+                    timeout = Math.min( timeout, nextConnect - now );
+                interest();
+                selector.select( Math.max( 1, timeout ) );
+                for( SelectionKey key : selector.selectedKeys() ) {
+                    if( key.isValid() && key.isConnectable() )
+                        finishConnect();
+                }
+                selector.selectedKeys().clear();
+
+                if( System.currentTimeMillis() >= nextTick ) {
+                    nextTick = System.currentTimeMillis() + tickMillis;
+                    if( tick != null ) {
+                        try {
+                            tick.run();
+                        } catch( RuntimeException e ) {
+                            System.err.println( "MANA transport tick failed: " + e );
+                        }
+                    }
+                }
+            }
+        } catch( IOException e ) {
+            System.err.println( "MANA transport to " + address + " failed: " + e.getMessage() );
+        } finally {
+            disconnect();
+            try {
+                selector.close();
+            } catch( IOException e ) {
+                // nothing left to release
+            }
+        }
+    }
+
+    private void connect() {
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking( false );
+            if( channel.connect( address ) )
+                connected();
+        } catch( IOException e ) {
+            failed();
+        }
+    }
+
+    private void finishConnect() {
+        try {
+            if( channel.finishConnect() )
+                connected();
+        } catch( IOException e ) {
+            failed();
+        }
+    }
+
+    private void connected() {
+        backoff = MIN_BACKOFF_MILLIS;
+        connections.incrementAndGet();
+    }
+
+    private void failed() {
+        disconnect();
+        nextConnect = System.currentTimeMillis() + backoff;
+        backoff = Math.min( backoff * 2, MAX_BACKOFF_MILLIS );
+    }
+
+    private void write() {
+        try {
+            while( true ) {
+                if( current == null )
+                    current = queue.poll();
+                if( current == null )
+                    return;
+                channel.write( current );
+                if( current.hasRemaining() )
+                    return; // the socket buffer is full, wait until the channel is writable
+                current = null;
+                sent.incrementAndGet();
+            }
+        } catch( IOException e ) {
+            // the collector only receives whole frames, the frame is repeated on the next connection
+            if( current != null )
+                current.rewind();
+            failed();
+        }
+    }
+
+    private void interest() throws IOException {
+        if( channel == null )
+            return;
+        int ops = !channel.isConnected() ? SelectionKey.OP_CONNECT : current != null ? SelectionKey.OP_WRITE : 0;
+        channel.register( selector, ops );
+    }
+
+    private void disconnect() {
+        if( channel == null )
+            return;
+        try {
+            channel.close();
+        } catch( IOException e ) {
+            // the connection is gone either way
+        }
+        channel = null;
+    }
+
+}
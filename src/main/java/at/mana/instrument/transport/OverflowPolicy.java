@@ -0,0 +1,39 @@
+package at.mana.instrument.transport;
+
+import java.util.Locale;
+
+/**
+ * What happens to a frame that does not fit into the send queue of a {@link FrameTransport}
+ */
+public enum OverflowPolicy {
+
+    /**
+     * The sending thread waits for room, at most {@link FrameTransport#BLOCK_TIMEOUT_MILLIS}, and
+     * drops the frame afterwards
+     */
+    BLOCK,
+
+    /**
+     * The oldest queued frame is dropped in favour of the new one
+     */
+    DROP_OLDEST,
+
+    /**
+     * The new frame is dropped
+     */
+    DROP_NEWEST;
+
+    /**
+     * @param name case insensitive name of the policy, dashes may replace underscores, null selects {@link #BLOCK}
+     */
+    public static OverflowPolicy of( String name ) {
+        if( name == null || name.isEmpty() )
+            return BLOCK;
+        try {
+            return valueOf( name.trim().replace( '-', '_' ).toUpperCase( Locale.ROOT ) );
+        } catch( IllegalArgumentException e ) {
+            throw new IllegalArgumentException( "Unknown MANA overflow policy '" + name + "', expected block, drop-oldest or drop-newest" );
+        }
+    }
+
+}
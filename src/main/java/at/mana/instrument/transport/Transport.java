@@ -0,0 +1,33 @@
+package at.mana.instrument.transport;
+
+import java.util.Locale;
+
+/**
+ * How measurements reach the collector listening on the configured port
+ */
+public enum Transport {
+
+    /**
+     * The measurement is sent at once over a blocking socket when the test ends, as exec-rapl does
+     */
+    SOCKET,
+
+    /**
+     * Frames are streamed by a {@link FrameTransport} while the test runs
+     */
+    NIO;
+
+    /**
+     * @param name case insensitive name of the transport, null selects {@link #SOCKET}
+     */
+    public static Transport of( String name ) {
+        if( name == null || name.isEmpty() )
+            return SOCKET;
+        try {
+            return valueOf( name.trim().toUpperCase( Locale.ROOT ) );
+        } catch( IllegalArgumentException e ) {
+            throw new IllegalArgumentException( "Unknown MANA transport '" + name + "', expected socket or nio" );
+        }
+    }
+
+}
@@ -0,0 +1,69 @@
+package at.mana.instrument;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+public class ClassDiscoveryTest extends TestCase {
+
+    private Path directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = Files.createTempDirectory( "mana-discovery" );
+        for( String file : List.of( "Root.class", "at/mana/sample/A.class", "at/mana/sample/deep/B.class",
+                "at/mana/samples/C.class", "at/mana/other/D.class", "at/mana/sample/readme.txt", "META-INF/E.class" ) ) {
+            Path path = directory.resolve( file );
+            Files.createDirectories( path.getParent() );
+            Files.write( path, new byte[]{ 0 } );
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        try( Stream<Path> files = Files.walk( directory ) ) {
+            files.sorted( Comparator.reverseOrder() ).map( Path::toFile ).forEach( File::delete );
+        }
+    }
+
+    public void testSkipsFoldersOutsideThePackages() throws Exception {
+        // packages are prefixes of the class name, at.mana.sample also accepts at.mana.samples
+        assertEquals( List.of( "Root", "at.mana.sample.A", "at.mana.sample.deep.B", "at.mana.samples.C" ),
+                walk( List.of( "at.mana.sample" ) ) );
+        assertEquals( List.of( "Root", "at.mana.sample.A", "at.mana.sample.deep.B" ), walk( List.of( "at.mana.sample." ) ) );
+        // folders on the way to a package are listed, only their subfolders are pruned
+        assertEquals( List.of( "Root", "at.mana.other.D", "at.mana.sample.A", "at.mana.sample.deep.B" ),
+                walk( List.of( "at.mana.other", "at.mana.sample.deep." ) ) );
+    }
+
+    public void testFindsAllClassesWithoutPackages() throws Exception {
+        List<String> names = walk( List.of() );
+        assertEquals( 6, names.size() );
+        assertTrue( names.contains( "META-INF.E" ) );
+        Map<String, File> files = new TreeMap<>();
+        new ClassDiscovery( List.of() ).walk( directory.toFile(), files::put );
+        assertEquals( directory.resolve( "at/mana/sample/deep/B.class" ).toFile(), files.get( "at.mana.sample.deep.B" ) );
+    }
+
+    public void testMissingDirectoryIsEmpty() throws Exception {
+        List<String> names = new ArrayList<>();
+        new ClassDiscovery( List.of() ).walk( directory.resolve( "missing" ).toFile(), ( name, file ) -> names.add( name ) );
+        assertTrue( names.isEmpty() );
+    }
+
+    private List<String> walk( List<String> prefixes ) throws Exception {
+        List<String> names = new ArrayList<>();
+        new ClassDiscovery( prefixes ).walk( directory.toFile(), ( name, file ) -> names.add( name ) );
+        names.sort( null );
+        return names;
+    }
+
+}
@@ -0,0 +1,161 @@
+package at.mana.instrument;
+
+import at.mana.exec.rapl.TraceMana;
+import at.mana.instrument.trace.MethodTable;
+import at.mana.instrument.trace.TraceSnapshot;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtField;
+import javassist.CtMethod;
+import javassist.CtNewConstructor;
+import javassist.CtNewMethod;
+import javassist.bytecode.AccessFlag;
+import javassist.bytecode.AnnotationsAttribute;
+import javassist.bytecode.ConstPool;
+import javassist.bytecode.annotation.Annotation;
+import javassist.bytecode.annotation.IntegerMemberValue;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class ClassInstrumenterTest extends TestCase {
+
+    public void testPatternsAndMinimumSizeSelectTracedMethods() throws Exception {
+        InstrumentationConfig config = config()
+                .methodExcludes( PatternSet.of( "at.mana.sample.**#skipped" ) )
+                .minMethodSize( 8 )
+                .build();
+        InstrumentationReport report = new InstrumentationReport();
+        new ClassInstrumenter( config, new ClassPool( true ) ).instrument( sample( "at.mana.sample.Selected" ), report );
+
+        List<String> traced = new ArrayList<>();
+        report.getMethods().forEach( m -> traced.add( m.getMethodName() ) );
+        assertEquals( List.of( "compute" ), traced );
+    }
+
+    public void testCallSamplingTracesOneInN() throws Exception {
+        InstrumentationConfig config = config().callSampling( 4 ).build();
+        CtClass ctClass = sample( "at.mana.sample.Sampled" );
+        InstrumentationReport report = new InstrumentationReport();
+        assertTrue( new ClassInstrumenter( config, new ClassPool( true ) ).instrument( ctClass, report ) );
+        Class<?> type = define( ctClass, report );
+
+        Object sample = type.getConstructor().newInstance();
+        FileCommandFactory.getInstance().getRecorder().reset();
+        for( int i = 0; i < 10; i++ ) {
+            type.getMethod( "compute", int.class ).invoke( sample, i );
+        }
+        TraceSnapshot snapshot = FileCommandFactory.getInstance().getRecorder().snapshot();
+        int computed = 0;
+        for( int i = 0; i < snapshot.size(); i++ ) {
+            MethodTable.Method m = MethodTable.get( snapshot.getId( i ) );
+            if( m.getClassName().equals( ctClass.getName() ) && m.getMethodName().equals( "compute" ) )
+                computed++;
+        }
+        // calls 1, 5 and 9 are traced
+        assertEquals( 3, computed );
+    }
+
+    public void testAllMethodKindsAreTraced() throws Exception {
+        CtClass ctClass = new ClassPool( true ).makeClass( "at.mana.sample.Kinds" );
+        ctClass.addField( CtField.make( "public static int counter;", ctClass ) );
+        ctClass.makeClassInitializer().insertAfter( "counter = 1;" );
+        ctClass.addConstructor( CtNewConstructor.make( "public Kinds() { counter++; }", ctClass ) );
+        ctClass.addMethod( CtNewMethod.make( "public static int twice(int x) { return x * 2; }", ctClass ) );
+        ctClass.addMethod( CtNewMethod.make( "public static void fail() { throw new IllegalStateException(); }", ctClass ) );
+        CtMethod lambda = CtNewMethod.make( "private static int lambda$process$0(int x) { return x + 1; }", ctClass );
+        lambda.getMethodInfo().setAccessFlags( lambda.getMethodInfo().getAccessFlags() | AccessFlag.SYNTHETIC );
+        ctClass.addMethod( lambda );
+        CtMethod bridge = CtNewMethod.make( "public Object bridged() { return null; }", ctClass );
+        bridge.getMethodInfo().setAccessFlags( bridge.getMethodInfo().getAccessFlags() | AccessFlag.BRIDGE | AccessFlag.SYNTHETIC );
+        ctClass.addMethod( bridge );
+
+        InstrumentationReport report = new InstrumentationReport();
+        assertTrue( new ClassInstrumenter( config().build(), new ClassPool( true ) ).instrument( ctClass, report ) );
+        List<String> traced = new ArrayList<>();
+        report.getMethods().forEach( m -> traced.add( m.getMethodName() ) );
+        assertEquals( List.of( "twice", "fail", "process::lambda$0", "<init>", "<clinit>" ), traced );
+
+        FileCommandFactory.getInstance().getRecorder().reset();
+        Class<?> type = define( ctClass, report );
+        assertEquals( 1, type.getDeclaredField( "counter" ).getInt( null ) );
+        type.getConstructor().newInstance();
+        try {
+            type.getMethod( "fail" ).invoke( null );
+            fail();
+        } catch( java.lang.reflect.InvocationTargetException expected ) {
+        }
+        type.getMethod( "twice", int.class ).invoke( null, 2 );
+
+        TraceSnapshot snapshot = FileCommandFactory.getInstance().getRecorder().snapshot();
+        List<String> calls = new ArrayList<>();
+        long failed = -1;
+        for( int i = 0; i < snapshot.size(); i++ ) {
+            MethodTable.Method m = MethodTable.get( snapshot.getId( i ) );
+            if( !m.getClassName().equals( ctClass.getName() ) )
+                continue;
+            calls.add( m.getMethodName() );
+            assertEquals( m.getMethodName().equals( "fail" ), snapshot.isThrown( i ) );
+            if( m.getMethodName().equals( "fail" ) )
+                failed = snapshot.getEnd( i );
+            if( m.getMethodName().equals( "twice" ) )
+                // the exit hook of the failing call fired, it does not enclose the next call
+                assertTrue( failed <= snapshot.getStart( i ) );
+        }
+        assertEquals( List.of( "<clinit>", "<init>", "fail", "twice" ), calls );
+    }
+
+    public void testAnnotationMembersOverrideTheConfiguration() throws Exception {
+        CtClass ctClass = sample( "at.mana.sample.Annotated" );
+        CtMethod m = ctClass.getDeclaredMethod( "compute" );
+        ConstPool constPool = m.getMethodInfo().getConstPool();
+        Annotation annotation = new Annotation( TraceMana.class.getName(), constPool );
+        annotation.addMemberValue( "samplingRate", new IntegerMemberValue( constPool, 5 ) );
+        AnnotationsAttribute attribute = new AnnotationsAttribute( constPool, AnnotationsAttribute.visibleTag );
+        attribute.addAnnotation( annotation );
+        m.getMethodInfo().addAttribute( attribute );
+
+        assertEquals( 5, ClassInstrumenter.annotationMember( m, TraceMana.class, "samplingRate", 50 ) );
+        assertEquals( 1000, ClassInstrumenter.annotationMember( m, TraceMana.class, "adaptiveWindow", 1000 ) );
+        assertEquals( 50, ClassInstrumenter.annotationMember( ctClass.getDeclaredMethod( "get" ), TraceMana.class, "samplingRate", 50 ) );
+    }
+
+    public void testGlobs() {
+        PatternSet patterns = PatternSet.of( "at.mana.*.Sample?, regex:.*Test$" );
+        assertTrue( patterns.matches( "at.mana.sample.Sample1" ) );
+        assertFalse( patterns.matches( "at.mana.sample.deep.Sample1" ) );
+        assertTrue( patterns.matches( "at.mana.FooTest" ) );
+        assertTrue( PatternSet.of( "at.**" ).matches( "at.mana.sample.deep.Sample1" ) );
+        assertTrue( PatternSet.of( "get*" ).matches( "at.mana.Sample", "getName" ) );
+        assertFalse( PatternSet.of( "at.mana.Other#get*" ).matches( "at.mana.Sample", "getName" ) );
+    }
+
+    private Class<?> define( CtClass ctClass, InstrumentationReport report ) throws Exception {
+        // no method table is written for these classes, the names are provided like the agent does
+        MethodTable.define( ctClass.getName(), report.getMethods() );
+        byte[] bytecode = ctClass.toBytecode();
+        return new ClassLoader( getClass().getClassLoader() ) {
+            Class<?> define() {
+                return defineClass( ctClass.getName(), bytecode, 0, bytecode.length );
+            }
+        }.define();
+    }
+
+    private static InstrumentationConfig.InstrumentationConfigBuilder config() {
+        return InstrumentationConfig.builder()
+                .packages( List.of( "at.mana.sample" ) )
+                .samplingRate( 50 )
+                .trace( true );
+    }
+
+    private static CtClass sample( String name ) throws Exception {
+        CtClass ctClass = new ClassPool( true ).makeClass( name );
+        ctClass.addConstructor( CtNewConstructor.defaultConstructor( ctClass ) );
+        ctClass.addMethod( CtNewMethod.make( "public int get() { return 1; }", ctClass ) );
+        ctClass.addMethod( CtNewMethod.make( "public int skipped(int x) { int y = x * x; return y + x * 3 - 7; }", ctClass ) );
+        ctClass.addMethod( CtNewMethod.make( "public int compute(int x) { int y = x * x; return y + x * 3 - 7; }", ctClass ) );
+        return ctClass;
+    }
+
+}
@@ -0,0 +1,131 @@
+package at.mana.instrument;
+
+import javassist.ClassPath;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtNewMethod;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+public class ClassPathCacheTest extends TestCase {
+
+    private File directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = Files.createTempDirectory( "mana-cache" ).toFile();
+    }
+
+    @Override
+    protected void tearDown() {
+        File[] files = directory.listFiles();
+        if( files != null ) {
+            for( File file : files )
+                file.delete();
+        }
+        directory.delete();
+    }
+
+    public void testPoolsShareClassFiles() throws Exception {
+        File jar = jar( "a.jar", "at.mana.dep.Shared", "1" );
+        ClassPathCache cache = new ClassPathCache( 1 << 20 );
+        for( int module = 0; module < 3; module++ ) {
+            ClassPool pool = new ClassPool( true );
+            pool.appendClassPath( cache.classPath( List.of( jar.getPath() ) ) );
+            CtClass ctClass = pool.get( "at.mana.dep.Shared" );
+            assertNotNull( ctClass.getDeclaredMethod( "version" ) );
+            assertNotNull( pool.find( "at.mana.dep.Shared" ) );
+        }
+        assertEquals( 1, cache.getMisses() );
+        assertEquals( 2, cache.getHits() );
+        assertSame( cache.classPath( List.of( jar.getPath() ) ), cache.classPath( List.of( jar.getPath() ) ) );
+    }
+
+    public void testFirstJarWins() throws Exception {
+        File first = jar( "first.jar", "at.mana.dep.Twice", "10" );
+        File second = jar( "second.jar", "at.mana.dep.Twice", "20" );
+        ClassPathCache cache = new ClassPathCache( 1 << 20 );
+        ClassPool pool = new ClassPool( true );
+        pool.appendClassPath( cache.classPath( List.of( second.getPath(), first.getPath() ) ) );
+        assertEquals( 20, version( pool.get( "at.mana.dep.Twice" ) ) );
+        assertNull( pool.getOrNull( "at.mana.dep.Missing" ) );
+    }
+
+    public void testEvictsLeastRecentlyUsed() throws Exception {
+        File first = jar( "b1.jar", "at.mana.dep.Evicted1", "10" );
+        File second = jar( "b2.jar", "at.mana.dep.Evicted2", "10" );
+        ClassPathCache cache = new ClassPathCache( 1 << 20 );
+        ClassPath path = cache.classPath( List.of( first.getPath(), second.getPath() ) );
+        path.openClassfile( "at.mana.dep.Evicted1" ).close();
+        long length = cache.getSize();
+        // room for a single class file
+        cache.setCapacity( length + length / 2 );
+        path.openClassfile( "at.mana.dep.Evicted2" ).close();
+        assertEquals( length, cache.getSize() );
+        path.openClassfile( "at.mana.dep.Evicted2" ).close();
+        assertEquals( 1, cache.getHits() );
+        path.openClassfile( "at.mana.dep.Evicted1" ).close();
+        assertEquals( 3, cache.getMisses() );
+
+        cache.setCapacity( 0 );
+        assertEquals( 0, cache.getSize() );
+    }
+
+    public void testRebuiltJarIsIndexedAgain() throws Exception {
+        File jar = jar( "c.jar", "at.mana.dep.Changed", "10" );
+        ClassPathCache cache = new ClassPathCache( 1 << 20 );
+        ClassPool pool = new ClassPool( true );
+        pool.appendClassPath( cache.classPath( List.of( jar.getPath() ) ) );
+        assertEquals( 10, version( pool.get( "at.mana.dep.Changed" ) ) );
+
+        jar( "c.jar", "at.mana.dep.Changed", "30" );
+        jar.setLastModified( jar.lastModified() + 2_000 );
+        pool = new ClassPool( true );
+        pool.appendClassPath( cache.classPath( List.of( jar.getPath() ) ) );
+        assertEquals( 30, version( pool.get( "at.mana.dep.Changed" ) ) );
+    }
+
+    public void testJarsAreOpenOnlyUntilClosed() throws Exception {
+        File jar = jar( "d.jar", "at.mana.dep.Closed", "10" );
+        ClassPathCache cache = new ClassPathCache( 0 );
+        ClassPath path = cache.classPath( List.of( jar.getPath() ) );
+        // indexing alone leaves the jar closed
+        assertEquals( 0, cache.getOpenJars() );
+        path.openClassfile( "at.mana.dep.Closed" ).close();
+        assertEquals( 1, cache.getOpenJars() );
+        cache.closeJars();
+        assertEquals( 0, cache.getOpenJars() );
+        // the index survives, the jar is opened again on the next miss
+        ClassPool pool = new ClassPool( true );
+        pool.appendClassPath( path );
+        assertEquals( 10, version( pool.get( "at.mana.dep.Closed" ) ) );
+        cache.closeJars();
+        assertTrue( jar.delete() );
+    }
+
+    /**
+     * @return the constant returned by the version method, versions are pushed by bipush
+     */
+    private static int version( CtClass ctClass ) throws Exception {
+        return ctClass.getDeclaredMethod( "version" ).getMethodInfo().getCodeAttribute().getCode()[1];
+    }
+
+    private File jar( String name, String className, String version ) throws Exception {
+        CtClass ctClass = new ClassPool( true ).makeClass( className );
+        ctClass.addMethod( CtNewMethod.make( "public static int version() { return " + version + "; }", ctClass ) );
+        File file = new File( directory, name );
+        try( JarOutputStream out = new JarOutputStream( new FileOutputStream( file ) ) ) {
+            out.putNextEntry( new JarEntry( className.replace( '.', '/' ) + ".class" ) );
+            out.write( ctClass.toBytecode() );
+            out.closeEntry();
+        }
+        return file;
+    }
+
+}
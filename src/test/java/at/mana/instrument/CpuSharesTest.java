@@ -0,0 +1,77 @@
+package at.mana.instrument;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class CpuSharesTest extends TestCase {
+
+    public void testSingleMeasurementReceivesAllEnergy() {
+        CpuShares shares = new CpuShares();
+        CpuShares.Share share = shares.start();
+        spin( 10 );
+        assertEquals( 1.0, shares.stop( share ) );
+        assertTrue( shares.isIdle() );
+    }
+
+    public void testOverlappingMeasurementsSplitByCpuTime() throws Exception {
+        CpuShares shares = new CpuShares();
+        CpuShares.Share idle = shares.start();
+        double[] busy = new double[1];
+        Thread worker = new Thread( () -> {
+            CpuShares.Share share = shares.start();
+            spin( 100 );
+            busy[0] = shares.stop( share );
+        } );
+        worker.start();
+        worker.join();
+        double waiting = shares.stop( idle );
+        assertTrue( "busy share " + busy[0], busy[0] > 0.9 );
+        assertTrue( "idle share " + waiting, waiting < 0.1 );
+    }
+
+    public void testNestedMeasurementsOnOneThreadReceiveAllEnergy() {
+        CpuShares shares = new CpuShares();
+        CpuShares.Share outer = shares.start();
+        spin( 20 );
+        CpuShares.Share inner = shares.start();
+        spin( 20 );
+        assertEquals( 1.0, shares.stop( inner ) );
+        spin( 20 );
+        assertEquals( 1.0, shares.stop( outer ) );
+        assertTrue( shares.isIdle() );
+    }
+
+    public void testWorkOnOtherThreadsIsNotAccounted() throws Exception {
+        CpuShares shares = new CpuShares();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            // the measurement waits for its work on the executor while another one spins
+            CpuShares.Share delegating = shares.start();
+            double[] spinning = new double[1];
+            Thread other = new Thread( () -> {
+                CpuShares.Share share = shares.start();
+                spin( 100 );
+                spinning[0] = shares.stop( share );
+            } );
+            other.start();
+            executor.submit( () -> spin( 100 ) ).get();
+            other.join();
+            double waiting = shares.stop( delegating );
+            assertTrue( "delegating share " + waiting, waiting < 0.1 );
+            assertTrue( "spinning share " + spinning[0], spinning[0] > 0.9 );
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static void spin( long millis ) {
+        long end = System.nanoTime() + millis * 1_000_000L;
+        long sum = 0;
+        while( System.nanoTime() < end )
+            sum += end;
+        assertTrue( sum != 1 );
+    }
+
+}
@@ -0,0 +1,58 @@
+package at.mana.instrument;
+
+import at.mana.instrument.format.ManaFormat;
+import at.mana.instrument.format.TraceLayout;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class InstrumentationConfigTest extends TestCase {
+
+    public void testConsistentConfigIsKept() {
+        List<String> warnings = new ArrayList<>();
+        InstrumentationConfig config = builder().format( ManaFormat.JSON ).traceLayout( TraceLayout.TREE )
+                .session( true ).adaptiveWindow( 500 ).build().validate( warnings::add );
+        assertEquals( List.of(), warnings );
+        assertEquals( TraceLayout.TREE, config.getTraceLayout() );
+        assertTrue( config.isSession() );
+        assertEquals( 500, config.getAdaptiveWindow() );
+    }
+
+    public void testPortResetsFileSettings() {
+        List<String> warnings = new ArrayList<>();
+        InstrumentationConfig config = builder().port( 9000 ).format( ManaFormat.BINARY ).traceLayout( TraceLayout.TREE )
+                .session( true ).adaptiveWindow( 500 ).build().validate( warnings::add );
+        assertEquals( ManaFormat.JSON, config.getFormat() );
+        assertEquals( TraceLayout.CALLS, config.getTraceLayout() );
+        assertFalse( config.isSession() );
+        assertEquals( 0, config.getAdaptiveWindow() );
+        assertEquals( 4, warnings.size() );
+        assertTrue( warnings.get( 0 ), warnings.get( 0 ).startsWith( "format is ignored" ) );
+    }
+
+    public void testLayoutAndSessionDependOnTheFormat() {
+        List<String> warnings = new ArrayList<>();
+        InstrumentationConfig config = builder().format( ManaFormat.SPILL ).traceLayout( TraceLayout.COLLAPSED )
+                .session( true ).build().validate( warnings::add );
+        assertEquals( ManaFormat.SPILL, config.getFormat() );
+        assertEquals( TraceLayout.CALLS, config.getTraceLayout() );
+        assertFalse( config.isSession() );
+        assertEquals( 2, warnings.size() );
+    }
+
+    public void testCountsAreClamped() {
+        InstrumentationConfig config = builder().callSampling( 0 ).sendQueueSize( -1 ).warmupPeriods( 0 )
+                .cooldownPeriods( 0 ).adaptiveWindow( -5 ).build().validate( message -> fail( message ) );
+        assertEquals( 1, config.getCallSampling() );
+        assertEquals( 1, config.getSendQueueSize() );
+        assertEquals( 1, config.getWarmupPeriods() );
+        assertEquals( 1, config.getCooldownPeriods() );
+        assertEquals( 0, config.getAdaptiveWindow() );
+    }
+
+    private static InstrumentationConfig.InstrumentationConfigBuilder builder() {
+        return InstrumentationConfig.builder().packages( List.of( "at.mana" ) ).samplingRate( 50 );
+    }
+
+}
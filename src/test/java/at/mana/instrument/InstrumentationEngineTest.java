@@ -0,0 +1,103 @@
+package at.mana.instrument;
+
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtNewConstructor;
+import javassist.CtNewMethod;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+public class InstrumentationEngineTest extends TestCase {
+
+    private static final int CLASSES = 64;
+
+    public void testParallelOutputMatchesSerialOutput() throws Exception {
+        Path serial = generateClasses();
+        Path parallel = generateClasses();
+
+        SortedMap<String, InstrumentationReport> serialReports = instrument( serial, 1 );
+        SortedMap<String, InstrumentationReport> parallelReports = instrument( parallel, 4 );
+
+        assertEquals( CLASSES, serialReports.size() );
+        assertEquals( serialReports.keySet(), parallelReports.keySet() );
+        for( Map.Entry<String, File> entry : classes( serial ).entrySet() ) {
+            byte[] expected = Files.readAllBytes( entry.getValue().toPath() );
+            byte[] actual = Files.readAllBytes( parallel.resolve( serial.relativize( entry.getValue().toPath() ) ) );
+            assertTrue( "Bytecode differs for " + entry.getKey(), java.util.Arrays.equals( expected, actual ) );
+        }
+    }
+
+    public void testReportsAreOrderedByClassName() throws Exception {
+        Path directory = generateClasses();
+        List<String> names = List.copyOf( instrument( directory, 4 ).keySet() );
+        assertEquals( names.stream().sorted().collect( Collectors.toList() ), names );
+    }
+
+    public void testInstrumentsClassesWhileTheyAreDiscovered() throws Exception {
+        Path directory = generateClasses();
+        SortedMap<String, InstrumentationReport> reports = engine( directory, 4 )
+                .run( consumer -> new ClassDiscovery( List.of( "at.mana.sample.p1", "at.mana.sample.p3" ) )
+                        .walk( directory.toFile(), consumer ) );
+        assertFalse( reports.isEmpty() );
+        for( Map.Entry<String, InstrumentationReport> report : reports.entrySet() ) {
+            assertTrue( report.getKey(), report.getKey().startsWith( "at.mana.sample.p1." ) || report.getKey().startsWith( "at.mana.sample.p3." ) );
+            assertFalse( report.getValue().hasErrors() );
+        }
+        assertEquals( classes( directory ).keySet().stream()
+                .filter( c -> c.startsWith( "at.mana.sample.p1." ) || c.startsWith( "at.mana.sample.p3." ) )
+                .collect( Collectors.toSet() ), reports.keySet() );
+    }
+
+    private SortedMap<String, InstrumentationReport> instrument( Path directory, int threads ) throws Exception {
+        return engine( directory, threads ).run( classes( directory ) );
+    }
+
+    private static InstrumentationEngine engine( Path directory, int threads ) {
+        InstrumentationConfig config = InstrumentationConfig.builder()
+                .packages( List.of( "at.mana.sample" ) )
+                .samplingRate( 50 )
+                .trace( true )
+                .build();
+        return new InstrumentationEngine( threads, () -> {
+            ClassPool classPool = new ClassPool( true );
+            try {
+                classPool.appendClassPath( directory.toString() );
+            } catch( Exception e ) {
+                throw new IllegalStateException( e );
+            }
+            return new ClassInstrumenter( config, classPool );
+        } );
+    }
+
+    private Map<String, File> classes( Path directory ) throws Exception {
+        try( var paths = Files.walk( directory ) ) {
+            return paths.filter( p -> p.toString().endsWith( ".class" ) )
+                    .collect( Collectors.toMap(
+                            p -> directory.relativize( p ).toString().replace( ".class", "" ).replace( File.separatorChar, '.' ),
+                            Path::toFile, ( a, b ) -> a, TreeMap::new ) );
+        }
+    }
+
+    private Path generateClasses() throws Exception {
+        Path directory = Files.createTempDirectory( "mana-engine" );
+        ClassPool classPool = new ClassPool( true );
+        for( int i = 0; i < CLASSES; i++ ) {
+            CtClass ctClass = classPool.makeClass( "at.mana.sample.p" + ( i % 5 ) + ".Sample" + i );
+            ctClass.addConstructor( CtNewConstructor.defaultConstructor( ctClass ) );
+            ctClass.addMethod( CtNewMethod.make( "public int twice(int x) { return x * 2; }", ctClass ) );
+            ctClass.addMethod( CtNewMethod.make( "public String name(String s) { if (s == null) return \"none\"; return s + 1; }", ctClass ) );
+            ctClass.writeFile( directory.toString() );
+            ctClass.detach();
+        }
+        return directory;
+    }
+
+}
@@ -0,0 +1,54 @@
+package at.mana.instrument;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class InstrumentationIndexTest extends TestCase {
+
+    private static final byte[] ORIGINAL = { 1, 2, 3 };
+    private static final byte[] INSTRUMENTED = { 4, 5, 6, 7 };
+
+    private Path directory;
+    private File classFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = Files.createTempDirectory( "mana-index" );
+        classFile = directory.resolve( "Sample.class" ).toFile();
+        Files.write( classFile.toPath(), ORIGINAL );
+
+        InstrumentationIndex index = new InstrumentationIndex( indexDirectory(), "config" ).load();
+        assertFalse( index.isUpToDate( "Sample", classFile ) );
+        index.preserveOriginal( "Sample", classFile );
+        Files.write( classFile.toPath(), INSTRUMENTED );
+        index.update( "Sample", classFile );
+        index.save();
+    }
+
+    public void testUnchangedClassIsSkipped() throws Exception {
+        assertTrue( new InstrumentationIndex( indexDirectory(), "config" ).load().isUpToDate( "Sample", classFile ) );
+    }
+
+    public void testTouchedClassIsSkipped() throws Exception {
+        assertTrue( classFile.setLastModified( classFile.lastModified() + 5000L ) );
+        assertTrue( new InstrumentationIndex( indexDirectory(), "config" ).load().isUpToDate( "Sample", classFile ) );
+    }
+
+    public void testRecompiledClassIsInstrumented() throws Exception {
+        Files.write( classFile.toPath(), new byte[]{ 8 } );
+        assertFalse( new InstrumentationIndex( indexDirectory(), "config" ).load().isUpToDate( "Sample", classFile ) );
+    }
+
+    public void testChangedConfigurationRestoresOriginal() throws Exception {
+        assertFalse( new InstrumentationIndex( indexDirectory(), "other" ).load().isUpToDate( "Sample", classFile ) );
+        assertTrue( java.util.Arrays.equals( ORIGINAL, Files.readAllBytes( classFile.toPath() ) ) );
+    }
+
+    private File indexDirectory() {
+        return directory.resolve( "mana" ).toFile();
+    }
+
+}
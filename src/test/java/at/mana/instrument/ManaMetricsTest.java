@@ -0,0 +1,63 @@
+package at.mana.instrument;
+
+import at.mana.instrument.trace.TraceRecorder;
+import junit.framework.TestCase;
+
+import java.util.Map;
+
+public class ManaMetricsTest extends TestCase {
+
+    public void testHistogramPercentilesAreBucketBounds() {
+        ManaMetrics.Histogram histogram = new ManaMetrics.Histogram();
+        for( int i = 1; i <= 100; i++ )
+            histogram.record( i * 1_000L );
+        assertEquals( 65_535, histogram.percentile( 0.5 ) );
+        assertEquals( 100_000, histogram.percentile( 0.99 ) );
+
+        Map<String, Long> summary = histogram.summary();
+        assertEquals( 100, (long) summary.get( "count" ) );
+        assertEquals( 50, (long) summary.get( "mean" ) );
+        assertEquals( 100, (long) summary.get( "max" ) );
+        histogram.reset();
+        assertEquals( 0, histogram.percentile( 0.5 ) );
+    }
+
+    public void testCountsMeasurementsAndEvents() {
+        ManaMetrics metrics = new ManaMetrics();
+        TraceRecorder recorder = new TraceRecorder( 16 );
+        metrics.watch( recorder );
+        recorder.enter( 1, 100 );
+        recorder.exit( 1, 110 );
+
+        assertEquals( 1, metrics.started() );
+        MeasurementMeta meta = new MeasurementMeta();
+        meta.droppedEvents = 3;
+        meta.durationNanos = 5_000_000;
+        metrics.stopped( meta );
+        assertEquals( 0, metrics.getActiveMeasurements() );
+        assertEquals( 1, metrics.getMeasurements() );
+        assertEquals( 2, metrics.getTraceEvents() );
+        assertEquals( 3, metrics.getDroppedTraceEvents() );
+        assertEquals( 0, (long) metrics.getSamplerTime().get( "count" ) );
+
+        metrics.reset();
+        assertEquals( 0, metrics.getTraceEvents() );
+        assertEquals( 0, metrics.getMeasurements() );
+    }
+
+    public void testMetaLeavesOutUnknownFigures() {
+        MeasurementMeta meta = new MeasurementMeta();
+        meta.traceEvents = 12;
+        meta.durationNanos = 2_500_000;
+        meta.samplerNanos = 40_000;
+        meta.concurrent = 2;
+        assertEquals( "{\"traceEvents\":12, \"droppedEvents\":0, \"duration\":2500, \"samplerTime\":40, "
+                + "\"concurrentMeasurements\":2}", meta.toJson() );
+        meta.setSerializationNanos( 7_000 );
+        assertTrue( meta.toJson().contains( "\"serializationTime\":7" ) );
+        meta.start = 1617000000250L;
+        meta.end = 1617000000252L;
+        assertTrue( meta.toJson().contains( "\"duration\":2500, \"start\":1617000000250, \"end\":1617000000252" ) );
+    }
+
+}
@@ -0,0 +1,110 @@
+package at.mana.instrument;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.zip.GZIPInputStream;
+
+public class MeasurementWriterTest extends TestCase {
+
+    public void testSubmitReturnsBeforeTheFileIsWritten() throws Exception {
+        MeasurementWriter writer = new MeasurementWriter( 4, true );
+        CountDownLatch release = new CountDownLatch( 1 );
+        List<Integer> written = new CopyOnWriteArrayList<>();
+        writer.submit( () -> {
+            try {
+                release.await();
+            } catch( InterruptedException e ) {
+                throw new IllegalStateException( e );
+            }
+            written.add( 0 );
+        } );
+        for( int i = 1; i < 4; i++ ) {
+            int file = i;
+            writer.submit( () -> written.add( file ) );
+        }
+        assertTrue( written.isEmpty() );
+        release.countDown();
+        // closing writes all pending files in the order they were submitted
+        writer.close();
+        assertEquals( List.of( 0, 1, 2, 3 ), written );
+
+        writer.submit( () -> written.add( 4 ) );
+        assertEquals( 5, written.size() );
+    }
+
+    public void testQueuedWritesFinishBeforeAMeasurementStarts() {
+        MeasurementWriter writer = new MeasurementWriter( 4, true );
+        List<String> events = new CopyOnWriteArrayList<>();
+        for( int i = 0; i < 3; i++ ) {
+            int file = i;
+            writer.submit( () -> {
+                events.add( "begin " + file );
+                try {
+                    Thread.sleep( 20 );
+                } catch( InterruptedException e ) {
+                    throw new IllegalStateException( e );
+                }
+                events.add( "end " + file );
+            } );
+        }
+        // the measurement starts where FileCommandFactory.execute starts the sampler
+        assertTrue( writer.awaitIdle() );
+        events.add( "measurement" );
+        writer.submit( () -> events.add( "write 3" ) );
+        writer.close();
+        assertEquals( List.of( "begin 0", "end 0", "begin 1", "end 1", "begin 2", "end 2", "measurement", "write 3" ), events );
+    }
+
+    public void testIdleWriterDoesNotWait() {
+        assertTrue( new MeasurementWriter( 1, true ).awaitIdle() );
+        MeasurementWriter writer = new MeasurementWriter( 1, false );
+        writer.submit( () -> { } );
+        assertTrue( writer.awaitIdle() );
+    }
+
+    public void testFailingWriteDoesNotStopTheWriter() {
+        MeasurementWriter writer = new MeasurementWriter( 1, true );
+        List<String> written = new CopyOnWriteArrayList<>();
+        writer.submit( () -> {
+            throw new IOException( "disk full" );
+        } );
+        writer.submit( () -> written.add( "next" ) );
+        writer.close();
+        assertEquals( List.of( "next" ), written );
+    }
+
+    public void testSynchronousWriterRunsOnTheCallingThread() {
+        MeasurementWriter writer = new MeasurementWriter( 1, false );
+        Thread[] thread = new Thread[1];
+        writer.submit( () -> thread[0] = Thread.currentThread() );
+        assertSame( Thread.currentThread(), thread[0] );
+        assertEquals( 0, writer.getPending() );
+    }
+
+    public void testCompressedFilesGetTheGzipExtension() throws Exception {
+        File file = File.createTempFile( "mana", ".mana" );
+        File compressed = new File( file.getPath() + MeasurementWriter.GZIP_EXTENSION );
+        try {
+            try( OutputStream out = MeasurementWriter.open( file.getPath(), true ) ) {
+                out.write( "{\"trace\":[]}".getBytes( StandardCharsets.UTF_8 ) );
+            }
+            try( GZIPInputStream in = new GZIPInputStream( new FileInputStream( compressed ) ) ) {
+                assertEquals( "{\"trace\":[]}", new String( in.readAllBytes(), StandardCharsets.UTF_8 ) );
+            }
+            assertEquals( 0, Files.size( file.toPath() ) );
+        } finally {
+            file.delete();
+            compressed.delete();
+        }
+    }
+
+}
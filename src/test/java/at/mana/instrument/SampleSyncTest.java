@@ -0,0 +1,30 @@
+package at.mana.instrument;
+
+import junit.framework.TestCase;
+
+public class SampleSyncTest extends TestCase {
+
+    public void testPeriodsWaitLongerThanTheFirstSample() {
+        assertEquals( 150, SampleSync.PERIODS.warmupMillis( 100, 1 ) );
+        assertEquals( 250, SampleSync.PERIODS.cooldownMillis( 100, 2 ) );
+        // short periods get the minimal margin
+        assertEquals( 15, SampleSync.PERIODS.warmupMillis( 5, 1 ) );
+        assertEquals( 20, SampleSync.PERIODS.cooldownMillis( 10, 1 ) );
+    }
+
+    public void testFixedKeepsTheFormerWaits() {
+        assertEquals( 400, SampleSync.FIXED.warmupMillis( 100, 1 ) );
+        assertEquals( 200, SampleSync.FIXED.cooldownMillis( 100, 3 ) );
+    }
+
+    public void testOf() {
+        assertEquals( SampleSync.PERIODS, SampleSync.of( null ) );
+        assertEquals( SampleSync.FIXED, SampleSync.of( " Fixed " ) );
+        try {
+            SampleSync.of( "never" );
+            fail();
+        } catch( IllegalArgumentException expected ) {
+        }
+    }
+
+}
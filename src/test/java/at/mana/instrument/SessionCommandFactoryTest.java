@@ -0,0 +1,186 @@
+package at.mana.instrument;
+
+import at.mana.exec.rapl.internal.RaplInternalCommandParameter;
+import at.mana.instrument.format.EnergyTable;
+import at.mana.instrument.format.ManaFormat;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class SessionCommandFactoryTest extends TestCase {
+
+    private static final String SAMPLES = "[{\"time\":\"1617000000000\", \"pkg\":1.5},"
+            + "{\"time\":\"1617000000050\", \"pkg\":2.5},"
+            + "{\"time\":\"1617000000100\", \"pkg\":3.5},"
+            + "{\"time\":\"1617000000150\", \"pkg\":4.5},"
+            + "{\"time\":\"1617000000200\", \"pkg\":5.5}]";
+    private static final Pattern TIME = Pattern.compile( "\"time\":\"(\\d+)\"" );
+
+    private final List<FakeSampler> samplers = new ArrayList<>();
+    private File folder;
+
+    @Override
+    protected void setUp() throws Exception {
+        folder = Files.createTempDirectory( "mana-session" ).toFile();
+    }
+
+    @Override
+    protected void tearDown() {
+        File[] files = folder.listFiles();
+        if( files != null )
+            for( File file : files )
+                file.delete();
+        folder.delete();
+    }
+
+    public void testSliceEnclosesTheMeasurement() throws Exception {
+        EnergyTable table = EnergyTable.parse( SAMPLES );
+        EnergyTable.Column time = table.getTimeColumn();
+        assertEquals( "time", time.getName() );
+        assertEquals( "[{\"time\":\"1617000000050\", \"pkg\":2.5},{\"time\":\"1617000000100\", \"pkg\":3.5},"
+                        + "{\"time\":\"1617000000150\", \"pkg\":4.5}]",
+                SessionCommandFactory.slice( table, time, 1617000000060L, 1617000000140L ) );
+        // a measurement ending after the last sample receives the remaining samples
+        assertEquals( "[{\"time\":\"1617000000150\", \"pkg\":4.5},{\"time\":\"1617000000200\", \"pkg\":5.5}]",
+                SessionCommandFactory.slice( table, time, 1617000000150L, 1617000000300L ) );
+    }
+
+    public void testMeasurementsShareOneSamplerUntilFlushed() {
+        SessionCommandFactory session = session( 16 );
+        measure( session, "a", 0 );
+        measure( session, "b", 0 );
+        assertEquals( 1, samplers.size() );
+        assertFalse( samplers.get( 0 ).stopped );
+        assertEquals( 2, session.getPending() );
+        assertFalse( file( "a" ).exists() );
+
+        session.flush();
+        assertTrue( samplers.get( 0 ).stopped );
+        assertEquals( 0, session.getPending() );
+        assertTrue( file( "a" ).exists() );
+        assertTrue( file( "b" ).exists() );
+
+        // the next measurement starts a new sampler
+        measure( session, "c", 0 );
+        assertEquals( 2, samplers.size() );
+        session.flush();
+        assertTrue( file( "c" ).exists() );
+    }
+
+    public void testStopWithoutExecuteIsIgnored() {
+        SessionCommandFactory session = session( 16 );
+        session.init( file( "a" ).getPath(), ManaFormat.JSON.name() );
+        session.stop();
+        assertEquals( 0, session.getPending() );
+        assertTrue( samplers.isEmpty() );
+    }
+
+    public void testMaxPendingFlushesOnceNoMeasurementRuns() {
+        SessionCommandFactory session = session( 1 );
+        session.init( file( "outer" ).getPath(), ManaFormat.JSON.name() );
+        session.execute( null, 0, 0 );
+        measure( session, "inner", 0 );
+        // the outer measurement still needs the sampler
+        assertEquals( 1, session.getPending() );
+        assertFalse( samplers.get( 0 ).stopped );
+
+        session.stop();
+        assertTrue( samplers.get( 0 ).stopped );
+        assertEquals( 0, session.getPending() );
+        assertTrue( file( "outer" ).exists() );
+        assertTrue( file( "inner" ).exists() );
+    }
+
+    public void testFlushSlicesTheSamplesOfEachMeasurement() throws Exception {
+        SessionCommandFactory session = session( 16 );
+        measure( session, "first", 30 );
+        Thread.sleep( 60 );
+        measure( session, "second", 30 );
+        session.flush();
+
+        List<Long> first = times( file( "first" ) );
+        List<Long> second = times( file( "second" ) );
+        int all = samplers.get( 0 ).samples;
+        assertTrue( first.size() + " of " + all, first.size() < all );
+        assertTrue( second.size() + " of " + all, second.size() < all );
+        // each file encloses its measurement, the samples between both belong to neither
+        assertTrue( first.get( first.size() - 1 ) < second.get( 0 ) );
+        assertTrue( first.size() + second.size() < all );
+    }
+
+    private SessionCommandFactory session( int maxPending ) {
+        return new SessionCommandFactory( energy -> {
+            FakeSampler sampler = new FakeSampler( energy );
+            samplers.add( sampler );
+            return sampler;
+        }, maxPending );
+    }
+
+    private void measure( SessionCommandFactory session, String name, long millis ) {
+        session.init( file( name ).getPath(), ManaFormat.JSON.name() );
+        session.execute( null, 0, 0 );
+        try {
+            Thread.sleep( millis );
+        } catch( InterruptedException e ) {
+            throw new IllegalStateException( e );
+        }
+        session.stop();
+    }
+
+    private File file( String name ) {
+        return new File( folder, name + ManaFormat.JSON.getExtension() );
+    }
+
+    private static List<Long> times( File file ) throws IOException {
+        String json = new String( Files.readAllBytes( file.toPath() ), StandardCharsets.UTF_8 );
+        Matcher matcher = TIME.matcher( json.substring( json.indexOf( "\"energy\":" ) ) );
+        List<Long> times = new ArrayList<>();
+        while( matcher.find() )
+            times.add( Long.parseLong( matcher.group( 1 ) ) );
+        return times;
+    }
+
+    /**
+     * Sampler taking a sample every 5 ms, written once it is stopped
+     */
+    private static final class FakeSampler implements SessionCommandFactory.Sampler {
+        private final Writer energy;
+        private long start;
+        private boolean stopped;
+        private int samples;
+
+        FakeSampler( Writer energy ) {
+            this.energy = energy;
+        }
+
+        @Override
+        public void start( RaplInternalCommandParameter parameter ) {
+            start = System.currentTimeMillis();
+        }
+
+        @Override
+        public void stop() {
+            long end = System.currentTimeMillis() + 5;
+            StringBuilder json = new StringBuilder( "[" );
+            for( long time = start - 5; time <= end; time += 5, samples++ )
+                json.append( samples > 0 ? "," : "" )
+                        .append( "{\"time\":\"" ).append( time ).append( "\", \"pkg\":" ).append( samples ).append( '}' );
+            try {
+                energy.write( json.append( ']' ).toString() );
+            } catch( IOException e ) {
+                throw new UncheckedIOException( e );
+            }
+            stopped = true;
+        }
+    }
+
+}
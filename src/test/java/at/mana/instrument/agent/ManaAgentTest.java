@@ -0,0 +1,75 @@
+package at.mana.instrument.agent;
+
+import at.mana.instrument.InstrumentationConfig;
+import at.mana.instrument.format.ManaFormat;
+import at.mana.instrument.format.TraceLayout;
+import at.mana.instrument.trace.MethodTable;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtNewConstructor;
+import javassist.CtNewMethod;
+import junit.framework.TestCase;
+
+import java.util.List;
+
+public class ManaAgentTest extends TestCase {
+
+    public void testArguments() {
+        InstrumentationConfig config = ManaAgent.configure( ManaAgent.parse( "packages=at.mana.a, at.mana.b;trace=true;callSampling=8" ) );
+        assertEquals( List.of( "at.mana.a", "at.mana.b" ), config.getPackages() );
+        assertTrue( config.isTrace() );
+        assertEquals( 8, config.getCallSampling() );
+
+        config = ManaAgent.configure( ManaAgent.parse( "packages=at.mana;samples=50;cooldownPeriods=2" ) );
+        assertEquals( 75, config.warmupMillis() );
+        assertEquals( 125, config.cooldownMillis() );
+        config = ManaAgent.configure( ManaAgent.parse( "packages=at.mana;samples=50;sampleSync=fixed" ) );
+        assertEquals( 200, config.warmupMillis() );
+        assertEquals( 200, config.cooldownMillis() );
+        config = ManaAgent.configure( ManaAgent.parse( "packages=at.mana;traceLayout=collapsed" ) );
+        assertEquals( TraceLayout.COLLAPSED, config.getTraceLayout() );
+        config = ManaAgent.configure( ManaAgent.parse( "packages=at.mana;traceLayout=tree;format=binary" ) );
+        assertEquals( TraceLayout.CALLS, config.getTraceLayout() );
+        // the agent validates its arguments as the mojo does, see InstrumentationConfigTest
+        config = ManaAgent.configure( ManaAgent.parse( "packages=at.mana;port=9000;format=binary;traceLayout=tree" ) );
+        assertEquals( ManaFormat.JSON, config.getFormat() );
+        assertEquals( TraceLayout.CALLS, config.getTraceLayout() );
+        config = ManaAgent.configure( ManaAgent.parse( "packages=at.mana;adaptiveSampling=true;adaptiveWindow=500" ) );
+        assertEquals( 500, config.getAdaptiveWindow() );
+        assertEquals( 1000, ManaAgent.configure( ManaAgent.parse( "packages=at.mana;adaptiveSampling=true" ) ).getAdaptiveWindow() );
+        assertEquals( 0, ManaAgent.configure( ManaAgent.parse( "packages=at.mana;adaptiveWindow=500" ) ).getAdaptiveWindow() );
+        assertEquals( 0, ManaAgent.configure( ManaAgent.parse( "packages=at.mana;adaptiveSampling=true;port=9000" ) ).getAdaptiveWindow() );
+        try {
+            ManaAgent.configure( ManaAgent.parse( "packages=at.mana;unknown=1" ) );
+            fail();
+        } catch( IllegalArgumentException expected ) {
+        }
+    }
+
+    public void testClassesOutsideThePackagesAreNotParsed() {
+        ManaClassFileTransformer transformer = transformer();
+        assertTrue( transformer.isCandidate( "at/mana/sample/Agent" ) );
+        assertFalse( transformer.isCandidate( "java/lang/String" ) );
+        assertFalse( transformer.isCandidate( "at/mana/instrument/FileCommandFactory" ) );
+        // not even a class file, rejected by name only
+        assertNull( transformer.transform( null, "org/example/Other", null, null, new byte[]{ 1, 2, 3 } ) );
+    }
+
+    public void testTransformRegistersMethodNames() throws Exception {
+        CtClass ctClass = new ClassPool( true ).makeClass( "at.mana.sample.Agent" );
+        ctClass.addConstructor( CtNewConstructor.defaultConstructor( ctClass ) );
+        ctClass.addMethod( CtNewMethod.make( "public int work(int x) { return x * 2; }", ctClass ) );
+        byte[] original = ctClass.toBytecode();
+
+        byte[] transformed = transformer().transform( getClass().getClassLoader(), "at/mana/sample/Agent", null, null, original );
+        assertNotNull( transformed );
+
+        int base = MethodTable.register( "at.mana.sample.Agent", 1 );
+        assertEquals( "work", MethodTable.get( base ).getMethodName() );
+    }
+
+    private static ManaClassFileTransformer transformer() {
+        return new ManaClassFileTransformer( ManaAgent.configure( ManaAgent.parse( "packages=at.mana.sample;trace=true" ) ), false );
+    }
+
+}
@@ -0,0 +1,174 @@
+package at.mana.instrument.archive;
+
+import at.mana.instrument.InstrumentationConfig;
+import at.mana.instrument.InstrumentationReport;
+import at.mana.instrument.trace.MethodTable;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtNewConstructor;
+import javassist.CtNewMethod;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+public class ArchiveInstrumenterTest extends TestCase {
+
+    private File directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = Files.createTempDirectory( "mana-archive" ).toFile();
+    }
+
+    @Override
+    protected void tearDown() {
+        File[] files = directory.listFiles();
+        if( files != null ) {
+            for( File file : files )
+                file.delete();
+        }
+        directory.delete();
+    }
+
+    public void testCopiesEntriesRawAndInstrumentsClasses() throws Exception {
+        File source = new File( directory, "app.jar" );
+        try( ZipOutputStream out = new ZipOutputStream( new FileOutputStream( source ) ) ) {
+            deflated( out, "META-INF/MANIFEST.MF", "Manifest-Version: 1.0\r\n".getBytes( StandardCharsets.UTF_8 ) );
+            deflated( out, "META-INF/APP.SF", "Signature-Version: 1.0\r\n".getBytes( StandardCharsets.UTF_8 ) );
+            stored( out, "data.bin", new byte[]{ 1, 2, 3, 4 } );
+            deflated( out, "at/mana/sample/Packed.class", sample( "at.mana.sample.Packed" ) );
+            deflated( out, "at/mana/other/Kept.class", sample( "at.mana.other.Kept" ) );
+            deflated( out, "readme.txt", "unchanged ".repeat( 100 ).getBytes( StandardCharsets.UTF_8 ) );
+        }
+        File target = new File( directory, "app-mana.jar" );
+        SortedMap<String, InstrumentationReport> reports = instrumenter( 1 ).instrument( source, target );
+        assertFalse( reports.get( source.getPath() + "!/at/mana/sample/Packed.class" ).hasErrors() );
+        assertFalse( reports.containsKey( source.getPath() + "!/at/mana/other/Kept.class" ) );
+
+        ZipArchive before = ZipArchive.open( source );
+        ZipArchive after = ZipArchive.open( target );
+        List<String> names = new ArrayList<>();
+        after.getEntries().forEach( e -> names.add( e.getName() ) );
+        // the signature no longer matches and is dropped, the method table is added
+        assertEquals( List.of( "META-INF/MANIFEST.MF", "data.bin", "at/mana/sample/Packed.class",
+                "at/mana/other/Kept.class", "readme.txt", MethodTable.RESOURCE ), names );
+        for( String name : List.of( "META-INF/MANIFEST.MF", "data.bin", "at/mana/other/Kept.class", "readme.txt" ) )
+            assertEquals( name, before.raw( before.getEntry( name ) ), after.raw( after.getEntry( name ) ) );
+        assertEquals( ZipArchive.STORED, after.getEntry( "data.bin" ).getMethod() );
+
+        CtClass packed = new ClassPool( true ).makeClass( new ByteArrayInputStream( after.read( after.getEntry( "at/mana/sample/Packed.class" ) ) ) );
+        assertNotNull( packed.getField( MethodTable.BASE_FIELD ) );
+        Map<String, List<MethodTable.Method>> table = MethodTable.read( new InputStreamReader(
+                new ByteArrayInputStream( after.read( after.getEntry( MethodTable.RESOURCE ) ) ), StandardCharsets.UTF_8 ) );
+        assertEquals( List.of( "at.mana.sample.Packed" ), new ArrayList<>( table.keySet() ) );
+
+        // the java.util.zip reader agrees with the checksums and sizes written
+        try( ZipFile zip = new ZipFile( target ) ) {
+            assertEquals( names.size(), zip.size() );
+            for( ZipEntry entry : Collections.list( zip.entries() ) ) {
+                CRC32 crc = new CRC32();
+                crc.update( zip.getInputStream( entry ).readAllBytes() );
+                assertEquals( entry.getName(), entry.getCrc(), crc.getValue() );
+            }
+        }
+    }
+
+    public void testRewritesNestedLibrariesInParallel() throws Exception {
+        ByteArrayOutputStream library = new ByteArrayOutputStream();
+        try( ZipOutputStream out = new ZipOutputStream( library ) ) {
+            deflated( out, "at/mana/sample/Library.class", sample( "at.mana.sample.Library" ) );
+        }
+        File source = new File( directory, "app.war" );
+        try( ZipOutputStream out = new ZipOutputStream( new FileOutputStream( source ) ) ) {
+            for( int i = 0; i < 20; i++ )
+                deflated( out, "WEB-INF/classes/at/mana/sample/Web" + i + ".class", sample( "at.mana.sample.Web" + i ) );
+            stored( out, "WEB-INF/lib/library.jar", library.toByteArray() );
+            stored( out, "WEB-INF/lib/empty.jar", emptyJar() );
+        }
+        File target = new File( directory, "app-mana.war" );
+        SortedMap<String, InstrumentationReport> reports = instrumenter( 4 ).instrument( source, target );
+        reports.values().forEach( r -> assertFalse( r.hasErrors() ) );
+
+        ZipArchive before = ZipArchive.open( source );
+        ZipArchive after = ZipArchive.open( target );
+        assertNotNull( after.getEntry( "WEB-INF/classes/" + MethodTable.RESOURCE ) );
+        assertNull( after.getEntry( MethodTable.RESOURCE ) );
+        assertEquals( before.raw( before.getEntry( "WEB-INF/lib/empty.jar" ) ), after.raw( after.getEntry( "WEB-INF/lib/empty.jar" ) ) );
+
+        ZipArchive.Entry nested = after.getEntry( "WEB-INF/lib/library.jar" );
+        assertEquals( ZipArchive.STORED, nested.getMethod() );
+        ZipArchive rewritten = after.open( nested );
+        assertNotNull( rewritten.getEntry( MethodTable.RESOURCE ) );
+        CtClass ctClass = new ClassPool( true ).makeClass( new ByteArrayInputStream(
+                rewritten.read( rewritten.getEntry( "at/mana/sample/Library.class" ) ) ) );
+        assertNotNull( ctClass.getField( MethodTable.BASE_FIELD ) );
+    }
+
+    public void testReplacesArchiveInPlace() throws Exception {
+        File source = new File( directory, "self.jar" );
+        try( ZipOutputStream out = new ZipOutputStream( new FileOutputStream( source ) ) ) {
+            deflated( out, "at/mana/sample/Self.class", sample( "at.mana.sample.Self" ) );
+        }
+        instrumenter( 1 ).instrument( source, source );
+        assertNotNull( ZipArchive.open( source ).getEntry( MethodTable.RESOURCE ) );
+        assertEquals( 1, directory.listFiles().length );
+    }
+
+    private static ArchiveInstrumenter instrumenter( int threads ) {
+        InstrumentationConfig config = InstrumentationConfig.builder()
+                .packages( List.of( "at.mana.sample" ) )
+                .samplingRate( 50 )
+                .trace( true )
+                .build();
+        return new ArchiveInstrumenter( threads, config, () -> new ClassPool( true ) );
+    }
+
+    private static byte[] sample( String name ) throws Exception {
+        CtClass ctClass = new ClassPool( true ).makeClass( name );
+        ctClass.addConstructor( CtNewConstructor.defaultConstructor( ctClass ) );
+        ctClass.addMethod( CtNewMethod.make( "public int compute(int x) { int y = x * x; return y + x * 3 - 7; }", ctClass ) );
+        return ctClass.toBytecode();
+    }
+
+    private static byte[] emptyJar() throws Exception {
+        ByteArrayOutputStream jar = new ByteArrayOutputStream();
+        try( ZipOutputStream out = new ZipOutputStream( jar ) ) {
+            deflated( out, "readme.txt", new byte[]{ 'x' } );
+        }
+        return jar.toByteArray();
+    }
+
+    private static void deflated( ZipOutputStream out, String name, byte[] content ) throws Exception {
+        out.putNextEntry( new ZipEntry( name ) );
+        out.write( content );
+        out.closeEntry();
+    }
+
+    private static void stored( ZipOutputStream out, String name, byte[] content ) throws Exception {
+        ZipEntry entry = new ZipEntry( name );
+        CRC32 crc = new CRC32();
+        crc.update( content );
+        entry.setMethod( ZipEntry.STORED );
+        entry.setSize( content.length );
+        entry.setCrc( crc.getValue() );
+        out.putNextEntry( entry );
+        out.write( content );
+        out.closeEntry();
+    }
+
+}
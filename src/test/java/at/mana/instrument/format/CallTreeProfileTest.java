@@ -0,0 +1,131 @@
+package at.mana.instrument.format;
+
+import at.mana.instrument.trace.MethodTable;
+import at.mana.instrument.trace.TraceRecorder;
+import at.mana.instrument.trace.TraceSnapshot;
+import junit.framework.TestCase;
+
+import java.io.StringWriter;
+import java.util.List;
+
+public class CallTreeProfileTest extends TestCase {
+
+    private static final long EPOCH_MICROS = 1_617_000_000_000_000L;
+    private static final String ENERGY = "[{\"time\":\"1617000000000\", \"pkg\":99.0},"
+            + "{\"time\":\"1617000000050\", \"pkg\":5.0},"
+            + "{\"time\":\"1617000000100\", \"pkg\":10.0}]";
+
+    private int base;
+
+    @Override
+    protected void setUp() {
+        base = MethodTable.register( List.of(
+                new MethodTable.Method( "at.mana.Profiled", "main", "()V", 0 ),
+                new MethodTable.Method( "at.mana.Profiled", "a", "()V", 1 ),
+                new MethodTable.Method( "at.mana.Profiled", "b", "()V", 2 ) ) );
+    }
+
+    public void testAggregatesCallsByPath() throws Exception {
+        CallTreeProfile profile = CallTreeProfile.build( sampleTrace(), null );
+        CallTreeProfile.Node main = profile.getRoot().getChild( base );
+        assertEquals( 1, profile.getRoot().getChildren().size() );
+        assertEquals( 1, main.getCalls() );
+        assertEquals( 100_000_000L, main.getTotalNanos() );
+        assertEquals( 60_000_000L, main.getSelfNanos() );
+
+        CallTreeProfile.Node a = main.getChild( base + 1 );
+        assertEquals( 2, a.getCalls() );
+        assertEquals( 1, a.getExceptions() );
+        assertEquals( 40_000_000L, a.getTotalNanos() );
+        assertEquals( 30_000_000L, a.getSelfNanos() );
+
+        CallTreeProfile.Node b = a.getChild( base + 2 );
+        assertEquals( 1, b.getCalls() );
+        assertEquals( 10_000_000L, b.getSelfNanos() );
+        assertNull( main.getChild( base + 2 ) );
+        assertEquals( 0, profile.getEnergyNames().length );
+    }
+
+    public void testAssignsEnergyByOverlappingSelfTime() throws Exception {
+        CallTreeProfile profile = CallTreeProfile.build( sampleTrace(), ENERGY );
+        assertEquals( "pkg", profile.getEnergyNames()[0] );
+        CallTreeProfile.Node main = profile.getRoot().getChild( base );
+        CallTreeProfile.Node a = main.getChild( base + 1 );
+        CallTreeProfile.Node b = a.getChild( base + 2 );
+        // the first sample only marks the start of the first period
+        assertEquals( 10.0, main.getSelfEnergy( 0 ), 1e-9 );
+        assertEquals( 4.0, a.getSelfEnergy( 0 ), 1e-9 );
+        assertEquals( 1.0, b.getSelfEnergy( 0 ), 1e-9 );
+        assertEquals( 15.0, main.getEnergy( 0 ), 1e-9 );
+        assertEquals( 5.0, a.getEnergy( 0 ), 1e-9 );
+        assertEquals( 0.0, profile.getUnattributed( 0 ), 1e-9 );
+    }
+
+    public void testKeepsEnergyOfUntracedTime() throws Exception {
+        TraceRecorder recorder = new TraceRecorder( 16 );
+        call( recorder, base, 10, 20 );
+        CallTreeProfile profile = CallTreeProfile.build( recorder.snapshot(), ENERGY );
+        assertEquals( 1.0, profile.getRoot().getChild( base ).getSelfEnergy( 0 ), 1e-9 );
+        assertEquals( 14.0, profile.getUnattributed( 0 ), 1e-9 );
+    }
+
+    public void testWritesJsonAndCollapsedStacks() throws Exception {
+        CallTreeProfile profile = CallTreeProfile.build( sampleTrace(), ENERGY );
+        StringWriter json = new StringWriter();
+        profile.writeJson( json );
+        assertTrue( json.toString().startsWith( "[{\"methodName\":\"main\", \"className\":\"at.mana.Profiled\"" ) );
+        assertTrue( json.toString().contains( "\"calls\":\"2\", \"exceptions\":\"1\", \"total\":\"40000\", \"self\":\"30000\", "
+                + "\"energy\":{\"pkg\":5.0}, \"selfEnergy\":{\"pkg\":4.0}, \"children\":[" ) );
+        assertTrue( json.toString().endsWith( "\"children\":[]}]}]}]" ) );
+
+        StringWriter time = new StringWriter();
+        profile.writeCollapsed( time, -1 );
+        assertEquals( "at.mana.Profiled.main 60000\n"
+                + "at.mana.Profiled.main;at.mana.Profiled.a 30000\n"
+                + "at.mana.Profiled.main;at.mana.Profiled.a;at.mana.Profiled.b 10000\n", time.toString() );
+        StringWriter energy = new StringWriter();
+        profile.writeCollapsed( energy, 0 );
+        assertTrue( energy.toString().startsWith( "at.mana.Profiled.main 10000000\n" ) );
+    }
+
+    public void testWritesDeepRecursion() throws Exception {
+        TraceRecorder recorder = new TraceRecorder( 1 << 16 );
+        long start = recorder.toNanos( EPOCH_MICROS );
+        for( int depth = 0; depth < 10_000; depth++ )
+            recorder.enter( base, start + depth );
+        for( int depth = 10_000; depth > 0; depth-- )
+            recorder.exit( base, start + 20_000 - depth );
+        StringWriter json = new StringWriter();
+        CallTreeProfile.build( recorder.snapshot(), null ).writeJson( json );
+        assertTrue( json.toString().endsWith( "]}]" ) );
+    }
+
+    /**
+     * main from 0 to 100 ms calls a from 10 to 40 ms, which calls b from 20 to 30 ms, and a from
+     * 50 to 60 ms, which throws
+     */
+    private TraceSnapshot sampleTrace() {
+        TraceRecorder recorder = new TraceRecorder( 64 );
+        long time = recorder.toNanos( EPOCH_MICROS );
+        recorder.enter( base, time );
+        recorder.enter( base + 1, time + millis( 10 ) );
+        recorder.enter( base + 2, time + millis( 20 ) );
+        recorder.exit( base + 2, time + millis( 30 ) );
+        recorder.exit( base + 1, time + millis( 40 ) );
+        recorder.enter( base + 1, time + millis( 50 ) );
+        recorder.exitExceptionally( base + 1, time + millis( 60 ) );
+        recorder.exit( base, time + millis( 100 ) );
+        return recorder.snapshot();
+    }
+
+    private static void call( TraceRecorder recorder, int id, long fromMillis, long toMillis ) {
+        long time = recorder.toNanos( EPOCH_MICROS );
+        recorder.enter( id, time + millis( fromMillis ) );
+        recorder.exit( id, time + millis( toMillis ) );
+    }
+
+    private static long millis( long millis ) {
+        return millis * 1_000_000L;
+    }
+
+}
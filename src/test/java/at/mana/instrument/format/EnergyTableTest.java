@@ -0,0 +1,16 @@
+package at.mana.instrument.format;
+
+import junit.framework.TestCase;
+
+public class EnergyTableTest extends TestCase {
+
+    public void testTimeColumnIsGuessed() throws Exception {
+        EnergyTable table = EnergyTable.parse( "[{\"seq\":2, \"at\":1617000000000000, \"pkg\":1.5},"
+                + "{\"seq\":1, \"at\":1617000000050000, \"pkg\":2.5}]" );
+        assertEquals( "at", table.getTimeColumn().getName() );
+        assertEquals( 1617000000050L, EnergyTable.toEpochMillis( table.getTimeColumn().getLong( 1 ) ) );
+        assertEquals( 1617000000000L, EnergyTable.toEpochMillis( 1617000000L ) );
+        assertEquals( 1617000000000L, EnergyTable.toEpochMillis( 1617000000000000000L ) );
+    }
+
+}
@@ -0,0 +1,130 @@
+package at.mana.instrument.format;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.zip.GZIPOutputStream;
+
+public class ManaAnalyzerTest extends TestCase {
+
+    private File directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = Files.createTempDirectory( "mana-analyzer" ).toFile();
+    }
+
+    @Override
+    protected void tearDown() {
+        delete( directory );
+    }
+
+    private static void delete( File file ) {
+        File[] files = file.listFiles();
+        if( files != null ) {
+            for( File child : files )
+                delete( child );
+        }
+        file.delete();
+    }
+
+    public void testReadsTraceEnergyAndMeta() throws Exception {
+        String json = "{\"trace\":[" + entry( 1000, 4000 ) + "," + entry( 2000, 9000 ) + "], \"energy\":["
+                + "{\"time\":\"1617000000000\", \"pkg\":2.5, \"dram\":1, \"unit\":\"J\"},"
+                + "{\"time\":\"1617000000050\", \"pkg\":1.5, \"dram\":3, \"unit\":\"J\"}],"
+                + " \"exception\":\"true\", \"energyShare\":0.5}";
+        ManaAnalyzer.Run run = ManaAnalyzer.read( "at.mana.Sample#test", new StringReader( json ) );
+        assertEquals( 8000, run.durationMicros );
+        assertTrue( run.thrown );
+        // the first sample only bounds the period of the second one
+        assertEquals( 0.75, run.energy.get( "pkg" ) );
+        assertEquals( 1.5, run.energy.get( "dram" ) );
+        assertFalse( run.energy.containsKey( "time" ) );
+
+        // the meta section knows the duration of the whole measurement
+        run = ManaAnalyzer.read( "at.mana.Sample#test", new StringReader(
+                "{\"trace\":[" + entry( 1000, 4000 ) + "], \"energy\":[], \"meta\":{\"traceEvents\":2, \"duration\":12000}}" ) );
+        assertEquals( 12000, run.durationMicros );
+        assertFalse( run.thrown );
+    }
+
+    public void testSamplesOutsideTheMeasuredIntervalAreLeftOut() throws Exception {
+        StringBuilder energy = new StringBuilder();
+        for( int i = 0; i <= 10; i++ )
+            energy.append( i > 0 ? "," : "" ).append( "{\"time\":\"" ).append( 1617000000000L + i * 100 ).append( "\", \"pkg\":1.0}" );
+        // warmup samples at 0, 100 and 200, the method runs from 250 to 550, cooldown samples at 700 to 1000
+        String json = "{\"trace\":[], \"energy\":[" + energy + "], \"meta\":{\"duration\":300000, "
+                + "\"start\":1617000000250, \"end\":1617000000550}}";
+        ManaAnalyzer.Run run = ManaAnalyzer.read( "at.mana.Sample#test", new StringReader( json ) );
+        // periods ending at 300, 400, 500 and 600
+        assertEquals( 4.0, run.energy.get( "pkg" ) );
+
+        // without the interval all samples but the first count
+        run = ManaAnalyzer.read( "at.mana.Sample#test", new StringReader( "{\"energy\":[" + energy + "]}" ) );
+        assertEquals( 10.0, run.energy.get( "pkg" ) );
+    }
+
+    public void testMethodIsTakenFromTheFileName() {
+        assertEquals( "at.mana.SampleTest#testRuns", ManaAnalyzer.methodOf( "at.mana.SampleTest_testRuns_1617000000000.mana" ) );
+        assertEquals( "at.mana.SampleTest#test_with_underscores",
+                ManaAnalyzer.methodOf( "at.mana.SampleTest_test_with_underscores_1617000000000.mana.gz" ) );
+    }
+
+    public void testAggregatesRunsAndFindsRegressions() throws Exception {
+        File baseline = new File( directory, "baseline" );
+        File current = new File( directory, "current" );
+        for( int i = 1; i <= 10; i++ ) {
+            write( baseline, "at.mana.SampleTest_testRuns_" + i + ".mana", i * 1000, i );
+            write( baseline, "at.mana.SampleTest_testOther_" + i + ".mana", 1000, 5 );
+            write( current, "at.mana.SampleTest_testRuns_" + i + ".mana.gz", i * 1000, i * 2 );
+        }
+        write( current, "at.mana.SampleTest_testRuns_11.mana", -1, 0 );
+        write( current, "at.mana.SampleTest_testRuns_12.mana.tmp", 1000, 0 );
+
+        SortedMap<String, ManaAnalyzer.Summary> before = ManaAnalyzer.analyze( ManaAnalyzer.files( List.of( baseline ) ), 4 );
+        ManaAnalyzer.Summary runs = before.get( "at.mana.SampleTest#testRuns" );
+        assertEquals( 10, runs.runs );
+        assertEquals( 5_000, ManaAnalyzer.percentile( runs.durations, 0.5 ) );
+        assertEquals( 9_000, ManaAnalyzer.percentile( runs.durations, 0.9 ) );
+        assertEquals( 5.0, runs.energy( "pkg", 0.5 ) );
+        assertEquals( 10.0, runs.energy( "pkg", 0.99 ) );
+
+        StringWriter report = new StringWriter();
+        ManaAnalyzer.report( before, report );
+        String[] lines = report.toString().split( "\n" );
+        assertEquals( "method,runs,exceptions,duration_p50,duration_p90,duration_p99,pkg_p50,pkg_p90,pkg_p99", lines[0] );
+        assertEquals( "at.mana.SampleTest#testRuns,10,0,5.000,9.000,10.000,5.000,9.000,10.000", lines[2] );
+
+        SortedMap<String, ManaAnalyzer.Summary> after = ManaAnalyzer.analyze( ManaAnalyzer.files( List.of( current ) ), 4 );
+        assertEquals( 11, after.get( "at.mana.SampleTest#testRuns" ).runs );
+        assertEquals( 10, after.get( "at.mana.SampleTest#testRuns" ).durations.length );
+        StringWriter diff = new StringWriter();
+        assertEquals( 1, ManaAnalyzer.diff( before, after, 5.0, diff ) );
+        assertTrue( diff.toString().contains( "at.mana.SampleTest#testRuns,pkg,5.000,10.000,100.000,true" ) );
+        assertEquals( 0, ManaAnalyzer.diff( after, before, 5.0, new StringWriter() ) );
+    }
+
+    private static void write( File directory, String name, long durationMicros, double pkg ) throws Exception {
+        directory.mkdirs();
+        String json = "{\"trace\":[], \"energy\":[{\"time\":\"1617000000000\", \"pkg\":0.0}, {\"time\":\"1617000000100\", \"pkg\":" + pkg + "}]"
+                + (durationMicros < 0 ? "" : ", \"meta\":{\"duration\":" + durationMicros + "}") + "}";
+        File file = new File( directory, name );
+        try( OutputStream out = name.endsWith( ".gz" ) ? new GZIPOutputStream( new FileOutputStream( file ) ) : new FileOutputStream( file ) ) {
+            out.write( json.getBytes( StandardCharsets.UTF_8 ) );
+        }
+    }
+
+    private static String entry( long start, long end ) {
+        return TraceJson.entry( new StringBuilder(), TraceJson.prefix( "at.mana.Sample", "run", "()V", 0 ),
+                start, end, "main", false ).toString();
+    }
+
+}
@@ -0,0 +1,163 @@
+package at.mana.instrument.format;
+
+import at.mana.instrument.trace.MethodTable;
+import at.mana.instrument.trace.TraceJsonWriter;
+import at.mana.instrument.trace.TraceRecorder;
+import at.mana.instrument.trace.TraceSnapshot;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+public class ManaBinaryFormatTest extends TestCase {
+
+    private static final String ENERGY = "[{\"time\":\"1617000000000\", \"pkg\":12.5, \"dram\":3, \"unit\":\"J\"},"
+            + "{\"time\":\"1617000000050\", \"pkg\":11.25, \"dram\":4, \"unit\":\"J\"}]";
+
+    public void testConvertsBackToJson() throws Exception {
+        TraceSnapshot snapshot = sampleTrace( 64 );
+        assertEquals( json( snapshot, ENERGY ), convert( snapshot, ENERGY ) );
+    }
+
+    public void testKeepsEnergyThatIsNoTable() throws Exception {
+        TraceSnapshot snapshot = sampleTrace( 2 );
+        String energy = "{\"samples\":[1, 2, 3]}";
+        assertEquals( json( snapshot, energy ), convert( snapshot, energy ) );
+    }
+
+    public void testIsSmallerThanJson() throws Exception {
+        TraceSnapshot snapshot = sampleTrace( 4096 );
+        ByteArrayOutputStream binary = new ByteArrayOutputStream();
+        new ManaBinaryWriter().write( snapshot, ENERGY, false, binary );
+        assertTrue( binary.size() * 10 < json( snapshot, ENERGY ).length() );
+    }
+
+    public void testKeepsExceptions() throws Exception {
+        int id = MethodTable.register( List.of( new MethodTable.Method( "at.mana.Sample", "fail", "()V", 0 ) ) );
+        TraceRecorder recorder = new TraceRecorder( 16 );
+        long time = recorder.toNanos( 1_617_000_000_000_000L );
+        recorder.enter( id, time );
+        recorder.exitExceptionally( id, time + 5_000 );
+        TraceSnapshot snapshot = recorder.snapshot();
+        assertTrue( snapshot.isThrown( 0 ) );
+
+        ByteArrayOutputStream binary = new ByteArrayOutputStream();
+        new ManaBinaryWriter().write( snapshot, null, true, binary );
+        StringWriter writer = new StringWriter();
+        new ManaBinaryReader( new ByteArrayInputStream( binary.toByteArray() ) ).toJson( writer );
+        StringWriter trace = new StringWriter();
+        new TraceJsonWriter().write( snapshot, trace );
+        assertTrue( trace.toString().contains( "\"exception\":\"true\"" ) );
+        assertEquals( "{\"trace\":" + trace + ", \"exception\":\"true\"}", writer.toString() );
+    }
+
+    public void testKeepsEnergyShare() throws Exception {
+        TraceSnapshot snapshot = sampleTrace( 2 );
+        ByteArrayOutputStream binary = new ByteArrayOutputStream();
+        new ManaBinaryWriter().write( snapshot, ENERGY, false, 0.25, binary );
+        StringWriter writer = new StringWriter();
+        new ManaBinaryReader( new ByteArrayInputStream( binary.toByteArray() ) ).toJson( writer );
+        String json = json( snapshot, ENERGY );
+        assertEquals( json.substring( 0, json.length() - 1 ) + ", \"energyShare\":0.25}", writer.toString() );
+    }
+
+    public void testKeepsMeta() throws Exception {
+        TraceSnapshot snapshot = sampleTrace( 2 );
+        String meta = "{\"traceEvents\":4, \"droppedEvents\":0}";
+        ByteArrayOutputStream binary = new ByteArrayOutputStream();
+        new ManaBinaryWriter().write( snapshot, ENERGY, false, 0.5, meta, binary );
+        StringWriter writer = new StringWriter();
+        new ManaBinaryReader( new ByteArrayInputStream( binary.toByteArray() ) ).toJson( writer );
+        String json = json( snapshot, ENERGY );
+        assertEquals( json.substring( 0, json.length() - 1 ) + ", \"energyShare\":0.5, \"meta\":" + meta + "}", writer.toString() );
+    }
+
+    public void testDownsampleMergesLaterSamples() throws Exception {
+        StringBuilder json = new StringBuilder( "[" );
+        for( int i = 0; i < 10; i++ )
+            json.append( i > 0 ? "," : "" ).append( "{\"time\":\"" ).append( 1617000000000L + i * 100 )
+                    .append( "\", \"pkg\":1.5, \"dram\":1, \"unit\":\"J\"}" );
+        EnergyTable table = EnergyTable.parse( json.append( ']' ).toString() );
+        assertSame( table, table.downsample( 1000 ) );
+
+        // samples 0-1 are kept, 2-3 are merged in pairs, 4-7 in fours and 8-9 in a group of up to eight
+        EnergyTable merged = table.downsample( 200 );
+        assertEquals( 5, merged.getRows() );
+        StringWriter writer = new StringWriter();
+        merged.writeJson( writer );
+        assertEquals( "[{\"time\":\"1617000000000\", \"pkg\":1.5, \"dram\":1, \"unit\":\"J\"},"
+                + "{\"time\":\"1617000000100\", \"pkg\":1.5, \"dram\":1, \"unit\":\"J\"},"
+                + "{\"time\":\"1617000000300\", \"pkg\":3.0, \"dram\":2, \"unit\":\"J\"},"
+                + "{\"time\":\"1617000000700\", \"pkg\":6.0, \"dram\":4, \"unit\":\"J\"},"
+                + "{\"time\":\"1617000000900\", \"pkg\":3.0, \"dram\":2, \"unit\":\"J\"}]", writer.toString() );
+    }
+
+    public void testConvertsCompressedFiles() throws Exception {
+        TraceSnapshot snapshot = sampleTrace( 16 );
+        File source = File.createTempFile( "mana", ".manab.gz" );
+        File target = new File( source.getParentFile(), source.getName().replace( ".manab.gz", ".mana" ) );
+        try {
+            try( OutputStream out = new GZIPOutputStream( new FileOutputStream( source ) ) ) {
+                new ManaBinaryWriter().write( snapshot, ENERGY, false, out );
+            }
+            assertEquals( target, ManaConverter.convert( source ) );
+            assertEquals( json( snapshot, ENERGY ), new String( Files.readAllBytes( target.toPath() ), StandardCharsets.UTF_8 ) );
+        } finally {
+            source.delete();
+            target.delete();
+        }
+    }
+
+    public void testEnergyTable() throws Exception {
+        EnergyTable table = EnergyTable.parse( ENERGY );
+        assertEquals( 2, table.getRows() );
+        assertEquals( EnergyTable.Type.QUOTED_LONG, table.getColumn( "time" ).getType() );
+        assertEquals( EnergyTable.Type.DOUBLE, table.getColumn( "pkg" ).getType() );
+        assertEquals( EnergyTable.Type.LONG, table.getColumn( "dram" ).getType() );
+        assertEquals( EnergyTable.Type.STRING, table.getColumn( "unit" ).getType() );
+        assertEquals( 1617000000050L, table.getColumn( "time" ).getLong( 1 ) );
+        assertNull( EnergyTable.parse( "[{\"a\":1}, {\"b\":1}]" ) );
+    }
+
+    private static TraceSnapshot sampleTrace( int calls ) {
+        int base = MethodTable.register( List.of(
+                new MethodTable.Method( "at.mana.Sample", "outer", "()V", 0 ),
+                new MethodTable.Method( "at.mana.Sample", "inner", "(I)I", 1 ) ) );
+        TraceRecorder recorder = new TraceRecorder( 1 << 16 );
+        long time = recorder.toNanos( 1_617_000_000_000_000L );
+        for( int i = 0; i < calls; i++ ) {
+            recorder.enter( base, time += 1_500 );
+            recorder.enter( base + 1, time += 700 );
+            recorder.exit( base + 1, time += 12_345 );
+            recorder.exit( base, time += 999 );
+        }
+        return recorder.snapshot();
+    }
+
+    private static String json( TraceSnapshot snapshot, String energy ) throws Exception {
+        StringWriter writer = new StringWriter();
+        writer.write( "{\"trace\":" );
+        new TraceJsonWriter().write( snapshot, writer );
+        writer.write( ", \"energy\":" );
+        writer.write( energy );
+        writer.write( "}" );
+        return writer.toString();
+    }
+
+    private static String convert( TraceSnapshot snapshot, String energy ) throws Exception {
+        ByteArrayOutputStream binary = new ByteArrayOutputStream();
+        new ManaBinaryWriter().write( snapshot, energy, false, binary );
+        StringWriter writer = new StringWriter();
+        new ManaBinaryReader( new ByteArrayInputStream( binary.toByteArray() ) ).toJson( writer );
+        return writer.toString();
+    }
+
+}
@@ -0,0 +1,167 @@
+package at.mana.instrument.format;
+
+import at.mana.instrument.trace.MethodTable;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ManaSpillFileTest extends TestCase {
+
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        file = File.createTempFile( "mana", ManaFormat.SPILL.getExtension() );
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Files.deleteIfExists( file.toPath() );
+    }
+
+    public void testCallsArePairedAndOrdered() throws Exception {
+        int base = MethodTable.register( List.of(
+                new MethodTable.Method( "at.mana.Sample", "outer", "()V", 0 ),
+                new MethodTable.Method( "at.mana.Sample", "inner", "()V", 1 ) ) );
+        ManaSpillFile spill = new ManaSpillFile( file );
+        long time = System.nanoTime();
+        spill.enter( base, time );
+        spill.enter( base + 1, time + 1_000 );
+        spill.exit( base + 1, time + 3_000 );
+        spill.exit( base, time + 10_000 );
+        spill.close( "[{\"time\":\"1\"}]", false );
+
+        List<String[]> calls = new ArrayList<>();
+        String energy = read( calls );
+        assertEquals( 2, calls.size() );
+        assertEquals( "outer", calls.get( 0 )[0] );
+        assertEquals( "inner", calls.get( 1 )[0] );
+        assertEquals( 10, duration( calls.get( 0 ) ) );
+        assertEquals( 2, duration( calls.get( 1 ) ) );
+        assertEquals( Thread.currentThread().getName(), calls.get( 0 )[3] );
+        assertEquals( "[{\"time\":\"1\"}]", energy );
+    }
+
+    public void testThreadsSpanSeveralChunks() throws Exception {
+        int id = MethodTable.register( List.of( new MethodTable.Method( "at.mana.Sample", "loop", "()V", 0 ) ) );
+        ManaSpillFile spill = new ManaSpillFile( file );
+        int calls = 10_000;
+        Thread[] threads = new Thread[4];
+        for( int t = 0; t < threads.length; t++ ) {
+            threads[t] = new Thread( () -> {
+                for( int i = 0; i < calls; i++ ) {
+                    long time = System.nanoTime();
+                    spill.enter( id, time );
+                    spill.exit( id, time );
+                }
+            }, "worker-" + t );
+            threads[t].start();
+        }
+        for( Thread thread : threads ) {
+            thread.join();
+        }
+        spill.close( null, false );
+        assertEquals( 0, spill.getDropped() );
+
+        List<String[]> result = new ArrayList<>();
+        assertNull( read( result ) );
+        assertEquals( threads.length * calls, result.size() );
+        for( int i = 1; i < result.size(); i++ ) {
+            assertTrue( Long.parseLong( result.get( i - 1 )[1] ) <= Long.parseLong( result.get( i )[1] ) );
+        }
+    }
+
+    public void testEventsAfterCloseAreDropped() throws Exception {
+        ManaSpillFile spill = new ManaSpillFile( file );
+        spill.close( null, false );
+        spill.enter( 0, System.nanoTime() );
+        assertEquals( 1, spill.getDropped() );
+    }
+
+    public void testExceptionsAreKept() throws Exception {
+        int id = MethodTable.register( List.of( new MethodTable.Method( "at.mana.Sample", "fail", "()V", 0 ) ) );
+        ManaSpillFile spill = new ManaSpillFile( file );
+        long time = System.nanoTime();
+        spill.enter( id, time );
+        spill.exitExceptionally( id, time + 1_000 );
+        spill.enter( id, time + 2_000 );
+        spill.exit( id, time + 3_000 );
+        spill.close( null, true );
+
+        List<String[]> calls = new ArrayList<>();
+        read( calls );
+        assertEquals( 2, calls.size() );
+        assertEquals( "true", calls.get( 0 )[4] );
+        assertNull( calls.get( 1 )[4] );
+        StringWriter json = new StringWriter();
+        new ManaSpillReader( file ).toJson( json );
+        assertTrue( json.toString().endsWith( ", \"exception\":\"true\"}" ) );
+    }
+
+    public void testMetaIsAppended() throws Exception {
+        ManaSpillFile spill = new ManaSpillFile( file );
+        spill.enter( 0, System.nanoTime() );
+        spill.close( "[]", false, 1.0, "{\"droppedEvents\":0}" );
+        StringWriter json = new StringWriter();
+        new ManaSpillReader( file ).toJson( json );
+        assertTrue( json.toString().endsWith( ", \"energy\":[], \"meta\":{\"droppedEvents\":0}}" ) );
+    }
+
+    private static long duration( String[] call ) {
+        return Long.parseLong( call[2] ) - Long.parseLong( call[1] );
+    }
+
+    /**
+     * Converts the spill file and collects method name, start, end, thread and exception of every call
+     *
+     * @return the energy section or null if there is none
+     */
+    private String read( List<String[]> calls ) throws Exception {
+        StringWriter json = new StringWriter();
+        new ManaSpillReader( file ).toJson( json );
+        String energy = null;
+        try( JsonReader reader = new JsonReader( new StringReader( json.toString() ) ) ) {
+            reader.beginObject();
+            while( reader.hasNext() ) {
+                String section = reader.nextName();
+                if( section.equals( "energy" ) ) {
+                    energy = json.toString().substring( json.toString().indexOf( "\"energy\":" ) + 9, json.toString().length() - 1 );
+                    reader.skipValue();
+                    continue;
+                }
+                if( section.equals( "exception" ) ) {
+                    reader.skipValue();
+                    continue;
+                }
+                reader.beginArray();
+                while( reader.hasNext() ) {
+                    String[] call = new String[5];
+                    reader.beginObject();
+                    while( reader.hasNext() ) {
+                        String name = reader.nextName();
+                        String value = reader.nextString();
+                        switch( name ) {
+                            case "methodName": call[0] = value; break;
+                            case "start": call[1] = value; break;
+                            case "end": call[2] = value; break;
+                            case "thread": call[3] = value; break;
+                            case "exception": call[4] = value; break;
+                            default:
+                        }
+                    }
+                    reader.endObject();
+                    calls.add( call );
+                }
+                reader.endArray();
+            }
+            reader.endObject();
+        }
+        return energy;
+    }
+
+}
@@ -0,0 +1,64 @@
+package at.mana.instrument.trace;
+
+import junit.framework.TestCase;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+public class MethodTableTest extends TestCase {
+
+    public void testClassesReceiveConsecutiveIds() {
+        int first = MethodTable.register( "at.mana.table.First", 2 );
+        int second = MethodTable.register( "at.mana.table.Second", 3 );
+        assertEquals( first + 2, second );
+        assertEquals( second + 3, MethodTable.size() );
+        // classes missing from the method tables still resolve to their ordinal
+        assertEquals( "at.mana.table.First", MethodTable.get( first + 1 ).getClassName() );
+        assertEquals( "unknown#1", MethodTable.get( first + 1 ).getMethodName() );
+        assertEquals( 2, MethodTable.get( second + 2 ).getOrdinal() );
+        assertNull( MethodTable.get( MethodTable.size() ) );
+        assertNull( MethodTable.get( -1 ) );
+    }
+
+    public void testDefinedRowsAreUsedOnRegistration() {
+        MethodTable.define( "at.mana.table.Loaded", List.of(
+                new MethodTable.Method( "at.mana.table.Loaded", "run", "()V", 1 ),
+                new MethodTable.Method( "at.mana.table.Loaded", "<init>", "()V", 0 ) ) );
+        int base = MethodTable.register( "at.mana.table.Loaded", 2 );
+        assertEquals( "<init>", MethodTable.get( base ).getMethodName() );
+        assertEquals( "run", MethodTable.get( base + 1 ).getMethodName() );
+        assertEquals( "()V", MethodTable.get( base + 1 ).getMethodDesc() );
+    }
+
+    public void testInternedMethodsKeepTheirId() {
+        int id = MethodTable.intern( "at.mana.table.Legacy", "run", "()V" );
+        assertEquals( id, MethodTable.intern( "at.mana.table.Legacy", "run", "()V" ) );
+        assertTrue( id != MethodTable.intern( "at.mana.table.Legacy", "run", "(I)V" ) );
+    }
+
+    public void testWriteAndRead() throws Exception {
+        Map<String, List<MethodTable.Method>> rows = new TreeMap<>();
+        rows.put( "at.mana.table.B", List.of( new MethodTable.Method( "at.mana.table.B", "run", "()V", 0 ) ) );
+        rows.put( "at.mana.table.A", List.of(
+                new MethodTable.Method( "at.mana.table.A", "tab\tbed", "(Ljava/lang/String;)V", 0 ),
+                new MethodTable.Method( "at.mana.table.A", "line\nbreak\\n", "", 1 ) ) );
+        StringWriter table = new StringWriter();
+        MethodTable.write( table, rows );
+        String[] lines = table.toString().split( "\\R" );
+        assertEquals( 4, lines.length );
+        assertTrue( lines[0].startsWith( "#" ) );
+        assertEquals( "at.mana.table.A\t0\ttab\\tbed\t(Ljava/lang/String;)V", lines[1] );
+
+        Map<String, List<MethodTable.Method>> read = MethodTable.read( new StringReader( table.toString() ) );
+        assertEquals( List.of( "at.mana.table.A", "at.mana.table.B" ), List.copyOf( read.keySet() ) );
+        MethodTable.Method escaped = read.get( "at.mana.table.A" ).get( 1 );
+        assertEquals( "line\nbreak\\n", escaped.getMethodName() );
+        assertEquals( "", escaped.getMethodDesc() );
+        assertEquals( 1, escaped.getOrdinal() );
+        assertEquals( "tab\tbed", read.get( "at.mana.table.A" ).get( 0 ).getMethodName() );
+    }
+
+}
@@ -0,0 +1,43 @@
+package at.mana.instrument.trace;
+
+import junit.framework.TestCase;
+
+import java.io.StringWriter;
+import java.util.List;
+
+public class TraceJsonWriterTest extends TestCase {
+
+    public void testEntryLayout() throws Exception {
+        int id = MethodTable.register( List.of( new MethodTable.Method( "at.mana.Sample", "run", "()V", 0 ) ) );
+        TraceRecorder recorder = new TraceRecorder( 16 );
+        long start = recorder.toNanos( 1_000_000L );
+        recorder.enter( id, start );
+        recorder.exit( id, start + 2_000_000L );
+
+        StringWriter writer = new StringWriter();
+        new TraceJsonWriter().write( recorder.snapshot(), writer );
+
+        int hash = MethodTable.get( id ).getHash();
+        assertEquals( "[{\"methodName\":\"run\", \"className\":\"at.mana.Sample\", \"methodDescriptor\":\"()V\", "
+                + "\"hash\":\"" + hash + "\", \"startWall\":\"1000\", \"endWall\":\"1002\", "
+                + "\"start\":\"1000000\", \"end\":\"1002000\", \"thread\":\"" + Thread.currentThread().getName() + "\" }]",
+                writer.toString() );
+    }
+
+    public void testLargeTraceIsStreamed() throws Exception {
+        int id = MethodTable.register( List.of( new MethodTable.Method( "at.mana.Sample", "loop", "()V", 0 ) ) );
+        TraceRecorder recorder = new TraceRecorder( 1 << 14 );
+        for( int i = 0; i < 4096; i++ ) {
+            recorder.enter( id, i );
+            recorder.exit( id, i );
+        }
+
+        StringWriter writer = new StringWriter();
+        new TraceJsonWriter().write( recorder.snapshot(), writer );
+        String json = writer.toString();
+        assertTrue( json.startsWith( "[{" ) );
+        assertTrue( json.endsWith( "}]" ) );
+        assertEquals( 4096, json.split( "\"methodName\"" ).length - 1 );
+    }
+
+}
@@ -0,0 +1,155 @@
+package at.mana.instrument.trace;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class TraceRecorderTest extends TestCase {
+
+    public void testNestedCallsArePaired() {
+        TraceRecorder recorder = new TraceRecorder( 16 );
+        recorder.enter( 1, 100 );
+        recorder.enter( 2, 110 );
+        recorder.exit( 2, 120 );
+        recorder.exit( 1, 130 );
+
+        TraceSnapshot snapshot = recorder.snapshot();
+        assertEquals( 2, snapshot.size() );
+        assertEquals( 1, snapshot.getId( 0 ) );
+        assertEquals( 130, snapshot.getEnd( 0 ) );
+        assertEquals( 2, snapshot.getId( 1 ) );
+        assertEquals( 110, snapshot.getStart( 1 ) );
+        assertEquals( 120, snapshot.getEnd( 1 ) );
+    }
+
+    public void testExceptionalExitsAreMarked() {
+        TraceRecorder recorder = new TraceRecorder( 16 );
+        recorder.enter( 1, 100 );
+        recorder.enter( 2, 110 );
+        recorder.exitExceptionally( 2, 120 );
+        recorder.exit( 1, 130 );
+
+        TraceSnapshot snapshot = recorder.snapshot();
+        assertEquals( 2, snapshot.size() );
+        assertFalse( snapshot.isThrown( 0 ) );
+        assertTrue( snapshot.isThrown( 1 ) );
+        assertEquals( 120, snapshot.getEnd( 1 ) );
+    }
+
+    public void testBetweenKeepsCallsStartedWithinThePeriod() {
+        TraceRecorder recorder = new TraceRecorder( 16 );
+        for( int i = 0; i < 4; i++ ) {
+            recorder.enter( i, i * 100L );
+            recorder.exit( i, i * 100L + 50 );
+        }
+
+        TraceSnapshot snapshot = recorder.snapshot().between( 100, 200 );
+        assertEquals( 2, snapshot.size() );
+        assertEquals( 1, snapshot.getId( 0 ) );
+        assertEquals( 2, snapshot.getId( 1 ) );
+        assertEquals( 250, snapshot.getEnd( 1 ) );
+    }
+
+    public void testResetDropsPreviousCalls() {
+        TraceRecorder recorder = new TraceRecorder( 16 );
+        recorder.enter( 1, 100 );
+        recorder.exit( 1, 110 );
+        recorder.reset();
+        recorder.enter( 2, 120 );
+        recorder.exit( 2, 130 );
+
+        TraceSnapshot snapshot = recorder.snapshot();
+        assertEquals( 1, snapshot.size() );
+        assertEquals( 2, snapshot.getId( 0 ) );
+    }
+
+    public void testEventsAreCountedAcrossResets() throws Exception {
+        TraceRecorder recorder = new TraceRecorder( 8 );
+        Thread thread = new Thread( () -> {
+            recorder.enter( 1, 100 );
+            recorder.exit( 1, 110 );
+        } );
+        thread.start();
+        thread.join();
+        for( int i = 0; i < 10; i++ ) {
+            recorder.enter( 2, 200 + i );
+            recorder.exit( 2, 205 + i );
+        }
+        assertEquals( 22, recorder.getEvents() );
+        // the buffer of the terminated thread is released, its events remain counted
+        recorder.reset();
+        assertEquals( 22, recorder.getEvents() );
+    }
+
+    public void testOverrunDropsOldestEvents() {
+        TraceRecorder recorder = new TraceRecorder( 8 );
+        for( int i = 0; i < 10; i++ ) {
+            recorder.enter( i, i * 10L );
+            recorder.exit( i, i * 10L + 5 );
+        }
+
+        TraceSnapshot snapshot = recorder.snapshot();
+        assertEquals( 12, snapshot.getDropped() );
+        assertEquals( 4, snapshot.size() );
+        assertEquals( 6, snapshot.getId( 0 ) );
+    }
+
+    public void testCursorReadsEveryCallOnce() {
+        TraceRecorder recorder = new TraceRecorder( 16 );
+        recorder.enter( 9, 50 );
+        TraceCursor cursor = recorder.cursor();
+        recorder.enter( 1, 100 );
+        recorder.enter( 2, 110 );
+        recorder.exit( 2, 120 );
+        TraceSnapshot batch = cursor.next( 100, Long.MAX_VALUE, false );
+        assertEquals( 1, batch.size() );
+        assertEquals( 2, batch.getId( 0 ) );
+
+        recorder.enter( 3, 130 );
+        recorder.exitExceptionally( 3, 140 );
+        recorder.exit( 1, 150 );
+        // the call entered before the cursor was created is left out
+        recorder.exit( 9, 160 );
+        recorder.enter( 4, 170 );
+        batch = cursor.next( 100, Long.MAX_VALUE, false );
+        assertEquals( 2, batch.size() );
+        assertEquals( 1, batch.getId( 0 ) );
+        assertEquals( 150, batch.getEnd( 0 ) );
+        assertEquals( 3, batch.getId( 1 ) );
+        assertTrue( batch.isThrown( 1 ) );
+
+        // the open call ends with the batch, calls started later are left out
+        batch = cursor.next( 100, 170, true );
+        assertEquals( 1, batch.size() );
+        assertEquals( 4, batch.getId( 0 ) );
+        assertEquals( 0, cursor.next( 100, 160, true ).size() );
+    }
+
+    public void testThreadsAreMergedByStartTime() throws Exception {
+        TraceRecorder recorder = new TraceRecorder( 1024 );
+        List<Thread> threads = new ArrayList<>();
+        for( int t = 0; t < 4; t++ ) {
+            final int offset = t;
+            threads.add( new Thread( () -> {
+                for( int i = 0; i < 100; i++ ) {
+                    long time = i * 4L + offset;
+                    recorder.enter( offset, time );
+                    recorder.exit( offset, time + 1 );
+                }
+            }, "worker-" + t ) );
+        }
+        for( Thread thread : threads )
+            thread.start();
+        for( Thread thread : threads )
+            thread.join();
+
+        TraceSnapshot snapshot = recorder.snapshot();
+        assertEquals( 400, snapshot.size() );
+        for( int i = 0; i < snapshot.size(); i++ ) {
+            assertEquals( i, snapshot.getStart( i ) );
+            assertEquals( "worker-" + snapshot.getId( i ), snapshot.getThreadName( i ) );
+        }
+    }
+
+}
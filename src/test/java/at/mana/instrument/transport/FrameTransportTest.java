@@ -0,0 +1,123 @@
+package at.mana.instrument.transport;
+
+import at.mana.instrument.trace.TraceCursor;
+import at.mana.instrument.trace.TraceRecorder;
+import at.mana.instrument.trace.TraceSnapshot;
+import junit.framework.TestCase;
+
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class FrameTransportTest extends TestCase {
+
+    public void testFramesArriveInOrder() throws Exception {
+        try( LoopbackCollector collector = new LoopbackCollector( 0 ) ) {
+            FrameTransport transport = transport( collector.getPort(), 16, OverflowPolicy.BLOCK, null );
+            for( int i = 0; i < 100; i++ )
+                assertTrue( transport.send( new Frame( Frame.TRACE, i, "[" + i + "]" ) ) );
+            transport.close();
+            for( int i = 0; i < 100; i++ ) {
+                Frame frame = collector.take();
+                assertEquals( Frame.TRACE, frame.getType() );
+                assertEquals( i, frame.getMeasurement() );
+                assertEquals( "[" + i + "]", frame.getPayload() );
+            }
+            assertEquals( 100, transport.getSent() );
+            assertEquals( 0, transport.getDropped() );
+        }
+    }
+
+    public void testReconnectsOnceTheCollectorIsUp() throws Exception {
+        int port = freePort();
+        FrameTransport transport = transport( port, 16, OverflowPolicy.BLOCK, null );
+        assertTrue( transport.send( new Frame( Frame.START, 1, "{}" ) ) );
+        Thread.sleep( 300 );
+        try( LoopbackCollector collector = new LoopbackCollector( port ) ) {
+            assertEquals( Frame.START, collector.take().getType() );
+            transport.close();
+            assertEquals( 1, transport.getConnections() );
+        }
+    }
+
+    public void testFullQueueDropsFrames() throws Exception {
+        FrameTransport transport = transport( freePort(), 2, OverflowPolicy.DROP_NEWEST, null );
+        for( int i = 0; i < 5; i++ )
+            transport.send( new Frame( Frame.TRACE, 1, "[]" ) );
+        assertEquals( 3, transport.getDropped() );
+        assertFalse( transport.trySend( new Frame( Frame.TRACE, 1, "[]" ) ) );
+        assertEquals( 3, transport.getDropped() );
+    }
+
+    public void testTickRunsOnTheTransportThread() throws Exception {
+        CountDownLatch ticks = new CountDownLatch( 3 );
+        FrameTransport transport = transport( freePort(), 2, OverflowPolicy.DROP_OLDEST, ticks::countDown );
+        assertTrue( ticks.await( 5, TimeUnit.SECONDS ) );
+        transport.close();
+    }
+
+    public void testBatchesLoseNoCallRecordedConcurrently() throws Exception {
+        TraceRecorder recorder = new TraceRecorder( 1 << 16 );
+        TraceCursor cursor = recorder.cursor();
+        int threads = 4;
+        int calls = 5_000;
+        try( LoopbackCollector collector = new LoopbackCollector( 0 ) ) {
+            FrameTransport[] transport = new FrameTransport[1];
+            Runnable batch = () -> {
+                synchronized( cursor ) {
+                    TraceSnapshot snapshot = cursor.next( Long.MIN_VALUE, Long.MAX_VALUE, false );
+                    if( snapshot.size() > 0 )
+                        transport[0].send( new Frame( Frame.TRACE, 1, Integer.toString( snapshot.size() ) ) );
+                }
+            };
+            transport[0] = transport( collector.getPort(), 1024, OverflowPolicy.BLOCK, () -> {
+                if( transport[0] != null )
+                    batch.run();
+            } );
+            List<Thread> workers = new ArrayList<>();
+            for( int t = 0; t < threads; t++ ) {
+                Thread worker = new Thread( () -> {
+                    for( int i = 0; i < calls; i++ ) {
+                        recorder.enter( 1, System.nanoTime() );
+                        recorder.enter( 2, System.nanoTime() );
+                        recorder.exit( 2, System.nanoTime() );
+                        recorder.exit( 1, System.nanoTime() );
+                    }
+                } );
+                workers.add( worker );
+                worker.start();
+            }
+            for( Thread worker : workers )
+                worker.join();
+            batch.run();
+            transport[0].close();
+
+            int received = 0;
+            Frame frame;
+            while( received < threads * calls * 2 && (frame = collector.take()) != null )
+                received += Integer.parseInt( frame.getPayload() );
+            assertEquals( threads * calls * 2, received );
+            assertEquals( 0, cursor.getDropped() );
+            assertEquals( 0, cursor.next( Long.MIN_VALUE, Long.MAX_VALUE, true ).size() );
+        }
+    }
+
+    public void testOverflowPolicyNames() {
+        assertEquals( OverflowPolicy.DROP_OLDEST, OverflowPolicy.of( "drop-oldest" ) );
+        assertEquals( OverflowPolicy.BLOCK, OverflowPolicy.of( null ) );
+    }
+
+    private static FrameTransport transport( int port, int capacity, OverflowPolicy policy, Runnable tick ) throws Exception {
+        return new FrameTransport( new InetSocketAddress( "localhost", port ), capacity, policy, 10, tick );
+    }
+
+    private static int freePort() throws Exception {
+        try( ServerSocket socket = new ServerSocket( 0 ) ) {
+            return socket.getLocalPort();
+        }
+    }
+
+}
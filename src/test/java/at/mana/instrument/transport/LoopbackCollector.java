@@ -0,0 +1,60 @@
+package at.mana.instrument.transport;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collector stub listening on the loopback interface, it accepts any number of connections one
+ * after the other and keeps the frames received
+ */
+public class LoopbackCollector implements Closeable {
+
+    private final ServerSocket server;
+    private final BlockingQueue<Frame> frames = new LinkedBlockingQueue<>();
+    private final Thread thread;
+
+    public LoopbackCollector( int port ) throws IOException {
+        server = new ServerSocket( port, 1, InetAddress.getLoopbackAddress() );
+        thread = new Thread( this::accept, "loopback-collector" );
+        thread.setDaemon( true );
+        thread.start();
+    }
+
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * @return the next frame received or null if none arrived in time
+     */
+    public Frame take() throws InterruptedException {
+        return frames.poll( 5, TimeUnit.SECONDS );
+    }
+
+    private void accept() {
+        while( !server.isClosed() ) {
+            try( Socket socket = server.accept();
+                 DataInputStream in = new DataInputStream( new BufferedInputStream( socket.getInputStream() ) ) ) {
+                Frame frame;
+                while( (frame = Frame.read( in )) != null )
+                    frames.add( frame );
+            } catch( IOException e ) {
+                // connection closed, wait for the next one
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+    }
+
+}